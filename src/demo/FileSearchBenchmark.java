@@ -0,0 +1,117 @@
+package demo;
+
+import java.awt.Point;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.terifan.sourcecodeeditor.Document;
+import org.terifan.sourcecodeeditor.FileSearch;
+import org.terifan.sourcecodeeditor.FileSearchListener;
+import org.terifan.sourcecodeeditor.FileSearchResult;
+import org.terifan.sourcecodeeditor.FileSearchService;
+import org.terifan.sourcecodeeditor.RegexSearch;
+import org.terifan.sourcecodeeditor.TextSearch;
+
+
+/**
+ * Measures the time spent finding every match of a word in the files of a directory tree by loading each file into a Document and by a
+ * FileSearchService searching one file at a time and as many files at a time as there are processors.
+ *
+ * Usage: FileSearchBenchmark [directory [word]]
+ */
+public class FileSearchBenchmark
+{
+	public static void main(String... args) throws Exception
+	{
+		Path directory = Paths.get(args.length > 0 ? args[0] : "src");
+		String word = args.length > 1 ? args[1] : "return";
+		int processors = Runtime.getRuntime().availableProcessors();
+
+		for (int i = 0; i < 3; i++)
+		{
+			boolean print = i == 2;
+
+			measure("Document per file", () -> documentSearch(directory, word), print);
+			measure("FileSearch, 1 thread", () -> fileSearch(directory, new FileSearchService(1), new TextSearch(word, false, false)), print);
+			measure("FileSearch, " + processors + " threads", () -> fileSearch(directory, new FileSearchService(processors), new TextSearch(word, false, false)), print);
+			measure("FileSearch, regex", () -> fileSearch(directory, new FileSearchService(processors), new RegexSearch("\\b" + word + "\\b", false)), print);
+		}
+	}
+
+
+	private static int documentSearch(Path aDirectory, String aWord) throws IOException
+	{
+		TextSearch search = new TextSearch(aWord, false, false);
+		int count = 0;
+
+		List<Path> files;
+		try (Stream<Path> stream = Files.walk(aDirectory))
+		{
+			files = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+		}
+
+		for (Path file : files)
+		{
+			Document document = new Document(file.toFile());
+
+			for (Point p = search.findNext(document, 0, 0, false); p != null; p = search.findNext(document, p.x + search.length(), p.y, false))
+			{
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+
+	private static int fileSearch(Path aDirectory, FileSearchService aService, Object aSearch) throws InterruptedException
+	{
+		AtomicInteger count = new AtomicInteger();
+
+		FileSearchListener listener = new FileSearchListener()
+		{
+			@Override
+			public void matchFound(FileSearchResult aResult)
+			{
+				count.incrementAndGet();
+			}
+
+
+			@Override
+			public void searchCompleted(FileSearch aFileSearch)
+			{
+			}
+		};
+
+		FileSearch search = aSearch instanceof TextSearch ? aService.search(aDirectory, null, (TextSearch)aSearch, listener) : aService.search(aDirectory, null, (RegexSearch)aSearch, listener);
+		search.await();
+
+		return count.get();
+	}
+
+
+	private static void measure(String aLabel, Search aSearch, boolean aPrint) throws Exception
+	{
+		long time = System.nanoTime();
+
+		int count = aSearch.run();
+
+		time = System.nanoTime() - time;
+
+		if (aPrint)
+		{
+			System.out.printf("%-26s %8.2f ms %6d matches%n", aLabel, time / 1e6, count);
+		}
+	}
+
+
+	private interface Search
+	{
+		int run() throws Exception;
+	}
+}
\ No newline at end of file
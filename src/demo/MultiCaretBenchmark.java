@@ -0,0 +1,83 @@
+package demo;
+
+import org.terifan.sourcecodeeditor.Document;
+import org.terifan.sourcecodeeditor.SourceEditor;
+import org.terifan.sourcecodeeditor.StyleMaps;
+import org.terifan.sourcecodeeditor.parsers.JavaSyntaxParser;
+
+
+/**
+ * Measures the time spent, the document events fired editing and undoing, and the undoable edits added deleting every occurrence of a word, once with a caret
+ * selecting each occurrence and once by selecting and deleting one occurrence at a time, and the time spent undoing the deletions.
+ */
+public class MultiCaretBenchmark
+{
+	private final static int LINES = 20_000;
+
+
+	public static void main(String... args)
+	{
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < LINES; i++)
+		{
+			text.append("\t\tvalue = value * ").append(i).append(";\n");
+		}
+
+		for (int i = 0; i < 3; i++)
+		{
+			boolean print = i == 2;
+
+			measure("caret per occurrence", text.toString(), true, print);
+			measure("one edit per occurrence", text.toString(), false, print);
+		}
+	}
+
+
+	private static void measure(String aLabel, String aText, boolean aMultiCaret, boolean aPrint)
+	{
+		Document document = new Document(aText);
+		SourceEditor editor = new SourceEditor(new JavaSyntaxParser(), document, StyleMaps.getJavaLight());
+		editor.setSize(1000, 1000);
+		editor.doLayout();
+
+		int[] events = new int[1];
+		document.addDocumentListener(e -> events[0]++);
+
+		long time = System.nanoTime();
+
+		int carets = 0;
+		if (aMultiCaret)
+		{
+			editor.getCaret().moveAbsolute(3, 0, false, false, true);
+			carets = editor.addCaretsAtOccurrences();
+			editor.deletePreviousCharacter();
+		}
+		else
+		{
+			for (int line = 0; line < LINES; line++)
+			{
+				for (int column; (column = document.getLine(line).indexOf("value")) != -1; carets++)
+				{
+					editor.setSelectionStart(column, line);
+					editor.setSelectionEnd(column + 5, line);
+					editor.deletePreviousCharacter();
+				}
+			}
+		}
+
+		long editTime = System.nanoTime() - time;
+
+		int edits = 0;
+		time = System.nanoTime();
+		for (; editor.canUndo(); edits++)
+		{
+			editor.undo();
+		}
+		long undoTime = System.nanoTime() - time;
+
+		if (aPrint)
+		{
+			System.out.printf("%-24s %6d carets %8.1f ms %6d events %6d edits, undo %8.1f ms%n", aLabel, carets, editTime / 1e6, events[0], edits, undoTime / 1e6);
+		}
+	}
+}
\ No newline at end of file
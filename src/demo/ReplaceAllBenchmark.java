@@ -0,0 +1,73 @@
+package demo;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Consumer;
+import org.terifan.sourcecodeeditor.Document;
+import org.terifan.sourcecodeeditor.SourceEditor;
+import org.terifan.sourcecodeeditor.StyleMaps;
+import org.terifan.sourcecodeeditor.parsers.JavaSyntaxParser;
+
+
+/**
+ * Measures the processor time and the memory allocated replacing every occurrence of a word in a document by repeatedly finding and
+ * replacing the next match, as the Replace All button of the FindDialog previously did, and with SourceEditor.replaceAll, together with
+ * the number of undoable edits recorded by each.
+ */
+public class ReplaceAllBenchmark
+{
+	private final static int LINES = 10_000;
+
+
+	public static void main(String... args)
+	{
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < LINES; i++)
+		{
+			text.append("\t\tint value").append(i).append(" = compute(aValue * ").append(i).append(");\t// update the value\n");
+		}
+
+		for (int i = 0; i < 3; i++)
+		{
+			measure("find and replace", text.toString(), aEditor ->
+			{
+				while (aEditor.findText("value", true, true, false, false))
+				{
+					aEditor.replaceSelection("result");
+				}
+			}, i == 2);
+
+			measure("replace all", text.toString(), aEditor -> aEditor.replaceAll("value", "result", true, false, false, false), i == 2);
+		}
+	}
+
+
+	private static void measure(String aLabel, String aText, Consumer<SourceEditor> aReplace, boolean aPrint)
+	{
+		Document document = new Document(aText);
+		SourceEditor editor = new SourceEditor(new JavaSyntaxParser(), document, StyleMaps.getJavaLight());
+		editor.setSize(1000, 800);
+		editor.doLayout();
+
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+		long bytes = bean.getCurrentThreadAllocatedBytes();
+		long time = bean.getCurrentThreadCpuTime();
+
+		aReplace.accept(editor);
+
+		time = bean.getCurrentThreadCpuTime() - time;
+		bytes = bean.getCurrentThreadAllocatedBytes() - bytes;
+
+		int edits = 0;
+		while (document.getUndoManager().canUndo())
+		{
+			document.getUndoManager().undo();
+			edits++;
+		}
+
+		if (aPrint)
+		{
+			System.out.printf("%-18s %10.2f ms %12d bytes %6d undoable edits%n", aLabel, time / 1e6, bytes, edits);
+		}
+	}
+}
\ No newline at end of file
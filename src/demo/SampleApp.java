@@ -14,6 +14,8 @@ import javax.swing.JToggleButton;
 import javax.swing.JToolBar;
 import javax.swing.UIManager;
 import org.terifan.sourcecodeeditor.Document;
+import org.terifan.sourcecodeeditor.Gutter;
+import org.terifan.sourcecodeeditor.Minimap;
 import org.terifan.sourcecodeeditor.parsers.JavaSyntaxParser;
 import org.terifan.sourcecodeeditor.SourceEditor;
 import org.terifan.sourcecodeeditor.StyleMaps;
@@ -174,7 +176,10 @@ public class SampleApp
 	{
 		JPanel panel = new JPanel(new BorderLayout());
 		panel.add(createToolbar(aEditor), BorderLayout.NORTH);
-		panel.add(new JScrollPane(aEditor), BorderLayout.CENTER);
+		JScrollPane scrollPane = new JScrollPane(aEditor);
+		scrollPane.setRowHeaderView(new Gutter(aEditor));
+		panel.add(scrollPane, BorderLayout.CENTER);
+		panel.add(new Minimap(aEditor), BorderLayout.EAST);
 		aTabbedPane.add(aName, panel);
 	}
 
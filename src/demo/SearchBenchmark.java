@@ -0,0 +1,108 @@
+package demo;
+
+import java.awt.Point;
+import java.lang.management.ManagementFactory;
+import java.util.function.IntSupplier;
+import org.terifan.sourcecodeeditor.Document;
+import org.terifan.sourcecodeeditor.TextSearch;
+
+
+/**
+ * Measures the processor time and the memory allocated finding every match of a word in a large document with the line copying search
+ * previously used by SourceEditor.findText and with TextSearch, case sensitive and case insensitive. The word occurs in lower case and
+ * capitalized, the case insensitive searches finding more matches.
+ */
+public class SearchBenchmark
+{
+	private final static int LINES = 500_000;
+	private final static String SEARCH = "value";
+
+
+	public static void main(String... args)
+	{
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < LINES; i++)
+		{
+			text.append("\t\tint value").append(i).append(" = compute(aValue * ").append(i).append(");\t// update the Value of x\n");
+			if (i % 1000 == 0)
+			{
+				text.append("\t\tMatcher.reset();\n");
+			}
+		}
+
+		Document document = new Document(text.toString());
+
+		for (int i = 0; i < 3; i++)
+		{
+			for (boolean caseSensitive : new boolean[]{true, false})
+			{
+				String label = caseSensitive ? "case sensitive" : "ignore case";
+				measure("legacy, " + label, () -> legacySearch(document, SEARCH, caseSensitive), i == 2);
+				measure("TextSearch, " + label, () -> textSearch(document, SEARCH, caseSensitive), i == 2);
+			}
+		}
+	}
+
+
+	private static int legacySearch(Document aDocument, String aSearchString, boolean aCaseSensitive)
+	{
+		int count = 0;
+		int x = 0;
+		String search = aCaseSensitive ? aSearchString : aSearchString.toLowerCase();
+
+		for (int y = 0; y < aDocument.getLineCount(); )
+		{
+			String s = aDocument.getLine(y).substring(x);
+			if (!aCaseSensitive)
+			{
+				s = s.toLowerCase();
+			}
+			int offset = s.indexOf(search);
+			if (offset != -1)
+			{
+				x += offset + search.length();
+				count++;
+			}
+			else
+			{
+				x = 0;
+				y++;
+			}
+		}
+
+		return count;
+	}
+
+
+	private static int textSearch(Document aDocument, String aSearchString, boolean aCaseSensitive)
+	{
+		TextSearch search = new TextSearch(aSearchString, aCaseSensitive, false);
+		int count = 0;
+
+		for (Point p = search.findNext(aDocument, 0, 0, false); p != null; p = search.findNext(aDocument, p.x + search.length(), p.y, false))
+		{
+			count++;
+		}
+
+		return count;
+	}
+
+
+	private static void measure(String aLabel, IntSupplier aSearch, boolean aPrint)
+	{
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+		long bytes = bean.getCurrentThreadAllocatedBytes();
+		long time = bean.getCurrentThreadCpuTime();
+
+		int count = aSearch.getAsInt();
+
+		time = bean.getCurrentThreadCpuTime() - time;
+		bytes = bean.getCurrentThreadAllocatedBytes() - bytes;
+
+		if (aPrint)
+		{
+			System.out.printf("%-26s %8.2f ms %12d bytes %6d matches%n", aLabel, time / 1e6, bytes, count);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,83 @@
+package demo;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import org.terifan.sourcecodeeditor.Document;
+import org.terifan.sourcecodeeditor.SourceEditor;
+import org.terifan.sourcecodeeditor.StyleMaps;
+import org.terifan.sourcecodeeditor.parsers.JavaSyntaxParser;
+
+
+/**
+ * Measures the processor time and the memory allocated painting a tab indented document without a selection, with all text selected and with a
+ * rectangular selection crossing every line. The line image cache is disabled so that every frame paints every token.
+ *
+ * The bytes allocated by selection painting is the difference between the figures with and without a selection.
+ */
+public class SelectionPaintBenchmark
+{
+	private final static int FRAMES = 500;
+
+
+	public static void main(String... args)
+	{
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+		{
+			text.append("\tpublic void method").append(i).append("(int aValue)\n\t{\n");
+			text.append("\t\tint x = aValue * ").append(i).append(";\t// update the value of x\n");
+			text.append("\t\tSystem.out.println(\"value \" + x);\n\t}\n\n");
+		}
+
+		Document document = new Document(text.toString());
+		SourceEditor editor = new SourceEditor(new JavaSyntaxParser(), document, StyleMaps.getJavaLight());
+		editor.setLineImageCacheSize(0);
+		editor.setSize(1000, editor.getPreferredSize().height);
+		editor.doLayout();
+
+		BufferedImage image = new BufferedImage(editor.getWidth(), editor.getHeight(), BufferedImage.TYPE_INT_RGB);
+		int lastLine = document.getLineCount() - 1;
+
+		for (int i = 0; i < 3; i++)
+		{
+			editor.resetSelection();
+			measure("no selection", editor, image, i == 2);
+
+			editor.setRectangularSelection(false);
+			editor.setSelectionStart(0, 0);
+			editor.setSelectionEnd(document.getLineLength(lastLine), lastLine);
+			measure("all selected", editor, image, i == 2);
+
+			editor.setRectangularSelection(true);
+			editor.setSelectionStart(6, 0);
+			editor.setSelectionEnd(22, lastLine);
+			measure("rectangular", editor, image, i == 2);
+		}
+	}
+
+
+	private static void measure(String aLabel, SourceEditor aEditor, BufferedImage aImage, boolean aPrint)
+	{
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+		long bytes = bean.getCurrentThreadAllocatedBytes();
+		long time = bean.getCurrentThreadCpuTime();
+
+		for (int i = 0; i < FRAMES; i++)
+		{
+			Graphics2D g = aImage.createGraphics();
+			g.setClip(0, 0, aImage.getWidth(), aImage.getHeight());
+			aEditor.paintComponent(g);
+			g.dispose();
+		}
+
+		time = bean.getCurrentThreadCpuTime() - time;
+		bytes = bean.getCurrentThreadAllocatedBytes() - bytes;
+
+		if (aPrint)
+		{
+			System.out.printf("%-14s %8.2f ms/frame %10d bytes/frame%n", aLabel, time / 1e6 / FRAMES, bytes / FRAMES);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,107 @@
+package demo;
+
+import java.awt.Font;
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineMetrics;
+import java.util.ArrayList;
+import java.util.HashSet;
+import org.terifan.sourcecodeeditor.Style;
+import org.terifan.sourcecodeeditor.StyleMap;
+import org.terifan.sourcecodeeditor.StyleMaps;
+
+
+/**
+ * Measures the cost of building the default style maps and making them ready for painting.
+ *
+ * The "per style" figure repeats the work every Style used to do in its constructor, measuring line metrics and testing every Latin-1
+ * character for a mono-spaced font once per style. The "shared" figure builds the same maps using the process-wide font metrics cache
+ * where that work is done once per distinct font and only when first needed. Each run uses fonts of its own size so neither benefits
+ * from glyphs measured by the other.
+ */
+public class StyleStartupBenchmark
+{
+	public static void main(String... args)
+	{
+		// warm up the font system and the code paths measured
+		for (Style style : buildMaps(10).get(0).values())
+		{
+			style.isFontMonospaced();
+			initializePerStyle(style.getFont());
+		}
+
+		long t0 = System.nanoTime();
+
+		ArrayList<StyleMap> perStyleMaps = buildMaps(13);
+		for (StyleMap map : perStyleMaps)
+		{
+			for (Style style : map.values())
+			{
+				initializePerStyle(style.getFont());
+			}
+		}
+
+		long t1 = System.nanoTime();
+
+		ArrayList<StyleMap> sharedMaps = buildMaps(14);
+
+		long t2 = System.nanoTime();
+
+		int styles = 0;
+		HashSet<Font> fonts = new HashSet<>();
+		for (StyleMap map : sharedMaps)
+		{
+			for (Style style : map.values())
+			{
+				style.getFontHeight();
+				style.isFontMonospaced();
+				fonts.add(style.getFont());
+				styles++;
+			}
+		}
+
+		long t3 = System.nanoTime();
+
+		System.out.printf("styles: %d, distinct fonts: %d%n", styles, fonts.size());
+		System.out.printf("per style: %.1f ms%n", (t1 - t0) / 1e6);
+		System.out.printf("shared: build maps %.1f ms, first use %.1f ms, total %.1f ms%n", (t2 - t1) / 1e6, (t3 - t2) / 1e6, (t3 - t1) / 1e6);
+	}
+
+
+	private static ArrayList<StyleMap> buildMaps(int aFontSize)
+	{
+		ArrayList<StyleMap> maps = new ArrayList<>();
+		maps.add(StyleMaps.installJava("monospaced", aFontSize, "dark"));
+		maps.add(StyleMaps.installJava("monospaced", aFontSize, ""));
+		maps.add(StyleMaps.installSql("monospaced", aFontSize, "dark"));
+		maps.add(StyleMaps.installSql("monospaced", aFontSize, ""));
+		maps.add(StyleMaps.installXml("monospaced", aFontSize, "dark"));
+		maps.add(StyleMaps.installXml("monospaced", aFontSize, ""));
+		maps.add(StyleMaps.installText("monospaced", aFontSize, ""));
+		return maps;
+	}
+
+
+	private static boolean initializePerStyle(Font aFont)
+	{
+		FontRenderContext frc = new FontRenderContext(null, false, false);
+		LineMetrics lm = aFont.getLineMetrics("", frc);
+		lm.getHeight();
+
+		boolean monospaced = true;
+		int w0 = (int)aFont.getStringBounds("m", frc).getWidth();
+
+		for (int i = 0; i < 256; i++)
+		{
+			if (aFont.canDisplay(i) && !Character.isISOControl(i))
+			{
+				int w = (int)aFont.getStringBounds(Character.toString(i), frc).getWidth();
+				if (w != w0)
+				{
+					monospaced = false;
+				}
+			}
+		}
+
+		return monospaced;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,105 @@
+package demo;
+
+import java.awt.Point;
+import java.util.function.IntSupplier;
+import javax.swing.SwingUtilities;
+import org.terifan.sourcecodeeditor.Document;
+import org.terifan.sourcecodeeditor.RegexSearch;
+import org.terifan.sourcecodeeditor.TextSearch;
+import org.terifan.sourcecodeeditor.TrigramIndex;
+
+
+/**
+ * Measures the time spent finding every match of a rare word, a common word and a regular expression in a large log-like document, with
+ * and without a TrigramIndex, and the time and memory needed to build the index.
+ */
+public class TrigramIndexBenchmark
+{
+	private final static int LINES = 2_000_000;
+
+
+	public static void main(String... args) throws Exception
+	{
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < LINES; i++)
+		{
+			text.append("2024-01-").append(10 + i % 20).append(" INFO  [worker-").append(i % 16).append("] request ").append(i).append(" completed in ").append(i % 1000).append(" ms");
+			if (i % 50_000 == 0)
+			{
+				text.append(", deadlock detected");
+			}
+			text.append('\n');
+		}
+
+		Document plain = new Document(text.toString());
+		Document indexed = new Document(text.toString());
+
+		long time = System.nanoTime();
+		indexed.setTrigramIndexEnabled(true);
+		TrigramIndex index = indexed.getTrigramIndex();
+		while (!index.isReady())
+		{
+			Thread.sleep(1);
+			SwingUtilities.invokeAndWait(() -> {});
+		}
+		time = System.nanoTime() - time;
+
+		System.out.printf("index built in %.0f ms, %d trigrams, %d bytes%n", time / 1e6, index.getTrigramCount(), index.getMemoryUsage());
+
+		for (int i = 0; i < 3; i++)
+		{
+			for (Document document : new Document[]{plain, indexed})
+			{
+				String label = document == plain ? "scan" : "index";
+				boolean print = i == 2;
+
+				measure(label + ", rare word", () -> textSearch(document, "DEADLOCK"), print);
+				measure(label + ", common word", () -> textSearch(document, "completed"), print);
+				measure(label + ", regex", () -> regexSearch(document, "dead\\w+ detected"), print);
+			}
+		}
+	}
+
+
+	private static int textSearch(Document aDocument, String aSearchString)
+	{
+		TextSearch search = new TextSearch(aSearchString, false, false);
+		int count = 0;
+
+		for (Point p = search.findNext(aDocument, 0, 0, false); p != null; p = search.findNext(aDocument, p.x + search.length(), p.y, false))
+		{
+			count++;
+		}
+
+		return count;
+	}
+
+
+	private static int regexSearch(Document aDocument, String aRegex)
+	{
+		RegexSearch search = new RegexSearch(aRegex, false);
+		int count = 0;
+
+		for (RegexSearch.Match m = search.findNext(aDocument, 0, 0, false); m != null; m = search.findNext(aDocument, m.getEnd().x, m.getEnd().y, false))
+		{
+			count++;
+		}
+
+		return count;
+	}
+
+
+	private static void measure(String aLabel, IntSupplier aSearch, boolean aPrint)
+	{
+		long time = System.nanoTime();
+
+		int count = aSearch.getAsInt();
+
+		time = System.nanoTime() - time;
+
+		if (aPrint)
+		{
+			System.out.printf("%-22s %10.2f ms %8d matches%n", aLabel, time / 1e6, count);
+		}
+	}
+}
\ No newline at end of file
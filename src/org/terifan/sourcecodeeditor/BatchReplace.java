@@ -0,0 +1,96 @@
+package org.terifan.sourcecodeeditor;
+
+import java.util.ArrayList;
+
+
+/**
+ * Collects the replacements of a replace all operation and applies them to a Document as a single change. Each changed line is built
+ * once, the text between replacements being copied from the old line, while unchanged lines between changed lines are kept by reference.
+ * Replacements must be added in document order and must not overlap. Replacement text may contain line feeds.
+ */
+class BatchReplace
+{
+	private final Document mDocument;
+	private final ArrayList<String> mLines;
+	private final StringBuilder mText;
+	private int mFirstLine;
+	private int mLine;
+	private int mColumn;
+	private int mCount;
+
+
+	BatchReplace(Document aDocument)
+	{
+		mDocument = aDocument;
+		mLines = new ArrayList<>();
+		mText = new StringBuilder();
+	}
+
+
+	/**
+	 * Replaces the text from a start position up to an end position.
+	 */
+	public void replace(int aStartColumn, int aStartLine, int aEndColumn, int aEndLine, CharSequence aReplacement)
+	{
+		if (mCount == 0)
+		{
+			mFirstLine = aStartLine;
+			mLine = aStartLine;
+		}
+		else if (aStartLine > mLine)
+		{
+			flush();
+
+			for (int line = mLine + 1; line < aStartLine; line++)
+			{
+				mLines.add(mDocument.getLine(line));
+			}
+
+			mLine = aStartLine;
+			mColumn = 0;
+		}
+
+		mText.append(mDocument.getLine(mLine), mColumn, aStartColumn).append(aReplacement);
+		mLine = aEndLine;
+		mColumn = aEndColumn;
+		mCount++;
+	}
+
+
+	/**
+	 * Applies the replacements to the document and returns the number of replacements made.
+	 */
+	public int apply()
+	{
+		if (mCount > 0)
+		{
+			flush();
+			mDocument.replaceLines(mFirstLine, mLine - mFirstLine + 1, mLines);
+		}
+
+		return mCount;
+	}
+
+
+	/**
+	 * Completes the line being built with the remainder of the old line and adds it, split at line feeds, to the new lines.
+	 */
+	private void flush()
+	{
+		String line = mDocument.getLine(mLine);
+		mText.append(line, mColumn, line.length());
+
+		for (int start = 0, end; ; start = end + 1)
+		{
+			end = mText.indexOf("\n", start);
+			if (end == -1)
+			{
+				mLines.add(mText.substring(start));
+				break;
+			}
+			mLines.add(mText.substring(start, end));
+		}
+
+		mText.setLength(0);
+	}
+}
\ No newline at end of file
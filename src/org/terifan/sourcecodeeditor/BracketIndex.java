@@ -0,0 +1,949 @@
+package org.terifan.sourcecodeeditor;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+
+/**
+ * An index of all brackets in a Document built from the tokens of the TokenizationContext shared by the editors of the document. Only
+ * tokens with the SyntaxParser.BRACKETS style are indexed which means brackets inside comments and literals are ignored. Markup tags are
+ * indexed the same way, a TAG token starting an element opens a block which is closed by the end tag or by the end of an empty element
+ * tag.
+ *
+ * The brackets of each line are kept sorted by column. Lines are kept in blocks of about BLOCK_SIZE lines and the nesting depth of the
+ * document is kept in a segment tree over the blocks. Each block and tree node stores the depth change of its lines and the lowest depth
+ * reached within them, which makes it possible to find a matching or enclosing bracket in O(log n) time, plus a scan of the lines of two
+ * blocks, regardless of the distance between the brackets. Lines inserted and removed are spliced into their blocks, the tree being
+ * rebuilt only when a block is split or merged.
+ *
+ * Lines are indexed lazily. The index receives the tokens of every line tokenized by the TokenizationContext as a TokenListener and
+ * keeps the parser state at the start of each line. A query indexes the lines up to the lines it needs, reading the tokens of a line from
+ * the TokenizationContext only if the line changed or its start state differs from the state it was indexed with, and a search for a
+ * matching bracket indexes the following lines in growing steps until the bracket is found. The TokenizationContext must be notified of
+ * changes before the index.
+ */
+class BracketIndex implements DocumentListener, TokenListener
+{
+	private final static int INFINITY = Integer.MAX_VALUE / 2;
+	private final static int OPEN = 4;
+	private final static int[] NO_BRACKETS = new int[0];
+	private final static String BRACKET_CHARACTERS = "([{)]}";
+	private final static int ELEMENT = 3;
+	private final static int BLOCK_SIZE = 256;
+	private final static int INDEX_STEP = 1024;
+
+	private final Document mDocument;
+	private final TokenizationContext mTokenizationContext;
+	private final ArrayList<Block> mBlocks;
+	private final ArrayList<Block> mDirtyBlocks;
+	private int mLineCount;
+	private int mIndexedLines;
+	private int mLeafCount;
+	private int[] mCount;
+	private int[] mSum;
+	private int[] mMinBefore;
+	private int[] mMinAfter;
+	private boolean mTreeValid;
+	private int mOffset; // line within the block found by locate
+
+
+	public BracketIndex(Document aDocument, TokenizationContext aTokenizationContext)
+	{
+		mDocument = aDocument;
+		mTokenizationContext = aTokenizationContext;
+		mBlocks = new ArrayList<>();
+		mDirtyBlocks = new ArrayList<>();
+
+		reset();
+	}
+
+
+	/**
+	 * Returns the position of the bracket matching the bracket found at the position provided or null if there is no bracket at the
+	 * position or if it's unbalanced.
+	 */
+	public Point findMatch(int aColumn, int aRow)
+	{
+		if (aRow < 0 || aRow >= mLineCount)
+		{
+			return null;
+		}
+
+		int[] brackets = getLine(aRow).mBrackets;
+		int index = indexOf(brackets, aColumn);
+
+		if (index == -1)
+		{
+			return null;
+		}
+
+		int depth = getDepthBefore(aRow);
+		for (int i = 0; i < index; i++)
+		{
+			depth += (brackets[i] & OPEN) != 0 ? 1 : -1;
+		}
+
+		if ((brackets[index] & OPEN) != 0)
+		{
+			return findForward(aRow, index + 1, depth);
+		}
+
+		return findBackward(aRow, index, depth - 1);
+	}
+
+
+	/**
+	 * Returns the position of the nearest unbalanced opening bracket found before the position provided or null if the position isn't
+	 * enclosed by any brackets.
+	 */
+	public Point findEnclosingOpen(int aColumn, int aRow)
+	{
+		if (aRow < 0 || aRow >= mLineCount)
+		{
+			return null;
+		}
+
+		int[] brackets = getLine(aRow).mBrackets;
+		int depth = getDepthBefore(aRow);
+		int index = 0;
+		for (; index < brackets.length && (brackets[index] >> 3) < aColumn; index++)
+		{
+			depth += (brackets[index] & OPEN) != 0 ? 1 : -1;
+		}
+
+		return findBackward(aRow, index, depth - 1);
+	}
+
+
+	/**
+	 * Returns the line of the bracket closing the first block opened on the line provided and closed on a later line or -1 if no such
+	 * block exists.
+	 */
+	public int findBlockEnd(int aRow)
+	{
+		if (aRow < 0 || aRow >= mLineCount)
+		{
+			return -1;
+		}
+
+		int[] brackets = getLine(aRow).mBrackets;
+		int depth = getDepthBefore(aRow);
+
+		for (int i = 0; i < brackets.length; i++)
+		{
+			if ((brackets[i] & OPEN) != 0)
+			{
+				Point match = findForward(aRow, i + 1, depth);
+
+				if (match == null)
+				{
+					return -1;
+				}
+				if (match.y > aRow)
+				{
+					return match.y;
+				}
+
+				depth++;
+			}
+			else
+			{
+				depth--;
+			}
+		}
+
+		return -1;
+	}
+
+
+	/**
+	 * Returns the bracket nesting depth at the start of the line.
+	 */
+	public int getDepthBefore(int aRow)
+	{
+		if (aRow < 0 || aRow > mLineCount)
+		{
+			throw new IllegalArgumentException("Row out of bounds: " + aRow);
+		}
+
+		ensureIndexed(aRow - 1);
+		validateTree();
+
+		if (aRow == mLineCount)
+		{
+			return mSum[1];
+		}
+
+		int block = locate(aRow);
+		int depth = getDepthBeforeBlock(block);
+		ArrayList<Line> lines = mBlocks.get(block).mLines;
+
+		for (int i = 0, n = mOffset; i < n; i++)
+		{
+			depth += lines.get(i).mDepthChange;
+		}
+
+		return depth;
+	}
+
+
+	@Override
+	public void documentChanged(DocumentEvent aEvent)
+	{
+		int firstLine = aEvent.getFirstLine();
+		int removed = aEvent.getRemovedLineCount();
+		int inserted = aEvent.getInsertedLineCount();
+
+		if (removed == mLineCount)
+		{
+			reset();
+			return;
+		}
+
+		validateTree();
+
+		int block = firstLine == mLineCount ? mBlocks.size() - 1 : locate(firstLine);
+		int offset = firstLine == mLineCount ? mBlocks.get(block).mLines.size() : mOffset;
+
+		for (int remaining = removed, i = block, from = offset; remaining > 0; from = 0)
+		{
+			ArrayList<Line> lines = mBlocks.get(i).mLines;
+			int count = Math.min(remaining, lines.size() - from);
+
+			lines.subList(from, from + count).clear();
+			remaining -= count;
+
+			if (lines.isEmpty())
+			{
+				mBlocks.remove(i);
+				mTreeValid = false;
+			}
+			else
+			{
+				markDirty(mBlocks.get(i));
+				i++;
+			}
+		}
+
+		// when the block of the first line was removed the lines are inserted at the start of the next block or the end of the last
+		if (block == mBlocks.size())
+		{
+			block--;
+			offset = mBlocks.get(block).mLines.size();
+		}
+
+		Block target = mBlocks.get(block);
+		target.mLines.addAll(offset, Collections.nCopies(inserted, (Line)null));
+		markDirty(target);
+
+		mLineCount += inserted - removed;
+		mIndexedLines = Math.min(mIndexedLines, firstLine);
+
+		rebalance(block);
+		validateTree();
+	}
+
+
+	@Override
+	public void lineTokenized(int aRow, List<Token> aTokens, Object aStartState)
+	{
+		if (aRow >= mLineCount)
+		{
+			return;
+		}
+
+		Block block = mBlocks.get(locate(aRow));
+		Line line = block.mLines.get(mOffset);
+
+		// an unchanged line with the same start state has the same brackets
+		if (line == null || !Objects.equals(line.mStartState, aStartState))
+		{
+			block.mLines.set(mOffset, new Line(aTokens, aStartState));
+			markDirty(block);
+		}
+	}
+
+
+	/**
+	 * Returns the line, indexing all lines up to and including it.
+	 */
+	private Line getLine(int aRow)
+	{
+		ensureIndexed(aRow);
+
+		return mBlocks.get(locate(aRow)).mLines.get(mOffset);
+	}
+
+
+	private Point findForward(int aRow, int aIndex, int aTargetDepth)
+	{
+		int[] brackets = getLine(aRow).mBrackets;
+		int depth = aTargetDepth + 1;
+
+		for (int i = aIndex; i < brackets.length; i++)
+		{
+			depth += (brackets[i] & OPEN) != 0 ? 1 : -1;
+			if (depth <= aTargetDepth)
+			{
+				return new Point(brackets[i] >> 3, aRow);
+			}
+		}
+
+		// lines following the indexed lines are indexed in growing steps until the bracket is found
+		for (int start = aRow + 1, step = INDEX_STEP; start < mLineCount; start = mIndexedLines, step = Math.min(2 * step, 1 << 24))
+		{
+			ensureIndexed((int)Math.min((long)Math.max(mIndexedLines, start) + step, mLineCount) - 1);
+
+			int row = searchForward(start, mIndexedLines, aTargetDepth);
+
+			if (row != -1)
+			{
+				brackets = getLine(row).mBrackets;
+				depth = getDepthBefore(row);
+
+				for (int i = 0; i < brackets.length; i++)
+				{
+					depth += (brackets[i] & OPEN) != 0 ? 1 : -1;
+					if (depth <= aTargetDepth)
+					{
+						return new Point(brackets[i] >> 3, row);
+					}
+				}
+
+				throw new IllegalStateException();
+			}
+		}
+
+		return null;
+	}
+
+
+	private Point findBackward(int aRow, int aIndex, int aTargetDepth)
+	{
+		Point match = scanBackward(aRow, aIndex, aTargetDepth);
+
+		if (match != null)
+		{
+			return match;
+		}
+
+		int row = searchBackward(aRow, aTargetDepth);
+
+		if (row == -1)
+		{
+			return null;
+		}
+
+		return scanBackward(row, getLine(row).mBrackets.length, aTargetDepth);
+	}
+
+
+	/**
+	 * Scans the brackets before the index provided in a line from right to left and returns the first bracket where the depth before it
+	 * is less than or equal to the target depth.
+	 */
+	private Point scanBackward(int aRow, int aIndex, int aTargetDepth)
+	{
+		int[] brackets = getLine(aRow).mBrackets;
+		int depth = getDepthBefore(aRow);
+
+		for (int i = 0; i < aIndex; i++)
+		{
+			depth += (brackets[i] & OPEN) != 0 ? 1 : -1;
+		}
+
+		for (int i = aIndex; --i >= 0;)
+		{
+			depth -= (brackets[i] & OPEN) != 0 ? 1 : -1;
+			if (depth <= aTargetDepth)
+			{
+				return new Point(brackets[i] >> 3, aRow);
+			}
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * Returns the first indexed line from aStart up to aEnd where the depth after any of its brackets reaches the target depth. The lines
+	 * before aEnd must be indexed.
+	 */
+	private int searchForward(int aStart, int aEnd, int aTargetDepth)
+	{
+		validateTree();
+
+		int block = locate(aStart);
+		int offset = mOffset;
+		int row = aStart;
+		int depth = getDepthBefore(aStart);
+		ArrayList<Line> lines = mBlocks.get(block).mLines;
+
+		for (int i = offset, n = lines.size(); i < n && row < aEnd; i++, row++)
+		{
+			Line line = lines.get(i);
+			if (line.mMinAfter < INFINITY && depth + line.mMinAfter <= aTargetDepth)
+			{
+				return row;
+			}
+			depth += line.mDepthChange;
+		}
+
+		if (row >= aEnd)
+		{
+			return -1;
+		}
+
+		// blocks entirely before aEnd are searched in the tree, the block containing aEnd line by line
+		int endBlock = aEnd == mLineCount ? mBlocks.size() : locate(aEnd);
+		int endOffset = aEnd == mLineCount ? 0 : mOffset;
+		int found = searchForward(1, 0, mLeafCount, block + 1, endBlock, 0, aTargetDepth);
+		int limit;
+
+		if (found != -1)
+		{
+			limit = mBlocks.get(found).mLines.size();
+		}
+		else if (endOffset > 0 && endBlock > block)
+		{
+			found = endBlock;
+			limit = endOffset;
+		}
+		else
+		{
+			return -1;
+		}
+
+		row = getLineBeforeBlock(found);
+		depth = getDepthBeforeBlock(found);
+		lines = mBlocks.get(found).mLines;
+
+		for (int i = 0; i < limit; i++, row++)
+		{
+			Line line = lines.get(i);
+			if (line.mMinAfter < INFINITY && depth + line.mMinAfter <= aTargetDepth)
+			{
+				return row;
+			}
+			depth += line.mDepthChange;
+		}
+
+		return -1;
+	}
+
+
+	/**
+	 * Returns the last line before aEnd where the depth before any of its brackets reaches the target depth. The lines before aEnd must
+	 * be indexed.
+	 */
+	private int searchBackward(int aEnd, int aTargetDepth)
+	{
+		validateTree();
+
+		int block = locate(aEnd);
+		int row = searchBackward(block, mOffset, aTargetDepth);
+
+		if (row != -1)
+		{
+			return row;
+		}
+
+		block = searchBackward(1, 0, mLeafCount, block, 0, aTargetDepth);
+
+		if (block == -1)
+		{
+			return -1;
+		}
+
+		return searchBackward(block, mBlocks.get(block).mLines.size(), aTargetDepth);
+	}
+
+
+	/**
+	 * Returns the last line of a block before the offset provided where the depth before any of its brackets reaches the target depth.
+	 */
+	private int searchBackward(int aBlock, int aOffset, int aTargetDepth)
+	{
+		ArrayList<Line> lines = mBlocks.get(aBlock).mLines;
+		int depth = getDepthBeforeBlock(aBlock);
+
+		for (int i = 0; i < aOffset; i++)
+		{
+			depth += lines.get(i).mDepthChange;
+		}
+
+		for (int i = aOffset; --i >= 0;)
+		{
+			Line line = lines.get(i);
+			depth -= line.mDepthChange;
+			if (line.mMinBefore < INFINITY && depth + line.mMinBefore <= aTargetDepth)
+			{
+				return getLineBeforeBlock(aBlock) + i;
+			}
+		}
+
+		return -1;
+	}
+
+
+	/**
+	 * Returns the first block from aStart up to aEnd where the depth after any of its brackets reaches the target depth.
+	 */
+	private int searchForward(int aNode, int aLo, int aHi, int aStart, int aEnd, int aDepth, int aTargetDepth)
+	{
+		if (aHi <= aStart || aLo >= aEnd)
+		{
+			return -1;
+		}
+		if (aLo >= aStart && aHi <= aEnd && (mMinAfter[aNode] >= INFINITY || aDepth + mMinAfter[aNode] > aTargetDepth))
+		{
+			return -1;
+		}
+		if (aHi - aLo == 1)
+		{
+			return aLo;
+		}
+
+		int mid = (aLo + aHi) / 2;
+		int block = searchForward(2 * aNode, aLo, mid, aStart, aEnd, aDepth, aTargetDepth);
+
+		if (block != -1)
+		{
+			return block;
+		}
+
+		return searchForward(2 * aNode + 1, mid, aHi, aStart, aEnd, aDepth + mSum[2 * aNode], aTargetDepth);
+	}
+
+
+	/**
+	 * Returns the last block before aEnd where the depth before any of its brackets reaches the target depth.
+	 */
+	private int searchBackward(int aNode, int aLo, int aHi, int aEnd, int aDepth, int aTargetDepth)
+	{
+		if (aLo >= aEnd)
+		{
+			return -1;
+		}
+		if (aHi <= aEnd && (mMinBefore[aNode] >= INFINITY || aDepth + mMinBefore[aNode] > aTargetDepth))
+		{
+			return -1;
+		}
+		if (aHi - aLo == 1)
+		{
+			return aLo;
+		}
+
+		int mid = (aLo + aHi) / 2;
+		int block = searchBackward(2 * aNode + 1, mid, aHi, aEnd, aDepth + mSum[2 * aNode], aTargetDepth);
+
+		if (block != -1)
+		{
+			return block;
+		}
+
+		return searchBackward(2 * aNode, aLo, mid, aEnd, aDepth, aTargetDepth);
+	}
+
+
+	private static int indexOf(int[] aBrackets, int aColumn)
+	{
+		for (int lo = 0, hi = aBrackets.length - 1; lo <= hi;)
+		{
+			int mid = (lo + hi) >>> 1;
+			int column = aBrackets[mid] >> 3;
+
+			if (column < aColumn)
+			{
+				lo = mid + 1;
+			}
+			else if (column > aColumn)
+			{
+				hi = mid - 1;
+			}
+			else
+			{
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Discards all lines, the lines of the document being indexed again when queried.
+	 */
+	private void reset()
+	{
+		mLineCount = mDocument.getLineCount();
+		mIndexedLines = 0;
+		mBlocks.clear();
+		mDirtyBlocks.clear();
+		mTreeValid = false;
+
+		for (int start = 0; start < mLineCount; start += BLOCK_SIZE)
+		{
+			mBlocks.add(new Block(Math.min(BLOCK_SIZE, mLineCount - start)));
+		}
+
+		validateTree();
+	}
+
+
+	/**
+	 * Ensures the lines up to and including the row provided are indexed. A line keeps its brackets if its start state is the state it was
+	 * indexed with, other lines are read from the TokenizationContext.
+	 */
+	private void ensureIndexed(int aRow)
+	{
+		if (aRow < mIndexedLines)
+		{
+			return;
+		}
+
+		int block = locate(mIndexedLines);
+		int offset = mOffset;
+
+		for (int row = mIndexedLines; row <= aRow; row++)
+		{
+			Object state = row == 0 ? null : mTokenizationContext.getEndState(row - 1);
+			Block entry = mBlocks.get(block);
+			Line line = entry.mLines.get(offset);
+
+			if (line == null || !Objects.equals(line.mStartState, state))
+			{
+				// the line is handed to lineTokenized if the context tokenizes it
+				List<Token> tokens = mTokenizationContext.getTokens(row);
+				line = entry.mLines.get(offset);
+
+				if (line == null || !Objects.equals(line.mStartState, state))
+				{
+					entry.mLines.set(offset, new Line(tokens, state));
+					markDirty(entry);
+				}
+			}
+
+			if (++offset == entry.mLines.size())
+			{
+				block++;
+				offset = 0;
+			}
+		}
+
+		mIndexedLines = aRow + 1;
+	}
+
+
+	/**
+	 * Returns the block containing the row provided, setting mOffset to the line of the row within the block. The line counts of the tree
+	 * are current except while the lines of a change are spliced.
+	 */
+	private int locate(int aRow)
+	{
+		int node = 1;
+		int row = aRow;
+
+		while (node < mLeafCount)
+		{
+			node *= 2;
+			if (row >= mCount[node])
+			{
+				row -= mCount[node];
+				node++;
+			}
+		}
+
+		mOffset = row;
+
+		return node - mLeafCount;
+	}
+
+
+	private int getDepthBeforeBlock(int aBlock)
+	{
+		int depth = 0;
+		for (int lo = mLeafCount, hi = mLeafCount + aBlock; lo < hi; lo >>= 1, hi >>= 1)
+		{
+			if ((lo & 1) != 0)
+			{
+				depth += mSum[lo++];
+			}
+			if ((hi & 1) != 0)
+			{
+				depth += mSum[--hi];
+			}
+		}
+		return depth;
+	}
+
+
+	private int getLineBeforeBlock(int aBlock)
+	{
+		int row = 0;
+		for (int lo = mLeafCount, hi = mLeafCount + aBlock; lo < hi; lo >>= 1, hi >>= 1)
+		{
+			if ((lo & 1) != 0)
+			{
+				row += mCount[lo++];
+			}
+			if ((hi & 1) != 0)
+			{
+				row += mCount[--hi];
+			}
+		}
+		return row;
+	}
+
+
+	/**
+	 * Splits a block grown past twice the block size and merges a block shrunk below a quarter of it with the following block.
+	 */
+	private void rebalance(int aBlock)
+	{
+		ArrayList<Line> lines = mBlocks.get(aBlock).mLines;
+
+		if (lines.size() > 2 * BLOCK_SIZE)
+		{
+			ArrayList<Block> blocks = new ArrayList<>();
+			for (int start = 0; start < lines.size(); start += BLOCK_SIZE)
+			{
+				Block block = new Block(lines.subList(start, Math.min(start + BLOCK_SIZE, lines.size())));
+				markDirty(block);
+				blocks.add(block);
+			}
+
+			mBlocks.remove(aBlock);
+			mBlocks.addAll(aBlock, blocks);
+			mTreeValid = false;
+		}
+		else if (lines.size() < BLOCK_SIZE / 4 && aBlock + 1 < mBlocks.size() && lines.size() + mBlocks.get(aBlock + 1).mLines.size() <= 2 * BLOCK_SIZE)
+		{
+			lines.addAll(mBlocks.remove(aBlock + 1).mLines);
+			markDirty(mBlocks.get(aBlock));
+			mTreeValid = false;
+		}
+	}
+
+
+	private void markDirty(Block aBlock)
+	{
+		if (!aBlock.mDirty)
+		{
+			aBlock.mDirty = true;
+			mDirtyBlocks.add(aBlock);
+		}
+	}
+
+
+	/**
+	 * Updates the sums of changed blocks in the tree, rebuilding the tree if blocks were added or removed.
+	 */
+	private void validateTree()
+	{
+		if (!mTreeValid)
+		{
+			mLeafCount = Integer.highestOneBit(Math.max(1, mBlocks.size()) * 2 - 1);
+			mCount = new int[2 * mLeafCount];
+			mSum = new int[2 * mLeafCount];
+			mMinBefore = new int[2 * mLeafCount];
+			mMinAfter = new int[2 * mLeafCount];
+
+			for (int i = 0; i < mLeafCount; i++)
+			{
+				Block block = i < mBlocks.size() ? mBlocks.get(i) : null;
+				if (block != null)
+				{
+					block.mIndex = i;
+					if (block.mDirty)
+					{
+						block.update();
+					}
+				}
+				setLeaf(i, block);
+			}
+			for (int node = mLeafCount; --node > 0;)
+			{
+				combine(node);
+			}
+
+			mDirtyBlocks.clear();
+			mTreeValid = true;
+			return;
+		}
+
+		for (Block block : mDirtyBlocks)
+		{
+			block.update();
+			setLeaf(block.mIndex, block);
+			for (int node = (mLeafCount + block.mIndex) >> 1; node > 0; node >>= 1)
+			{
+				combine(node);
+			}
+		}
+
+		mDirtyBlocks.clear();
+	}
+
+
+	private void setLeaf(int aBlock, Block aEntry)
+	{
+		int node = mLeafCount + aBlock;
+
+		if (aEntry == null)
+		{
+			mCount[node] = 0;
+			mSum[node] = 0;
+			mMinBefore[node] = INFINITY;
+			mMinAfter[node] = INFINITY;
+		}
+		else
+		{
+			mCount[node] = aEntry.mLines.size();
+			mSum[node] = aEntry.mDepthChange;
+			mMinBefore[node] = aEntry.mMinBefore;
+			mMinAfter[node] = aEntry.mMinAfter;
+		}
+	}
+
+
+	private void combine(int aNode)
+	{
+		int left = 2 * aNode;
+		int right = left + 1;
+
+		mCount[aNode] = mCount[left] + mCount[right];
+		mSum[aNode] = mSum[left] + mSum[right];
+		mMinBefore[aNode] = Math.min(mMinBefore[left], mMinBefore[right] >= INFINITY ? INFINITY : mSum[left] + mMinBefore[right]);
+		mMinAfter[aNode] = Math.min(mMinAfter[left], mMinAfter[right] >= INFINITY ? INFINITY : mSum[left] + mMinAfter[right]);
+	}
+
+
+	/**
+	 * A run of consecutive lines, lines not yet indexed being null, with the depth change of its lines and the lowest depth reached within
+	 * them.
+	 */
+	private static class Block
+	{
+		final ArrayList<Line> mLines;
+		int mIndex; // position in the list of blocks when the tree was built
+		boolean mDirty;
+		int mDepthChange;
+		int mMinBefore;
+		int mMinAfter;
+
+
+		Block(int aLineCount)
+		{
+			mLines = new ArrayList<>(Collections.nCopies(aLineCount, (Line)null));
+			mMinBefore = INFINITY;
+			mMinAfter = INFINITY;
+		}
+
+
+		Block(List<Line> aLines)
+		{
+			mLines = new ArrayList<>(aLines);
+		}
+
+
+		void update()
+		{
+			mDepthChange = 0;
+			mMinBefore = INFINITY;
+			mMinAfter = INFINITY;
+
+			for (Line line : mLines)
+			{
+				if (line != null)
+				{
+					if (line.mMinBefore < INFINITY)
+					{
+						mMinBefore = Math.min(mMinBefore, mDepthChange + line.mMinBefore);
+						mMinAfter = Math.min(mMinAfter, mDepthChange + line.mMinAfter);
+					}
+					mDepthChange += line.mDepthChange;
+				}
+			}
+
+			mDirty = false;
+		}
+	}
+
+
+	private static class Line
+	{
+		final int[] mBrackets;
+		final Object mStartState;
+		int mDepthChange;
+		int mMinBefore;
+		int mMinAfter;
+
+
+		Line(List<Token> aTokens, Object aStartState)
+		{
+			int count = 0;
+			int[] brackets = NO_BRACKETS;
+
+			for (Token token : aTokens)
+			{
+				if (token.isComment())
+				{
+					continue;
+				}
+
+				if (SyntaxParser.BRACKETS.equals(token.getStyle()))
+				{
+					String text = token.getText();
+					for (int i = 0; i < text.length(); i++)
+					{
+						int kind = BRACKET_CHARACTERS.indexOf(text.charAt(i));
+						if (kind != -1)
+						{
+							brackets = add(brackets, count++, ((token.getOffset() + i) << 3) | (kind < 3 ? OPEN | kind : kind - 3));
+						}
+					}
+				}
+				else if ("TAG".equals(token.getStyle()))
+				{
+					switch (token.getText())
+					{
+						case "<":
+							brackets = add(brackets, count++, (token.getOffset() << 3) | OPEN | ELEMENT);
+							break;
+						case "</":
+						case "/>":
+							brackets = add(brackets, count++, (token.getOffset() << 3) | ELEMENT);
+							break;
+					}
+				}
+			}
+
+			mBrackets = count == brackets.length ? brackets : Arrays.copyOf(brackets, count);
+			mStartState = aStartState;
+
+			mMinBefore = INFINITY;
+			mMinAfter = INFINITY;
+			for (int entry : mBrackets)
+			{
+				mMinBefore = Math.min(mMinBefore, mDepthChange);
+				mDepthChange += (entry & OPEN) != 0 ? 1 : -1;
+				mMinAfter = Math.min(mMinAfter, mDepthChange);
+			}
+		}
+
+
+		private static int[] add(int[] aBrackets, int aIndex, int aEntry)
+		{
+			if (aIndex == aBrackets.length)
+			{
+				aBrackets = Arrays.copyOf(aBrackets, Math.max(4, 2 * aIndex));
+			}
+			aBrackets[aIndex] = aEntry;
+			return aBrackets;
+		}
+	}
+}
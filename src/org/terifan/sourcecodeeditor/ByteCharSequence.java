@@ -0,0 +1,67 @@
+package org.terifan.sourcecodeeditor;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A view of the bytes of a buffer as ISO-8859-1 characters, each byte being a character. Used to search ASCII and Latin-1 files without
+ * decoding them.
+ */
+class ByteCharSequence implements CharSequence
+{
+	private final ByteBuffer mBuffer;
+	private final int mOffset;
+	private final int mLength;
+
+
+	ByteCharSequence(ByteBuffer aBuffer, int aOffset, int aLength)
+	{
+		mBuffer = aBuffer;
+		mOffset = aOffset;
+		mLength = aLength;
+	}
+
+
+	@Override
+	public int length()
+	{
+		return mLength;
+	}
+
+
+	@Override
+	public char charAt(int aIndex)
+	{
+		if (aIndex < 0 || aIndex >= mLength)
+		{
+			throw new IndexOutOfBoundsException("Index out of range: " + aIndex);
+		}
+
+		return (char)(mBuffer.get(mOffset + aIndex) & 0xff);
+	}
+
+
+	@Override
+	public CharSequence subSequence(int aStart, int aEnd)
+	{
+		if (aStart < 0 || aEnd > mLength || aStart > aEnd)
+		{
+			throw new IndexOutOfBoundsException("Range out of bounds: " + aStart + "-" + aEnd);
+		}
+
+		return new ByteCharSequence(mBuffer, mOffset + aStart, aEnd - aStart);
+	}
+
+
+	@Override
+	public String toString()
+	{
+		char[] chars = new char[mLength];
+		for (int i = 0; i < mLength; i++)
+		{
+			chars[i] = (char)(mBuffer.get(mOffset + i) & 0xff);
+		}
+
+		return new String(chars);
+	}
+}
\ No newline at end of file
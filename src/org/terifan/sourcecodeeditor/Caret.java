@@ -2,48 +2,51 @@ package org.terifan.sourcecodeeditor;
 
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Insets;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.io.Serializable;
 import java.util.ArrayList;
 
 
-public class Caret extends Thread implements Serializable
+/**
+ * The caret of a SourceEditor. The caret is painted by the editor and blinks while the editor is focused and showing, driven by a timer
+ * shared by all carets.
+ */
+public class Caret implements Serializable
 {
 	private final static long serialVersionUID = 1L;
 
 	private final Point mCaretCharacterPosition; // position of caret disregarding tabs and line lengths
 	private final Point mCaretPixelPosition;
 	private final Point mCaretVirtualPosition; // position of caret in regard of tabs and line lengths
-	private final Point mPreviousCaretPixelPosition;
 	private final SourceEditor mSourceEditor;
 	private final ArrayList<CaretListener> mCaretListeners;
 	private int mPreferredCaretVirtualPositionX;
+	private int mPreferredCaretPixelX; // pixel offset within the row, kept when moving between the rows of wrapped lines
+	private int mCaretLine; // line of the caret when last moved
 	private boolean mDispose;
 	private boolean mEnabled;
-	private boolean mIsHidden;
 	private boolean mVisible;
-	private boolean mWasDisabled;
-	private long mResync;
+	private long mNextBlinkTime;
 
 
 	public Caret(SourceEditor aSourceEditor)
 	{
-		super.setDaemon(true);
-
 		mSourceEditor = aSourceEditor;
 		mCaretListeners = new ArrayList<>();
 		mCaretCharacterPosition = new Point();
 		mCaretVirtualPosition = new Point();
 		mCaretPixelPosition = new Point();
-		mPreviousCaretPixelPosition = new Point();
 		mEnabled = true;
+		mVisible = true;
 	}
 
 
 	protected void dispose()
 	{
 		mDispose = true;
+		updateBlinking();
 	}
 
 
@@ -59,172 +62,228 @@ public class Caret extends Thread implements Serializable
 	}
 
 
-	@Override
-	public void run()
+	/**
+	 * Starts or stops blinking depending on whether the caret is enabled and the editor is showing. Called when either changes.
+	 */
+	void updateBlinking()
 	{
-		Point prevPosition = new Point();
-
-		try
+		if (mEnabled && !mDispose && mSourceEditor.isShowing())
 		{
-			int caretBlinkRate = mSourceEditor.getCaretBlinkRate();
-			long sleepTime = caretBlinkRate;
-			boolean visible = true;
+			CaretBlinker.start(this);
+		}
+		else
+		{
+			CaretBlinker.stop(this);
+		}
+	}
 
-			sleep(sleepTime);
 
-			while (!mDispose)
-			{
-				// handle token highlight
-				Point p = mCaretCharacterPosition;
-
-				if (p.equals(prevPosition))
-				{
-					Style style = mSourceEditor.getTokenStyleAt(p.x, p.y);
-
-					if (style != null && style.isSupportHighlight())
-					{
-						int x1 = mSourceEditor.getNextTokenOffset(p.x, p.y, false);
-						int x0 = mSourceEditor.getPreviousTokenOffset(x1, p.y);
-
-						String text = mSourceEditor.getDocument().getLine(p.y).substring(x0, x1).trim();
-
-						if (!text.equals(mSourceEditor.getHighlightText()))
-						{
-							mSourceEditor.setHighlightText(text);
-							mSourceEditor.repaint();
-						}
-					}
-				}
-				else
-				{
-					prevPosition.move(p.x, p.y);
-				}
-
-				// handle caret blink
-				if (mResync != 0)
-				{
-					visible = true;
-					sleepTime = Math.max(caretBlinkRate - (System.currentTimeMillis() - mResync), 0);
-					mResync = 0;
-				}
-				else
-				{
-					mVisible = visible;
-					paintCaret(mSourceEditor.getGraphics());
-					sleepTime = caretBlinkRate;
-				}
-
-				sleep(sleepTime);
-
-				visible = !visible;
-			}
+	long getNextBlinkTime()
+	{
+		return mSourceEditor.getCaretBlinkRate() > 0 ? mNextBlinkTime : Long.MAX_VALUE;
+	}
+
+
+	/**
+	 * Toggles the caret if it's due to blink and returns the time it's next due or -1 if the caret should no longer blink.
+	 */
+	long blink(long aTime)
+	{
+		if (!mEnabled || mDispose || !mSourceEditor.isShowing())
+		{
+			return -1;
 		}
-		catch (Exception | Error e)
+
+		if (aTime < mNextBlinkTime)
 		{
-			e.printStackTrace(System.err);
+			return getNextBlinkTime();
 		}
+
+		// handle caret blink
+		mVisible = !mVisible;
+		repaintCaret(mCaretPixelPosition);
+		mNextBlinkTime = aTime + mSourceEditor.getCaretBlinkRate();
+
+		return getNextBlinkTime();
+	}
+
+
+	/**
+	 * Shows or hides the caret and restarts the blink phase.
+	 */
+	private void resync(boolean aVisible)
+	{
+		mVisible = aVisible;
+		mNextBlinkTime = System.currentTimeMillis() + mSourceEditor.getCaretBlinkRate();
+		repaintCaret(mCaretPixelPosition);
+	}
+
+
+	private void repaintCaret(Point aPixelPosition)
+	{
+		int x = aPixelPosition.x + mSourceEditor.getMargins().left;
+		int y = aPixelPosition.y + mSourceEditor.getMargins().top;
+		mSourceEditor.repaint(x, y, 2, mSourceEditor.getFontHeight() + mSourceEditor.getLineSpacing());
 	}
 
 
 	public void forceVisibility()
 	{
-		mVisible = true;
+		resync(true);
 	}
 
 
 	public void forceNonVisibility()
 	{
-		mIsHidden = false;
+		resync(false);
 	}
 
 
 	public void paintImmediately()
 	{
-		mVisible = true;
-		paintCaret(mSourceEditor.getGraphics());
-		mResync = System.currentTimeMillis();
+		resync(true);
 	}
 
 
 	public void hideImmediately()
 	{
-		int x = mPreviousCaretPixelPosition.x + mSourceEditor.getMargins().left;
-		int y = mPreviousCaretPixelPosition.y + mSourceEditor.getMargins().top;
-		mSourceEditor.repaint(x, y, 2, mSourceEditor.getFontHeight() + mSourceEditor.getLineSpacing());
+		repaintCaret(mCaretPixelPosition);
 	}
 
 
+	/**
+	 * Paints the caret if it's enabled and in the visible phase of blinking. Called by the editor when painting.
+	 */
 	public void paintCaret(Graphics aGraphics)
 	{
-		if (aGraphics == null)
+		if (aGraphics == null || !mVisible || !mEnabled)
 		{
 			return;
 		}
 
-		if (mVisible)
+		paintCaret(aGraphics, mCaretPixelPosition.x, mCaretPixelPosition.y);
+	}
+
+
+	/**
+	 * Paints a caret at a pixel position, relative to the margins, in the style of this caret. Used to paint the additional carets of an
+	 * editor editing several places at once, which don't blink.
+	 */
+	void paintCaret(Graphics aGraphics, int aPixelX, int aPixelY)
+	{
+		if (!mEnabled)
 		{
-			if (!mCaretPixelPosition.equals(mPreviousCaretPixelPosition))
-			{
-				int x = mPreviousCaretPixelPosition.x + mSourceEditor.getMargins().left;
-				int y = mPreviousCaretPixelPosition.y + mSourceEditor.getMargins().top;
-				mPreviousCaretPixelPosition.setLocation(mCaretPixelPosition);
-
-				if (mEnabled || mWasDisabled)
-				{
-					mWasDisabled = false;
-					mSourceEditor.repaint(x, y, 2, mSourceEditor.getFontHeight() + mSourceEditor.getLineSpacing());
-				}
-			}
+			return;
+		}
 
-			if (mEnabled)
-			{
-				int x = mCaretPixelPosition.x + mSourceEditor.getMargins().left;
-				int y = mCaretPixelPosition.y + mSourceEditor.getMargins().top;
-				if (mSourceEditor.getStyle(SyntaxParser.CARET) != null)
-				{
-					aGraphics.setColor(mSourceEditor.getStyle(SyntaxParser.CARET).getForeground());
-				}
-				else
-				{
-					aGraphics.setColor(Color.BLACK);
-					aGraphics.setXORMode(Color.WHITE);
-				}
-				if (mSourceEditor.isBoldCaretEnabled())
-				{
-					aGraphics.drawLine(x + 1, y, x + 1, y + mSourceEditor.getFontHeight() - 1);
-				}
-				aGraphics.drawLine(x, y, x, y + mSourceEditor.getFontHeight() - 1);
-				aGraphics.setPaintMode();
-			}
-			mIsHidden = false;
+		int x = aPixelX + mSourceEditor.getMargins().left;
+		int y = aPixelY + mSourceEditor.getMargins().top;
+		if (mSourceEditor.getStyle(SyntaxParser.CARET) != null)
+		{
+			aGraphics.setColor(mSourceEditor.getStyle(SyntaxParser.CARET).getForeground());
 		}
-		else if (!mIsHidden)
+		else
 		{
-			if (mEnabled || mWasDisabled)
-			{
-				mWasDisabled = false;
-				int x = mPreviousCaretPixelPosition.x + mSourceEditor.getMargins().left;
-				int y = mPreviousCaretPixelPosition.y + mSourceEditor.getMargins().top;
-				mSourceEditor.repaint(x, y, 2, mSourceEditor.getFontHeight() + mSourceEditor.getLineSpacing());
-			}
-			mIsHidden = true;
+			aGraphics.setColor(Color.BLACK);
+			aGraphics.setXORMode(Color.WHITE);
+		}
+		if (mSourceEditor.isBoldCaretEnabled())
+		{
+			aGraphics.drawLine(x + 1, y, x + 1, y + mSourceEditor.getFontHeight() - 1);
 		}
+		aGraphics.drawLine(x, y, x, y + mSourceEditor.getFontHeight() - 1);
+		aGraphics.setPaintMode();
 	}
 
 
 	protected void makePreferredPosition()
 	{
 		mPreferredCaretVirtualPositionX = mCaretVirtualPosition.x;
+		mPreferredCaretPixelX = mCaretPixelPosition.x;
 	}
 
 
 	public void moveAbsolute(int aPositionX, int aPositionY, boolean aAdjustByVirtualOffset, boolean aAdjustSelection, boolean aPaintCaret)
 	{
-		moveRelative(aPositionX - mCaretCharacterPosition.x, aPositionY - mCaretCharacterPosition.y, aAdjustByVirtualOffset, aAdjustSelection, aPaintCaret);
+		move(aPositionX - mCaretCharacterPosition.x, aPositionY - mCaretCharacterPosition.y, aAdjustByVirtualOffset, aAdjustSelection, aPaintCaret, true);
 	}
 
 
-	public synchronized void moveRelative(int aDeltaX, int aDeltaY, boolean aAdjustByVirtualOffset, boolean aAdjustSelection, boolean aPaintCaret)
+	/**
+	 * Moves the caret following a change made to the document by another editor, without scrolling the editor or expanding folds.
+	 */
+	void shift(int aPositionX, int aPositionY)
+	{
+		move(aPositionX - mCaretCharacterPosition.x, aPositionY - mCaretCharacterPosition.y, false, false, true, false);
+	}
+
+
+	/**
+	 * Moves the caret relative to its current position. The vertical delta is measured in visible rows meaning lines hidden by collapsed
+	 * folds are skipped. When lines are wrapped a move adjusted by the virtual offset steps through the rows of wrapped lines keeping the
+	 * pixel offset of the caret within the row, while other moves step through lines.
+	 */
+	public void moveRelative(int aDeltaX, int aDeltaY, boolean aAdjustByVirtualOffset, boolean aAdjustSelection, boolean aPaintCaret)
+	{
+		if (aDeltaY != 0 && mSourceEditor.isLineWrapEnabled())
+		{
+			if (aAdjustByVirtualOffset)
+			{
+				moveRows(aDeltaY, aAdjustSelection, aPaintCaret);
+				return;
+			}
+
+			int line = Math.min(mCaretCharacterPosition.y, mSourceEditor.getDocument().getLineCount() - 1);
+			for (int i = aDeltaY; i > 0; i--)
+			{
+				line = mSourceEditor.getLineOfRow(mSourceEditor.getRowOfLine(line) + mSourceEditor.getRowSpan(line));
+			}
+			for (int i = aDeltaY; i < 0; i++)
+			{
+				line = mSourceEditor.getLineOfRow(Math.max(mSourceEditor.getRowOfLine(line) - 1, 0));
+			}
+			aDeltaY = line - mCaretCharacterPosition.y;
+		}
+		else if (aDeltaY != 0)
+		{
+			int row = mSourceEditor.getRowOfLine(mCaretCharacterPosition.y) + aDeltaY;
+			row = Math.max(0, Math.min(row, mSourceEditor.getRowCount() - 1));
+			aDeltaY = mSourceEditor.getLineOfRow(row) - mCaretCharacterPosition.y;
+		}
+
+		move(aDeltaX, aDeltaY, aAdjustByVirtualOffset, aAdjustSelection, aPaintCaret, true);
+	}
+
+
+	/**
+	 * Moves the caret a number of rows up or down placing it at the preferred pixel offset in the row.
+	 */
+	private void moveRows(int aDeltaRows, boolean aAdjustSelection, boolean aPaintCaret)
+	{
+		Document document = mSourceEditor.getDocument();
+		int line = Math.min(mCaretCharacterPosition.y, document.getLineCount() - 1);
+		int x = Math.min(mCaretCharacterPosition.x, document.getLineLength(line));
+		int row = Math.max(0, Math.min(mSourceEditor.getRowOfPosition(x, line) + aDeltaRows, mSourceEditor.getRowCount() - 1));
+		int lineHeight = mSourceEditor.getFontHeight() + mSourceEditor.getLineSpacing();
+		Insets margins = mSourceEditor.getMargins();
+
+		Point p = mSourceEditor.getSourceOffset(new Point(mPreferredCaretPixelX + margins.left, margins.top + row * lineHeight));
+
+		int preferredVirtualX = mPreferredCaretVirtualPositionX;
+		int preferredPixelX = mPreferredCaretPixelX;
+
+		move(p.x - mCaretCharacterPosition.x, p.y - mCaretCharacterPosition.y, false, aAdjustSelection, aPaintCaret, true);
+
+		mPreferredCaretVirtualPositionX = preferredVirtualX;
+		mPreferredCaretPixelX = preferredPixelX;
+	}
+
+
+	/**
+	 * @param aFollow
+	 *   true if the editor is scrolled to the caret and folds hiding the line of the caret are expanded
+	 */
+	private synchronized void move(int aDeltaX, int aDeltaY, boolean aAdjustByVirtualOffset, boolean aAdjustSelection, boolean aPaintCaret, boolean aFollow)
 	{
 		Document document = mSourceEditor.getDocument();
 		int lineCount = document.getLineCount();
@@ -262,6 +321,11 @@ public class Caret extends Thread implements Serializable
 			mCaretCharacterPosition.x = 0;
 		}
 
+		if (aFollow)
+		{
+			mSourceEditor.revealLine(mCaretCharacterPosition.y);
+		}
+
 		mCaretVirtualPosition.x = mSourceEditor.includeTabsInOffset(mCaretCharacterPosition.x, mCaretCharacterPosition.y);
 		mCaretVirtualPosition.y = mCaretCharacterPosition.y;
 
@@ -271,43 +335,44 @@ public class Caret extends Thread implements Serializable
 		}
 
 		Point oldPixelPosition = new Point(mCaretPixelPosition);
+		int oldLine = mCaretLine;
+		mCaretLine = mCaretCharacterPosition.y;
+
+		int offset = Math.min(mCaretCharacterPosition.x, document.getLineLength(mCaretCharacterPosition.y));
 
-		mCaretPixelPosition.x = mSourceEditor.getPixelOffset(Math.min(mCaretCharacterPosition.x, document.getLineLength(mCaretCharacterPosition.y)), mCaretCharacterPosition.y);
-		mCaretPixelPosition.y = mCaretCharacterPosition.y * (mSourceEditor.getFontHeight() + mSourceEditor.getLineSpacing());
+		mCaretPixelPosition.x = mSourceEditor.getRowPixelOffset(offset, mCaretCharacterPosition.y);
+		mCaretPixelPosition.y = mSourceEditor.getRowOfPosition(offset, mCaretCharacterPosition.y) * (mSourceEditor.getFontHeight() + mSourceEditor.getLineSpacing());
+
+		if (aDeltaX != 0)
+		{
+			mPreferredCaretPixelX = mCaretPixelPosition.x;
+		}
 
 		if (!mCaretPixelPosition.equals(oldPixelPosition))
 		{
 			if (aAdjustSelection && mSourceEditor.getSelectionStart() != null)
 			{
 				mSourceEditor.setSelectionEnd(mCaretCharacterPosition.x, mCaretCharacterPosition.y);
-				mSourceEditor.repaint();
 			}
 
-			if (aPaintCaret)
-			{
-				mVisible = true;
-				paintCaret(mSourceEditor.getGraphics());
-			}
-			else
+			repaintCaret(oldPixelPosition);
+			resync(aPaintCaret);
+
+			if (aFollow)
 			{
-				mVisible = false;
-				mIsHidden = false;
-				paintCaret(mSourceEditor.getGraphics());
+				mSourceEditor.scrollRectToVisible(new Rectangle(mCaretPixelPosition.x + mSourceEditor.getMargins().left, mCaretPixelPosition.y + mSourceEditor.getMargins().top, 1, mSourceEditor.getFontHeight()));
 			}
 
-			mSourceEditor.scrollRectToVisible(new Rectangle(mCaretPixelPosition.x + mSourceEditor.getMargins().left, mCaretPixelPosition.y + mSourceEditor.getMargins().top, 1, mSourceEditor.getFontHeight()));
-
-			mResync = System.currentTimeMillis();
-
 			CaretEvent caretEvent = new CaretEvent(mSourceEditor, this, new Point(mCaretCharacterPosition), new Point(mCaretVirtualPosition));
 			for (int i = mCaretListeners.size(); --i >= 0;)
 			{
 				mCaretListeners.get(i).caretMoved(caretEvent);
 			}
 
-			if (aDeltaY != 0 && mSourceEditor.isHighlightCaretRowEnabled())
+			if (oldLine != mCaretLine && mSourceEditor.isHighlightCaretRowEnabled())
 			{
-				mSourceEditor.repaint();
+				mSourceEditor.repaintLines(oldLine, oldLine);
+				mSourceEditor.repaintLines(mCaretLine, mCaretLine);
 			}
 		}
 	}
@@ -340,11 +405,8 @@ public class Caret extends Thread implements Serializable
 	public void setEnabled(boolean aEnabled)
 	{
 		mEnabled = aEnabled;
-		if (!mEnabled)
-		{
-			mWasDisabled = true;
-		}
-		mResync = System.currentTimeMillis();
+		resync(true);
+		updateBlinking();
 	}
 
 
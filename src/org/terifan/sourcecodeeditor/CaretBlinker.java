@@ -0,0 +1,93 @@
+package org.terifan.sourcecodeeditor;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import javax.swing.Timer;
+
+
+/**
+ * A single Swing Timer driving the blinking of all carets. Only carets of focused and showing editors are registered and the timer is
+ * stopped when none are. The timer is rescheduled after every tick to the earliest time any caret is due to blink which means carets with
+ * different blink rates share the timer without polling.
+ *
+ * All methods must be called on the event dispatch thread.
+ */
+final class CaretBlinker implements ActionListener
+{
+	private final static CaretBlinker INSTANCE = new CaretBlinker();
+
+	private final ArrayList<Caret> mCarets;
+	private final Timer mTimer;
+	private long mScheduledTime;
+
+
+	private CaretBlinker()
+	{
+		mCarets = new ArrayList<>();
+		mTimer = new Timer(0, this);
+		mTimer.setRepeats(false);
+	}
+
+
+	/**
+	 * Registers a caret, the caret is asked to blink when the time it returns from Caret.blink is reached.
+	 */
+	static void start(Caret aCaret)
+	{
+		if (!INSTANCE.mCarets.contains(aCaret))
+		{
+			INSTANCE.mCarets.add(aCaret);
+			INSTANCE.schedule(aCaret.getNextBlinkTime());
+		}
+	}
+
+
+	static void stop(Caret aCaret)
+	{
+		INSTANCE.mCarets.remove(aCaret);
+
+		if (INSTANCE.mCarets.isEmpty())
+		{
+			INSTANCE.mTimer.stop();
+		}
+	}
+
+
+	@Override
+	public void actionPerformed(ActionEvent aEvent)
+	{
+		long time = System.currentTimeMillis();
+		long nextTime = Long.MAX_VALUE;
+
+		for (Caret caret : mCarets.toArray(new Caret[mCarets.size()]))
+		{
+			long caretTime = caret.blink(time);
+
+			if (caretTime < 0)
+			{
+				mCarets.remove(caret);
+			}
+			else
+			{
+				nextTime = Math.min(nextTime, caretTime);
+			}
+		}
+
+		mScheduledTime = 0;
+		schedule(nextTime);
+	}
+
+
+	private void schedule(long aTime)
+	{
+		if (aTime == Long.MAX_VALUE || mTimer.isRunning() && mScheduledTime <= aTime)
+		{
+			return;
+		}
+
+		mScheduledTime = aTime;
+		mTimer.setInitialDelay((int)Math.max(aTime - System.currentTimeMillis(), 0));
+		mTimer.restart();
+	}
+}
\ No newline at end of file
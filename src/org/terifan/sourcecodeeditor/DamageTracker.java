@@ -0,0 +1,110 @@
+package org.terifan.sourcecodeeditor;
+
+import java.awt.Point;
+
+
+/**
+ * Translates changes of the document, the selection and the caret row into the rows of a SourceEditor that need to be painted again.
+ *
+ * An edit replacing lines in place repaints only the lines replaced provided the parser state following them and the folds are unchanged.
+ * Edits changing the number of lines, and edits changing how the following lines are tokenized, repaint everything from the first line
+ * changed. Selection changes repaint the lines between the previous and the current position of each end of the selection.
+ *
+ * The tracker must be notified after the TokenizationContext, the FoldModel and the bracket index of the editor. Edits moving the
+ * brackets matching the caret without moving the caret repaint the previous and the current pair.
+ */
+class DamageTracker implements DocumentListener
+{
+	private final SourceEditor mSourceEditor;
+	private final TokenizationContext mTokenizationContext;
+	private final FoldModel mFoldModel;
+	private int mFoldModificationCount;
+	private Point mSelectionStart;
+	private Point mSelectionEnd;
+	private boolean mRectangularSelection;
+
+
+	public DamageTracker(SourceEditor aSourceEditor, TokenizationContext aTokenizationContext, FoldModel aFoldModel)
+	{
+		mSourceEditor = aSourceEditor;
+		mTokenizationContext = aTokenizationContext;
+		mFoldModel = aFoldModel;
+		mFoldModificationCount = aFoldModel.getModificationCount();
+	}
+
+
+	@Override
+	public void documentChanged(DocumentEvent aEvent)
+	{
+		int firstLine = aEvent.getFirstLine();
+		int lineCount = aEvent.getInsertedLineCount();
+		int foldModificationCount = mFoldModel.getModificationCount();
+
+		if (lineCount > 0 && lineCount == aEvent.getRemovedLineCount() && foldModificationCount == mFoldModificationCount && mTokenizationContext.isChangeContained(firstLine + lineCount - 1))
+		{
+			mSourceEditor.repaintLines(firstLine, firstLine + lineCount - 1);
+		}
+		else
+		{
+			mSourceEditor.repaintFromLine(firstLine);
+		}
+
+		mFoldModificationCount = foldModificationCount;
+
+		mSourceEditor.updateBracketPair();
+	}
+
+
+	/**
+	 * Repaints the lines affected by a change of the selection since the previous call.
+	 *
+	 * @param aStart
+	 *   start of the selection or null if no text is selected
+	 * @param aEnd
+	 *   end of the selection or null if no text is selected
+	 */
+	public void selectionChanged(Point aStart, Point aEnd, boolean aRectangular)
+	{
+		if (aStart != null && (aStart.y > aEnd.y || aStart.y == aEnd.y && aStart.x > aEnd.x))
+		{
+			Point temp = aStart;
+			aStart = aEnd;
+			aEnd = temp;
+		}
+
+		Point oldStart = mSelectionStart;
+		Point oldEnd = mSelectionEnd;
+
+		if (aStart == null ? oldStart == null : aStart.equals(oldStart) && aEnd.equals(oldEnd) && aRectangular == mRectangularSelection)
+		{
+			return;
+		}
+
+		if (aStart != null && oldStart != null && !aRectangular && !mRectangularSelection)
+		{
+			if (!aStart.equals(oldStart))
+			{
+				mSourceEditor.repaintLines(Math.min(aStart.y, oldStart.y), Math.max(aStart.y, oldStart.y));
+			}
+			if (!aEnd.equals(oldEnd))
+			{
+				mSourceEditor.repaintLines(Math.min(aEnd.y, oldEnd.y), Math.max(aEnd.y, oldEnd.y));
+			}
+		}
+		else
+		{
+			if (oldStart != null)
+			{
+				mSourceEditor.repaintLines(oldStart.y, oldEnd.y);
+			}
+			if (aStart != null)
+			{
+				mSourceEditor.repaintLines(aStart.y, aEnd.y);
+			}
+		}
+
+		mSelectionStart = aStart == null ? null : new Point(aStart);
+		mSelectionEnd = aEnd == null ? null : new Point(aEnd);
+		mRectangularSelection = aRectangular;
+	}
+}
\ No newline at end of file
@@ -8,6 +8,10 @@ import java.io.Reader;
 import java.io.Serializable;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
 
 
 public final class Document implements Serializable
@@ -15,17 +19,24 @@ public final class Document implements Serializable
 	private final static long serialVersionUID = 1L;
 	private final static boolean DEBUG = false;
 
-	private transient SourceEditor mSourceEditor;
+	private transient HashMap<Class<?>, DocumentIndexes> mSharedIndexes;
 	private transient UndoableEdit mUndoableEdit;
 	private transient UndoManager mUndoManager;
+	private transient ArrayList<DocumentListener> mDocumentListeners;
+	private transient TrigramIndex mTrigramIndex;
+	private transient SourceEditor mUndoingView;
 	private ArrayList<String> mSourceLines;
 	private boolean mModified;
+	private transient TreeMap<Integer, Integer> mLineLengths;
+	private transient int mLineLengthsTabSize;
 	private int mUndoableEditDepth;
 
 
 	public Document()
 	{
 		mUndoManager = new UndoManager();
+		mDocumentListeners = new ArrayList<>();
+		mSharedIndexes = new HashMap<>();
 		mSourceLines = new ArrayList<>();
 
 		new Add(0, "").redo();
@@ -72,9 +83,121 @@ public final class Document implements Serializable
 	}
 
 
-	public void setParent(SourceEditor aSourceEditor)
+	/**
+	 * Returns the indexes of this document shared by all editors using a SyntaxParser of the same class as the one provided, creating
+	 * them if none exist.
+	 */
+	DocumentIndexes getSharedIndexes(SyntaxParser aSyntaxParser)
 	{
-		mSourceEditor = aSourceEditor;
+		DocumentIndexes indexes = mSharedIndexes.get(aSyntaxParser.getClass());
+
+		if (indexes == null)
+		{
+			indexes = new DocumentIndexes(this, aSyntaxParser);
+			mSharedIndexes.put(aSyntaxParser.getClass(), indexes);
+			addDocumentListener(indexes);
+		}
+
+		return indexes;
+	}
+
+
+	void releaseSharedIndexes(DocumentIndexes aIndexes)
+	{
+		mSharedIndexes.values().remove(aIndexes);
+		removeDocumentListener(aIndexes);
+	}
+
+
+	/**
+	 * Enables or disables a TrigramIndex of this document, narrowing searches in very large documents to the lines that may contain a
+	 * match. The index is built in the background and kept current as the document changes.
+	 */
+	public void setTrigramIndexEnabled(boolean aEnabled)
+	{
+		if (aEnabled && mTrigramIndex == null)
+		{
+			mTrigramIndex = new TrigramIndex(this);
+			addDocumentListener(mTrigramIndex);
+		}
+		else if (!aEnabled && mTrigramIndex != null)
+		{
+			mTrigramIndex.stop();
+			removeDocumentListener(mTrigramIndex);
+			mTrigramIndex = null;
+		}
+	}
+
+
+	public boolean isTrigramIndexEnabled()
+	{
+		return mTrigramIndex != null;
+	}
+
+
+	/**
+	 * Returns the TrigramIndex of this document or null if not enabled.
+	 */
+	public TrigramIndex getTrigramIndex()
+	{
+		return mTrigramIndex;
+	}
+
+
+	public void addDocumentListener(DocumentListener aDocumentListener)
+	{
+		mDocumentListeners.add(aDocumentListener);
+	}
+
+
+	public void removeDocumentListener(DocumentListener aDocumentListener)
+	{
+		mDocumentListeners.remove(aDocumentListener);
+	}
+
+
+	/**
+	 * Replaces lines of the document, counting the lengths of the lines removed and inserted and notifying the listeners.
+	 */
+	private void spliceLines(int aFirstLine, int aRemovedLineCount, List<String> aLines)
+	{
+		List<String> lines = mSourceLines.subList(aFirstLine, aFirstLine + aRemovedLineCount);
+
+		countLineLengths(lines, -1);
+
+		if (aRemovedLineCount == aLines.size())
+		{
+			for (int i = 0; i < aRemovedLineCount; i++)
+			{
+				lines.set(i, aLines.get(i));
+			}
+		}
+		else
+		{
+			lines.clear();
+			mSourceLines.addAll(aFirstLine, aLines);
+		}
+
+		countLineLengths(aLines, 1);
+		fireLinesReplaced(aFirstLine, aRemovedLineCount, aLines.size());
+	}
+
+
+	private void fireLinesReplaced(int aFirstLine, int aRemovedLineCount, int aInsertedLineCount)
+	{
+		if (mDocumentListeners.isEmpty())
+		{
+			return;
+		}
+
+		DocumentEvent event = new DocumentEvent(this, aFirstLine, aRemovedLineCount, aInsertedLineCount);
+
+		// the listener added last is notified first, so listeners added directly by components like Gutter and Minimap after the shared
+		// DocumentIndexes are notified before the indexes are updated and must not read tokens, brackets or layouts when notified
+		for (int i = mDocumentListeners.size(); --i >= 0;)
+		{
+			mDocumentListeners.get(i).documentChanged(event);
+		}
 	}
 
 
@@ -154,51 +277,70 @@ public final class Document implements Serializable
 	}
 
 
-	protected int getLongestLineLength()
+	/**
+	 * Returns the length of the longest line with tabs expanded. The lines are counted by length in a histogram built on the first call
+	 * for a tab size and kept as lines are replaced, the longest line being its highest length.
+	 */
+	protected int getLongestLineLength(int aTabSize)
 	{
-		int longestLine = 0;
-		int tabSize = mSourceEditor.getTabSize();
+		if (mLineLengths == null || mLineLengthsTabSize != aTabSize)
+		{
+			mLineLengths = new TreeMap<>();
+			mLineLengthsTabSize = aTabSize;
+
+			countLineLengths(mSourceLines, 1);
+		}
 
-		for (int lineIndex = mSourceLines.size(); --lineIndex >= 0;)
+		return mLineLengths.isEmpty() ? 0 : mLineLengths.lastKey();
+	}
+
+
+	/**
+	 * Adds the lines to or removes them from the histogram of line lengths, if built.
+	 */
+	private void countLineLengths(List<String> aLines, int aDelta)
+	{
+		if (mLineLengths == null)
 		{
-			String s = mSourceLines.get(lineIndex);
+			return;
+		}
+
+		for (int i = 0, n = aLines.size(); i < n; i++)
+		{
+			int length = getExpandedLength(aLines.get(i), mLineLengthsTabSize);
+
+			// a length no longer counted is removed, leaving the longest length as the highest key
+			mLineLengths.merge(length, aDelta, (aCount, aAdded) -> aCount + aAdded == 0 ? null : aCount + aAdded);
+		}
+	}
+
 
-			int offset = s.indexOf('\t');
+	private static int getExpandedLength(String aText, int aTabSize)
+	{
+		int offset = aText.indexOf('\t');
+
+		if (offset == -1)
+		{
+			return aText.length();
+		}
 
+		int lineLength = offset + aTabSize - (offset % aTabSize);
+		while (true)
+		{
+			int prevOffset = offset;
+			offset = aText.indexOf('\t', offset + 1);
 			if (offset == -1)
 			{
-				int l = s.length();
-				if (l > longestLine)
-				{
-					longestLine = l;
-				}
-			}
-			else
-			{
-				int lineLength = offset + tabSize - (offset % tabSize);
-				while (true)
-				{
-					int prevOffset = offset;
-					offset = s.indexOf('\t', offset + 1);
-					if (offset == -1)
-					{
-						int x = s.length() - prevOffset - 1;
-						lineLength += x;
-						break;
-					}
-
-					int x = (offset - prevOffset - 1) + tabSize - ((offset - prevOffset - 1) % tabSize);
-					lineLength += x;
-				}
-
-				if (lineLength > longestLine)
-				{
-					longestLine = lineLength;
-				}
+				int x = aText.length() - prevOffset - 1;
+				lineLength += x;
+				break;
 			}
+
+			int x = (offset - prevOffset - 1) + aTabSize - ((offset - prevOffset - 1) % aTabSize);
+			lineLength += x;
 		}
 
-		return longestLine;
+		return lineLength;
 	}
 
 
@@ -275,6 +417,30 @@ public final class Document implements Serializable
 	}
 
 
+	/**
+	 * Replaces a range of lines with new lines as a single change, listeners being notified once and one action being added to the
+	 * current undoable edit.
+	 */
+	public void replaceLines(int aFirstLine, int aRemovedLineCount, List<String> aLines)
+	{
+		if (aFirstLine < 0 || aRemovedLineCount < 0 || aFirstLine + aRemovedLineCount > mSourceLines.size())
+		{
+			throw new IllegalArgumentException("Lines not found: " + aFirstLine + "+" + aRemovedLineCount + ", size: " + mSourceLines.size());
+		}
+		if (aLines.isEmpty() && aRemovedLineCount == mSourceLines.size())
+		{
+			throw new IllegalArgumentException("A document must contain at least one line.");
+		}
+
+		Replace replace = new Replace(aFirstLine, aRemovedLineCount, aLines);
+		if (mUndoableEdit != null)
+		{
+			mUndoableEdit.addAction(replace);
+		}
+		replace.redo();
+	}
+
+
 	public void appendSpan(final int aLineIndex, final String aText)
 	{
 		if (aText.length() == 0)
@@ -359,6 +525,15 @@ public final class Document implements Serializable
 	}
 
 
+	/**
+	 * Returns the lines of the document, the array being a copy of the line references.
+	 */
+	String[] getLines()
+	{
+		return mSourceLines.toArray(new String[mSourceLines.size()]);
+	}
+
+
 	@Override
 	public String toString()
 	{
@@ -381,6 +556,9 @@ public final class Document implements Serializable
 	{
 		in.defaultReadObject();
 		mUndoManager = new UndoManager();
+		mDocumentListeners = new ArrayList<>();
+		mSharedIndexes = new HashMap<>();
+		mLineLengths = null;
 	}
 
 
@@ -401,6 +579,26 @@ public final class Document implements Serializable
 	}
 
 
+	/**
+	 * Returns the editor making the change being applied to the document, i.e. the editor of the undoable edit being recorded or the
+	 * editor undoing or redoing an edit, or null if the document is changed by other means. Other editors displaying the document move
+	 * their carets following the change.
+	 */
+	SourceEditor getEditingView()
+	{
+		return mUndoableEditDepth > 0 && mUndoableEdit != null ? mUndoableEdit.getSourceEditor() : mUndoingView;
+	}
+
+
+	/**
+	 * Sets the editor undoing or redoing an edit, null when done.
+	 */
+	void setUndoingView(SourceEditor aSourceEditor)
+	{
+		mUndoingView = aSourceEditor;
+	}
+
+
 	public void commitUndoableEdit()
 	{
 		mUndoableEditDepth--;
@@ -437,13 +635,13 @@ public final class Document implements Serializable
 		@Override
 		public void undo()
 		{
-			mSourceLines.remove(mLineIndex);
+			spliceLines(mLineIndex, 1, Collections.emptyList());
 		}
 
 		@Override
 		public void redo()
 		{
-			mSourceLines.add(mLineIndex, mText);
+			spliceLines(mLineIndex, 0, Collections.singletonList(mText));
 		}
 	}
 
@@ -466,13 +664,13 @@ public final class Document implements Serializable
 		@Override
 		public void undo()
 		{
-			mSourceLines.set(mLineIndex, mOldText);
+			spliceLines(mLineIndex, 1, Collections.singletonList(mOldText));
 		}
 
 		@Override
 		public void redo()
 		{
-			mSourceLines.set(mLineIndex, mText);
+			spliceLines(mLineIndex, 1, Collections.singletonList(mText));
 		}
 	}
 
@@ -493,13 +691,42 @@ public final class Document implements Serializable
 		@Override
 		public void undo()
 		{
-			mSourceLines.add(mLineIndex, mOldText);
+			spliceLines(mLineIndex, 0, Collections.singletonList(mOldText));
+		}
+
+		@Override
+		public void redo()
+		{
+			spliceLines(mLineIndex, 1, Collections.emptyList());
+		}
+	}
+
+
+	class Replace implements UndoableAction
+	{
+		private final int mLineIndex;
+		private final ArrayList<String> mText;
+		private final ArrayList<String> mOldText;
+
+		private Replace(int aLineIndex, int aRemovedLineCount, List<String> aText)
+		{
+			mLineIndex = aLineIndex;
+			mText = new ArrayList<>(aText);
+			mOldText = new ArrayList<>(mSourceLines.subList(aLineIndex, aLineIndex + aRemovedLineCount));
+
+			if (DEBUG) System.out.println("\tReplace "+mLineIndex+" "+mOldText.size()+" "+mText.size());
+		}
+
+		@Override
+		public void undo()
+		{
+			spliceLines(mLineIndex, mText.size(), mOldText);
 		}
 
 		@Override
 		public void redo()
 		{
-			mSourceLines.remove(mLineIndex);
+			spliceLines(mLineIndex, mOldText.size(), mText);
 		}
 	}
 
@@ -518,15 +745,13 @@ public final class Document implements Serializable
 		@Override
 		public void undo()
 		{
-			mSourceLines.clear();
-			mSourceLines.addAll(mOldText);
+			spliceLines(0, mSourceLines.size(), mOldText);
 		}
 
 		@Override
 		public void redo()
 		{
-			mSourceLines.clear();
-			mSourceLines.addAll(mText);
+			spliceLines(0, mSourceLines.size(), mText);
 		}
 	}
 
@@ -0,0 +1,76 @@
+package org.terifan.sourcecodeeditor;
+
+
+/**
+ * Describes a change made to a Document. Every change is expressed as a range of lines being replaced: the lines starting at
+ * getFirstLine() and counting getRemovedLineCount() are replaced by getInsertedLineCount() new lines. A changed line is reported as one
+ * line removed and one inserted.
+ */
+public class DocumentEvent
+{
+	private final Document mDocument;
+	private final int mFirstLine;
+	private final int mRemovedLineCount;
+	private final int mInsertedLineCount;
+
+
+	public DocumentEvent(Document aDocument, int aFirstLine, int aRemovedLineCount, int aInsertedLineCount)
+	{
+		mDocument = aDocument;
+		mFirstLine = aFirstLine;
+		mRemovedLineCount = aRemovedLineCount;
+		mInsertedLineCount = aInsertedLineCount;
+	}
+
+
+	public Document getDocument()
+	{
+		return mDocument;
+	}
+
+
+	public int getFirstLine()
+	{
+		return mFirstLine;
+	}
+
+
+	public int getRemovedLineCount()
+	{
+		return mRemovedLineCount;
+	}
+
+
+	public int getInsertedLineCount()
+	{
+		return mInsertedLineCount;
+	}
+
+
+	/**
+	 * Returns true if the number of lines in the document changed, i.e. lines following the change have moved.
+	 */
+	public boolean isStructuralChange()
+	{
+		return mRemovedLineCount != mInsertedLineCount;
+	}
+
+
+	/**
+	 * Returns the line a line of the document before the change is found on after the change. Lines following the change are moved by the
+	 * number of lines added or removed, removed lines are moved to the last line inserted and all lines are kept within the document.
+	 */
+	public int adjustLine(int aLine)
+	{
+		if (aLine >= mFirstLine + mRemovedLineCount)
+		{
+			aLine += mInsertedLineCount - mRemovedLineCount;
+		}
+		else if (aLine >= mFirstLine)
+		{
+			aLine = Math.min(aLine, mFirstLine + Math.max(mInsertedLineCount - 1, 0));
+		}
+
+		return Math.max(0, Math.min(aLine, mDocument.getLineCount() - 1));
+	}
+}
\ No newline at end of file
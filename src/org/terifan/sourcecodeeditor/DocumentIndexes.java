@@ -0,0 +1,100 @@
+package org.terifan.sourcecodeeditor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * The indexes of a Document shared by all SourceEditors displaying the document with a SyntaxParser of the same class: the tokens and
+ * parser states of the TokenizationContext, the BracketIndex and the line layouts of editors with the same styles and tab size. A second
+ * editor displaying a document adds only the work of painting it.
+ *
+ * The shared indexes are notified of document changes before the listeners of the editors, which are notified in the order they were
+ * added, as editors depend on the indexes being current when notified. The indexes are discarded when the last editor is removed.
+ */
+class DocumentIndexes implements DocumentListener
+{
+	private final static int LAYOUT_CACHES = 4;
+
+	private final Document mDocument;
+	private final TokenizationContext mTokenizationContext;
+	private final BracketIndex mBracketIndex;
+	private final ArrayList<DocumentListener> mViews;
+	private final LinkedHashMap<Object, LineLayoutCache> mLayoutCaches;
+
+
+	DocumentIndexes(Document aDocument, SyntaxParser aSyntaxParser)
+	{
+		mDocument = aDocument;
+		mTokenizationContext = new TokenizationContext(aDocument, aSyntaxParser);
+		mBracketIndex = new BracketIndex(aDocument, mTokenizationContext);
+		mTokenizationContext.setTokenListener(mBracketIndex);
+		mViews = new ArrayList<>();
+		mLayoutCaches = new LinkedHashMap<>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Object, LineLayoutCache> aEldest)
+			{
+				return size() > LAYOUT_CACHES;
+			}
+		};
+	}
+
+
+	public TokenizationContext getTokenizationContext()
+	{
+		return mTokenizationContext;
+	}
+
+
+	public BracketIndex getBracketIndex()
+	{
+		return mBracketIndex;
+	}
+
+
+	/**
+	 * Returns the line layouts shared by editors with the settings provided, the settings affecting the width of the text.
+	 */
+	public LineLayoutCache getLineLayoutCache(Object aSettings)
+	{
+		return mLayoutCaches.computeIfAbsent(aSettings, aKey -> new LineLayoutCache());
+	}
+
+
+	/**
+	 * Adds the listener of an editor notified of document changes after the shared indexes have been updated.
+	 */
+	public void addView(DocumentListener aDocumentListener)
+	{
+		mViews.add(aDocumentListener);
+	}
+
+
+	/**
+	 * Removes the listener of an editor, detaching the indexes from the document when no editor remains.
+	 */
+	public void removeView(DocumentListener aDocumentListener)
+	{
+		mViews.remove(aDocumentListener);
+
+		if (mViews.isEmpty())
+		{
+			mDocument.releaseSharedIndexes(this);
+		}
+	}
+
+
+	@Override
+	public void documentChanged(DocumentEvent aEvent)
+	{
+		mTokenizationContext.documentChanged(aEvent);
+		mBracketIndex.documentChanged(aEvent);
+
+		for (DocumentListener view : mViews.toArray(new DocumentListener[mViews.size()]))
+		{
+			view.documentChanged(aEvent);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,7 @@
+package org.terifan.sourcecodeeditor;
+
+
+public interface DocumentListener
+{
+	public void documentChanged(DocumentEvent aEvent);
+}
\ No newline at end of file
@@ -0,0 +1,153 @@
+package org.terifan.sourcecodeeditor;
+
+import java.util.Arrays;
+
+
+/**
+ * A CharSequence view of the text of a Document with the lines separated by single line feed characters, allowing the text to be
+ * searched with regular expressions without building a copy of it. Characters are read from the line strings through an index of the
+ * offsets where lines start, the line of the previous character being remembered so that sequential access, as performed by a Matcher,
+ * finds the line of a character in constant time.
+ *
+ * The view is a snapshot of the lines of the document when it was created, only references to the line strings being copied, and is not
+ * affected by later changes to the document.
+ */
+public final class DocumentText implements CharSequence
+{
+	private final String[] mLines;
+	private final int[] mLineOffsets;
+	private final int mStart;
+	private final int mEnd;
+	private int mLine;
+	private String mLineText;
+
+
+	public DocumentText(Document aDocument)
+	{
+		this(aDocument.getLines());
+	}
+
+
+	DocumentText(String[] aLines)
+	{
+		mLines = aLines;
+		mLineOffsets = new int[mLines.length + 1];
+
+		for (int i = 0, offset = 0; i < mLines.length; i++)
+		{
+			offset += mLines[i].length() + 1;
+			mLineOffsets[i + 1] = offset;
+		}
+
+		mStart = 0;
+		mEnd = mLineOffsets[mLines.length] - 1;
+		mLineText = mLines[0];
+	}
+
+
+	private DocumentText(DocumentText aText, int aStart, int aEnd)
+	{
+		mLines = aText.mLines;
+		mLineOffsets = aText.mLineOffsets;
+		mStart = aStart;
+		mEnd = aEnd;
+		mLine = aText.mLine;
+		mLineText = aText.mLineText;
+	}
+
+
+	@Override
+	public int length()
+	{
+		return mEnd - mStart;
+	}
+
+
+	@Override
+	public char charAt(int aIndex)
+	{
+		int offset = mStart + aIndex;
+
+		if (aIndex < 0 || offset >= mEnd)
+		{
+			throw new IndexOutOfBoundsException("index " + aIndex + ", length " + length());
+		}
+
+		if (offset < mLineOffsets[mLine] || offset >= mLineOffsets[mLine + 1])
+		{
+			mLine = getLineAt(offset);
+			mLineText = mLines[mLine];
+		}
+
+		int column = offset - mLineOffsets[mLine];
+
+		return column < mLineText.length() ? mLineText.charAt(column) : '\n';
+	}
+
+
+	@Override
+	public CharSequence subSequence(int aStart, int aEnd)
+	{
+		if (aStart < 0 || aEnd > length() || aStart > aEnd)
+		{
+			throw new IndexOutOfBoundsException("start " + aStart + ", end " + aEnd + ", length " + length());
+		}
+
+		return new DocumentText(this, mStart + aStart, mStart + aEnd);
+	}
+
+
+	@Override
+	public String toString()
+	{
+		StringBuilder text = new StringBuilder(length());
+
+		for (int line = getLineAt(mStart), offset = mStart; offset < mEnd; line++)
+		{
+			int lineStart = mLineOffsets[line];
+			int lineEnd = Math.min(lineStart + mLines[line].length(), mEnd);
+
+			if (offset < lineEnd)
+			{
+				text.append(mLines[line], offset - lineStart, lineEnd - lineStart);
+				offset = lineEnd;
+			}
+			if (offset < mEnd)
+			{
+				text.append('\n');
+				offset++;
+			}
+		}
+
+		return text.toString();
+	}
+
+
+	/**
+	 * Returns the line of the document containing an offset of the document text. The line feed ending a line belongs to the line.
+	 */
+	public int getLineAt(int aOffset)
+	{
+		int line = Arrays.binarySearch(mLineOffsets, 0, mLines.length, aOffset);
+
+		return line >= 0 ? line : -line - 2;
+	}
+
+
+	/**
+	 * Returns the offset of the document text where a line starts.
+	 */
+	public int getLineOffset(int aLine)
+	{
+		return mLineOffsets[aLine];
+	}
+
+
+	/**
+	 * Returns the offset of the document text of a column of a line.
+	 */
+	public int getOffset(int aColumn, int aLine)
+	{
+		return mLineOffsets[aLine] + aColumn;
+	}
+}
\ No newline at end of file
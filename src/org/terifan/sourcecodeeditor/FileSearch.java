@@ -0,0 +1,440 @@
+package org.terifan.sourcecodeeditor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+
+
+/**
+ * A search of the files in a directory tree started by a FileSearchService.
+ *
+ * A virtual thread walks the directory tree starting a virtual thread for each file, the walk pausing while a few files per permitted read
+ * are waiting to be searched. A semaphore limits the number of files read and searched at the same time to the parallelism of the
+ * search. Files are memory mapped and their charset detected from a byte order mark or by their content: files with only ASCII
+ * characters and files that are not valid UTF-8 are searched in place as ISO-8859-1 text, other files being decoded as UTF-8. Files
+ * containing a NUL character are assumed to be binary and are skipped, as are files that cannot be read.
+ */
+public class FileSearch
+{
+	private final static int MAX_LINE_TEXT_LENGTH = 1000;
+	private final static int QUEUED_FILES_PER_READ = 4;
+
+	private final Path mDirectory;
+	private final PathMatcher mPathMatcher;
+	private final TextSearch mTextSearch;
+	private final RegexSearch mRegexSearch;
+	private final FileSearchListener mListener;
+	private final int mParallelism;
+	private final long mMaxFileSize;
+	private final AtomicInteger mFileCount;
+	private final AtomicInteger mMatchCount;
+	private final CountDownLatch mDone;
+	private final ExecutorService mExecutor;
+	private final Semaphore mReads;
+	private volatile boolean mCancelled;
+
+
+	FileSearch(Path aDirectory, String aGlob, TextSearch aTextSearch, RegexSearch aRegexSearch, FileSearchListener aListener, int aParallelism, long aMaxFileSize)
+	{
+		mDirectory = aDirectory;
+		mPathMatcher = aGlob == null ? null : FileSystems.getDefault().getPathMatcher("glob:" + aGlob);
+		mTextSearch = aTextSearch;
+		mRegexSearch = aRegexSearch;
+		mListener = aListener;
+		mParallelism = aParallelism;
+		mMaxFileSize = aMaxFileSize;
+		mFileCount = new AtomicInteger();
+		mMatchCount = new AtomicInteger();
+		mDone = new CountDownLatch(1);
+		mExecutor = Executors.newVirtualThreadPerTaskExecutor();
+		mReads = new Semaphore(aParallelism);
+	}
+
+
+	public Path getDirectory()
+	{
+		return mDirectory;
+	}
+
+
+	/**
+	 * Returns the number of files searched so far.
+	 */
+	public int getFileCount()
+	{
+		return mFileCount.get();
+	}
+
+
+	/**
+	 * Returns the number of matches found so far.
+	 */
+	public int getMatchCount()
+	{
+		return mMatchCount.get();
+	}
+
+
+	/**
+	 * Stops the search. The listener is not notified of matches after this call returns, except by a call already in progress.
+	 */
+	public void cancel()
+	{
+		mCancelled = true;
+		mExecutor.shutdownNow();
+	}
+
+
+	public boolean isCancelled()
+	{
+		return mCancelled;
+	}
+
+
+	public boolean isDone()
+	{
+		return mDone.getCount() == 0;
+	}
+
+
+	/**
+	 * Waits until the search has completed or has been cancelled and the listener has been notified.
+	 */
+	public void await() throws InterruptedException
+	{
+		mDone.await();
+	}
+
+
+	void start()
+	{
+		Thread.ofVirtual().name("File search walker").start(this::walk);
+	}
+
+
+	private void walk()
+	{
+		Semaphore queue = new Semaphore(QUEUED_FILES_PER_READ * mParallelism);
+
+		try
+		{
+			Files.walkFileTree(mDirectory, new SimpleFileVisitor<Path>()
+			{
+				@Override
+				public FileVisitResult preVisitDirectory(Path aDirectory, BasicFileAttributes aAttributes)
+				{
+					return mCancelled ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+				}
+
+
+				@Override
+				public FileVisitResult visitFile(Path aFile, BasicFileAttributes aAttributes)
+				{
+					if (mCancelled)
+					{
+						return FileVisitResult.TERMINATE;
+					}
+
+					if (aAttributes.isRegularFile() && aAttributes.size() > 0 && aAttributes.size() <= mMaxFileSize && (mPathMatcher == null || mPathMatcher.matches(aFile.getFileName())))
+					{
+						try
+						{
+							queue.acquire();
+							mExecutor.execute(() ->
+							{
+								try
+								{
+									mReads.acquire();
+									try
+									{
+										searchFile(aFile);
+									}
+									finally
+									{
+										mReads.release();
+									}
+								}
+								catch (InterruptedException e)
+								{
+									// the search was cancelled
+								}
+								finally
+								{
+									queue.release();
+								}
+							});
+						}
+						catch (InterruptedException | RejectedExecutionException e)
+						{
+							return FileVisitResult.TERMINATE;
+						}
+					}
+
+					return FileVisitResult.CONTINUE;
+				}
+
+
+				@Override
+				public FileVisitResult visitFileFailed(Path aFile, IOException aException)
+				{
+					return FileVisitResult.CONTINUE;
+				}
+			});
+
+			mExecutor.shutdown();
+			mExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		catch (IOException | InterruptedException e)
+		{
+			// the directory cannot be read or the search was cancelled
+		}
+		finally
+		{
+			mExecutor.shutdownNow();
+
+			synchronized (this)
+			{
+				mListener.searchCompleted(this);
+			}
+
+			mDone.countDown();
+		}
+	}
+
+
+	private void searchFile(Path aFile)
+	{
+		if (mCancelled)
+		{
+			return;
+		}
+
+		ByteBuffer buffer;
+
+		try (FileChannel channel = FileChannel.open(aFile, StandardOpenOption.READ))
+		{
+			long size = channel.size();
+
+			if (size == 0 || size > mMaxFileSize)
+			{
+				return;
+			}
+
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		catch (IOException | UnsupportedOperationException e)
+		{
+			return;
+		}
+
+		Charset[] charset = new Charset[1];
+		CharSequence text = decode(buffer, charset);
+
+		if (text != null)
+		{
+			mFileCount.incrementAndGet();
+
+			try
+			{
+				searchText(aFile, text, charset[0]);
+			}
+			catch (InternalError e)
+			{
+				// the file was truncated while mapped
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the text of a file, or null if the file is binary, and the charset of the file in the array provided.
+	 */
+	private static CharSequence decode(ByteBuffer aBuffer, Charset[] aCharset)
+	{
+		int length = aBuffer.limit();
+
+		if (length >= 2 && (aBuffer.get(0) & 0xff) == 0xfe && (aBuffer.get(1) & 0xff) == 0xff)
+		{
+			aCharset[0] = StandardCharsets.UTF_16;
+			return decode(aBuffer.position(2), StandardCharsets.UTF_16BE);
+		}
+		if (length >= 2 && (aBuffer.get(0) & 0xff) == 0xff && (aBuffer.get(1) & 0xff) == 0xfe)
+		{
+			aCharset[0] = StandardCharsets.UTF_16;
+			return decode(aBuffer.position(2), StandardCharsets.UTF_16LE);
+		}
+
+		int start = length >= 3 && (aBuffer.get(0) & 0xff) == 0xef && (aBuffer.get(1) & 0xff) == 0xbb && (aBuffer.get(2) & 0xff) == 0xbf ? 3 : 0;
+		boolean ascii = start == 0;
+
+		for (int i = start; i < length; i++)
+		{
+			byte b = aBuffer.get(i);
+
+			if (b == 0)
+			{
+				return null;
+			}
+			if (b < 0)
+			{
+				ascii = false;
+			}
+		}
+
+		if (ascii)
+		{
+			aCharset[0] = StandardCharsets.US_ASCII;
+			return new ByteCharSequence(aBuffer, 0, length);
+		}
+
+		CharSequence text = decode(aBuffer.position(start), StandardCharsets.UTF_8);
+
+		if (text != null)
+		{
+			aCharset[0] = StandardCharsets.UTF_8;
+			return text;
+		}
+
+		aCharset[0] = StandardCharsets.ISO_8859_1;
+		return new ByteCharSequence(aBuffer, start, length - start);
+	}
+
+
+	private static CharBuffer decode(ByteBuffer aBuffer, Charset aCharset)
+	{
+		try
+		{
+			return aCharset.newDecoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT).decode(aBuffer);
+		}
+		catch (CharacterCodingException e)
+		{
+			return null;
+		}
+	}
+
+
+	private void searchText(Path aFile, CharSequence aText, Charset aCharset)
+	{
+		LineCounter counter = new LineCounter(aText);
+
+		if (mTextSearch != null)
+		{
+			int length = mTextSearch.length();
+
+			for (int offset = mTextSearch.indexOf(aText, 0); offset != -1 && !mCancelled; offset = mTextSearch.indexOf(aText, offset + length))
+			{
+				found(aFile, aCharset, counter, offset, offset + length);
+			}
+		}
+		else
+		{
+			Matcher matcher = mRegexSearch.newMatcher(aText);
+
+			while (!mCancelled && matcher.find())
+			{
+				if (matcher.end() > matcher.start())
+				{
+					found(aFile, aCharset, counter, matcher.start(), matcher.end());
+				}
+			}
+		}
+	}
+
+
+	private void found(Path aFile, Charset aCharset, LineCounter aCounter, int aStart, int aEnd)
+	{
+		aCounter.advance(aStart);
+		int line = aCounter.mLine;
+		int column = aStart - aCounter.mLineStart;
+		String lineText = aCounter.getLineText();
+
+		aCounter.advance(aEnd);
+		int endLine = aCounter.mLine;
+		int endColumn = aEnd - aCounter.mLineStart;
+
+		FileSearchResult result = new FileSearchResult(aFile, aCharset, line, column, endLine, endColumn, lineText);
+
+		synchronized (this)
+		{
+			if (!mCancelled)
+			{
+				mMatchCount.incrementAndGet();
+				mListener.matchFound(result);
+			}
+		}
+	}
+
+
+	/**
+	 * Finds the line and column of offsets in the text of a file, offsets being visited in increasing order. Line breaks are "\n", "\r" and
+	 * "\r\n", the same as when a file is loaded by a Document.
+	 */
+	private static class LineCounter
+	{
+		private final CharSequence mText;
+		private int mOffset;
+		private int mLine;
+		private int mLineStart;
+
+
+		LineCounter(CharSequence aText)
+		{
+			mText = aText;
+		}
+
+
+		void advance(int aOffset)
+		{
+			for (int i = mOffset, length = mText.length(); i < aOffset; i++)
+			{
+				char c = mText.charAt(i);
+
+				if (c == '\n' || c == '\r' && (i + 1 == length || mText.charAt(i + 1) != '\n'))
+				{
+					mLine++;
+					mLineStart = i + 1;
+				}
+			}
+
+			mOffset = Math.max(mOffset, aOffset);
+		}
+
+
+		String getLineText()
+		{
+			int end = mLineStart;
+
+			for (int length = Math.min(mText.length(), mLineStart + MAX_LINE_TEXT_LENGTH); end < length; end++)
+			{
+				char c = mText.charAt(end);
+				if (c == '\n' || c == '\r')
+				{
+					break;
+				}
+			}
+
+			return mText.subSequence(mLineStart, end).toString();
+		}
+	}
+}
\ No newline at end of file
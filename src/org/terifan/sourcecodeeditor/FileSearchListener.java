@@ -0,0 +1,17 @@
+package org.terifan.sourcecodeeditor;
+
+
+/**
+ * Receives the results of a FileSearch as they are found. The methods are called from the threads searching the files, one call at a
+ * time, and must hand the results over to the event dispatch thread before updating any component.
+ */
+public interface FileSearchListener
+{
+	public void matchFound(FileSearchResult aResult);
+
+
+	/**
+	 * Called once when all files have been searched or the search has been cancelled.
+	 */
+	public void searchCompleted(FileSearch aFileSearch);
+}
\ No newline at end of file
@@ -0,0 +1,132 @@
+package org.terifan.sourcecodeeditor;
+
+import java.awt.Point;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+
+/**
+ * A match found by a FileSearch. Lines and columns start at zero, the same as the lines and columns of a Document.
+ */
+public class FileSearchResult
+{
+	private final Path mPath;
+	private final Charset mCharset;
+	private final int mLine;
+	private final int mColumn;
+	private final int mEndLine;
+	private final int mEndColumn;
+	private final String mLineText;
+
+
+	FileSearchResult(Path aPath, Charset aCharset, int aLine, int aColumn, int aEndLine, int aEndColumn, String aLineText)
+	{
+		mPath = aPath;
+		mCharset = aCharset;
+		mLine = aLine;
+		mColumn = aColumn;
+		mEndLine = aEndLine;
+		mEndColumn = aEndColumn;
+		mLineText = aLineText;
+	}
+
+
+	public Path getPath()
+	{
+		return mPath;
+	}
+
+
+	/**
+	 * Returns the charset the file was detected to be encoded with.
+	 */
+	public Charset getCharset()
+	{
+		return mCharset;
+	}
+
+
+	public int getLine()
+	{
+		return mLine;
+	}
+
+
+	public int getColumn()
+	{
+		return mColumn;
+	}
+
+
+	public int getEndLine()
+	{
+		return mEndLine;
+	}
+
+
+	public int getEndColumn()
+	{
+		return mEndColumn;
+	}
+
+
+	/**
+	 * Returns the line the match starts in, long lines being truncated.
+	 */
+	public String getLineText()
+	{
+		return mLineText;
+	}
+
+
+	/**
+	 * Loads the file into a new Document displayed by the editor provided, selecting the match and scrolling to it.
+	 *
+	 * @return
+	 *   the Document loaded
+	 */
+	public Document open(SourceEditor aSourceEditor) throws IOException
+	{
+		Document document = new Document();
+
+		try (BufferedReader in = Files.newBufferedReader(mPath, mCharset))
+		{
+			// a byte order mark is not part of the text
+			in.mark(1);
+			if (in.read() != '\uFEFF')
+			{
+				in.reset();
+			}
+
+			document.load(in);
+		}
+
+		document.setModified(false);
+
+		aSourceEditor.setDocument(document);
+		aSourceEditor.selectMatch(clamp(document, mColumn, mLine), clamp(document, mEndColumn, mEndLine));
+
+		return document;
+	}
+
+
+	/**
+	 * Returns a position within the document, the file may have been changed after it was searched.
+	 */
+	private static Point clamp(Document aDocument, int aColumn, int aLine)
+	{
+		int line = Math.min(aLine, aDocument.getLineCount() - 1);
+
+		return new Point(Math.min(aColumn, aDocument.getLineLength(line)), line);
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return mPath + ":" + (mLine + 1) + ":" + (mColumn + 1) + ": " + mLineText;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,129 @@
+package org.terifan.sourcecodeeditor;
+
+import java.nio.file.Path;
+
+
+/**
+ * Searches the files of directory trees for a string or a regular expression, searching up to a configurable number of files at the same
+ * time.
+ *
+ * <pre>
+ * new FileSearchService(8).search(Paths.get("logs"), "*.log", new TextSearch("timeout", false, false), listener);
+ * </pre>
+ */
+public final class FileSearchService
+{
+	private int mParallelism;
+	private long mMaxFileSize;
+
+
+	/**
+	 * Creates a service searching as many files at a time as there are processors.
+	 */
+	public FileSearchService()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+
+	public FileSearchService(int aParallelism)
+	{
+		setParallelism(aParallelism);
+		mMaxFileSize = Integer.MAX_VALUE;
+	}
+
+
+	public int getParallelism()
+	{
+		return mParallelism;
+	}
+
+
+	/**
+	 * Sets the number of files searched at the same time by searches started after this call.
+	 */
+	public FileSearchService setParallelism(int aParallelism)
+	{
+		if (aParallelism < 1)
+		{
+			throw new IllegalArgumentException("Parallelism must be at least 1: " + aParallelism);
+		}
+
+		mParallelism = aParallelism;
+		return this;
+	}
+
+
+	public long getMaxFileSize()
+	{
+		return mMaxFileSize;
+	}
+
+
+	/**
+	 * Sets the size in bytes of the largest file searched, larger files being skipped. Files cannot be larger than 2 GB.
+	 */
+	public FileSearchService setMaxFileSize(long aMaxFileSize)
+	{
+		if (aMaxFileSize < 1 || aMaxFileSize > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("Max file size out of range: " + aMaxFileSize);
+		}
+
+		mMaxFileSize = aMaxFileSize;
+		return this;
+	}
+
+
+	/**
+	 * Starts searching the files in a directory tree for a string.
+	 *
+	 * @param aGlob
+	 *   a glob pattern the names of the files searched must match, e.g. "*.{sql,log}", or null to search all files
+	 */
+	public FileSearch search(Path aDirectory, String aGlob, TextSearch aTextSearch, FileSearchListener aListener)
+	{
+		if (aTextSearch == null)
+		{
+			throw new IllegalArgumentException("TextSearch provided is null.");
+		}
+
+		return start(aDirectory, aGlob, aTextSearch, null, aListener);
+	}
+
+
+	/**
+	 * Starts searching the files in a directory tree for a regular expression. The expression is matched against the whole text of each
+	 * file allowing matches to span lines.
+	 *
+	 * @param aGlob
+	 *   a glob pattern the names of the files searched must match, e.g. "*.{sql,log}", or null to search all files
+	 */
+	public FileSearch search(Path aDirectory, String aGlob, RegexSearch aRegexSearch, FileSearchListener aListener)
+	{
+		if (aRegexSearch == null)
+		{
+			throw new IllegalArgumentException("RegexSearch provided is null.");
+		}
+
+		return start(aDirectory, aGlob, null, aRegexSearch, aListener);
+	}
+
+
+	private FileSearch start(Path aDirectory, String aGlob, TextSearch aTextSearch, RegexSearch aRegexSearch, FileSearchListener aListener)
+	{
+		if (aDirectory == null)
+		{
+			throw new IllegalArgumentException("Directory provided is null.");
+		}
+		if (aListener == null)
+		{
+			throw new IllegalArgumentException("FileSearchListener provided is null.");
+		}
+
+		FileSearch search = new FileSearch(aDirectory, aGlob, aTextSearch, aRegexSearch, aListener, mParallelism, mMaxFileSize);
+		search.start();
+
+		return search;
+	}
+}
\ No newline at end of file
@@ -5,7 +5,6 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.GridLayout;
-import java.awt.Point;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyAdapter;
@@ -13,15 +12,18 @@ import java.awt.event.KeyEvent;
 import java.awt.font.FontRenderContext;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
+import java.util.regex.PatternSyntaxException;
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
 import javax.swing.JComponent;
 import javax.swing.JDialog;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeListener;
 
 
 public class FindDialog extends JDialog implements ActionListener
@@ -38,9 +40,14 @@ public class FindDialog extends JDialog implements ActionListener
 	protected JCheckBoxEx mSearchBackwards;
 	protected JCheckBoxEx mWrapSearch;
 	protected JCheckBoxEx mSelectionOnly;
+	protected JCheckBoxEx mRegularExpression;
+	protected JLabel mStatusLabel;
+	protected boolean mInvalidExpression;
 	protected SourceEditor mSearchField;
 	protected SourceEditor mReplaceField;
 	protected SourceEditor mSourceEditor;
+	private final transient ChangeListener mSearchListener;
+	private final transient CaretListener mCaretListener;
 
 
 	public FindDialog(SourceEditor aSourceEditor)
@@ -54,6 +61,8 @@ public class FindDialog extends JDialog implements ActionListener
 		mSearchBackwards = new JCheckBoxEx("Search Backwards", false);
 		mWrapSearch = new JCheckBoxEx("Wrap Search", true);
 		mSelectionOnly = new JCheckBoxEx("Selection Only", false);
+		mRegularExpression = new JCheckBoxEx("Regular Expression", false);
+		mStatusLabel = new JLabel(" ");
 
 		mSearchButton = new JButton("Search");
 		mSearchButton.addActionListener(this);
@@ -101,6 +110,8 @@ public class FindDialog extends JDialog implements ActionListener
 		optionPanel.add(mSearchBackwards);
 		optionPanel.add(mWrapSearch);
 		optionPanel.add(mSelectionOnly);
+		optionPanel.add(mRegularExpression);
+		optionPanel.add(mStatusLabel);
 
 		JPanel p = new JPanel(new BorderLayout(0, 0));
 		p.add(optionPanel, BorderLayout.NORTH);
@@ -135,6 +146,17 @@ public class FindDialog extends JDialog implements ActionListener
 
 		mReplaceField.dontRequestFocus();
 
+		// every match is highlighted and counted as the search is typed
+		ActionListener optionListener = aEvent -> updateSearchHighlight();
+		mCaseSensative.addActionListener(optionListener);
+		mWholeWordsOnly.addActionListener(optionListener);
+		mRegularExpression.addActionListener(optionListener);
+		mSearchField.getDocument().addDocumentListener(aEvent -> updateSearchHighlight());
+		mSearchListener = aEvent -> updateStatus();
+		mCaretListener = aEvent -> updateStatus();
+		mSourceEditor.addSearchListener(mSearchListener);
+		mSourceEditor.getCaret().addCaretListener(mCaretListener);
+
 		super.add(mainPanel);
 	}
 
@@ -142,12 +164,28 @@ public class FindDialog extends JDialog implements ActionListener
 	@Override
 	public void actionPerformed(ActionEvent aEvent)
 	{
-		String command = aEvent.getActionCommand();
+		try
+		{
+			performAction(aEvent.getActionCommand());
+		}
+		catch (PatternSyntaxException e)
+		{
+			JOptionPane.showMessageDialog(null, e.getDescription() + ": " + e.getPattern(), "Search and Replace", JOptionPane.ERROR_MESSAGE);
+		}
+		catch (IllegalArgumentException e)
+		{
+			JOptionPane.showMessageDialog(null, e.getMessage(), "Search and Replace", JOptionPane.ERROR_MESSAGE);
+		}
+	}
 
+
+	private void performAction(String aCommand)
+	{
 		boolean forward = !mSearchBackwards.isSelected();
 		boolean caseSensative = mCaseSensative.isSelected();
 		boolean wrapSearch = mWrapSearch.isSelected();
 		boolean wholeWordsOnly = mWholeWordsOnly.isSelected();
+		boolean regularExpression = mRegularExpression.isSelected();
 		String search = mSearchField.getText().toString();
 		String replace = mReplaceField.getText().toString();
 		SourceEditor editor = mSourceEditor;
@@ -157,19 +195,19 @@ public class FindDialog extends JDialog implements ActionListener
 			return;
 		}
 
-		switch (command)
+		switch (aCommand)
 		{
 			case "search":
 			case "searchforwards":
 			case "searchbackwards":
-				if (command.equals("searchforwards"))
+				if (aCommand.equals("searchforwards"))
 				{
 					forward = true;
 				}
-				else if (command.equals("searchbackwards"))
+				else if (aCommand.equals("searchbackwards"))
 				{
 					forward = false;
-				}	if (editor.findText(search, forward, caseSensative, wrapSearch, wholeWordsOnly))
+				}	if (find(search, forward, caseSensative, wrapSearch, wholeWordsOnly, regularExpression))
 				{
 					editor.repaint();
 				}
@@ -181,33 +219,122 @@ public class FindDialog extends JDialog implements ActionListener
 			case "replace":
 				if (editor.isTextSelected())
 				{
-					editor.replaceSelection(replace);
+					replace(search, caseSensative, replace, regularExpression);
 					editor.repaint();
 				}
 				break;
 			case "replaceall":
-				Point caretPosition = new Point(editor.getCaret().getVirtualPosition());
-				int count = 0;
-				while (editor.findText(search, forward, caseSensative, wrapSearch, wholeWordsOnly))
-				{
-					editor.replaceSelection(replace);
-					count++;
-				}	editor.getCaret().moveAbsolute(caretPosition.x, caretPosition.y, true, false, true);
+				editor.replaceAll(search, replace, caseSensative, wholeWordsOnly, regularExpression, mSelectionOnly.isSelected());
 				editor.repaint();
 				break;
 			case "replaceandsearch":
 				if (editor.isTextSelected())
 				{
-					editor.replaceSelection(replace);
+					replace(search, caseSensative, replace, regularExpression);
 				}	editor.repaint();
 				break;
 			default:
-				System.out.println("Unrecognized command:" + command);
+				System.out.println("Unrecognized command:" + aCommand);
 				break;
 		}
 	}
 
 
+	@Override
+	public void setVisible(boolean aVisible)
+	{
+		super.setVisible(aVisible);
+
+		if (aVisible)
+		{
+			updateSearchHighlight();
+		}
+		else
+		{
+			mSourceEditor.setSearchHighlight(null, false, false, false);
+		}
+	}
+
+
+	/**
+	 * Disposes the dialog and removes the listeners it added to the editor.
+	 */
+	@Override
+	public void dispose()
+	{
+		mSourceEditor.removeSearchListener(mSearchListener);
+		mSourceEditor.getCaret().removeCaretListener(mCaretListener);
+
+		super.dispose();
+	}
+
+
+	private void updateSearchHighlight()
+	{
+		try
+		{
+			mInvalidExpression = false;
+			mSourceEditor.setSearchHighlight(mSearchField.getText().toString(), mCaseSensative.isSelected(), mWholeWordsOnly.isSelected(), mRegularExpression.isSelected());
+		}
+		catch (PatternSyntaxException e)
+		{
+			mInvalidExpression = true;
+			mSourceEditor.setSearchHighlight(null, false, false, false);
+		}
+	}
+
+
+	private void updateStatus()
+	{
+		int count = mSourceEditor.getSearchMatchCount();
+		int index = mSourceEditor.getSearchMatchIndex();
+
+		if (mInvalidExpression)
+		{
+			mStatusLabel.setText("Invalid expression");
+		}
+		else if (mSearchField.getDocument().getLineCount() == 1 && mSearchField.getDocument().getLineLength(0) == 0)
+		{
+			mStatusLabel.setText(" ");
+		}
+		else if (count == -1)
+		{
+			mStatusLabel.setText("Searching...");
+		}
+		else if (index != -1)
+		{
+			mStatusLabel.setText("Match " + (index + 1) + " of " + count);
+		}
+		else
+		{
+			mStatusLabel.setText(count == 0 ? "No matches" : count == 1 ? "1 match" : count + " matches");
+		}
+	}
+
+
+	private boolean find(String aSearch, boolean aForward, boolean aCaseSensative, boolean aWrapSearch, boolean aWholeWordsOnly, boolean aRegularExpression)
+	{
+		if (aRegularExpression)
+		{
+			return mSourceEditor.findRegex(aSearch, aForward, aCaseSensative, aWrapSearch);
+		}
+		return mSourceEditor.findText(aSearch, aForward, aCaseSensative, aWrapSearch, aWholeWordsOnly);
+	}
+
+
+	private void replace(String aSearch, boolean aCaseSensative, String aReplace, boolean aRegularExpression)
+	{
+		if (aRegularExpression)
+		{
+			mSourceEditor.replaceRegex(aSearch, aCaseSensative, aReplace);
+		}
+		else
+		{
+			mSourceEditor.replaceSelection(aReplace);
+		}
+	}
+
+
 	public static class JLabelEx extends javax.swing.JLabel
 	{
 		private final static long serialVersionUID = 1L;
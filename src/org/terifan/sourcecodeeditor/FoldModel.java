@@ -0,0 +1,509 @@
+package org.terifan.sourcecodeeditor;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ * Keeps track of collapsed regions of a Document and translates between document lines and the rows visible in the editor.
+ *
+ * A fold consists of a header line, which remains visible, and the lines following it up to and including the last hidden line. Fold
+ * regions are derived from the bracket and element structure maintained by the BracketIndex or, for lines without such a block, from the
+ * indentation of the lines following the header.
+ *
+ * Collapsed folds are kept in an interval tree used to find the folds containing a line. The union of all hidden lines is kept as a
+ * sorted list of disjoint ranges with the number of lines hidden before each range, making the translation between lines and visible
+ * rows a binary search in both directions.
+ */
+class FoldModel implements DocumentListener
+{
+	private final static int[] EMPTY = new int[0];
+
+	private final SourceEditor mSourceEditor;
+	private final Document mDocument;
+	private final BracketIndex mBracketIndex;
+	private final ArrayList<Point> mFolds; // x = header line, y = last hidden line
+
+	// interval tree over all collapsed folds, implicit binary tree over the folds sorted by header line
+	private int[] mTreeStart;
+	private int[] mTreeEnd;
+	private int[] mTreeMaxEnd;
+
+	// union of hidden lines
+	private int[] mHiddenStart;
+	private int[] mHiddenEnd;
+	private int[] mHiddenBefore;
+
+	private int mModificationCount;
+
+
+	public FoldModel(SourceEditor aSourceEditor, Document aDocument, BracketIndex aBracketIndex)
+	{
+		mSourceEditor = aSourceEditor;
+		mDocument = aDocument;
+		mBracketIndex = aBracketIndex;
+		mFolds = new ArrayList<>();
+
+		rebuild();
+	}
+
+
+	/**
+	 * Returns a number changing every time the folds change.
+	 */
+	public int getModificationCount()
+	{
+		return mModificationCount;
+	}
+
+
+	public boolean isEmpty()
+	{
+		return mFolds.isEmpty();
+	}
+
+
+	/**
+	 * Returns the last line that would be hidden if the line provided was collapsed or -1 if the line doesn't start a fold region.
+	 */
+	public int findRegionEnd(int aLine)
+	{
+		int end = mBracketIndex.findBlockEnd(aLine);
+
+		if (end != -1)
+		{
+			return end - 1 > aLine ? end - 1 : -1;
+		}
+
+		String line = mDocument.getLine(aLine);
+
+		if (line.isBlank())
+		{
+			return -1;
+		}
+
+		int indent = getIndent(line);
+		int last = -1;
+
+		for (int i = aLine + 1, lineCount = mDocument.getLineCount(); i < lineCount; i++)
+		{
+			String s = mDocument.getLine(i);
+
+			if (!s.isBlank())
+			{
+				if (getIndent(s) <= indent)
+				{
+					break;
+				}
+				last = i;
+			}
+		}
+
+		return last;
+	}
+
+
+	/**
+	 * Returns the header line of the innermost fold region containing the line provided or -1 if none exists. A line starting a region
+	 * is considered to be contained by it.
+	 */
+	public int findEnclosingRegion(int aLine)
+	{
+		if (findRegionEnd(aLine) != -1)
+		{
+			return aLine;
+		}
+
+		for (Point open = mBracketIndex.findEnclosingOpen(0, aLine); open != null; open = mBracketIndex.findEnclosingOpen(open.x, open.y))
+		{
+			if (findRegionEnd(open.y) >= aLine)
+			{
+				return open.y;
+			}
+		}
+
+		String line = mDocument.getLine(aLine);
+
+		if (!line.isBlank())
+		{
+			int indent = getIndent(line);
+
+			for (int i = aLine; --i >= 0;)
+			{
+				String s = mDocument.getLine(i);
+
+				if (!s.isBlank() && getIndent(s) < indent)
+				{
+					return findRegionEnd(i) >= aLine ? i : -1;
+				}
+			}
+		}
+
+		return -1;
+	}
+
+
+	public boolean isCollapsed(int aHeaderLine)
+	{
+		for (Point fold : mFolds)
+		{
+			if (fold.x == aHeaderLine)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	public boolean collapse(int aHeaderLine)
+	{
+		int end = findRegionEnd(aHeaderLine);
+
+		if (end == -1 || isCollapsed(aHeaderLine))
+		{
+			return false;
+		}
+
+		mFolds.add(new Point(aHeaderLine, end));
+		rebuild();
+
+		return true;
+	}
+
+
+	public boolean expand(int aHeaderLine)
+	{
+		if (mFolds.removeIf(fold -> fold.x == aHeaderLine))
+		{
+			rebuild();
+			return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * Collapses every fold region in the document.
+	 */
+	public void collapseAll()
+	{
+		mFolds.clear();
+
+		for (int line = 0, lineCount = mDocument.getLineCount(); line < lineCount; line++)
+		{
+			int end = findRegionEnd(line);
+			if (end != -1)
+			{
+				mFolds.add(new Point(line, end));
+			}
+		}
+
+		rebuild();
+	}
+
+
+	public void expandAll()
+	{
+		mFolds.clear();
+		rebuild();
+	}
+
+
+	/**
+	 * Expands all folds hiding the line provided.
+	 *
+	 * @return
+	 *   true if any fold was expanded
+	 */
+	public boolean reveal(int aLine)
+	{
+		int[] folds = getFoldsContaining(aLine);
+
+		if (folds.length == 0)
+		{
+			return false;
+		}
+
+		for (int header : folds)
+		{
+			mFolds.removeIf(fold -> fold.x == header);
+		}
+
+		rebuild();
+
+		return true;
+	}
+
+
+	/**
+	 * Returns the header lines of all collapsed folds hiding the line provided.
+	 */
+	public int[] getFoldsContaining(int aLine)
+	{
+		if (mTreeStart.length == 0)
+		{
+			return EMPTY;
+		}
+
+		ArrayList<Integer> result = new ArrayList<>();
+		stab(0, mTreeStart.length, aLine, result);
+
+		return result.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+
+	public boolean isHidden(int aLine)
+	{
+		int k = findHiddenRange(aLine);
+
+		return k != -1 && aLine <= mHiddenEnd[k];
+	}
+
+
+	/**
+	 * Returns the visible row of the line provided. Hidden lines return the row of the header of the fold hiding them.
+	 */
+	public int getRow(int aLine)
+	{
+		int k = findHiddenRange(aLine);
+
+		if (k == -1)
+		{
+			return aLine;
+		}
+		if (aLine <= mHiddenEnd[k])
+		{
+			return mHiddenStart[k] - 1 - mHiddenBefore[k];
+		}
+
+		return aLine - mHiddenBefore[k + 1];
+	}
+
+
+	/**
+	 * Returns the document line displayed at the visible row provided.
+	 */
+	public int getLine(int aRow)
+	{
+		int lo = 0;
+		int hi = mHiddenStart.length - 1;
+		int k = -1;
+
+		while (lo <= hi)
+		{
+			int mid = (lo + hi) >>> 1;
+
+			if (mHiddenStart[mid] - mHiddenBefore[mid] <= aRow)
+			{
+				k = mid;
+				lo = mid + 1;
+			}
+			else
+			{
+				hi = mid - 1;
+			}
+		}
+
+		return k == -1 ? aRow : aRow + mHiddenBefore[k + 1];
+	}
+
+
+	public int getRowCount()
+	{
+		return mDocument.getLineCount() - mHiddenBefore[mHiddenStart.length];
+	}
+
+
+	@Override
+	public void documentChanged(DocumentEvent aEvent)
+	{
+		if (mFolds.isEmpty())
+		{
+			return;
+		}
+
+		int first = aEvent.getFirstLine();
+		int removedEnd = first + aEvent.getRemovedLineCount();
+		int delta = aEvent.getInsertedLineCount() - aEvent.getRemovedLineCount();
+		boolean changed = false;
+
+		for (int i = mFolds.size(); --i >= 0;)
+		{
+			Point fold = mFolds.get(i);
+
+			if (removedEnd <= fold.x && (first < fold.x || delta != 0))
+			{
+				if (delta != 0)
+				{
+					fold.translate(delta, delta);
+					changed = true;
+				}
+			}
+			else if (first > fold.y || first == fold.x && delta == 0 && aEvent.getRemovedLineCount() == 1)
+			{
+				// change made after the fold or to the header line only
+			}
+			else
+			{
+				mFolds.remove(i);
+				changed = true;
+			}
+		}
+
+		if (changed)
+		{
+			rebuild();
+		}
+	}
+
+
+	private int getIndent(String aLine)
+	{
+		int tabSize = mSourceEditor.getTabSize();
+		int indent = 0;
+
+		for (int i = 0; i < aLine.length(); i++)
+		{
+			char c = aLine.charAt(i);
+			if (c == '\t')
+			{
+				indent += tabSize - (indent % tabSize);
+			}
+			else if (c == ' ')
+			{
+				indent++;
+			}
+			else
+			{
+				break;
+			}
+		}
+
+		return indent;
+	}
+
+
+	/**
+	 * Returns the index of the last hidden range starting at or before the line provided or -1.
+	 */
+	private int findHiddenRange(int aLine)
+	{
+		int lo = 0;
+		int hi = mHiddenStart.length - 1;
+		int k = -1;
+
+		while (lo <= hi)
+		{
+			int mid = (lo + hi) >>> 1;
+
+			if (mHiddenStart[mid] <= aLine)
+			{
+				k = mid;
+				lo = mid + 1;
+			}
+			else
+			{
+				hi = mid - 1;
+			}
+		}
+
+		return k;
+	}
+
+
+	private void stab(int aLo, int aHi, int aLine, ArrayList<Integer> aResult)
+	{
+		if (aLo >= aHi)
+		{
+			return;
+		}
+
+		int mid = (aLo + aHi) >>> 1;
+
+		if (mTreeMaxEnd[mid] < aLine)
+		{
+			return;
+		}
+
+		stab(aLo, mid, aLine, aResult);
+
+		if (mTreeStart[mid] < aLine)
+		{
+			if (aLine <= mTreeEnd[mid])
+			{
+				aResult.add(mTreeStart[mid]);
+			}
+
+			stab(mid + 1, aHi, aLine, aResult);
+		}
+	}
+
+
+	private int buildTree(int aLo, int aHi)
+	{
+		if (aLo >= aHi)
+		{
+			return -1;
+		}
+
+		int mid = (aLo + aHi) >>> 1;
+
+		mTreeMaxEnd[mid] = Math.max(mTreeEnd[mid], Math.max(buildTree(aLo, mid), buildTree(mid + 1, aHi)));
+
+		return mTreeMaxEnd[mid];
+	}
+
+
+	private void rebuild()
+	{
+		mModificationCount++;
+
+		mFolds.sort((a, b) -> a.x != b.x ? Integer.compare(a.x, b.x) : Integer.compare(a.y, b.y));
+
+		int count = mFolds.size();
+
+		mTreeStart = new int[count];
+		mTreeEnd = new int[count];
+		mTreeMaxEnd = new int[count];
+
+		for (int i = 0; i < count; i++)
+		{
+			mTreeStart[i] = mFolds.get(i).x;
+			mTreeEnd[i] = mFolds.get(i).y;
+		}
+
+		buildTree(0, count);
+
+		int[] start = new int[count];
+		int[] end = new int[count];
+		int ranges = 0;
+
+		for (int i = 0; i < count; i++)
+		{
+			int s = mTreeStart[i] + 1;
+			int e = mTreeEnd[i];
+
+			if (ranges > 0 && s <= end[ranges - 1] + 1)
+			{
+				end[ranges - 1] = Math.max(end[ranges - 1], e);
+			}
+			else
+			{
+				start[ranges] = s;
+				end[ranges] = e;
+				ranges++;
+			}
+		}
+
+		mHiddenStart = Arrays.copyOf(start, ranges);
+		mHiddenEnd = Arrays.copyOf(end, ranges);
+		mHiddenBefore = new int[ranges + 1];
+
+		for (int i = 0; i < ranges; i++)
+		{
+			mHiddenBefore[i + 1] = mHiddenBefore[i] + mHiddenEnd[i] - mHiddenStart[i] + 1;
+		}
+	}
+}
\ No newline at end of file
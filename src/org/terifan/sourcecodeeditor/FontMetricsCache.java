@@ -0,0 +1,305 @@
+package org.terifan.sourcecodeeditor;
+
+import java.awt.Font;
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineMetrics;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Metrics and advance widths of a Font shared by all styles using that font. Instances are kept in a process-wide cache and created on
+ * first use. Line metrics are computed when an instance is created while the more expensive detection of mono-spaced fonts is deferred
+ * until it's first asked for.
+ *
+ * Instances are safe to use from multiple threads.
+ */
+final class FontMetricsCache
+{
+	private final static ConcurrentHashMap<Font, FontMetricsCache> INSTANCES = new ConcurrentHashMap<>();
+	private final static FontRenderContext FRC = new FontRenderContext(null, false, false);
+	private final static float REQUIRES_LAYOUT = -1;
+
+	private final Font mFont;
+	private final int mAscent;
+	private final int mDescent;
+	private final int mHeight;
+	private final int mLeading;
+	private final int mStrikethroughOffset;
+	private final int mStrikethroughThickness;
+	private final int mUnderlineOffset;
+	private final int mUnderlineThickness;
+	private final AtomicReferenceArray<float[]> mAdvancePages; // advance widths of BMP characters in pages of 256 characters, NaN until measured
+	private final ConcurrentHashMap<Integer, Float> mSupplementaryAdvances;
+	private volatile Boolean mMonospaced;
+	private float mMonospacedAdvance;
+
+
+	private FontMetricsCache(Font aFont)
+	{
+		LineMetrics lm = aFont.getLineMetrics("", FRC);
+
+		mFont = aFont;
+		mHeight = (int)Math.ceil(lm.getHeight());
+		mDescent = Math.round(lm.getDescent());
+		mAscent = Math.round(lm.getAscent());
+		mUnderlineOffset = Math.round(lm.getUnderlineOffset());
+		mUnderlineThickness = Math.round(lm.getUnderlineThickness());
+		mStrikethroughOffset = Math.round(lm.getStrikethroughOffset());
+		mStrikethroughThickness = Math.round(lm.getStrikethroughThickness());
+		mLeading = Math.round(lm.getLeading());
+		mAdvancePages = new AtomicReferenceArray<>(256);
+		mSupplementaryAdvances = new ConcurrentHashMap<>();
+	}
+
+
+	/**
+	 * Returns the shared metrics of the font provided.
+	 */
+	public static FontMetricsCache getInstance(Font aFont)
+	{
+		return INSTANCES.computeIfAbsent(aFont, FontMetricsCache::new);
+	}
+
+
+	/**
+	 * Returns true if all displayable Latin-1 characters of the font have the same advance width.
+	 */
+	public boolean isMonospaced()
+	{
+		Boolean monospaced = mMonospaced;
+
+		if (monospaced == null)
+		{
+			monospaced = true;
+
+			int w0 = (int)mFont.getStringBounds("m", FRC).getWidth();
+
+			for (int i = 0; i < 256 && monospaced; i++)
+			{
+				if (mFont.canDisplay(i) && !Character.isISOControl(i) && (int)getAdvance((char)i) != w0)
+				{
+					monospaced = false;
+				}
+			}
+
+			mMonospacedAdvance = getAdvance('m');
+			mMonospaced = monospaced;
+		}
+
+		return monospaced;
+	}
+
+
+	/**
+	 * Returns the total advance width of a range of the String provided.
+	 *
+	 * Advance widths are measured once per character and cached. Mono-spaced fonts compute the width of Latin-1 text without looking at
+	 * the characters and text requiring complex layout is measured by the font.
+	 */
+	public int getStringWidth(String aText, int aStart, int aEnd)
+	{
+		if (isMonospaced())
+		{
+			int i = aStart;
+			while (i < aEnd && aText.charAt(i) < 256)
+			{
+				i++;
+			}
+			if (i == aEnd)
+			{
+				return (int)((aEnd - aStart) * mMonospacedAdvance);
+			}
+		}
+
+		float width = 0;
+
+		for (int i = aStart; i < aEnd; i++)
+		{
+			char c = aText.charAt(i);
+			float advance;
+
+			if (Character.isHighSurrogate(c) && i + 1 < aEnd && Character.isLowSurrogate(aText.charAt(i + 1)))
+			{
+				advance = getSupplementaryAdvance(Character.toCodePoint(c, aText.charAt(++i)));
+			}
+			else
+			{
+				advance = getAdvance(c);
+			}
+
+			if (advance == REQUIRES_LAYOUT)
+			{
+				return (int)mFont.getStringBounds(aText, aStart, aEnd, FRC).getWidth();
+			}
+
+			width += advance;
+		}
+
+		return (int)width;
+	}
+
+
+	/**
+	 * Stores the width of every prefix of a range of the String provided, the width of the first i characters being stored at
+	 * aWidths[aOffset + i - 1]. Widths are computed in a single pass and are equal to what getStringWidth returns for each prefix.
+	 */
+	public void getPrefixWidths(String aText, int aStart, int aEnd, int[] aWidths, int aOffset)
+	{
+		if (isMonospaced())
+		{
+			int i = aStart;
+			while (i < aEnd && aText.charAt(i) < 256)
+			{
+				i++;
+			}
+			if (i == aEnd)
+			{
+				for (i = aStart; i < aEnd; i++)
+				{
+					aWidths[aOffset + i - aStart] = (int)((i + 1 - aStart) * mMonospacedAdvance);
+				}
+				return;
+			}
+		}
+
+		float width = 0;
+
+		for (int i = aStart; i < aEnd; i++)
+		{
+			char c = aText.charAt(i);
+			float advance;
+
+			if (Character.isHighSurrogate(c) && i + 1 < aEnd && Character.isLowSurrogate(aText.charAt(i + 1)))
+			{
+				aWidths[aOffset + i - aStart] = (int)width;
+				advance = getSupplementaryAdvance(Character.toCodePoint(c, aText.charAt(++i)));
+			}
+			else
+			{
+				advance = getAdvance(c);
+			}
+
+			if (advance == REQUIRES_LAYOUT)
+			{
+				for (; i < aEnd; i++)
+				{
+					aWidths[aOffset + i - aStart] = (int)mFont.getStringBounds(aText, aStart, i + 1, FRC).getWidth();
+				}
+				return;
+			}
+
+			width += advance;
+			aWidths[aOffset + i - aStart] = (int)width;
+		}
+	}
+
+
+	public int getCharWidth(char aChar)
+	{
+		float advance = getAdvance(aChar);
+
+		if (advance == REQUIRES_LAYOUT)
+		{
+			return (int)mFont.getStringBounds(new char[]{aChar}, 0, 1, FRC).getWidth();
+		}
+
+		return (int)advance;
+	}
+
+
+	private float getAdvance(char aChar)
+	{
+		float[] page = mAdvancePages.get(aChar >> 8);
+
+		if (page == null)
+		{
+			page = new float[256];
+			Arrays.fill(page, Float.NaN);
+
+			if (!mAdvancePages.compareAndSet(aChar >> 8, null, page))
+			{
+				page = mAdvancePages.get(aChar >> 8);
+			}
+		}
+
+		float advance = page[aChar & 255];
+
+		if (Float.isNaN(advance))
+		{
+			char[] chars = {aChar};
+
+			if (Character.isSurrogate(aChar) || Font.textRequiresLayout(chars, 0, 1))
+			{
+				advance = REQUIRES_LAYOUT;
+			}
+			else
+			{
+				advance = (float)mFont.getStringBounds(chars, 0, 1, FRC).getWidth();
+			}
+
+			page[aChar & 255] = advance;
+		}
+
+		return advance;
+	}
+
+
+	private float getSupplementaryAdvance(int aCodePoint)
+	{
+		return mSupplementaryAdvances.computeIfAbsent(aCodePoint, cp ->
+		{
+			char[] chars = Character.toChars(cp);
+			return (float)mFont.getStringBounds(chars, 0, chars.length, FRC).getWidth();
+		});
+	}
+
+
+	public int getAscent()
+	{
+		return mAscent;
+	}
+
+
+	public int getDescent()
+	{
+		return mDescent;
+	}
+
+
+	public int getHeight()
+	{
+		return mHeight;
+	}
+
+
+	public int getLeading()
+	{
+		return mLeading;
+	}
+
+
+	public int getStrikethroughOffset()
+	{
+		return mStrikethroughOffset;
+	}
+
+
+	public int getStrikethroughThickness()
+	{
+		return mStrikethroughThickness;
+	}
+
+
+	public int getUnderlineOffset()
+	{
+		return mUnderlineOffset;
+	}
+
+
+	public int getUnderlineThickness()
+	{
+		return mUnderlineThickness;
+	}
+}
\ No newline at end of file
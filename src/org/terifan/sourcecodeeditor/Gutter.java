@@ -0,0 +1,563 @@
+package org.terifan.sourcecodeeditor;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Insets;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.ComponentListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import javax.swing.Icon;
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+
+
+/**
+ * Displays the line numbers of the document of a SourceEditor, usually placed as the row header of the scroll pane of the editor.
+ * Lines starting a fold region have a marker collapsing or expanding the region when pressed and lines may be given an icon, a
+ * decoration, displayed left of the line number.
+ *
+ * Line numbers are drawn a digit at a time from an image of the ten digits rendered once for the font, colors and scale of the gutter.
+ * The width of the gutter is derived from the number of digits of the line count.
+ *
+ * The state of every row painted, its line number and fold marker, is recorded and rows whose state differs after a document change are
+ * repainted, leaving the other rows as they are.
+ */
+public final class Gutter extends JComponent
+{
+	private final static long serialVersionUID = 1L;
+	private final static int MIN_DIGITS = 2;
+	private final static int NO_MARKER = 0;
+	private final static int EXPANDED = 1;
+	private final static int COLLAPSED = 2;
+	private final static int CONTINUATION = 3;
+	private final static int UNKNOWN = -1;
+
+	private final SourceEditor mSourceEditor;
+	private final transient DocumentListener mDocumentListener;
+	private final transient ComponentListener mComponentListener;
+	private final TreeMap<Integer, Icon> mDecorations;
+	private Document mDocument;
+	private transient DigitAtlas mDigitAtlas;
+	private int mDigits;
+	private int mDecorationWidth;
+	private boolean mDamagePending;
+
+	// state of the rows painted starting at mStateRow, UNKNOWN if not painted
+	private int[] mRowStates;
+	private int mStateRow;
+
+
+	public Gutter(SourceEditor aSourceEditor)
+	{
+		if (aSourceEditor == null)
+		{
+			throw new IllegalArgumentException("SourceEditor provided is null.");
+		}
+
+		mSourceEditor = aSourceEditor;
+		mDecorations = new TreeMap<>();
+		mRowStates = new int[0];
+		mDocumentListener = this::documentChanged;
+		mComponentListener = new ComponentAdapter()
+		{
+			@Override
+			public void componentResized(ComponentEvent aEvent)
+			{
+				revalidate();
+				repaint();
+			}
+		};
+
+		addMouseListener(new MouseAdapter()
+		{
+			@Override
+			public void mousePressed(MouseEvent aEvent)
+			{
+				int line = getMarkerLineAt(aEvent.getX(), aEvent.getY());
+
+				if (line != -1)
+				{
+					mSourceEditor.setFolded(line, !mSourceEditor.isFolded(line));
+				}
+			}
+		});
+
+		setOpaque(true);
+	}
+
+
+	/**
+	 * Sets the icon displayed next to the number of a line or removes it if the icon provided is null. Decorations move with their lines
+	 * as lines are inserted and removed above them and are removed with their lines.
+	 */
+	public Gutter setDecoration(int aLine, Icon aIcon)
+	{
+		if (aLine < 0)
+		{
+			throw new IllegalArgumentException("Line is negative: " + aLine);
+		}
+
+		Icon previous = aIcon == null ? mDecorations.remove(aLine) : mDecorations.put(aLine, aIcon);
+
+		if (previous != aIcon)
+		{
+			updateDecorationWidth();
+			repaintLine(aLine);
+		}
+
+		return this;
+	}
+
+
+	public Icon getDecoration(int aLine)
+	{
+		return mDecorations.get(aLine);
+	}
+
+
+	public Gutter clearDecorations()
+	{
+		mDecorations.clear();
+		updateDecorationWidth();
+		repaint();
+		return this;
+	}
+
+
+	@Override
+	public void addNotify()
+	{
+		super.addNotify();
+
+		mSourceEditor.addComponentListener(mComponentListener);
+	}
+
+
+	@Override
+	public void removeNotify()
+	{
+		mSourceEditor.removeComponentListener(mComponentListener);
+
+		if (mDocument != null)
+		{
+			mDocument.removeDocumentListener(mDocumentListener);
+			mDocument = null;
+		}
+
+		super.removeNotify();
+	}
+
+
+	@Override
+	public Dimension getPreferredSize()
+	{
+		if (isPreferredSizeSet())
+		{
+			return super.getPreferredSize();
+		}
+
+		validateDocument();
+
+		Insets insets = getInsets();
+		int digits = Math.max(countDigits(mDocument.getLineCount()), MIN_DIGITS);
+		int digitWidth = getNumberStyle().getCharWidth('0');
+		int gap = mSourceEditor.getStyle(SyntaxParser.WHITESPACE).getCharWidth(' ');
+
+		return new Dimension(insets.left + mDecorationWidth + digits * digitWidth + gap + getMarkerSize() + gap + insets.right, mSourceEditor.getPreferredSize().height);
+	}
+
+
+	@Override
+	protected void paintComponent(Graphics aGraphics)
+	{
+		validateDocument();
+
+		Graphics2D g = (Graphics2D)aGraphics;
+		Rectangle clip = g.getClipBounds();
+		Style style = getNumberStyle();
+		Color background = style.getBackground() != null ? style.getBackground() : mSourceEditor.getBackground();
+		Color foreground = style.getForeground() != null ? style.getForeground() : mSourceEditor.getStyle(SyntaxParser.WHITESPACE).getForeground();
+
+		g.setColor(background);
+		g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+		int lineHeight = mSourceEditor.getFontHeight() + mSourceEditor.getLineSpacing();
+		int top = mSourceEditor.getMargins().top;
+		int rowCount = mSourceEditor.getRowCount();
+		int firstRow = Math.max((clip.y - top) / lineHeight, 0);
+		int lastRow = Math.min((clip.y + clip.height - top) / lineHeight, rowCount - 1);
+
+		if (firstRow > lastRow)
+		{
+			return;
+		}
+
+		Insets insets = getInsets();
+		int digitWidth = style.getCharWidth('0');
+		int markerSize = getMarkerSize();
+		int gap = mSourceEditor.getStyle(SyntaxParser.WHITESPACE).getCharWidth(' ');
+		int markerX = getWidth() - insets.right - gap - markerSize;
+		int numberX = markerX - gap;
+		int baseline = lineHeight / 2 + mSourceEditor.getFontDescent() / 2;
+		double scaleX = g.getTransform().getScaleX();
+		double scaleY = g.getTransform().getScaleY();
+
+		Object settings = Arrays.asList(style.getFont(), foreground, background, digitWidth, lineHeight, baseline, scaleX, scaleY, mSourceEditor.getAntialiase());
+
+		if (mDigitAtlas == null || !mDigitAtlas.mSettings.equals(settings))
+		{
+			mDigitAtlas = new DigitAtlas(settings, style.getFont(), foreground, background, digitWidth, lineHeight, baseline, scaleX, scaleY, mSourceEditor.getAntialiase());
+		}
+
+		updateStateRows();
+
+		for (int row = firstRow; row <= lastRow; row++)
+		{
+			int state = getRowState(row);
+			int line = state >> 2;
+			int marker = state & 3;
+			int y = top + row * lineHeight;
+
+			setRowState(row, state);
+
+			if (marker == CONTINUATION)
+			{
+				continue;
+			}
+
+			mDigitAtlas.drawNumber(g, line + 1, numberX, y);
+
+			if (marker != NO_MARKER)
+			{
+				paintMarker(g, markerX, y + (lineHeight - markerSize) / 2, markerSize, marker == COLLAPSED, foreground);
+			}
+
+			Icon icon = mDecorations.get(line);
+			if (icon != null)
+			{
+				icon.paintIcon(this, g, insets.left + (mDecorationWidth - icon.getIconWidth()) / 2, y + (lineHeight - icon.getIconHeight()) / 2);
+			}
+		}
+	}
+
+
+	private void paintMarker(Graphics2D aGraphics, int aX, int aY, int aSize, boolean aCollapsed, Color aColor)
+	{
+		int center = aSize / 2;
+
+		aGraphics.setColor(aColor);
+		aGraphics.drawRect(aX, aY, aSize - 1, aSize - 1);
+		aGraphics.drawLine(aX + 2, aY + center, aX + aSize - 3, aY + center);
+
+		if (aCollapsed)
+		{
+			aGraphics.drawLine(aX + center, aY + 2, aX + center, aY + aSize - 3);
+		}
+	}
+
+
+	/**
+	 * Returns the line number and fold marker displayed at a row packed into an int.
+	 */
+	private int getRowState(int aRow)
+	{
+		int line = mSourceEditor.getLineOfRow(aRow);
+		int marker;
+
+		if (mSourceEditor.getRowOfLine(line) != aRow)
+		{
+			marker = CONTINUATION;
+		}
+		else if (mSourceEditor.isFolded(line))
+		{
+			marker = COLLAPSED;
+		}
+		else
+		{
+			marker = mSourceEditor.isFoldable(line) ? EXPANDED : NO_MARKER;
+		}
+
+		return (line << 2) | marker;
+	}
+
+
+	/**
+	 * Moves the recorded row states to the rows currently visible.
+	 */
+	private void updateStateRows()
+	{
+		Rectangle visible = getVisibleRect();
+		int lineHeight = mSourceEditor.getFontHeight() + mSourceEditor.getLineSpacing();
+		int firstRow = Math.max((visible.y - mSourceEditor.getMargins().top) / lineHeight, 0);
+		int rowCount = visible.height / lineHeight + 2;
+
+		if (firstRow == mStateRow && rowCount == mRowStates.length)
+		{
+			return;
+		}
+
+		int[] states = new int[rowCount];
+		Arrays.fill(states, UNKNOWN);
+
+		for (int i = 0; i < rowCount; i++)
+		{
+			int j = firstRow + i - mStateRow;
+			if (j >= 0 && j < mRowStates.length)
+			{
+				states[i] = mRowStates[j];
+			}
+		}
+
+		mRowStates = states;
+		mStateRow = firstRow;
+	}
+
+
+	private void setRowState(int aRow, int aState)
+	{
+		int i = aRow - mStateRow;
+
+		if (i >= 0 && i < mRowStates.length)
+		{
+			mRowStates[i] = aState;
+		}
+	}
+
+
+	/**
+	 * Repaints the rows painted before whose line number or fold marker differs from the current state.
+	 */
+	private void repaintDamagedRows()
+	{
+		mDamagePending = false;
+
+		int lineHeight = mSourceEditor.getFontHeight() + mSourceEditor.getLineSpacing();
+		int top = mSourceEditor.getMargins().top;
+		int rowCount = mSourceEditor.getRowCount();
+
+		for (int i = 0; i < mRowStates.length; i++)
+		{
+			int row = mStateRow + i;
+
+			if (mRowStates[i] != UNKNOWN && (row >= rowCount || getRowState(row) != mRowStates[i]))
+			{
+				repaint(0, top + row * lineHeight, getWidth(), lineHeight);
+			}
+		}
+	}
+
+
+	/**
+	 * Called before the shared indexes of the document are updated, reading only the line count of the document and deferring painting.
+	 */
+	private void documentChanged(DocumentEvent aEvent)
+	{
+		int first = aEvent.getFirstLine();
+		int removed = aEvent.getRemovedLineCount();
+		int inserted = aEvent.getInsertedLineCount();
+
+		if (removed != inserted && !mDecorations.isEmpty())
+		{
+			NavigableMap<Integer, Icon> following = mDecorations.tailMap(first + Math.min(removed, inserted), true);
+			ArrayList<Map.Entry<Integer, Icon>> moved = new ArrayList<>(following.entrySet());
+			following.clear();
+
+			for (Map.Entry<Integer, Icon> entry : moved)
+			{
+				if (entry.getKey() >= first + removed)
+				{
+					mDecorations.put(entry.getKey() + inserted - removed, entry.getValue());
+				}
+			}
+
+			updateDecorationWidth();
+		}
+
+		if (countDigits(mDocument.getLineCount()) != mDigits)
+		{
+			mDigits = countDigits(mDocument.getLineCount());
+			revalidate();
+		}
+
+		// the editor updates its rows when notified, the rows are compared once all listeners have been notified
+		if (!mDamagePending)
+		{
+			mDamagePending = true;
+			SwingUtilities.invokeLater(this::repaintDamagedRows);
+		}
+	}
+
+
+	/**
+	 * Listens to the document of the editor, following the editor when its document is replaced.
+	 */
+	private void validateDocument()
+	{
+		if (mDocument != mSourceEditor.getDocument())
+		{
+			if (mDocument != null)
+			{
+				mDocument.removeDocumentListener(mDocumentListener);
+			}
+
+			mDocument = mSourceEditor.getDocument();
+			mDocument.addDocumentListener(mDocumentListener);
+			mDigits = countDigits(mDocument.getLineCount());
+			mDecorations.clear();
+			updateDecorationWidth();
+			Arrays.fill(mRowStates, UNKNOWN);
+		}
+	}
+
+
+	/**
+	 * Returns the line whose fold marker is found at a point or -1 if none.
+	 */
+	private int getMarkerLineAt(int aX, int aY)
+	{
+		int lineHeight = mSourceEditor.getFontHeight() + mSourceEditor.getLineSpacing();
+		int top = mSourceEditor.getMargins().top;
+		int row = (aY - top) / lineHeight;
+		int markerSize = getMarkerSize();
+		int markerX = getWidth() - getInsets().right - mSourceEditor.getStyle(SyntaxParser.WHITESPACE).getCharWidth(' ') - markerSize;
+
+		if (aY < top || row >= mSourceEditor.getRowCount() || aX < markerX || aX >= markerX + markerSize)
+		{
+			return -1;
+		}
+
+		int marker = getRowState(row) & 3;
+
+		return marker == EXPANDED || marker == COLLAPSED ? mSourceEditor.getLineOfRow(row) : -1;
+	}
+
+
+	private void repaintLine(int aLine)
+	{
+		if (mDocument != null && aLine < mDocument.getLineCount())
+		{
+			int lineHeight = mSourceEditor.getFontHeight() + mSourceEditor.getLineSpacing();
+
+			repaint(0, mSourceEditor.getMargins().top + mSourceEditor.getRowOfLine(aLine) * lineHeight, getWidth(), lineHeight);
+		}
+	}
+
+
+	private void updateDecorationWidth()
+	{
+		int width = 0;
+
+		for (Icon icon : mDecorations.values())
+		{
+			width = Math.max(width, icon.getIconWidth());
+		}
+
+		if (width != mDecorationWidth)
+		{
+			mDecorationWidth = width;
+			revalidate();
+			repaint();
+		}
+	}
+
+
+	private int getMarkerSize()
+	{
+		return (mSourceEditor.getFontHeight() / 2) | 1;
+	}
+
+
+	private Style getNumberStyle()
+	{
+		Style style = mSourceEditor.getStyleMap().get(SyntaxParser.LINE_NUMBER);
+
+		return style != null ? style : mSourceEditor.getStyle(SyntaxParser.WHITESPACE);
+	}
+
+
+	private static int countDigits(int aValue)
+	{
+		int digits = 1;
+
+		for (; aValue >= 10; aValue /= 10)
+		{
+			digits++;
+		}
+
+		return digits;
+	}
+
+
+	/**
+	 * The ten digits rendered side by side into an image, each digit in a cell as wide as the widest digit and as high as a row.
+	 */
+	private static class DigitAtlas
+	{
+		final Object mSettings;
+		final BufferedImage mImage;
+		final int mCellWidth;
+		final int mCellHeight;
+		final int mImageCellWidth;
+
+
+		DigitAtlas(Object aSettings, Font aFont, Color aForeground, Color aBackground, int aCellWidth, int aCellHeight, int aBaseline, double aScaleX, double aScaleY, Object aAntialias)
+		{
+			mSettings = aSettings;
+			mCellWidth = aCellWidth;
+			mCellHeight = aCellHeight;
+			mImageCellWidth = (int)Math.ceil(aCellWidth * aScaleX);
+
+			mImage = new BufferedImage(10 * mImageCellWidth, (int)Math.ceil(aCellHeight * aScaleY), BufferedImage.TYPE_INT_RGB);
+
+			Graphics2D g = mImage.createGraphics();
+			g.setColor(aBackground);
+			g.fillRect(0, 0, mImage.getWidth(), mImage.getHeight());
+			if (aAntialias != null)
+			{
+				g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, aAntialias);
+			}
+			g.scale(mImageCellWidth / (double)aCellWidth, mImage.getHeight() / (double)aCellHeight);
+			g.setFont(aFont);
+			g.setColor(aForeground);
+
+			for (int digit = 0; digit < 10; digit++)
+			{
+				g.setClip(digit * aCellWidth, 0, aCellWidth, aCellHeight);
+				g.drawString(Character.toString((char)('0' + digit)), digit * aCellWidth + (aCellWidth - g.getFontMetrics().charWidth('0' + digit)) / 2, aBaseline);
+			}
+
+			g.dispose();
+		}
+
+
+		/**
+		 * Draws a number right aligned to the x coordinate provided.
+		 */
+		void drawNumber(Graphics2D aGraphics, int aNumber, int aRight, int aY)
+		{
+			int x = aRight;
+
+			do
+			{
+				int digit = aNumber % 10;
+				x -= mCellWidth;
+				aGraphics.drawImage(mImage, x, aY, x + mCellWidth, aY + mCellHeight, digit * mImageCellWidth, 0, (digit + 1) * mImageCellWidth, mImage.getHeight(), null);
+				aNumber /= 10;
+			}
+			while (aNumber > 0);
+		}
+	}
+}
\ No newline at end of file
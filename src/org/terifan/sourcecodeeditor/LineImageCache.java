@@ -0,0 +1,186 @@
+package org.terifan.sourcecodeeditor;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+
+/**
+ * Images of rendered lines used by SourceEditor to avoid painting unchanged lines again. Lines are split horizontally in tiles of a fixed
+ * width so that only the visible parts of long lines are rendered and kept.
+ *
+ * The tiles of a row are identified by the token lists of the lines painted in it, which change identity whenever the text or the parser
+ * state of a line changes, and the state of the lines affecting painting such as the selection, the caret row and matching brackets. Settings
+ * affecting all lines are compared every time the editor is painted and any change discards all images. The least recently used rows
+ * are discarded when the total size of all images exceeds the capacity.
+ */
+class LineImageCache
+{
+	final static int TILE_WIDTH = 512;
+
+	private final LinkedHashMap<Key, BufferedImage[]> mImages; // tiles of a row indexed by column
+	private long mCapacity;
+	private long mSize;
+	private Object mSettings;
+
+
+	public LineImageCache(long aCapacity)
+	{
+		mImages = new LinkedHashMap<>(256, 0.75f, true);
+		mCapacity = aCapacity;
+	}
+
+
+	public long getCapacity()
+	{
+		return mCapacity;
+	}
+
+
+	public void setCapacity(long aCapacity)
+	{
+		mCapacity = aCapacity;
+		trim();
+	}
+
+
+	/**
+	 * Discards all images if the settings provided differ from the settings of the previous call.
+	 */
+	public void validate(Object aSettings)
+	{
+		if (!aSettings.equals(mSettings))
+		{
+			clear();
+			mSettings = aSettings;
+		}
+	}
+
+
+	/**
+	 * Returns the tiles of a row indexed by column or null. Tiles not rendered are null.
+	 */
+	public BufferedImage[] get(Key aKey)
+	{
+		return mImages.get(aKey);
+	}
+
+
+	/**
+	 * Adds a tile of a row and returns the tiles of the row.
+	 */
+	public BufferedImage[] put(Key aKey, int aColumn, BufferedImage aImage)
+	{
+		BufferedImage[] tiles = mImages.get(aKey);
+
+		if (tiles == null || tiles.length <= aColumn)
+		{
+			tiles = tiles == null ? new BufferedImage[aColumn + 1] : Arrays.copyOf(tiles, aColumn + 1);
+			mImages.put(aKey, tiles);
+		}
+
+		if (tiles[aColumn] != null)
+		{
+			mSize -= sizeOf(tiles[aColumn]);
+		}
+
+		tiles[aColumn] = aImage;
+		mSize += sizeOf(aImage);
+
+		trim();
+
+		return tiles;
+	}
+
+
+	public void clear()
+	{
+		mImages.clear();
+		mSize = 0;
+		mSettings = null;
+	}
+
+
+	private void trim()
+	{
+		for (Iterator<BufferedImage[]> it = mImages.values().iterator(); mSize > mCapacity && it.hasNext();)
+		{
+			for (BufferedImage image : it.next())
+			{
+				if (image != null)
+				{
+					mSize -= sizeOf(image);
+				}
+			}
+			it.remove();
+		}
+	}
+
+
+	private static long sizeOf(BufferedImage aImage)
+	{
+		return 4L * aImage.getWidth() * aImage.getHeight();
+	}
+
+
+	static final class Key
+	{
+		private final Object[] mTokens;
+		private final Object mState;
+		private final int mHashCode;
+
+
+		/**
+		 * @param aTokens
+		 *   token lists of the lines painted, compared by identity
+		 */
+		Key(Object[] aTokens, Object aState)
+		{
+			int hash = 0;
+			for (Object tokens : aTokens)
+			{
+				hash = 31 * hash + System.identityHashCode(tokens);
+			}
+
+			mTokens = aTokens;
+			mState = aState;
+			mHashCode = 31 * hash + aState.hashCode();
+		}
+
+
+		@Override
+		public boolean equals(Object aOther)
+		{
+			if (!(aOther instanceof Key))
+			{
+				return false;
+			}
+
+			Key other = (Key)aOther;
+
+			if (mTokens.length != other.mTokens.length || !Objects.equals(mState, other.mState))
+			{
+				return false;
+			}
+
+			for (int i = 0; i < mTokens.length; i++)
+			{
+				if (mTokens[i] != other.mTokens[i])
+				{
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+
+		@Override
+		public int hashCode()
+		{
+			return mHashCode;
+		}
+	}
+}
\ No newline at end of file
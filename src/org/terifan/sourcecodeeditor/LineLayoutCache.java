@@ -0,0 +1,112 @@
+package org.terifan.sourcecodeeditor;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The layouts of recently used lines of a SourceEditor. The layout of a line is an array of the pixel offset of every character
+ * position with tab stops resolved, position i being the offset of the caret placed before character i and the last position the width
+ * of the line.
+ *
+ * A layout is valid as long as the token list of its line is the same instance, which changes whenever the text or the parser state of
+ * the line changes, and the settings provided to validate are unchanged.
+ */
+class LineLayoutCache
+{
+	private final static int CAPACITY = 1024;
+
+	private final LinkedHashMap<Integer, Layout> mLayouts;
+	private Object mSettings;
+
+
+	public LineLayoutCache()
+	{
+		mLayouts = new LinkedHashMap<>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Layout> aEldest)
+			{
+				return size() > CAPACITY;
+			}
+		};
+	}
+
+
+	/**
+	 * Discards all layouts if the settings provided differ from the settings of the previous call.
+	 */
+	public void validate(Object aSettings)
+	{
+		if (!aSettings.equals(mSettings))
+		{
+			mLayouts.clear();
+			mSettings = aSettings;
+		}
+	}
+
+
+	/**
+	 * Returns the pixel offsets of a line or null if the line has no layout for the tokens provided.
+	 */
+	public int[] get(int aLine, List<Token> aTokens)
+	{
+		Layout layout = mLayouts.get(aLine);
+
+		return layout != null && layout.mTokens == aTokens ? layout.mOffsets : null;
+	}
+
+
+	public void put(int aLine, List<Token> aTokens, int[] aOffsets)
+	{
+		mLayouts.put(aLine, new Layout(aTokens, aOffsets));
+	}
+
+
+	public void clear()
+	{
+		mLayouts.clear();
+		mSettings = null;
+	}
+
+
+	/**
+	 * Returns the character position closest to the left of a pixel offset in the layout provided.
+	 */
+	public static int findPosition(int[] aOffsets, int aPixelX)
+	{
+		int min = 0;
+		int max = aOffsets.length - 1;
+
+		while (min < max)
+		{
+			int mid = (min + max + 1) >>> 1;
+
+			if (aOffsets[mid] <= aPixelX)
+			{
+				min = mid;
+			}
+			else
+			{
+				max = mid - 1;
+			}
+		}
+
+		return min;
+	}
+
+
+	private static class Layout
+	{
+		final List<Token> mTokens;
+		final int[] mOffsets;
+
+
+		Layout(List<Token> aTokens, int[] aOffsets)
+		{
+			mTokens = aTokens;
+			mOffsets = aOffsets;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,104 @@
+package org.terifan.sourcecodeeditor;
+
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * The style runs of recently painted lines of a SourceEditor. Adjacent tokens of a line sharing font and color are joined into a run
+ * drawn with a single call, whitespace between them included, instead of changing font and color and drawing a string for every token.
+ * Tokens are only joined when the run measures the same as the tokens measured one by one, leaving tokens with tabs or kerned text to
+ * runs of their own.
+ *
+ * The runs of a line are valid as long as the token list of the line is the same instance, which changes whenever the text or the
+ * parser state of the line changes, and the settings provided to validate are unchanged. The runs are kept in a slot chosen by the line
+ * index modulo CAPACITY, replacing the runs of a line CAPACITY lines away, so lines painted together never share a slot and looking up
+ * a line allocates nothing.
+ */
+class LineRunCache
+{
+	private final static int CAPACITY = 1024;
+
+	private final LineRuns[] mRuns;
+	private final int[] mLines;
+	private int mLayoutSettingsVersion;
+	private Color mBackground;
+	private int mMarginLeft;
+
+
+	public LineRunCache()
+	{
+		mRuns = new LineRuns[CAPACITY];
+		mLines = new int[CAPACITY];
+	}
+
+
+	/**
+	 * Discards all lines if the settings provided differ from the settings of the previous call.
+	 */
+	public void validate(int aLayoutSettingsVersion, Color aBackground, int aMarginLeft)
+	{
+		if (aLayoutSettingsVersion != mLayoutSettingsVersion || !aBackground.equals(mBackground) || aMarginLeft != mMarginLeft)
+		{
+			Arrays.fill(mRuns, null);
+			mLayoutSettingsVersion = aLayoutSettingsVersion;
+			mBackground = aBackground;
+			mMarginLeft = aMarginLeft;
+		}
+	}
+
+
+	/**
+	 * Returns the runs of a line or null if the line has no runs for the tokens provided.
+	 */
+	public LineRuns get(int aLine, List<Token> aTokens)
+	{
+		int slot = aLine & (CAPACITY - 1);
+		LineRuns runs = mRuns[slot];
+
+		return runs != null && mLines[slot] == aLine && runs.mTokens == aTokens ? runs : null;
+	}
+
+
+	public void put(int aLine, LineRuns aRuns)
+	{
+		int slot = aLine & (CAPACITY - 1);
+
+		mRuns[slot] = aRuns;
+		mLines[slot] = aLine;
+	}
+
+
+	public void clear()
+	{
+		Arrays.fill(mRuns, null);
+		mBackground = null;
+	}
+
+
+	static final class LineRuns
+	{
+		final List<Token> mTokens;
+		final Style[] mStyles; // style of every token
+		final int[] mTokenX; // x of every token followed by the x of the end of the line
+		final char[] mChars; // text of the tokens
+		final int mCharOffset; // column of the first character of mChars, non-zero when only a part of a long line is painted
+		final int[] mRunStarts; // index of the first token of every run
+		final int[] mRunEnds; // index following the last token of every run
+		final boolean mBackgrounds; // true if any token has a background
+
+
+		LineRuns(List<Token> aTokens, Style[] aStyles, int[] aTokenX, char[] aChars, int aCharOffset, int[] aRunStarts, int[] aRunEnds, boolean aBackgrounds)
+		{
+			mTokens = aTokens;
+			mStyles = aStyles;
+			mTokenX = aTokenX;
+			mChars = aChars;
+			mCharOffset = aCharOffset;
+			mRunStarts = aRunStarts;
+			mRunEnds = aRunEnds;
+			mBackgrounds = aBackgrounds;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,165 @@
+package org.terifan.sourcecodeeditor;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The horizontal layout of recently used lines tokenized in chunks by the TokenizationContext of a SourceEditor. The pixel offset of the
+ * start of every chunk is recorded as chunks are measured and the layouts of recently used chunks are kept, allowing the pixel offset of
+ * a column and the column at a pixel offset to be found by measuring a single chunk once the chunks to the left of it have been measured.
+ *
+ * The layout of a line is valid as long as the chunk starts of the line are the same instance, which changes whenever the text or the
+ * parser state of the line changes, and the settings provided to validate are unchanged.
+ */
+class LongLineIndex
+{
+	private final static int CAPACITY = 16;
+	private final static int CHUNK_CAPACITY = 64;
+
+	private final SourceEditor mSourceEditor;
+	private final TokenizationContext mTokenizationContext;
+	private final LinkedHashMap<Integer, Entry> mEntries;
+	private int mSettingsVersion;
+
+
+	public LongLineIndex(SourceEditor aSourceEditor, TokenizationContext aTokenizationContext)
+	{
+		mSourceEditor = aSourceEditor;
+		mTokenizationContext = aTokenizationContext;
+		mSettingsVersion = -1;
+		mEntries = new LinkedHashMap<>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Entry> aEldest)
+			{
+				return size() > CAPACITY;
+			}
+		};
+	}
+
+
+	/**
+	 * Discards all layouts if the version of the layout settings provided differs from the version of the previous call.
+	 */
+	public void validate(int aSettingsVersion)
+	{
+		if (aSettingsVersion != mSettingsVersion)
+		{
+			mEntries.clear();
+			mSettingsVersion = aSettingsVersion;
+		}
+	}
+
+
+	/**
+	 * Returns the pixel offset of a column of a entry, not including the left margin.
+	 */
+	public int getPixelOffset(int aLine, int aColumn)
+	{
+		Entry entry = getEntry(aLine);
+		int chunk = Math.min(LineLayoutCache.findPosition(entry.mStarts, aColumn), entry.mStarts.length - 2);
+
+		return getLayout(aLine, entry, chunk)[aColumn - entry.mStarts[chunk]];
+	}
+
+
+	/**
+	 * Returns the column closest to the left of a pixel offset of a entry, not including the left margin.
+	 */
+	public int getColumn(int aLine, int aPixelX)
+	{
+		Entry entry = getEntry(aLine);
+
+		while (entry.mMeasured < entry.mX.length && entry.mX[entry.mMeasured - 1] <= aPixelX)
+		{
+			getLayout(aLine, entry, entry.mMeasured - 1);
+		}
+
+		int chunk = Math.min(LineLayoutCache.findPosition(entry.mX, aPixelX), entry.mStarts.length - 2);
+
+		return entry.mStarts[chunk] + LineLayoutCache.findPosition(getLayout(aLine, entry, chunk), aPixelX);
+	}
+
+
+	public void clear()
+	{
+		mEntries.clear();
+		mSettingsVersion = -1;
+	}
+
+
+	private Entry getEntry(int aLine)
+	{
+		int[] starts = mTokenizationContext.getChunkStarts(aLine);
+		Entry entry = mEntries.get(aLine);
+
+		if (entry == null || entry.mStarts != starts)
+		{
+			entry = new Entry(starts);
+			mEntries.put(aLine, entry);
+		}
+
+		return entry;
+	}
+
+
+	/**
+	 * Returns the pixel offsets of the columns of a chunk measuring the chunks to the left of it not measured.
+	 */
+	private int[] getLayout(int aLine, Entry aEntry, int aChunk)
+	{
+		int[] layout = null;
+
+		for (int chunk = Math.min(aEntry.mMeasured - 1, aChunk); chunk <= aChunk; chunk++)
+		{
+			layout = aEntry.mLayouts.get(chunk);
+
+			if (layout == null)
+			{
+				int start = aEntry.mStarts[chunk];
+				List<Token> tokens = mTokenizationContext.getTokens(aLine, start, aEntry.mStarts[chunk + 1]);
+
+				layout = new int[aEntry.mStarts[chunk + 1] - start + 1];
+				mSourceEditor.layoutTokens(tokens, start, aEntry.mX[chunk], layout);
+				aEntry.mLayouts.put(chunk, layout);
+			}
+
+			if (chunk == aEntry.mMeasured - 1)
+			{
+				aEntry.mX[chunk + 1] = layout[layout.length - 1];
+				aEntry.mMeasured++;
+			}
+		}
+
+		return layout;
+	}
+
+
+	private static class Entry
+	{
+		final int[] mStarts;
+		final int[] mX; // pixel offset of the start of every chunk followed by the width of the entry, chunks not measured being MAX_VALUE
+		final LinkedHashMap<Integer, int[]> mLayouts;
+		int mMeasured; // entries of mX known
+
+
+		Entry(int[] aStarts)
+		{
+			mStarts = aStarts;
+			mX = new int[aStarts.length];
+			Arrays.fill(mX, 1, mX.length, Integer.MAX_VALUE);
+			mMeasured = 1;
+			mLayouts = new LinkedHashMap<>(16, 0.75f, true)
+			{
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Integer, int[]> aEldest)
+				{
+					return size() > CHUNK_CAPACITY;
+				}
+			};
+		}
+	}
+}
\ No newline at end of file
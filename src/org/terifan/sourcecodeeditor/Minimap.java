@@ -0,0 +1,637 @@
+package org.terifan.sourcecodeeditor;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Insets;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import javax.swing.JComponent;
+import javax.swing.JViewport;
+import javax.swing.event.ChangeListener;
+
+
+/**
+ * A scaled overview of the document of a SourceEditor, usually placed next to the scroll pane of the editor. Every line is a row of
+ * pixels and every character a pixel in the foreground color of its token, whitespace and characters beyond MAX_COLUMNS left out.
+ *
+ * The pixels of the lines are rendered by a background thread from a copy of the document, tokenized by a TokenizationContext of its
+ * own. The context shared by the editors of the document cannot be used as it reads the live document, which is only safe on the event
+ * dispatch thread. Edits of the document are queued for the thread, which applies them to its copy and renders the lines changed and
+ * lines following them whose parser state at the start changed, a line keeping its previous pixels until then. The thread only holds
+ * the lock shared with the event dispatch thread to take the queued edits and to publish the pixels rendered. Painting copies the pixels
+ * of the lines displayed into an image.
+ *
+ * Documents with more lines than the minimap has rows of pixels scroll along with the editor. Pressing the mouse scrolls the editor to
+ * the line pressed and dragging moves the rectangle marking the lines visible in the editor.
+ */
+public final class Minimap extends JComponent
+{
+	private final static long serialVersionUID = 1L;
+	private final static int MAX_COLUMNS = 120;
+	private final static long RENDER_SLICE = 4_000_000;
+	private final static int[] EMPTY = {};
+	private final static Object DIRTY = new Object();
+
+	private final SourceEditor mSourceEditor;
+	private final transient Object mLock;
+	private final transient DocumentListener mDocumentListener;
+	private final transient ChangeListener mViewportListener;
+	private final transient HierarchyListener mHierarchyListener;
+	private JViewport mViewport;
+	private transient BufferedImage mImage;
+	private int mDragY;
+	private int mDragLine;
+
+	// guarded by mLock
+	private transient Thread mThread;
+	private transient Document mDocument;
+	private transient SyntaxParser mSyntaxParser;
+	private transient StyleMap mStyleMap;
+	private int mStyleMapModificationCount;
+	private transient HashMap<String, Integer> mColors;
+	private int mDefaultColor;
+	private int mTabSize;
+	private transient Document mCopy;
+	private transient ArrayList<Edit> mEdits;
+	private transient ArrayList<int[]> mLines;
+
+
+	public Minimap(SourceEditor aSourceEditor)
+	{
+		if (aSourceEditor == null)
+		{
+			throw new IllegalArgumentException("SourceEditor provided is null.");
+		}
+
+		mSourceEditor = aSourceEditor;
+		mLock = new Object();
+		mEdits = new ArrayList<>();
+		mDocumentListener = this::documentChanged;
+		mViewportListener = aEvent -> repaint();
+		mHierarchyListener = aEvent ->
+		{
+			if ((aEvent.getChangeFlags() & HierarchyEvent.PARENT_CHANGED) != 0)
+			{
+				updateViewport();
+			}
+		};
+
+		MouseAdapter mouseListener = new MouseAdapter()
+		{
+			@Override
+			public void mousePressed(MouseEvent aEvent)
+			{
+				int line = getTopLine() + aEvent.getY();
+				scrollToLine(line - (getLastVisibleLine() - getFirstVisibleLine()) / 2);
+				mDragY = aEvent.getY();
+				mDragLine = getFirstVisibleLine();
+			}
+
+
+			@Override
+			public void mouseDragged(MouseEvent aEvent)
+			{
+				int lineCount = mSourceEditor.getDocument().getLineCount();
+				int visibleLines = getLastVisibleLine() - getFirstVisibleLine() + 1;
+				int dy = aEvent.getY() - mDragY;
+
+				// the rectangle marking the visible lines moves (height - visible) pixels while the editor scrolls (lines - visible) lines
+				if (lineCount > getHeight())
+				{
+					dy = (int)((long)dy * (lineCount - visibleLines) / Math.max(getHeight() - visibleLines, 1));
+				}
+
+				scrollToLine(mDragLine + dy);
+			}
+		};
+
+		addMouseListener(mouseListener);
+		addMouseMotionListener(mouseListener);
+		setOpaque(true);
+	}
+
+
+	@Override
+	public void addNotify()
+	{
+		super.addNotify();
+
+		mSourceEditor.addHierarchyListener(mHierarchyListener);
+		updateViewport();
+
+		synchronized (mLock)
+		{
+			mThread = new Thread(this::render, "Minimap");
+			mThread.setDaemon(true);
+			mThread.setPriority(Thread.MIN_PRIORITY);
+			mThread.start();
+		}
+	}
+
+
+	@Override
+	public void removeNotify()
+	{
+		mSourceEditor.removeHierarchyListener(mHierarchyListener);
+
+		if (mViewport != null)
+		{
+			mViewport.removeChangeListener(mViewportListener);
+			mViewport = null;
+		}
+
+		synchronized (mLock)
+		{
+			if (mDocument != null)
+			{
+				mDocument.removeDocumentListener(mDocumentListener);
+			}
+
+			mThread = null;
+			mDocument = null;
+			mSyntaxParser = null;
+			mStyleMap = null;
+			mColors = null;
+			mCopy = null;
+			mEdits.clear();
+			mLines = null;
+			mLock.notifyAll();
+		}
+
+		mImage = null;
+
+		super.removeNotify();
+	}
+
+
+	@Override
+	public Dimension getPreferredSize()
+	{
+		if (isPreferredSizeSet())
+		{
+			return super.getPreferredSize();
+		}
+
+		Insets insets = getInsets();
+
+		return new Dimension(MAX_COLUMNS + insets.left + insets.right, 0);
+	}
+
+
+	@Override
+	protected void paintComponent(Graphics aGraphics)
+	{
+		validateLines();
+
+		int width = Math.max(getWidth(), 1);
+		int height = Math.max(getHeight(), 1);
+
+		if (mImage == null || mImage.getWidth() != width || mImage.getHeight() != height)
+		{
+			mImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		}
+
+		int[] raster = ((DataBufferInt)mImage.getRaster().getDataBuffer()).getData();
+		int topLine = getTopLine();
+
+		Arrays.fill(raster, mSourceEditor.getBackground().getRGB());
+
+		synchronized (mLock)
+		{
+			for (int y = 0, lineCount = mLines == null ? 0 : mLines.size(); y < height && topLine + y < lineCount; y++)
+			{
+				int[] pixels = mLines.get(topLine + y);
+
+				if (pixels != null)
+				{
+					for (int x = 0, offset = y * width, n = Math.min(pixels.length, width); x < n; x++)
+					{
+						if (pixels[x] != 0)
+						{
+							raster[offset + x] = pixels[x];
+						}
+					}
+				}
+			}
+		}
+
+		aGraphics.drawImage(mImage, 0, 0, null);
+
+		if (mViewport != null)
+		{
+			Color color = mSourceEditor.getStyle(SyntaxParser.SELECTION).getBackground();
+			int firstLine = getFirstVisibleLine();
+
+			aGraphics.setColor(new Color(color.getRed(), color.getGreen(), color.getBlue(), 96));
+			aGraphics.fillRect(0, firstLine - topLine, width, getLastVisibleLine() - firstLine + 1);
+		}
+	}
+
+
+	/**
+	 * Copies the document of the editor and renders all lines again if the document, the parser, the style map, the fonts of its styles
+	 * or the tab size have changed.
+	 */
+	private void validateLines()
+	{
+		StyleMap styleMap = mSourceEditor.getStyleMap();
+		int tabSize = Math.max(mSourceEditor.getTabSize(), 1);
+
+		synchronized (mLock)
+		{
+			if (mDocument != mSourceEditor.getDocument() || mSyntaxParser != mSourceEditor.getSyntaxParser())
+			{
+				if (mDocument != null)
+				{
+					mDocument.removeDocumentListener(mDocumentListener);
+				}
+
+				mDocument = mSourceEditor.getDocument();
+				mSyntaxParser = mSourceEditor.getSyntaxParser();
+				mDocument.addDocumentListener(mDocumentListener);
+				mStyleMap = null;
+			}
+
+			if (mStyleMap == styleMap && mStyleMapModificationCount == styleMap.getModificationCount() && mTabSize == tabSize)
+			{
+				return;
+			}
+
+			mColors = new HashMap<>();
+			for (String name : styleMap.keySet())
+			{
+				Color color = styleMap.get(name).getForeground();
+				if (color != null)
+				{
+					mColors.put(name, color.getRGB());
+				}
+			}
+
+			mStyleMap = styleMap;
+			mStyleMapModificationCount = styleMap.getModificationCount();
+			mDefaultColor = mSourceEditor.getStyle(SyntaxParser.WHITESPACE).getForeground().getRGB();
+			mTabSize = tabSize;
+
+			reset();
+		}
+	}
+
+
+	/**
+	 * Copies the document for the render thread to render all lines again, dropping the edits queued before, called holding mLock.
+	 */
+	private void reset()
+	{
+		try
+		{
+			mCopy = new Document(mDocument);
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+
+		mEdits.clear();
+		mLock.notifyAll();
+	}
+
+
+	/**
+	 * Called before the shared indexes of the document are updated, reading only the lines changed from the document.
+	 */
+	private void documentChanged(DocumentEvent aEvent)
+	{
+		synchronized (mLock)
+		{
+			if (mStyleMap == null || aEvent.getDocument() != mDocument)
+			{
+				return;
+			}
+
+			int first = aEvent.getFirstLine();
+			int inserted = aEvent.getInsertedLineCount();
+
+			// all lines replaced
+			if (first == 0 && inserted == mDocument.getLineCount())
+			{
+				reset();
+				return;
+			}
+
+			String[] lines = new String[inserted];
+			for (int i = 0; i < inserted; i++)
+			{
+				lines[i] = mDocument.getLine(first + i);
+			}
+
+			mEdits.add(new Edit(first, aEvent.getRemovedLineCount(), lines));
+			mLock.notifyAll();
+		}
+	}
+
+
+	/**
+	 * Renders lines not rendered in slices of time until the thread is stopped. The copy of the document, its tokenization and the start
+	 * states of the lines rendered are only accessed by this thread, the lines displayed being spliced as the edits and updated with the
+	 * pixels of a slice under a short hold of mLock.
+	 */
+	private void render()
+	{
+		Document copy = null;
+		TokenizationContext tokenizationContext = null;
+		ArrayList<Object> startStates = new ArrayList<>();
+		HashMap<String, Integer> colors = null;
+		int defaultColor = 0;
+		int tabSize = 1;
+		int dirtyLine = 0;
+
+		for (;;)
+		{
+			Document reset;
+			SyntaxParser syntaxParser;
+			ArrayList<Edit> edits;
+
+			synchronized (mLock)
+			{
+				try
+				{
+					while (mThread == Thread.currentThread() && mCopy == null && mEdits.isEmpty() && dirtyLine >= startStates.size())
+					{
+						mLock.wait();
+					}
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+
+				if (mThread != Thread.currentThread())
+				{
+					return;
+				}
+
+				reset = mCopy;
+				syntaxParser = mSyntaxParser;
+				edits = mEdits;
+
+				if (reset != null)
+				{
+					colors = mColors;
+					defaultColor = mDefaultColor;
+					tabSize = mTabSize;
+				}
+
+				mCopy = null;
+				mEdits = new ArrayList<>();
+			}
+
+			int resetLineCount = 0;
+
+			if (reset != null)
+			{
+				copy = reset;
+				tokenizationContext = new TokenizationContext(copy, syntaxParser);
+				copy.addDocumentListener(tokenizationContext);
+				resetLineCount = copy.getLineCount();
+				startStates = new ArrayList<>(Collections.nCopies(resetLineCount, DIRTY));
+				dirtyLine = 0;
+			}
+
+			if (copy == null)
+			{
+				continue;
+			}
+
+			for (Edit edit : edits)
+			{
+				int first = edit.mFirst;
+				int replaced = Math.min(edit.mRemoved, edit.mLines.length);
+
+				for (int i = 0; i < replaced; i++)
+				{
+					copy.replaceLine(first + i, edit.mLines[i]);
+					startStates.set(first + i, DIRTY);
+				}
+				for (int i = replaced; i < edit.mRemoved; i++)
+				{
+					copy.removeLine(first + replaced);
+				}
+				for (int i = replaced; i < edit.mLines.length; i++)
+				{
+					copy.insertLine(first + i, edit.mLines[i]);
+				}
+
+				startStates.subList(first + replaced, first + edit.mRemoved).clear();
+				startStates.addAll(first + replaced, Collections.nCopies(edit.mLines.length - replaced, DIRTY));
+				dirtyLine = Math.min(dirtyLine, first);
+			}
+
+			int firstRendered = dirtyLine;
+			ArrayList<int[]> rendered = new ArrayList<>();
+			long deadline = System.nanoTime() + RENDER_SLICE;
+
+			for (; dirtyLine < startStates.size() && System.nanoTime() < deadline; dirtyLine++)
+			{
+				Object state = dirtyLine == 0 ? null : tokenizationContext.getEndState(dirtyLine - 1);
+
+				if (Objects.equals(startStates.get(dirtyLine), state))
+				{
+					rendered.add(null);
+				}
+				else
+				{
+					startStates.set(dirtyLine, state);
+					rendered.add(renderLine(tokenizationContext.getTokens(dirtyLine, 0, MAX_COLUMNS), colors, defaultColor, tabSize));
+				}
+			}
+
+			synchronized (mLock)
+			{
+				if (mThread != Thread.currentThread())
+				{
+					return;
+				}
+
+				if (reset != null)
+				{
+					mLines = new ArrayList<>(Collections.nCopies(resetLineCount, (int[])null));
+				}
+
+				// replaced lines keep their pixels until rendered again
+				for (Edit edit : edits)
+				{
+					int replaced = Math.min(edit.mRemoved, edit.mLines.length);
+
+					mLines.subList(edit.mFirst + replaced, edit.mFirst + edit.mRemoved).clear();
+					mLines.addAll(edit.mFirst + replaced, Collections.nCopies(edit.mLines.length - replaced, (int[])null));
+				}
+
+				for (int i = 0; i < rendered.size(); i++)
+				{
+					if (rendered.get(i) != null)
+					{
+						mLines.set(firstRendered + i, rendered.get(i));
+					}
+				}
+			}
+
+			repaint();
+		}
+	}
+
+
+	private static int[] renderLine(List<Token> aTokens, HashMap<String, Integer> aColors, int aDefaultColor, int aTabSize)
+	{
+		int[] pixels = new int[MAX_COLUMNS];
+		int length = 0;
+		int column = 0;
+
+		for (int i = 0, n = aTokens.size(); i < n && column < MAX_COLUMNS; i++)
+		{
+			Token token = aTokens.get(i);
+			String text = token.getText();
+			Integer color = aColors.get(token.getStyle());
+			int rgb = color == null ? aDefaultColor : color;
+
+			for (int j = 0, m = text.length(); j < m && column < MAX_COLUMNS; j++)
+			{
+				char c = text.charAt(j);
+
+				if (c == '\t')
+				{
+					column += aTabSize - column % aTabSize;
+				}
+				else
+				{
+					if (!Character.isWhitespace(c))
+					{
+						pixels[column] = rgb | 0xff000000;
+						length = column + 1;
+					}
+					column++;
+				}
+			}
+		}
+
+		return length == 0 ? EMPTY : Arrays.copyOf(pixels, length);
+	}
+
+
+	/**
+	 * Returns the line displayed at the top of the minimap, moving from the first to the last line of the document in proportion to the
+	 * first line visible in the editor.
+	 */
+	private int getTopLine()
+	{
+		int lineCount = mSourceEditor.getDocument().getLineCount();
+		int height = getHeight();
+
+		if (lineCount <= height)
+		{
+			return 0;
+		}
+
+		int firstLine = getFirstVisibleLine();
+		int scrollableLines = Math.max(lineCount - (getLastVisibleLine() - firstLine + 1), 1);
+
+		return (int)Math.min((long)firstLine * (lineCount - height) / scrollableLines, lineCount - height);
+	}
+
+
+	private int getFirstVisibleLine()
+	{
+		return mViewport == null ? 0 : getLineAt(mViewport.getViewRect().y);
+	}
+
+
+	private int getLastVisibleLine()
+	{
+		if (mViewport == null)
+		{
+			return mSourceEditor.getDocument().getLineCount() - 1;
+		}
+
+		Rectangle view = mViewport.getViewRect();
+
+		return getLineAt(view.y + view.height - 1);
+	}
+
+
+	private int getLineAt(int aY)
+	{
+		int lineHeight = mSourceEditor.getFontHeight() + mSourceEditor.getLineSpacing();
+		int row = Math.max(aY - mSourceEditor.getMargins().top, 0) / lineHeight;
+
+		return mSourceEditor.getLineOfRow(Math.min(row, Math.max(mSourceEditor.getRowCount() - 1, 0)));
+	}
+
+
+	/**
+	 * Scrolls the editor to display a line at the top of its viewport.
+	 */
+	private void scrollToLine(int aLine)
+	{
+		if (mViewport == null)
+		{
+			return;
+		}
+
+		int line = Math.max(Math.min(aLine, mSourceEditor.getDocument().getLineCount() - 1), 0);
+		int lineHeight = mSourceEditor.getFontHeight() + mSourceEditor.getLineSpacing();
+		int y = mSourceEditor.getMargins().top + mSourceEditor.getRowOfLine(line) * lineHeight;
+		int maxY = Math.max(mSourceEditor.getHeight() - mViewport.getExtentSize().height, 0);
+
+		mViewport.setViewPosition(new Point(mViewport.getViewPosition().x, Math.max(Math.min(y, maxY), 0)));
+	}
+
+
+	private void updateViewport()
+	{
+		JViewport viewport = mSourceEditor.getParent() instanceof JViewport ? (JViewport)mSourceEditor.getParent() : null;
+
+		if (viewport != mViewport)
+		{
+			if (mViewport != null)
+			{
+				mViewport.removeChangeListener(mViewportListener);
+			}
+			if (viewport != null)
+			{
+				viewport.addChangeListener(mViewportListener);
+			}
+
+			mViewport = viewport;
+			repaint();
+		}
+	}
+
+
+	private static class Edit
+	{
+		final int mFirst;
+		final int mRemoved;
+		final String[] mLines;
+
+
+		Edit(int aFirst, int aRemoved, String[] aLines)
+		{
+			mFirst = aFirst;
+			mRemoved = aRemoved;
+			mLines = aLines;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,607 @@
+package org.terifan.sourcecodeeditor;
+
+import java.awt.Graphics;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+
+/**
+ * The carets of a SourceEditor editing several places of a document at once, e.g. every occurrence of a word or every line of a
+ * rectangular selection. Each caret has a position and an anchor, in character offsets, the text between them being selected. The carets
+ * are kept sorted and never overlap, carets meeting being merged.
+ *
+ * An edit is applied to all carets as one change: the replacements of the carets are collected in document order by a BatchReplace making
+ * a single call to Document.replaceLines, adding one action to one undoable edit and notifying listeners once, after which the carets
+ * are moved past their replacements in a single pass over the carets and the lines of the carets repainted at once.
+ */
+class MultiCaret implements DocumentListener
+{
+	private final SourceEditor mSourceEditor;
+	private final Document mDocument;
+	private ArrayList<Range> mRanges;
+	private Range mPrimary;
+	private HashMap<Integer, int[]> mSelections;
+	private boolean mApplying;
+
+
+	MultiCaret(SourceEditor aSourceEditor, Document aDocument)
+	{
+		mSourceEditor = aSourceEditor;
+		mDocument = aDocument;
+		mRanges = new ArrayList<>();
+	}
+
+
+	/**
+	 * Returns a copy of the carets for an editor of the same document, used to restore them when an edit is undone.
+	 */
+	MultiCaret copy(SourceEditor aSourceEditor)
+	{
+		MultiCaret copy = new MultiCaret(aSourceEditor, mDocument);
+		for (Range range : mRanges)
+		{
+			Range r = new Range(range.mAnchorColumn, range.mAnchorLine, range.mColumn, range.mLine);
+			copy.mRanges.add(r);
+			if (range == mPrimary)
+			{
+				copy.mPrimary = r;
+			}
+		}
+		return copy;
+	}
+
+
+	/**
+	 * Adds a caret selecting the text from an anchor to a position. Carets overlapping the new caret are merged with it by caretsChanged.
+	 *
+	 * @param aPrimary
+	 *   true if the editor caret should follow the new caret
+	 */
+	void add(int aAnchorColumn, int aAnchorLine, int aColumn, int aLine, boolean aPrimary)
+	{
+		Range range = new Range(aAnchorColumn, aAnchorLine, aColumn, aLine);
+		range.clamp(mDocument);
+
+		mRanges.add(range);
+		if (aPrimary || mPrimary == null)
+		{
+			mPrimary = range;
+		}
+	}
+
+
+	int getCaretCount()
+	{
+		return mRanges.size();
+	}
+
+
+	/**
+	 * Returns the positions of the carets in document order.
+	 */
+	List<Point> getPositions()
+	{
+		ArrayList<Point> positions = new ArrayList<>(mRanges.size());
+		for (Range range : mRanges)
+		{
+			positions.add(new Point(range.mColumn, range.mLine));
+		}
+		return positions;
+	}
+
+
+	Point getPrimaryPosition()
+	{
+		return new Point(mPrimary.mColumn, mPrimary.mLine);
+	}
+
+
+	Point getPrimaryAnchor()
+	{
+		return new Point(mPrimary.mAnchorColumn, mPrimary.mAnchorLine);
+	}
+
+
+	/**
+	 * Returns the selected text of every caret, in document order, separated by line feeds.
+	 */
+	String getSelectedText()
+	{
+		StringBuilder text = new StringBuilder();
+		for (Range range : mRanges)
+		{
+			if (text.length() > 0)
+			{
+				text.append('\n');
+			}
+			for (int line = range.startLine(); line <= range.endLine(); line++)
+			{
+				String s = mDocument.getLine(line);
+				text.append(s, line == range.startLine() ? range.startColumn() : 0, line == range.endLine() ? range.endColumn() : s.length());
+				if (line < range.endLine())
+				{
+					text.append('\n');
+				}
+			}
+		}
+		return text.toString();
+	}
+
+
+	/**
+	 * Returns the selected columns of a line as pairs of start and end offsets or null if no text of the line is selected.
+	 */
+	int[] getSelections(int aLine)
+	{
+		if (mSelections == null)
+		{
+			HashMap<Integer, ArrayList<Integer>> selections = new HashMap<>();
+			for (Range range : mRanges)
+			{
+				for (int line = range.startLine(); !range.isEmpty() && line <= range.endLine(); line++)
+				{
+					ArrayList<Integer> list = selections.computeIfAbsent(line, e -> new ArrayList<>());
+					list.add(line == range.startLine() ? range.startColumn() : 0);
+					list.add(line == range.endLine() ? range.endColumn() : Integer.MAX_VALUE);
+				}
+			}
+
+			mSelections = new HashMap<>();
+			selections.forEach((line, list) -> mSelections.put(line, list.stream().mapToInt(Integer::intValue).toArray()));
+		}
+
+		return mSelections.get(aLine);
+	}
+
+
+	/**
+	 * Inserts text at every caret replacing the selected text.
+	 *
+	 * @param aPresentationName
+	 *   the name of the undoable edit
+	 * @param aOverwrite
+	 *   true if the character following carets without selected text should be replaced
+	 */
+	void insert(String aPresentationName, String aText, boolean aOverwrite)
+	{
+		String[] texts = new String[mRanges.size()];
+		int[] ranges = new int[4 * mRanges.size()];
+
+		for (int i = 0; i < texts.length; i++)
+		{
+			Range range = mRanges.get(i);
+			texts[i] = aText;
+			range.toArray(ranges, i);
+
+			if (aOverwrite && range.isEmpty() && range.mColumn < mDocument.getLineLength(range.mLine))
+			{
+				ranges[4 * i + 2]++;
+			}
+		}
+
+		apply(aPresentationName, ranges, texts);
+	}
+
+
+	/**
+	 * Inserts the lines of a text, one at each caret, if the text has as many lines as there are carets, otherwise the text is inserted
+	 * at every caret.
+	 */
+	void paste(String aText)
+	{
+		String[] lines = aText.split("\n", -1);
+
+		if (lines.length != mRanges.size())
+		{
+			insert("Paste", aText, false);
+			return;
+		}
+
+		int[] ranges = new int[4 * mRanges.size()];
+		for (int i = 0; i < lines.length; i++)
+		{
+			mRanges.get(i).toArray(ranges, i);
+		}
+
+		apply("Paste", ranges, lines);
+	}
+
+
+	/**
+	 * Deletes the selected text of every caret or the character preceding carets without selected text.
+	 */
+	void deletePrevious()
+	{
+		int[] ranges = new int[4 * mRanges.size()];
+
+		for (int i = 0; i < mRanges.size(); i++)
+		{
+			Range range = mRanges.get(i);
+			range.toArray(ranges, i);
+
+			if (range.isEmpty() && range.mColumn > 0)
+			{
+				ranges[4 * i]--;
+			}
+			else if (range.isEmpty() && range.mLine > 0)
+			{
+				ranges[4 * i] = mDocument.getLineLength(range.mLine - 1);
+				ranges[4 * i + 1]--;
+			}
+		}
+
+		apply("Delete previous character", ranges, new String[mRanges.size()]);
+	}
+
+
+	/**
+	 * Deletes the selected text of every caret or the character following carets without selected text.
+	 */
+	void deleteNext()
+	{
+		int lastLine = mDocument.getLineCount() - 1;
+		int[] ranges = new int[4 * mRanges.size()];
+
+		for (int i = 0; i < mRanges.size(); i++)
+		{
+			Range range = mRanges.get(i);
+			range.toArray(ranges, i);
+
+			if (range.isEmpty() && range.mColumn < mDocument.getLineLength(range.mLine))
+			{
+				ranges[4 * i + 2]++;
+			}
+			else if (range.isEmpty() && range.mLine < lastLine)
+			{
+				ranges[4 * i + 2] = 0;
+				ranges[4 * i + 3]++;
+			}
+		}
+
+		apply("Delete next character", ranges, new String[mRanges.size()]);
+	}
+
+
+	/**
+	 * Replaces ranges of the document, one for each caret in caret order, with texts, as a single undoable change and moves each caret to
+	 * the end of its replacement.
+	 *
+	 * @param aRanges
+	 *   start column, start line, end column and end line of each range
+	 * @param aTexts
+	 *   the replacement of each range, null to delete the range
+	 */
+	private void apply(String aPresentationName, int[] aRanges, String[] aTexts)
+	{
+		int firstLine = mRanges.get(0).startLine();
+		int lastLine = mRanges.get(mRanges.size() - 1).endLine();
+		int lineCount = mDocument.getLineCount();
+
+		BatchReplace batch = new BatchReplace(mDocument);
+
+		int endColumn = 0;
+		int endLine = 0;
+		for (int i = 0; i < aTexts.length; i++)
+		{
+			int k = 4 * i;
+
+			// ranges extended past a preceding caret, e.g. deleting the line break between two carets, start where the preceding range ends
+			if (i > 0 && (aRanges[k + 1] < endLine || aRanges[k + 1] == endLine && aRanges[k] < endColumn))
+			{
+				aRanges[k] = endColumn;
+				aRanges[k + 1] = endLine;
+			}
+
+			endColumn = aRanges[k + 2];
+			endLine = aRanges[k + 3];
+			batch.replace(aRanges[k], aRanges[k + 1], endColumn, endLine, aTexts[i] == null ? "" : aTexts[i]);
+		}
+
+		mDocument.beginUndoableEdit(new UndoableEdit(mSourceEditor, aPresentationName));
+
+		mApplying = true;
+		try
+		{
+			batch.apply();
+		}
+		finally
+		{
+			mApplying = false;
+		}
+
+		// move the carets in one pass, offsetting each replacement by the lines added before it and, when it starts on the line the
+		// preceding replacement ended on, by the columns that replacement added to the line
+		int lineDelta = 0;
+		int columnDelta = 0;
+		int previousEndLine = -1;
+		for (int i = 0; i < aTexts.length; i++)
+		{
+			int k = 4 * i;
+			String text = aTexts[i] == null ? "" : aTexts[i];
+			int breaks = 0;
+			for (int j = text.indexOf('\n'); j != -1; j = text.indexOf('\n', j + 1))
+			{
+				breaks++;
+			}
+
+			int startColumn = aRanges[k + 1] == previousEndLine ? aRanges[k] + columnDelta : aRanges[k];
+			int line = aRanges[k + 1] + lineDelta + breaks;
+			int column = breaks == 0 ? startColumn + text.length() : text.length() - text.lastIndexOf('\n') - 1;
+
+			mRanges.get(i).moveTo(column, line);
+
+			lineDelta += breaks - (aRanges[k + 3] - aRanges[k + 1]);
+			columnDelta = column - aRanges[k + 2];
+			previousEndLine = aRanges[k + 3];
+		}
+
+		caretsChanged(firstLine, Math.max(lastLine, lastLine + lineDelta), lineCount != mDocument.getLineCount());
+
+		mDocument.commitUndoableEdit();
+	}
+
+
+	/**
+	 * Moves every caret a number of characters or lines.
+	 *
+	 * @param aExtendSelection
+	 *   true if the anchors of the carets are kept selecting the text between anchor and position
+	 */
+	void move(int aDeltaX, int aDeltaY, boolean aExtendSelection)
+	{
+		int firstLine = mRanges.get(0).startLine();
+		int lastLine = mRanges.get(mRanges.size() - 1).endLine();
+		int lineCount = mDocument.getLineCount();
+
+		for (Range range : mRanges)
+		{
+			int column = range.mColumn;
+			int line = range.mLine;
+
+			if (!aExtendSelection && !range.isEmpty() && aDeltaY == 0)
+			{
+				column = aDeltaX < 0 ? range.startColumn() : range.endColumn();
+				line = aDeltaX < 0 ? range.startLine() : range.endLine();
+			}
+			else if (aDeltaX < 0 && column == 0)
+			{
+				line = Math.max(line - 1, 0);
+				column = line == range.mLine ? 0 : mDocument.getLineLength(line);
+			}
+			else if (aDeltaX > 0 && column == mDocument.getLineLength(line))
+			{
+				line = Math.min(line + 1, lineCount - 1);
+				column = line == range.mLine ? column : 0;
+			}
+			else
+			{
+				line = Math.max(0, Math.min(line + aDeltaY, lineCount - 1));
+				column = Math.max(0, Math.min(column + aDeltaX, mDocument.getLineLength(line)));
+			}
+
+			range.mColumn = column;
+			range.mLine = line;
+			if (!aExtendSelection)
+			{
+				range.mAnchorColumn = column;
+				range.mAnchorLine = line;
+			}
+		}
+
+		caretsChanged(Math.max(firstLine - 1, 0), Math.min(lastLine + 1, lineCount - 1), false);
+	}
+
+
+	/**
+	 * Moves every caret to the start or the end of its line.
+	 */
+	void moveToLineBoundary(boolean aEnd, boolean aExtendSelection)
+	{
+		for (Range range : mRanges)
+		{
+			range.mColumn = aEnd ? mDocument.getLineLength(range.mLine) : 0;
+			if (!aExtendSelection)
+			{
+				range.mAnchorColumn = range.mColumn;
+				range.mAnchorLine = range.mLine;
+			}
+		}
+
+		caretsChanged(mRanges.get(0).startLine(), mRanges.get(mRanges.size() - 1).endLine(), false);
+	}
+
+
+	/**
+	 * Sorts and merges the carets, moves the editor caret to the primary caret and repaints the lines of the carets.
+	 *
+	 * @param aFirstLine
+	 *   first line of the carets before the change
+	 * @param aLastLine
+	 *   last line of the carets before the change
+	 */
+	void caretsChanged(int aFirstLine, int aLastLine, boolean aLineCountChanged)
+	{
+		mRanges.sort((a, b) -> a.startLine() != b.startLine() ? Integer.compare(a.startLine(), b.startLine()) : Integer.compare(a.startColumn(), b.startColumn()));
+
+		ArrayList<Range> ranges = new ArrayList<>(mRanges.size());
+		for (Range range : mRanges)
+		{
+			Range last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+
+			if (last != null && (last.overlaps(range) || last.mLine == range.mLine && last.mColumn == range.mColumn))
+			{
+				last.merge(range);
+				if (range == mPrimary)
+				{
+					mPrimary = last;
+				}
+			}
+			else
+			{
+				ranges.add(range);
+			}
+		}
+
+		mRanges = ranges;
+		mSelections = null;
+
+		int firstLine = Math.min(aFirstLine, mRanges.get(0).startLine());
+		int lastLine = Math.max(aLastLine, mRanges.get(mRanges.size() - 1).endLine());
+
+		mSourceEditor.multiCaretChanged(mPrimary.mColumn, mPrimary.mLine, firstLine, Math.min(lastLine, mDocument.getLineCount() - 1), aLineCountChanged);
+	}
+
+
+	/**
+	 * Moves the carets following a change made to the document by other means than the carets.
+	 */
+	@Override
+	public void documentChanged(DocumentEvent aEvent)
+	{
+		if (mApplying)
+		{
+			return;
+		}
+
+		for (Range range : mRanges)
+		{
+			range.mAnchorLine = aEvent.adjustLine(range.mAnchorLine);
+			range.mLine = aEvent.adjustLine(range.mLine);
+			range.clamp(mDocument);
+		}
+
+		mSelections = null;
+	}
+
+
+	/**
+	 * Paints the carets other than the primary caret, which is painted by the editor caret.
+	 */
+	void paintCarets(Graphics aGraphics, Caret aCaret, int aFirstRow, int aLastRow)
+	{
+		int lineHeight = mSourceEditor.getFontHeight() + mSourceEditor.getLineSpacing();
+
+		for (Range range : mRanges)
+		{
+			if (range == mPrimary)
+			{
+				continue;
+			}
+
+			int row = mSourceEditor.getRowOfPosition(range.mColumn, range.mLine);
+
+			if (row >= aFirstRow && row <= aLastRow)
+			{
+				aCaret.paintCaret(aGraphics, mSourceEditor.getRowPixelOffset(range.mColumn, range.mLine), row * lineHeight);
+			}
+		}
+	}
+
+
+	private static class Range
+	{
+		int mAnchorColumn;
+		int mAnchorLine;
+		int mColumn;
+		int mLine;
+
+
+		Range(int aAnchorColumn, int aAnchorLine, int aColumn, int aLine)
+		{
+			mAnchorColumn = aAnchorColumn;
+			mAnchorLine = aAnchorLine;
+			mColumn = aColumn;
+			mLine = aLine;
+		}
+
+
+		boolean isEmpty()
+		{
+			return mAnchorColumn == mColumn && mAnchorLine == mLine;
+		}
+
+
+		private boolean isReversed()
+		{
+			return mAnchorLine > mLine || mAnchorLine == mLine && mAnchorColumn > mColumn;
+		}
+
+
+		int startColumn()
+		{
+			return isReversed() ? mColumn : mAnchorColumn;
+		}
+
+
+		int startLine()
+		{
+			return isReversed() ? mLine : mAnchorLine;
+		}
+
+
+		int endColumn()
+		{
+			return isReversed() ? mAnchorColumn : mColumn;
+		}
+
+
+		int endLine()
+		{
+			return isReversed() ? mAnchorLine : mLine;
+		}
+
+
+		/**
+		 * Returns true if this range, starting before the range provided, ends after the start of it.
+		 */
+		boolean overlaps(Range aRange)
+		{
+			return endLine() > aRange.startLine() || endLine() == aRange.startLine() && endColumn() > aRange.startColumn();
+		}
+
+
+		/**
+		 * Extends this range to include the range provided, which starts after the start of this range.
+		 */
+		void merge(Range aRange)
+		{
+			if (aRange.endLine() > endLine() || aRange.endLine() == endLine() && aRange.endColumn() > endColumn())
+			{
+				int startColumn = startColumn();
+				int startLine = startLine();
+				mAnchorColumn = startColumn;
+				mAnchorLine = startLine;
+				mColumn = aRange.endColumn();
+				mLine = aRange.endLine();
+			}
+		}
+
+
+		void moveTo(int aColumn, int aLine)
+		{
+			mAnchorColumn = mColumn = aColumn;
+			mAnchorLine = mLine = aLine;
+		}
+
+
+		void toArray(int[] aRanges, int aIndex)
+		{
+			aRanges[4 * aIndex] = startColumn();
+			aRanges[4 * aIndex + 1] = startLine();
+			aRanges[4 * aIndex + 2] = endColumn();
+			aRanges[4 * aIndex + 3] = endLine();
+		}
+
+
+		void clamp(Document aDocument)
+		{
+			int lastLine = aDocument.getLineCount() - 1;
+			mAnchorLine = Math.max(0, Math.min(mAnchorLine, lastLine));
+			mLine = Math.max(0, Math.min(mLine, lastLine));
+			mAnchorColumn = Math.max(0, Math.min(mAnchorColumn, aDocument.getLineLength(mAnchorLine)));
+			mColumn = Math.max(0, Math.min(mColumn, aDocument.getLineLength(mLine)));
+		}
+	}
+}
\ No newline at end of file
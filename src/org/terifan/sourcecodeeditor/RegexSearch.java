@@ -0,0 +1,727 @@
+package org.terifan.sourcecodeeditor;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Finds matches of a regular expression in a Document. Patterns that cannot match a line break are matched against one line string at a
+ * time while other patterns are matched against a DocumentText, a view of the whole document, allowing matches to span lines. In both
+ * cases ^ and $ match at the start and end of lines. Empty matches are ignored. Searches matching one line at a time are narrowed by the
+ * TrigramIndex of the document, if any, using the literal text every match must contain.
+ */
+public class RegexSearch
+{
+	private final Pattern mPattern;
+	private final boolean mMultiLine;
+	private final List<String> mRequiredLiterals;
+
+
+	/**
+	 * @throws java.util.regex.PatternSyntaxException
+	 *   if the expression is not valid
+	 */
+	public RegexSearch(String aRegex, boolean aCaseSensitive)
+	{
+		if (aRegex == null || aRegex.isEmpty())
+		{
+			throw new IllegalArgumentException("Pattern is null or empty.");
+		}
+
+		mPattern = Pattern.compile(aRegex, Pattern.MULTILINE | (aCaseSensitive ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
+		mMultiLine = canMatchLineBreak(aRegex);
+		mRequiredLiterals = Collections.unmodifiableList(findRequiredLiterals(aRegex));
+	}
+
+
+	public Pattern getPattern()
+	{
+		return mPattern;
+	}
+
+
+	/**
+	 * Returns true if matches of the pattern may span lines.
+	 */
+	public boolean isMultiLine()
+	{
+		return mMultiLine;
+	}
+
+
+	/**
+	 * Returns literal strings every match of the pattern contains, used to narrow searches with a TrigramIndex. The list is empty if the
+	 * pattern has no such strings or contains alternatives.
+	 */
+	public List<String> getRequiredLiterals()
+	{
+		return mRequiredLiterals;
+	}
+
+
+	/**
+	 * Returns the first match starting at or after the position provided, continuing from the first line when the end of the document is
+	 * reached if aWrap is true. Returns null if there is no match.
+	 */
+	public Match findNext(Document aDocument, int aColumn, int aLine, boolean aWrap)
+	{
+		if (mMultiLine)
+		{
+			DocumentText text = new DocumentText(aDocument);
+			Matcher matcher = newMatcher(text);
+			int start = text.getOffset(aColumn, aLine);
+
+			Match match = find(matcher, text, start, text.length(), aLine);
+			if (match == null && aWrap)
+			{
+				match = find(matcher, text, 0, start, 0);
+			}
+			return match;
+		}
+
+		int lineCount = aDocument.getLineCount();
+		int[] candidates = getCandidateLines(aDocument);
+		LineText lineText = new LineText();
+		Matcher matcher = newMatcher(lineText);
+
+		if (candidates != null && candidates.length == 0)
+		{
+			return null;
+		}
+
+		for (int i = 0; i <= lineCount; i++)
+		{
+			int line = aLine + i;
+
+			if (line >= lineCount)
+			{
+				if (!aWrap)
+				{
+					break;
+				}
+				line -= lineCount;
+			}
+
+			int skip = candidates == null ? 0 : TrigramIndex.distanceToNext(candidates, line, lineCount);
+			if (skip > 0)
+			{
+				i += skip - 1;
+				continue;
+			}
+
+			String text = aDocument.getLine(line);
+			lineText.set(text, line < lineCount - 1);
+			matcher.reset(lineText);
+			matcher.region(i == 0 ? Math.min(aColumn, text.length()) : 0, text.length());
+
+			while (matcher.find())
+			{
+				// the start line is searched again after wrapping, up to the starting column
+				if (i == lineCount && matcher.start() >= aColumn)
+				{
+					break;
+				}
+				if (matcher.end() > matcher.start())
+				{
+					return new Match(matcher, new Point(matcher.start(), line), new Point(matcher.end(), line));
+				}
+			}
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * Returns the last match starting before the position provided, continuing from the last line when the start of the document is
+	 * reached if aWrap is true. Returns null if there is no match.
+	 */
+	public Match findPrevious(Document aDocument, int aColumn, int aLine, boolean aWrap)
+	{
+		if (mMultiLine)
+		{
+			// matches depend on where matching starts, the text is matched from the start of the document keeping the last match found
+			// before the position and, when wrapping, the last match of the document
+			DocumentText text = new DocumentText(aDocument);
+			Matcher matcher = newMatcher(text);
+			int start = text.getOffset(aColumn, aLine);
+			int before = -1;
+			int last = -1;
+
+			matcher.region(0, text.length());
+
+			while (matcher.find())
+			{
+				if (matcher.end() > matcher.start())
+				{
+					if (matcher.start() < start)
+					{
+						before = matcher.start();
+					}
+					else if (!aWrap)
+					{
+						break;
+					}
+					last = matcher.start();
+				}
+			}
+
+			int found = before != -1 ? before : aWrap ? last : -1;
+
+			return found == -1 ? null : find(matcher, text, found, text.length(), text.getLineAt(found));
+		}
+
+		int lineCount = aDocument.getLineCount();
+		int[] candidates = getCandidateLines(aDocument);
+		LineText lineText = new LineText();
+		Matcher matcher = newMatcher(lineText);
+
+		if (candidates != null && candidates.length == 0)
+		{
+			return null;
+		}
+
+		for (int i = 0; i <= lineCount; i++)
+		{
+			int line = aLine - i;
+
+			if (line < 0)
+			{
+				if (!aWrap)
+				{
+					break;
+				}
+				line += lineCount;
+			}
+
+			int skip = candidates == null ? 0 : TrigramIndex.distanceToPrevious(candidates, line, lineCount);
+			if (skip > 0)
+			{
+				i += skip - 1;
+				continue;
+			}
+
+			String text = aDocument.getLine(line);
+			lineText.set(text, line < lineCount - 1);
+			matcher.reset(lineText);
+			matcher.region(0, text.length());
+
+			int found = -1;
+			while (matcher.find() && (i > 0 || matcher.start() < aColumn))
+			{
+				if (matcher.end() > matcher.start() && (i < lineCount || matcher.start() >= aColumn))
+				{
+					found = matcher.start();
+				}
+			}
+
+			if (found != -1)
+			{
+				matcher.region(found, text.length());
+				matcher.find();
+				return new Match(matcher, new Point(matcher.start(), line), new Point(matcher.end(), line));
+			}
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * Returns the match of the pattern starting and ending at the positions provided, e.g. a selection made by a previous search, or null
+	 * if the text between the positions is not a match.
+	 */
+	public Match matchAt(Document aDocument, Point aStart, Point aEnd)
+	{
+		Matcher matcher;
+		int start;
+		int end;
+
+		if (mMultiLine)
+		{
+			DocumentText text = new DocumentText(aDocument);
+			matcher = newMatcher(text);
+			start = text.getOffset(aStart.x, aStart.y);
+			end = text.getOffset(aEnd.x, aEnd.y);
+		}
+		else
+		{
+			if (aStart.y != aEnd.y)
+			{
+				return null;
+			}
+			LineText lineText = new LineText().set(aDocument.getLine(aStart.y), aStart.y < aDocument.getLineCount() - 1);
+			matcher = newMatcher(lineText);
+			start = aStart.x;
+			end = aEnd.x;
+		}
+
+		matcher.region(start, end);
+
+		if (!matcher.matches() || end == start)
+		{
+			return null;
+		}
+
+		return new Match(matcher, new Point(aStart), new Point(aEnd));
+	}
+
+
+	/**
+	 * Replaces every match between two positions of a document, expanding group references in the replacement, as a single change to the
+	 * document. Unlike searches, replace all also replaces empty matches, e.g. ^ inserts the replacement at the start of every line.
+	 *
+	 * @return
+	 *   the number of matches replaced
+	 * @throws IllegalArgumentException
+	 *   if the replacement refers to a group that does not exist
+	 */
+	public int replaceAll(Document aDocument, Point aStart, Point aEnd, String aReplacement)
+	{
+		BatchReplace batch = new BatchReplace(aDocument);
+		boolean literal = aReplacement.indexOf('$') == -1 && aReplacement.indexOf('\\') == -1;
+
+		if (mMultiLine)
+		{
+			DocumentText text = new DocumentText(aDocument);
+			Matcher matcher = newMatcher(text);
+			matcher.region(text.getOffset(aStart.x, aStart.y), text.getOffset(aEnd.x, aEnd.y));
+
+			while (matcher.find())
+			{
+				int startLine = text.getLineAt(matcher.start());
+				int endLine = text.getLineAt(matcher.end());
+
+				batch.replace(matcher.start() - text.getLineOffset(startLine), startLine, matcher.end() - text.getLineOffset(endLine), endLine, literal ? aReplacement : expand(matcher, aReplacement));
+			}
+		}
+		else
+		{
+			LineText lineText = new LineText();
+			int lineCount = aDocument.getLineCount();
+			int[] candidates = getCandidateLines(aDocument);
+			Matcher matcher = newMatcher(lineText);
+
+			for (int line = aStart.y; line <= aEnd.y && (candidates == null || candidates.length > 0); line++)
+			{
+				int skip = candidates == null ? 0 : TrigramIndex.distanceToNext(candidates, line, lineCount);
+				if (skip > 0)
+				{
+					line += skip - 1;
+					continue;
+				}
+
+				String text = aDocument.getLine(line);
+				lineText.set(text, line < lineCount - 1);
+				matcher.reset(lineText);
+				matcher.region(line == aStart.y ? aStart.x : 0, line == aEnd.y ? aEnd.x : text.length());
+
+				while (matcher.find())
+				{
+					batch.replace(matcher.start(), line, matcher.end(), line, literal ? aReplacement : expand(matcher, aReplacement));
+				}
+			}
+		}
+
+		return batch.apply();
+	}
+
+
+	/**
+	 * Returns the lines that may contain a match according to the TrigramIndex of a document or null if all lines must be searched.
+	 */
+	private int[] getCandidateLines(Document aDocument)
+	{
+		TrigramIndex index = aDocument.getTrigramIndex();
+
+		return index == null ? null : index.getCandidateLines(this);
+	}
+
+
+	private Match find(Matcher aMatcher, DocumentText aText, int aStart, int aLimit, int aLine)
+	{
+		aMatcher.region(aStart, aText.length());
+
+		while (aMatcher.find() && aMatcher.start() < aLimit)
+		{
+			if (aMatcher.end() > aMatcher.start())
+			{
+				int startLine = aText.getLineAt(aMatcher.start());
+				int endLine = aText.getLineAt(aMatcher.end());
+
+				return new Match(aMatcher, new Point(aMatcher.start() - aText.getLineOffset(startLine), startLine), new Point(aMatcher.end() - aText.getLineOffset(endLine), endLine));
+			}
+		}
+
+		return null;
+	}
+
+
+	Matcher newMatcher(CharSequence aText)
+	{
+		// lookarounds and word boundaries see the text outside of the region while ^ and $ only match at line breaks
+		return mPattern.matcher(aText).useTransparentBounds(true).useAnchoringBounds(false);
+	}
+
+
+	/**
+	 * Returns true unless the expression certainly cannot match a line break, i.e. it contains neither line breaks, negated character
+	 * classes, dot-all flags nor escapes matching or encoding a line break.
+	 */
+	static boolean canMatchLineBreak(String aRegex)
+	{
+		for (int i = 0, length = aRegex.length(); i < length; i++)
+		{
+			char c = aRegex.charAt(i);
+
+			switch (c)
+			{
+				case '\n':
+				case '\r':
+					return true;
+				case '[':
+					if (i + 1 < length && aRegex.charAt(i + 1) == '^')
+					{
+						return true;
+					}
+					break;
+				case '(':
+					if (i + 1 < length && aRegex.charAt(i + 1) == '?')
+					{
+						for (int j = i + 2; j < length && (Character.isLetter(aRegex.charAt(j)) || aRegex.charAt(j) == '-'); j++)
+						{
+							if (aRegex.charAt(j) == 's')
+							{
+								return true;
+							}
+						}
+					}
+					break;
+				case '\\':
+					// named characters such as \N{LINE FEED (LF)} may be line breaks too
+					if (i + 1 < length && "nrRsvWDHXpPxuc0N".indexOf(aRegex.charAt(i + 1)) != -1)
+					{
+						return true;
+					}
+					i++;
+					break;
+				default:
+					break;
+			}
+		}
+
+		return false;
+	}
+
+
+	/**
+	 * Returns the runs of literal characters outside of groups in an expression that are not made optional by a quantifier. Escapes
+	 * matching a class of characters, character classes, groups and anchors end a run. Expressions containing alternatives or the comments
+	 * flag have no required literals.
+	 */
+	static List<String> findRequiredLiterals(String aRegex)
+	{
+		ArrayList<String> literals = new ArrayList<>();
+		StringBuilder run = new StringBuilder();
+		int depth = 0;
+
+		for (int i = 0, length = aRegex.length(); i < length; i++)
+		{
+			char c = aRegex.charAt(i);
+			boolean literal = false;
+
+			switch (c)
+			{
+				case '|':
+					return new ArrayList<>();
+				case '\\':
+					if (++i == length)
+					{
+						break;
+					}
+					c = aRegex.charAt(i);
+					if (c == 'Q')
+					{
+						int end = aRegex.indexOf("\\E", i);
+						String quoted = aRegex.substring(i + 1, end == -1 ? length : end);
+						i = end == -1 ? length : end + 1;
+						if (depth == 0)
+						{
+							run.append(quoted);
+						}
+						continue;
+					}
+					if (Character.isLetterOrDigit(c))
+					{
+						// escapes such as \x41, \p{Alpha} and \k<name> have arguments
+						while (i + 1 < length && Character.isLetterOrDigit(aRegex.charAt(i + 1)) && "xuc0123456789".indexOf(c) != -1)
+						{
+							i++;
+						}
+						if (i + 1 < length && (aRegex.charAt(i + 1) == '{' || aRegex.charAt(i + 1) == '<'))
+						{
+							i = Math.max(i, aRegex.indexOf(aRegex.charAt(i + 1) == '{' ? '}' : '>', i));
+						}
+					}
+					else
+					{
+						literal = true;
+					}
+					break;
+				case '[':
+					i = skipClass(aRegex, i);
+					break;
+				case '(':
+					if (aRegex.startsWith("(?", i))
+					{
+						for (int j = i + 2; j < length && (Character.isLetter(aRegex.charAt(j)) || aRegex.charAt(j) == '-'); j++)
+						{
+							if (aRegex.charAt(j) == 'x')
+							{
+								return new ArrayList<>();
+							}
+						}
+					}
+					depth++;
+					break;
+				case ')':
+					depth--;
+					break;
+				case '?':
+				case '*':
+				case '{':
+					// the preceding character is optional
+					if (run.length() > 0 && i > 0 && aRegex.charAt(i - 1) != ')' && aRegex.charAt(i - 1) != ']')
+					{
+						run.setLength(run.length() - 1);
+					}
+					if (c == '{')
+					{
+						i = Math.max(i, aRegex.indexOf('}', i));
+					}
+					break;
+				case '+':
+				case '.':
+				case '^':
+				case '$':
+					break;
+				default:
+					literal = true;
+					break;
+			}
+
+			if (literal && depth == 0)
+			{
+				run.append(c);
+			}
+			else if (run.length() > 0)
+			{
+				literals.add(run.toString());
+				run.setLength(0);
+			}
+		}
+
+		if (run.length() > 0)
+		{
+			literals.add(run.toString());
+		}
+
+		return literals;
+	}
+
+
+	private static int skipClass(String aRegex, int aStart)
+	{
+		int depth = 0;
+
+		for (int i = aStart, length = aRegex.length(); i < length; i++)
+		{
+			char c = aRegex.charAt(i);
+
+			if (c == '\\')
+			{
+				i++;
+			}
+			else if (c == '[')
+			{
+				depth++;
+			}
+			else if (c == ']' && i > aStart + 1 && --depth == 0)
+			{
+				return i;
+			}
+		}
+
+		return aRegex.length();
+	}
+
+
+	/**
+	 * Returns a replacement with group references replaced by the groups of the current match of a Matcher.
+	 */
+	private static String expand(Matcher aMatcher, String aReplacement)
+	{
+		StringBuilder result = new StringBuilder();
+
+		for (int i = 0, length = aReplacement.length(); i < length; )
+		{
+			char c = aReplacement.charAt(i++);
+
+			if (c == '\\')
+			{
+				if (i == length)
+				{
+					throw new IllegalArgumentException("Character to be escaped is missing.");
+				}
+				result.append(aReplacement.charAt(i++));
+			}
+			else if (c != '$')
+			{
+				result.append(c);
+			}
+			else if (i == length)
+			{
+				throw new IllegalArgumentException("Illegal group reference: group index is missing.");
+			}
+			else if (aReplacement.charAt(i) == '{')
+			{
+				int end = aReplacement.indexOf('}', i);
+				if (end == -1)
+				{
+					throw new IllegalArgumentException("Named capturing group is missing trailing '}'.");
+				}
+				String group = aMatcher.group(aReplacement.substring(i + 1, end));
+				result.append(group == null ? "" : group);
+				i = end + 1;
+			}
+			else
+			{
+				int group = aReplacement.charAt(i++) - '0';
+				if (group < 0 || group > 9)
+				{
+					throw new IllegalArgumentException("Illegal group reference.");
+				}
+				// further digits are part of the reference as long as the group exists
+				for (; i < length; i++)
+				{
+					int digit = aReplacement.charAt(i) - '0';
+					if (digit < 0 || digit > 9 || group * 10 + digit > aMatcher.groupCount())
+					{
+						break;
+					}
+					group = group * 10 + digit;
+				}
+				if (group > aMatcher.groupCount())
+				{
+					throw new IllegalArgumentException("No group " + group);
+				}
+				String text = aMatcher.group(group);
+				result.append(text == null ? "" : text);
+			}
+		}
+
+		return result.toString();
+	}
+
+
+	/**
+	 * A line of a document followed by a line feed, unless it is the last line, that patterns matching one line at a time are matched
+	 * against, limited to the line by the region of the Matcher. ^ and $ then match the same way as when the whole document is matched,
+	 * Matcher not matching ^ on an empty line at the end of the text.
+	 */
+	static class LineText implements CharSequence
+	{
+		private String mLine = "";
+		private boolean mTerminated;
+
+
+		LineText set(String aLine, boolean aTerminated)
+		{
+			mLine = aLine;
+			mTerminated = aTerminated;
+			return this;
+		}
+
+
+		@Override
+		public int length()
+		{
+			return mTerminated ? mLine.length() + 1 : mLine.length();
+		}
+
+
+		@Override
+		public char charAt(int aIndex)
+		{
+			return aIndex == mLine.length() && mTerminated ? '\n' : mLine.charAt(aIndex);
+		}
+
+
+		@Override
+		public CharSequence subSequence(int aStart, int aEnd)
+		{
+			return aEnd <= mLine.length() ? mLine.substring(aStart, aEnd) : toString().substring(aStart, aEnd);
+		}
+
+
+		@Override
+		public String toString()
+		{
+			return mTerminated ? mLine + "\n" : mLine;
+		}
+	}
+
+
+	/**
+	 * A match found by a RegexSearch. The groups of the match remain available after the document has been changed.
+	 */
+	public static class Match
+	{
+		private final Matcher mMatcher;
+		private final Point mStart;
+		private final Point mEnd;
+
+
+		private Match(Matcher aMatcher, Point aStart, Point aEnd)
+		{
+			mMatcher = aMatcher;
+			mStart = aStart;
+			mEnd = aEnd;
+		}
+
+
+		public Point getStart()
+		{
+			return new Point(mStart);
+		}
+
+
+		public Point getEnd()
+		{
+			return new Point(mEnd);
+		}
+
+
+		public String group(int aGroup)
+		{
+			return mMatcher.group(aGroup);
+		}
+
+
+		/**
+		 * Returns the replacement text for this match, replacing $n and ${name} with the text of groups and removing the backslash before
+		 * escaped characters, the same way as Matcher.appendReplacement.
+		 *
+		 * @throws IllegalArgumentException
+		 *   if the replacement refers to a group that does not exist
+		 */
+		public String getReplacement(String aReplacement)
+		{
+			return expand(mMatcher, aReplacement);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,429 @@
+package org.terifan.sourcecodeeditor;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.regex.Matcher;
+import javax.swing.SwingUtilities;
+
+
+/**
+ * Finds every match of a search in the document of a SourceEditor, which paints them with the SEARCH_RESULT style, and counts them.
+ *
+ * The matches are kept in an index holding the start and end columns of the matches of every line, a match continuing from the previous
+ * line having the start -1. The index is built by a background thread searching a snapshot of the lines of the document, changes made to
+ * the document meanwhile being replayed on the index once the thread completes. After that only the lines changed are searched again,
+ * except for regular expressions that can match line breaks which are searched again from the start. Empty matches are ignored. When the
+ * document has a TrigramIndex only the lines it finds may contain a match are searched.
+ */
+class SearchHighlighter implements DocumentListener
+{
+	private final static int[] DIRTY = {};
+
+	private final SourceEditor mSourceEditor;
+	private final Document mDocument;
+	private final TextSearch mTextSearch;
+	private final RegexSearch mRegexSearch;
+	private ArrayList<int[]> mMatches;
+	private ArrayList<DocumentEvent> mPendingEvents;
+	private int mMatchCount;
+	private Worker mWorker;
+
+
+	/**
+	 * Starts searching the document for a string or a regular expression, one of the searches provided being null.
+	 */
+	public SearchHighlighter(SourceEditor aSourceEditor, Document aDocument, TextSearch aTextSearch, RegexSearch aRegexSearch)
+	{
+		mSourceEditor = aSourceEditor;
+		mDocument = aDocument;
+		mTextSearch = aTextSearch;
+		mRegexSearch = aRegexSearch;
+
+		search();
+	}
+
+
+	public TextSearch getTextSearch()
+	{
+		return mTextSearch;
+	}
+
+
+	public RegexSearch getRegexSearch()
+	{
+		return mRegexSearch;
+	}
+
+
+	/**
+	 * Returns the columns of the matches in a line as pairs of start and end columns, or null if the line contains no matches or the
+	 * document is still being searched.
+	 */
+	public int[] getMatches(int aLine)
+	{
+		if (mMatches == null)
+		{
+			return null;
+		}
+
+		int[] matches = mMatches.get(aLine);
+
+		return matches == DIRTY ? null : matches;
+	}
+
+
+	/**
+	 * Returns the number of matches in the document or -1 while the document is being searched.
+	 */
+	public int getMatchCount()
+	{
+		return mMatches == null ? -1 : mMatchCount;
+	}
+
+
+	/**
+	 * Returns the index of the match starting at the position provided or -1 if no match starts there.
+	 */
+	public int getMatchIndex(Point aPosition)
+	{
+		if (mMatches == null || aPosition.y >= mMatches.size())
+		{
+			return -1;
+		}
+
+		int[] matches = getMatches(aPosition.y);
+		int index = -1;
+
+		for (int i = 0; matches != null && i < matches.length; i += 2)
+		{
+			if (matches[i] == aPosition.x)
+			{
+				index = count(matches, i);
+				break;
+			}
+		}
+
+		if (index == -1)
+		{
+			return -1;
+		}
+
+		for (int line = aPosition.y; --line >= 0;)
+		{
+			index += count(mMatches.get(line), Integer.MAX_VALUE);
+		}
+
+		return index;
+	}
+
+
+	/**
+	 * Stops searching the document in the background.
+	 */
+	public void stop()
+	{
+		if (mWorker != null)
+		{
+			mWorker.mCancelled = true;
+			mWorker = null;
+		}
+	}
+
+
+	@Override
+	public void documentChanged(DocumentEvent aEvent)
+	{
+		if (mMatches == null)
+		{
+			mPendingEvents.add(aEvent);
+		}
+		else if (mRegexSearch != null && mRegexSearch.isMultiLine())
+		{
+			search();
+		}
+		else
+		{
+			update(aEvent);
+			searchDirtyLines(aEvent.getFirstLine(), aEvent.getFirstLine() + aEvent.getInsertedLineCount());
+			mSourceEditor.fireSearchChanged();
+		}
+	}
+
+
+	/**
+	 * Starts a background thread searching a snapshot of the lines of the document.
+	 */
+	private void search()
+	{
+		stop();
+
+		mMatches = null;
+		mPendingEvents = new ArrayList<>();
+		mWorker = new Worker(mDocument.getLines(), getCandidateLines());
+
+		Thread thread = new Thread(mWorker, "Search");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+
+	/**
+	 * Returns the lines that may contain a match according to the TrigramIndex of the document or null if all lines must be searched.
+	 */
+	private int[] getCandidateLines()
+	{
+		TrigramIndex index = mDocument.getTrigramIndex();
+
+		if (index == null || mRegexSearch != null && mRegexSearch.isMultiLine())
+		{
+			return null;
+		}
+
+		return mTextSearch != null ? index.getCandidateLines(mTextSearch) : index.getCandidateLines(mRegexSearch);
+	}
+
+
+	/**
+	 * Installs the index built by a worker, replaying the changes made to the document since the snapshot searched was taken.
+	 */
+	private void searchCompleted(Worker aWorker, ArrayList<int[]> aMatches, int aMatchCount)
+	{
+		if (aWorker != mWorker)
+		{
+			return;
+		}
+
+		mWorker = null;
+
+		if (!mPendingEvents.isEmpty() && mRegexSearch != null && mRegexSearch.isMultiLine())
+		{
+			search();
+			return;
+		}
+
+		mMatches = aMatches;
+		mMatchCount = aMatchCount;
+
+		for (DocumentEvent event : mPendingEvents)
+		{
+			update(event);
+		}
+		mPendingEvents = null;
+
+		searchDirtyLines(0, mMatches.size());
+
+		mSourceEditor.repaint();
+		mSourceEditor.fireSearchChanged();
+	}
+
+
+	/**
+	 * Replaces the matches of the lines removed by a change with dirty entries for the lines inserted.
+	 */
+	private void update(DocumentEvent aEvent)
+	{
+		int first = aEvent.getFirstLine();
+
+		for (int line = first, end = first + aEvent.getRemovedLineCount(); line < end; line++)
+		{
+			mMatchCount -= count(mMatches.get(line), Integer.MAX_VALUE);
+		}
+
+		mMatches.subList(first, first + aEvent.getRemovedLineCount()).clear();
+		mMatches.addAll(first, Collections.nCopies(aEvent.getInsertedLineCount(), DIRTY));
+	}
+
+
+	private void searchDirtyLines(int aFirstLine, int aEndLine)
+	{
+		Matcher matcher = mRegexSearch == null ? null : mRegexSearch.newMatcher("");
+		RegexSearch.LineText lineText = new RegexSearch.LineText();
+		int lineCount = mMatches.size();
+
+		for (int line = aFirstLine; line < aEndLine; line++)
+		{
+			if (mMatches.get(line) == DIRTY)
+			{
+				int[] matches = findMatches(mDocument.getLine(line), line < lineCount - 1, matcher, lineText);
+				mMatches.set(line, matches);
+				mMatchCount += count(matches, Integer.MAX_VALUE);
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the columns of the matches in a line of a search matching one line at a time or null if there are none.
+	 */
+	private int[] findMatches(String aLine, boolean aTerminated, Matcher aMatcher, RegexSearch.LineText aLineText)
+	{
+		int[] matches = null;
+		int count = 0;
+
+		if (mTextSearch != null)
+		{
+			for (int column = mTextSearch.indexOf(aLine, 0); column != -1; column = mTextSearch.indexOf(aLine, column + mTextSearch.length()))
+			{
+				matches = add(matches, count, column, column + mTextSearch.length());
+				count += 2;
+			}
+		}
+		else
+		{
+			aMatcher.reset(aLineText.set(aLine, aTerminated));
+			aMatcher.region(0, aLine.length());
+
+			while (aMatcher.find())
+			{
+				if (aMatcher.end() > aMatcher.start())
+				{
+					matches = add(matches, count, aMatcher.start(), aMatcher.end());
+					count += 2;
+				}
+			}
+		}
+
+		return matches == null || matches.length == count ? matches : Arrays.copyOf(matches, count);
+	}
+
+
+	private static int[] add(int[] aMatches, int aCount, int aStart, int aEnd)
+	{
+		if (aMatches == null)
+		{
+			aMatches = new int[2];
+		}
+		else if (aCount == aMatches.length)
+		{
+			aMatches = Arrays.copyOf(aMatches, 2 * aCount);
+		}
+
+		aMatches[aCount] = aStart;
+		aMatches[aCount + 1] = aEnd;
+
+		return aMatches;
+	}
+
+
+	/**
+	 * Returns the number of matches starting in a line before the entry index provided.
+	 */
+	private static int count(int[] aMatches, int aEnd)
+	{
+		int count = 0;
+
+		for (int i = 0; aMatches != null && i < aMatches.length && i < aEnd; i += 2)
+		{
+			if (aMatches[i] >= 0)
+			{
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+
+	/**
+	 * Searches a snapshot of the lines of the document.
+	 */
+	private class Worker implements Runnable
+	{
+		private final String[] mLines;
+		private final int[] mCandidates;
+		private volatile boolean mCancelled;
+
+
+		/**
+		 * @param aCandidates
+		 *   the lines that may contain a match, in ascending order, or null to search all lines
+		 */
+		Worker(String[] aLines, int[] aCandidates)
+		{
+			mLines = aLines;
+			mCandidates = aCandidates;
+		}
+
+
+		@Override
+		public void run()
+		{
+			ArrayList<int[]> matches = new ArrayList<>(mLines.length);
+			int count = 0;
+
+			if (mRegexSearch != null && mRegexSearch.isMultiLine())
+			{
+				matches.addAll(Collections.nCopies(mLines.length, null));
+
+				DocumentText text = new DocumentText(mLines);
+				Matcher matcher = mRegexSearch.newMatcher(text);
+				int[] counts = new int[mLines.length];
+
+				while (!mCancelled && matcher.find())
+				{
+					if (matcher.end() == matcher.start())
+					{
+						continue;
+					}
+
+					int startLine = text.getLineAt(matcher.start());
+					int endLine = text.getLineAt(matcher.end());
+
+					for (int line = startLine; line <= endLine; line++)
+					{
+						int lineOffset = text.getLineOffset(line);
+						int start = line == startLine ? matcher.start() - lineOffset : -1;
+						int end = line == endLine ? matcher.end() - lineOffset : mLines[line].length();
+
+						// a match ending with a line break does not continue on the next line
+						if (line > startLine && end == 0)
+						{
+							break;
+						}
+
+						matches.set(line, add(matches.get(line), counts[line], start, end));
+						counts[line] += 2;
+					}
+					count++;
+				}
+
+				for (int line = 0; line < mLines.length; line++)
+				{
+					int[] lineMatches = matches.get(line);
+					if (lineMatches != null && lineMatches.length != counts[line])
+					{
+						matches.set(line, Arrays.copyOf(lineMatches, counts[line]));
+					}
+				}
+			}
+			else
+			{
+				Matcher matcher = mRegexSearch == null ? null : mRegexSearch.newMatcher("");
+				RegexSearch.LineText lineText = new RegexSearch.LineText();
+
+				for (int line = 0, candidate = 0; line < mLines.length && !mCancelled; line++)
+				{
+					if (mCandidates != null && (candidate == mCandidates.length || mCandidates[candidate] != line))
+					{
+						matches.add(null);
+						continue;
+					}
+					candidate++;
+
+					int[] lineMatches = findMatches(mLines[line], line < mLines.length - 1, matcher, lineText);
+					matches.add(lineMatches);
+					count += count(lineMatches, Integer.MAX_VALUE);
+				}
+			}
+
+			if (!mCancelled)
+			{
+				int matchCount = count;
+				SwingUtilities.invokeLater(() -> searchCompleted(this, matches, matchCount));
+			}
+		}
+	}
+}
\ No newline at end of file
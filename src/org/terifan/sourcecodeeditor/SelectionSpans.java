@@ -0,0 +1,135 @@
+package org.terifan.sourcecodeeditor;
+
+import java.awt.Point;
+
+
+/**
+ * The selection of a SourceEditor normalized into the span of character offsets selected on each line. The selection is normalized once
+ * per paint after which the span of a line is computed without allocating, converting virtual columns to character offsets only for the
+ * lines where the selection starts or ends, or for every line of a rectangular selection.
+ *
+ * A rectangular selection of zero width selects one character on every line.
+ */
+class SelectionSpans
+{
+	private final SourceEditor mSourceEditor;
+	private boolean mSelected;
+	private boolean mRectangular;
+	private int mStartLine;
+	private int mStartColumn;
+	private int mEndLine;
+	private int mEndColumn;
+
+
+	public SelectionSpans(SourceEditor aSourceEditor)
+	{
+		mSourceEditor = aSourceEditor;
+	}
+
+
+	/**
+	 * Normalizes the selection provided.
+	 *
+	 * @param aStart
+	 *   start of the selection in virtual columns or null if no text is selected
+	 * @param aEnd
+	 *   end of the selection in virtual columns or null if no text is selected
+	 */
+	public void update(Point aStart, Point aEnd, boolean aRectangular)
+	{
+		mSelected = aStart != null && aEnd != null;
+		mRectangular = aRectangular;
+
+		if (!mSelected)
+		{
+			return;
+		}
+
+		boolean swap = aStart.y > aEnd.y || aStart.y == aEnd.y && aStart.x > aEnd.x;
+
+		mStartLine = swap ? aEnd.y : aStart.y;
+		mEndLine = swap ? aStart.y : aEnd.y;
+
+		if (aRectangular)
+		{
+			mStartColumn = Math.min(aStart.x, aEnd.x);
+			mEndColumn = Math.max(aStart.x, aEnd.x);
+		}
+		else
+		{
+			mStartColumn = swap ? aEnd.x : aStart.x;
+			mEndColumn = swap ? aStart.x : aEnd.x;
+		}
+	}
+
+
+	/**
+	 * Returns true if any part of the line provided is selected.
+	 */
+	public boolean contains(int aLine)
+	{
+		return mSelected && aLine >= mStartLine && aLine <= mEndLine;
+	}
+
+
+	/**
+	 * Returns the offset of the first character selected in a line, or Integer.MAX_VALUE if nothing in the line is selected.
+	 */
+	public int getStart(int aLine)
+	{
+		if (!contains(aLine))
+		{
+			return Integer.MAX_VALUE;
+		}
+		if (mRectangular || aLine == mStartLine)
+		{
+			return mSourceEditor.removeTabsFromOffset(mStartColumn, aLine);
+		}
+
+		return 0;
+	}
+
+
+	/**
+	 * Returns the offset following the last character selected in a line, or Integer.MAX_VALUE if the selection continues past the end
+	 * of the line.
+	 */
+	public int getEnd(int aLine)
+	{
+		if (!contains(aLine))
+		{
+			return Integer.MAX_VALUE;
+		}
+		if (mRectangular)
+		{
+			return mSourceEditor.removeTabsFromOffset(mEndColumn, aLine) + (mStartColumn == mEndColumn ? 1 : 0);
+		}
+		if (aLine == mEndLine)
+		{
+			return mSourceEditor.removeTabsFromOffset(mEndColumn, aLine);
+		}
+
+		return Integer.MAX_VALUE;
+	}
+
+
+	/**
+	 * Returns true if the end of a line is selected. The end of a line in a rectangular selection is selected if its virtual column is
+	 * within the columns of the selection.
+	 */
+	public boolean isLineEndSelected(int aLine, int aLineLength)
+	{
+		if (!contains(aLine))
+		{
+			return false;
+		}
+		if (mRectangular)
+		{
+			int column = mSourceEditor.includeTabsInOffset(aLineLength, aLine);
+
+			return column >= mStartColumn && column < mEndColumn + (mStartColumn == mEndColumn ? 1 : 0);
+		}
+
+		return aLineLength >= getStart(aLine) && aLineLength < getEnd(aLine);
+	}
+}
\ No newline at end of file
@@ -1,26 +1,32 @@
 package org.terifan.sourcecodeeditor;
 
-import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Cursor;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.Insets;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
-import java.awt.Stroke;
+import java.awt.Transparency;
 import java.awt.datatransfer.DataFlavor;
 import java.awt.datatransfer.StringSelection;
 import java.awt.datatransfer.UnsupportedFlavorException;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.HierarchyEvent;
 import java.awt.event.KeyEvent;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.LineNumberReader;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 import javax.swing.JComponent;
 import javax.swing.JDialog;
 import javax.swing.JViewport;
@@ -29,6 +35,8 @@ import javax.swing.Scrollable;
 import javax.swing.SwingConstants;
 import javax.swing.UIDefaults;
 import javax.swing.UIManager;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 
 public final class SourceEditor extends JComponent implements Scrollable
@@ -36,7 +44,8 @@ public final class SourceEditor extends JComponent implements Scrollable
 	private final static long serialVersionUID = 1L;
 	private final static boolean DEBUG_GRAPHICS = false;
 
-	private final static BasicStroke INDENT_LINE_STROKE = new BasicStroke(1f, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0f, new float[]{1f,1f}, 0f);
+	private final static String FOLD_MARKER = "...";
+	private final static Color DAMAGE_OVERLAY_COLOR = new Color(255, 0, 0, 48);
 
 	private StyleMap mStyleMap;
 	private boolean mRectangularSelection;
@@ -45,11 +54,13 @@ public final class SourceEditor extends JComponent implements Scrollable
 	private SyntaxParser mSyntaxParser;
 	private Dimension mPreferredSize;
 	private Document mDocument;
-	private final Point mSelectionTempPoint = new Point();
 	private Point mSelectionEnd;
 	private Point mSelectionStart;
 	private String mClipboardContent; // used to manage rectangular selections
 	private JDialog mFindDialog;
+	private BracketIndex mBracketIndex;
+	private FoldModel mFoldModel;
+	private Point[] mBracketPair;
 
 	// user preferences
 	private boolean mAutoIndentEnabled;
@@ -61,6 +72,7 @@ public final class SourceEditor extends JComponent implements Scrollable
 	private boolean mOverwriteTextEnabled;
 	private boolean mTabIndentsTextBlockEnabled;
 	private boolean mWhitespaceSymbolEnabled;
+	private boolean mLineWrapEnabled;
 	private boolean mPaintFullRowSelectionEnabled;
 	private boolean mHighlightCaretRowEnabled;
 	private boolean mIndentLinesEnabled;
@@ -70,14 +82,32 @@ public final class SourceEditor extends JComponent implements Scrollable
 	private int mLineSpacing;
 	private int mCaretBlinkRate;
 	private int mTabSize;
+	private int mLayoutSettingsVersion; // raised when the styles, font size or tab size change, invalidating the widths of text
+	private int mStyleMapModificationCount;
+	private LineLayoutCache mLineLayoutCache;
+	private int mLineLayoutCacheVersion;
 	private String mHighlightText;
 	private String mLineBreakSymbol;
 	private transient Object mAntialiase;
-
-	private SyntaxParser mInputSyntaxParser;
-	private SyntaxParser mOffsetSyntaxParser;
-	private SyntaxParser mPaintSyntaxParser;
-	private SyntaxParser mPixelOffsetSyntaxParser;
+	private boolean mDamageOverlayEnabled;
+
+	private DocumentIndexes mDocumentIndexes;
+	private DocumentListener mDocumentListener;
+	private TokenizationContext mTokenizationContext;
+	private DamageTracker mDamageTracker;
+	private WordHighlighter mWordHighlighter;
+	private SearchHighlighter mSearchHighlighter;
+	private MultiCaret mMultiCaret;
+	private final ArrayList<ChangeListener> mSearchListeners = new ArrayList<>();
+	private WrapModel mWrapModel;
+	private LongLineIndex mLongLineIndex;
+	private final LineImageCache mLineImageCache = new LineImageCache(32 << 20);
+	private final TabIndex mTabIndex = new TabIndex();
+	private final SelectionSpans mSelectionSpans = new SelectionSpans(this);
+	private final LineRunCache mLineRunCache = new LineRunCache();
+
+	// actions applied to every caret while editing several places at once, other actions remove all carets but the primary caret first
+	private final static Set<String> MULTI_CARET_ACTIONS = Set.of("undo", "redo", "cut", "copy", "paste", "deleteNextCharacter", "deletePreviousCharacter", "addCaretsAtOccurrences", "find");
 
 
 	public SourceEditor(SyntaxParser aSyntaxParser, Document aDocument, StyleMap aStyles)
@@ -122,6 +152,13 @@ public final class SourceEditor extends JComponent implements Scrollable
 		addMouseMotionListener(mouseListener);
 		addKeyListener(new SourceEditorKeyListener(this));
 		addFocusListener(new SourceEditorFocusListener(this));
+		addHierarchyListener(aEvent ->
+		{
+			if ((aEvent.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0 && mCaret != null)
+			{
+				mCaret.updateBlinking();
+			}
+		});
 
 		mRequestFocus = true;
 
@@ -136,7 +173,8 @@ public final class SourceEditor extends JComponent implements Scrollable
 		{
 			mCaret = new Caret(this);
 			mCaret.setEnabled(false);
-			mCaret.start();
+			mCaret.addCaretListener(aEvent -> updateBracketPair());
+			mCaret.addCaretListener(aEvent -> mWordHighlighter.schedule());
 		}
 
 		super.doLayout();
@@ -145,7 +183,17 @@ public final class SourceEditor extends JComponent implements Scrollable
 
 	public void dispose()
 	{
+		if (mFindDialog != null)
+		{
+			mFindDialog.dispose();
+			mFindDialog = null;
+		}
+
 		mCaret.dispose();
+		uninstallDocumentIndexes();
+		mLineImageCache.clear();
+		mLineRunCache.clear();
+		mLongLineIndex.clear();
 	}
 
 
@@ -163,6 +211,17 @@ public final class SourceEditor extends JComponent implements Scrollable
 		super.registerKeyboardAction(actionListener, "upperCase", KeyStroke.getKeyStroke(KeyEvent.VK_U, ActionEvent.CTRL_MASK | ActionEvent.SHIFT_MASK), JComponent.WHEN_FOCUSED);
 		super.registerKeyboardAction(actionListener, "lowerCase", KeyStroke.getKeyStroke(KeyEvent.VK_L, ActionEvent.CTRL_MASK | ActionEvent.SHIFT_MASK), JComponent.WHEN_FOCUSED);
 		super.registerKeyboardAction(actionListener, "find", KeyStroke.getKeyStroke(KeyEvent.VK_F, ActionEvent.CTRL_MASK), JComponent.WHEN_FOCUSED);
+		super.registerKeyboardAction(actionListener, "addCaretsAtOccurrences", KeyStroke.getKeyStroke(KeyEvent.VK_F2, ActionEvent.CTRL_MASK), JComponent.WHEN_FOCUSED);
+		super.registerKeyboardAction(actionListener, "jumpToMatchingBracket", KeyStroke.getKeyStroke(KeyEvent.VK_OPEN_BRACKET, ActionEvent.CTRL_MASK), JComponent.WHEN_FOCUSED);
+		super.registerKeyboardAction(actionListener, "selectEnclosingBlock", KeyStroke.getKeyStroke(KeyEvent.VK_OPEN_BRACKET, ActionEvent.CTRL_MASK | ActionEvent.SHIFT_MASK), JComponent.WHEN_FOCUSED);
+		super.registerKeyboardAction(actionListener, "collapseFold", KeyStroke.getKeyStroke(KeyEvent.VK_SUBTRACT, ActionEvent.CTRL_MASK), JComponent.WHEN_FOCUSED);
+		super.registerKeyboardAction(actionListener, "collapseFold", KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, ActionEvent.CTRL_MASK), JComponent.WHEN_FOCUSED);
+		super.registerKeyboardAction(actionListener, "expandFold", KeyStroke.getKeyStroke(KeyEvent.VK_ADD, ActionEvent.CTRL_MASK), JComponent.WHEN_FOCUSED);
+		super.registerKeyboardAction(actionListener, "expandFold", KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS, ActionEvent.CTRL_MASK), JComponent.WHEN_FOCUSED);
+		super.registerKeyboardAction(actionListener, "collapseAllFolds", KeyStroke.getKeyStroke(KeyEvent.VK_SUBTRACT, ActionEvent.CTRL_MASK | ActionEvent.SHIFT_MASK), JComponent.WHEN_FOCUSED);
+		super.registerKeyboardAction(actionListener, "collapseAllFolds", KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, ActionEvent.CTRL_MASK | ActionEvent.SHIFT_MASK), JComponent.WHEN_FOCUSED);
+		super.registerKeyboardAction(actionListener, "expandAllFolds", KeyStroke.getKeyStroke(KeyEvent.VK_ADD, ActionEvent.CTRL_MASK | ActionEvent.SHIFT_MASK), JComponent.WHEN_FOCUSED);
+		super.registerKeyboardAction(actionListener, "expandAllFolds", KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS, ActionEvent.CTRL_MASK | ActionEvent.SHIFT_MASK), JComponent.WHEN_FOCUSED);
 	}
 
 
@@ -173,6 +232,11 @@ public final class SourceEditor extends JComponent implements Scrollable
 			throw new IllegalArgumentException("Unsupported action: " + aAction);
 		}
 
+		if (mMultiCaret != null && !MULTI_CARET_ACTIONS.contains(aAction))
+		{
+			clearCarets();
+		}
+
 		switch (aAction)
 		{
 			case "undo":
@@ -229,6 +293,27 @@ public final class SourceEditor extends JComponent implements Scrollable
 			case "resetSelection":
 				resetSelection();
 				break;
+			case "jumpToMatchingBracket":
+				jumpToMatchingBracket();
+				break;
+			case "selectEnclosingBlock":
+				selectEnclosingBlock();
+				break;
+			case "collapseFold":
+				collapseFold();
+				break;
+			case "expandFold":
+				expandFold();
+				break;
+			case "collapseAllFolds":
+				collapseAllFolds();
+				break;
+			case "expandAllFolds":
+				expandAllFolds();
+				break;
+			case "addCaretsAtOccurrences":
+				addCaretsAtOccurrences();
+				break;
 			case "find":
 				if (mFindDialog == null)
 				{
@@ -266,8 +351,16 @@ public final class SourceEditor extends JComponent implements Scrollable
 	{
 		if (canUndo())
 		{
-			mDocument.getUndoManager().undo();
-			repaint();
+			mDocument.setUndoingView(this);
+			try
+			{
+				mDocument.getUndoManager().undo(this);
+			}
+			finally
+			{
+				mDocument.setUndoingView(null);
+			}
+			repaintSelection();
 		}
 		return this;
 	}
@@ -283,8 +376,16 @@ public final class SourceEditor extends JComponent implements Scrollable
 	{
 		if (canRedo())
 		{
-			mDocument.getUndoManager().redo();
-			repaint();
+			mDocument.setUndoingView(this);
+			try
+			{
+				mDocument.getUndoManager().redo(this);
+			}
+			finally
+			{
+				mDocument.setUndoingView(null);
+			}
+			repaintSelection();
 		}
 		return this;
 	}
@@ -306,23 +407,31 @@ public final class SourceEditor extends JComponent implements Scrollable
 
 		mSyntaxParser = aSyntaxParser;
 
-		mInputSyntaxParser = mSyntaxParser.newInstance();
-		mOffsetSyntaxParser = mSyntaxParser.newInstance();
-		mPaintSyntaxParser = mSyntaxParser.newInstance();
-		mPixelOffsetSyntaxParser = mSyntaxParser.newInstance();
+		installDocumentIndexes();
 
 		mPreferredSize = null;
 		return this;
 	}
 
 
+	/**
+	 * Sets the word highlighted in the document repainting the visible rows whose highlighting changes.
+	 */
 	public SourceEditor setHighlightText(String aHighlightText)
 	{
-		mHighlightText = aHighlightText;
+		if (aHighlightText != null && aHighlightText.length() == 0)
+		{
+			aHighlightText = null;
+		}
 
-		if (mHighlightText != null && mHighlightText.length() == 0)
+		if (!Objects.equals(aHighlightText, mHighlightText))
 		{
-			mHighlightText = null;
+			mHighlightText = aHighlightText;
+
+			if (mWordHighlighter != null)
+			{
+				mWordHighlighter.setWord(aHighlightText);
+			}
 		}
 		return this;
 	}
@@ -334,6 +443,96 @@ public final class SourceEditor extends JComponent implements Scrollable
 	}
 
 
+	/**
+	 * Highlights every match of a string or regular expression with the SEARCH_RESULT style. The document is searched in the background
+	 * and the matches are kept current as the document changes, search listeners being notified whenever the matches change. A null or
+	 * empty search string removes the highlighting.
+	 *
+	 * @throws java.util.regex.PatternSyntaxException
+	 *   if the expression is not valid
+	 */
+	public SourceEditor setSearchHighlight(String aSearchString, boolean aCaseSensative, boolean aWholeWordsOnly, boolean aRegularExpression)
+	{
+		TextSearch textSearch = null;
+		RegexSearch regexSearch = null;
+
+		if (aSearchString != null && !aSearchString.isEmpty())
+		{
+			if (aRegularExpression)
+			{
+				regexSearch = new RegexSearch(aSearchString, aCaseSensative);
+			}
+			else
+			{
+				textSearch = new TextSearch(aSearchString, aCaseSensative, aWholeWordsOnly);
+			}
+		}
+
+		if (mSearchHighlighter != null)
+		{
+			mSearchHighlighter.stop();
+			mSearchHighlighter = null;
+			repaint();
+		}
+
+		if (textSearch != null || regexSearch != null)
+		{
+			mSearchHighlighter = new SearchHighlighter(this, mDocument, textSearch, regexSearch);
+		}
+
+		fireSearchChanged();
+		return this;
+	}
+
+
+	/**
+	 * Returns the number of matches highlighted or -1 if no search is highlighted or the document is still being searched.
+	 */
+	public int getSearchMatchCount()
+	{
+		return mSearchHighlighter == null ? -1 : mSearchHighlighter.getMatchCount();
+	}
+
+
+	/**
+	 * Returns the index of the highlighted match starting at the start of the selection or -1 if none does.
+	 */
+	public int getSearchMatchIndex()
+	{
+		if (mSearchHighlighter == null || !isTextSelected())
+		{
+			return -1;
+		}
+
+		Point start = getSelectionStart();
+		Point end = getSelectionEnd();
+
+		return mSearchHighlighter.getMatchIndex(start.y < end.y || start.y == end.y && start.x < end.x ? start : end);
+	}
+
+
+	public void addSearchListener(ChangeListener aChangeListener)
+	{
+		mSearchListeners.add(aChangeListener);
+	}
+
+
+	public void removeSearchListener(ChangeListener aChangeListener)
+	{
+		mSearchListeners.remove(aChangeListener);
+	}
+
+
+	void fireSearchChanged()
+	{
+		ChangeEvent event = new ChangeEvent(this);
+		for (int i = mSearchListeners.size(); --i >= 0;)
+		{
+			mSearchListeners.get(i).stateChanged(event);
+		}
+	}
+
+
 	public SourceEditor setHighlightTextCaseSensative(boolean aState)
 	{
 		mHighlightTextCaseSensative = aState;
@@ -541,9 +740,46 @@ public final class SourceEditor extends JComponent implements Scrollable
 	}
 
 
+	/**
+	 * Enables or disables wrapping lines wider than the editor into several rows. Lines are broken after the last whitespace fitting in a
+	 * row, or anywhere in words wider than a row. The editor tracks the width of its viewport while wrapping and the line image cache
+	 * isn't used.
+	 */
+	public SourceEditor setLineWrapEnabled(boolean aLineWrapEnabled)
+	{
+		if (aLineWrapEnabled != mLineWrapEnabled)
+		{
+			mLineWrapEnabled = aLineWrapEnabled;
+
+			if (mWrapModel != null)
+			{
+				mWrapModel.clear();
+				validateWrapModel();
+			}
+
+			mPreferredSize = null;
+			revalidate();
+			repaint();
+
+			if (mCaret != null)
+			{
+				mCaret.scrollToCaret();
+			}
+		}
+		return this;
+	}
+
+
+	public boolean isLineWrapEnabled()
+	{
+		return mLineWrapEnabled;
+	}
+
+
 	public SourceEditor setTabSize(int aTabSize)
 	{
 		mTabSize = aTabSize;
+		mLayoutSettingsVersion++;
 		return this;
 	}
 
@@ -567,6 +803,28 @@ public final class SourceEditor extends JComponent implements Scrollable
 	}
 
 
+	public long getLineImageCacheSize()
+	{
+		return mLineImageCache.getCapacity();
+	}
+
+
+	/**
+	 * Sets the maximum number of bytes used by images of rendered lines. Unchanged lines are copied from these images instead of being
+	 * painted again. Default is 32 MiB, zero disables the cache.
+	 */
+	public SourceEditor setLineImageCacheSize(long aBytes)
+	{
+		if (aBytes < 0)
+		{
+			throw new IllegalArgumentException("Cache size is negative: " + aBytes);
+		}
+
+		mLineImageCache.setCapacity(aBytes);
+		return this;
+	}
+
+
 	public SourceEditor setLineBreakSymbol(char aLineBreakSymbol)
 	{
 		mLineBreakSymbol = Character.toString(aLineBreakSymbol);
@@ -586,129 +844,450 @@ public final class SourceEditor extends JComponent implements Scrollable
 	}
 
 
-	public SyntaxParser getSyntaxParser()
+	/**
+	 * Returns the number of carets, more than one while editing several places of the document at once.
+	 */
+	public int getCaretCount()
 	{
-		return mSyntaxParser;
+		return mMultiCaret == null ? 1 : mMultiCaret.getCaretCount();
 	}
 
 
-	public SourceEditor setDocument(Document aDocument)
+	/**
+	 * Returns the positions of the carets in document order.
+	 */
+	public List<Point> getCaretPositions()
 	{
-		if (aDocument == null)
-		{
-			throw new IllegalArgumentException("Document provided is null.");
-		}
+		return mMultiCaret == null ? List.of(new Point(mCaret.getCharacterPosition())) : mMultiCaret.getPositions();
+	}
 
-		mDocument = aDocument;
-		mDocument.setParent(this);
-		recomputePreferredSize();
+
+	/**
+	 * Adds a caret at a position, the editor then editing the text at every caret at once. Each key typed, deletion or paste is applied
+	 * to all carets as a single undoable change. The caret and selection of the editor become one of the carets.
+	 */
+	public SourceEditor addCaret(int aColumn, int aLine)
+	{
+		startMultiCaret();
+
+		mMultiCaret.add(aColumn, aLine, aColumn, aLine, true);
+		mMultiCaret.caretsChanged(aLine, aLine, false);
 		return this;
 	}
 
 
-	public Document getDocument()
+	/**
+	 * Adds a caret selecting every occurrence of the selected text, or of the word at the caret if no text is selected, the editor then
+	 * editing every occurrence at once. Returns the number of carets.
+	 */
+	public int addCaretsAtOccurrences()
 	{
-		return mDocument;
-	}
+		clearCarets();
 
+		Point start;
+		Point end;
 
-//	public Style getStyle(String aIdentifier)
-//	{
-//		return mPaintSyntaxParser.getStyle(aIdentifier);
-//	}
+		if (isTextSelected())
+		{
+			start = getSelectionStart();
+			end = getSelectionEnd();
+
+			if (mRectangularSelection || start.y != end.y)
+			{
+				return 1;
+			}
+			if (start.x > end.x)
+			{
+				Point temp = start;
+				start = end;
+				end = temp;
+			}
+		}
+		else
+		{
+			Point p = mCaret.getCharacterPosition();
+			int x1 = getNextTokenOffset(Math.min(p.x, mDocument.getLineLength(p.y)), p.y, false);
+			start = new Point(getPreviousTokenOffset(x1, p.y), p.y);
+			end = new Point(x1, p.y);
+		}
 
+		String text = mDocument.getLine(start.y).substring(start.x, end.x);
 
-	public int getFontSize()
-	{
-		return mFontSize;
+		if (text.isBlank())
+		{
+			return 1;
+		}
+
+		resetSelection();
+
+		TextSearch search = new TextSearch(text, true, false);
+		mMultiCaret = new MultiCaret(this, mDocument);
+
+		for (Point p = search.findNext(mDocument, 0, 0, false); p != null; p = search.findNext(mDocument, p.x + text.length(), p.y, false))
+		{
+			mMultiCaret.add(p.x, p.y, p.x + text.length(), p.y, p.equals(start));
+		}
+
+		mMultiCaret.caretsChanged(0, mDocument.getLineCount() - 1, false);
+		return getCaretCount();
 	}
 
 
-	public SourceEditor setFontPointSize(int aFontPointSize)
+	/**
+	 * Removes all carets but the primary caret, which keeps its selection.
+	 */
+	public SourceEditor clearCarets()
 	{
-		for (Style style : mStyleMap.values())
+		if (mMultiCaret != null)
 		{
-			style.setFontSize(aFontPointSize);
+			Point anchor = mMultiCaret.getPrimaryAnchor();
+			Point position = mMultiCaret.getPrimaryPosition();
+
+			setMultiCaret(null);
+
+			if (!anchor.equals(position))
+			{
+				setSelectionStart(anchor.x, anchor.y);
+				setSelectionEnd(position.x, position.y);
+			}
 		}
 		return this;
 	}
 
 
-	public int getFontPointSize()
+	/**
+	 * Turns the caret and selection of the editor into the first carets of a MultiCaret, one caret per line of a rectangular selection.
+	 */
+	private void startMultiCaret()
 	{
-		return getStyle(SyntaxParser.WHITESPACE).getFont().getSize();
-	}
+		if (mMultiCaret != null)
+		{
+			return;
+		}
 
+		mMultiCaret = new MultiCaret(this, mDocument);
 
-	public SourceEditor setSelectionStart(int aColumn, int aRow)
-	{
-		if (mSelectionStart == null)
+		if (isTextSelected() && mRectangularSelection)
 		{
-			mSelectionStart = new Point(includeTabsInOffset(aColumn, aRow), aRow);
+			int x0 = Math.min(mSelectionStart.x, mSelectionEnd.x);
+			int x1 = Math.max(mSelectionStart.x, mSelectionEnd.x);
+			boolean reversed = mSelectionEnd.x < mSelectionStart.x;
+
+			for (int y = Math.min(mSelectionStart.y, mSelectionEnd.y), lastY = Math.max(mSelectionStart.y, mSelectionEnd.y); y <= lastY; y++)
+			{
+				int column0 = removeTabsFromOffset(x0, y);
+				int column1 = removeTabsFromOffset(x1, y);
+				mMultiCaret.add(reversed ? column1 : column0, y, reversed ? column0 : column1, y, y == mSelectionEnd.y);
+			}
+		}
+		else if (isTextSelected())
+		{
+			Point start = getSelectionStart();
+			Point end = getSelectionEnd();
+			mMultiCaret.add(start.x, start.y, end.x, end.y, true);
 		}
 		else
 		{
-			mSelectionStart.move(includeTabsInOffset(aColumn, aRow), aRow);
+			Point p = mCaret.getCharacterPosition();
+			mMultiCaret.add(p.x, p.y, p.x, p.y, true);
 		}
-		return this;
+
+		resetSelection();
 	}
 
 
-	public Point getSelectionStart()
+	/**
+	 * Returns true if the editor is editing several places at once, turning a rectangular selection into one caret per line.
+	 */
+	private boolean isMultiCaretEdit()
 	{
-		if (mSelectionStart == null)
+		if (mMultiCaret == null && mRectangularSelection && isTextSelected())
 		{
-			return null;
+			startMultiCaret();
+
+			Point start = mMultiCaret.getPrimaryPosition();
+			mMultiCaret.caretsChanged(start.y, start.y, false);
 		}
-		return new Point(removeTabsFromOffset(mSelectionStart.x, mSelectionStart.y), mSelectionStart.y);
+
+		return mMultiCaret != null;
 	}
 
 
-	protected SourceEditor setSelectionStartUnmodified(Point aPoint)
+	MultiCaret getMultiCaret()
 	{
-		mSelectionStart = aPoint;
-		return this;
+		return mMultiCaret;
 	}
 
 
-	protected Point getSelectionStartUnmodified()
+	/**
+	 * Replaces the carets, called when an edit is undone.
+	 */
+	void setMultiCaret(MultiCaret aMultiCaret)
 	{
-		return mSelectionStart;
+		mMultiCaret = aMultiCaret;
+
+		if (mMultiCaret != null)
+		{
+			Point p = mMultiCaret.getPrimaryPosition();
+			mCaret.moveAbsolute(p.x, p.y, false, false, true);
+		}
+
+		repaint();
 	}
 
 
-	public SourceEditor setSelectionEnd(int aColumn, int aRow)
+	/**
+	 * Called by the MultiCaret when the carets have been edited or moved, moving the caret of the editor to the primary caret and
+	 * repainting the lines of the carets.
+	 */
+	void multiCaretChanged(int aColumn, int aLine, int aFirstLine, int aLastLine, boolean aLineCountChanged)
 	{
-		if (mSelectionEnd == null)
+		if (aLineCountChanged)
 		{
-			mSelectionEnd = new Point(includeTabsInOffset(aColumn, aRow), aRow);
+			recomputePreferredSize();
 		}
-		else
+
+		mCaret.moveAbsolute(aColumn, aLine, false, false, true);
+		mCaret.makePreferredPosition();
+
+		repaintLines(aFirstLine, aLastLine);
+
+		if (mMultiCaret.getCaretCount() == 1)
 		{
-			mSelectionEnd.move(includeTabsInOffset(aColumn, aRow), aRow);
+			clearCarets();
 		}
-		return this;
 	}
 
 
-	public Point getSelectionEnd()
+	public SyntaxParser getSyntaxParser()
 	{
-		if (mSelectionEnd == null)
-		{
-			return null;
-		}
-		return new Point(removeTabsFromOffset(mSelectionEnd.x, mSelectionEnd.y), mSelectionEnd.y);
+		return mSyntaxParser;
 	}
 
 
-	protected SourceEditor setSelectionEndUnmodified(Point aPoint)
+	public SourceEditor setDocument(Document aDocument)
 	{
-		mSelectionEnd = aPoint;
+		if (aDocument == null)
+		{
+			throw new IllegalArgumentException("Document provided is null.");
+		}
+
+		uninstallDocumentIndexes();
+
+		mDocument = aDocument;
+		installDocumentIndexes();
+		recomputePreferredSize();
 		return this;
 	}
 
 
-	protected Point getSelectionEndUnmodified()
+	private void installDocumentIndexes()
+	{
+		if (mDocument == null || mSyntaxParser == null)
+		{
+			return;
+		}
+
+		uninstallDocumentIndexes();
+
+		// tokens, brackets and line layouts are shared with other editors displaying the document, folds and wrapped rows are not
+		mDocumentIndexes = mDocument.getSharedIndexes(mSyntaxParser);
+		mTokenizationContext = mDocumentIndexes.getTokenizationContext();
+		mBracketIndex = mDocumentIndexes.getBracketIndex();
+		mLongLineIndex = new LongLineIndex(this, mTokenizationContext);
+		mLineLayoutCache = null;
+		mFoldModel = new FoldModel(this, mDocument, mBracketIndex);
+		mDamageTracker = new DamageTracker(this, mTokenizationContext, mFoldModel);
+		mWordHighlighter = new WordHighlighter(this, mDocument, mTokenizationContext, mHighlightText);
+		mWrapModel = new WrapModel(this, mDocument, mFoldModel);
+		mBracketPair = null;
+		mMultiCaret = null;
+		if (mSearchHighlighter != null)
+		{
+			mSearchHighlighter = new SearchHighlighter(this, mDocument, mSearchHighlighter.getTextSearch(), mSearchHighlighter.getRegexSearch());
+		}
+		mDocumentListener = aEvent ->
+		{
+			mFoldModel.documentChanged(aEvent);
+			mWordHighlighter.documentChanged(aEvent);
+			if (mSearchHighlighter != null)
+			{
+				mSearchHighlighter.documentChanged(aEvent);
+			}
+			mWrapModel.documentChanged(aEvent);
+			if (mMultiCaret != null)
+			{
+				mMultiCaret.documentChanged(aEvent);
+			}
+			if (mDocument.getEditingView() != this)
+			{
+				followChange(aEvent);
+			}
+			mDamageTracker.documentChanged(aEvent);
+		};
+		mDocumentIndexes.addView(mDocumentListener);
+
+		if (mLineWrapEnabled)
+		{
+			validateWrapModel();
+		}
+
+		recomputePreferredSize();
+	}
+
+
+	/**
+	 * Moves the caret and the selection following a change made to the document by another editor or by other means than an editor,
+	 * keeping them on the same text and within the document.
+	 */
+	private void followChange(DocumentEvent aEvent)
+	{
+		if (mSelectionStart != null)
+		{
+			mSelectionStart.y = aEvent.adjustLine(mSelectionStart.y);
+		}
+		if (mSelectionEnd != null)
+		{
+			mSelectionEnd.y = aEvent.adjustLine(mSelectionEnd.y);
+		}
+
+		if (mCaret == null)
+		{
+			return;
+		}
+
+		Point p = mCaret.getCharacterPosition();
+		int line = aEvent.adjustLine(p.y);
+		boolean changed = p.y >= aEvent.getFirstLine() && p.y < aEvent.getFirstLine() + aEvent.getRemovedLineCount();
+
+		mCaret.shift(changed ? Math.min(p.x, mDocument.getLineLength(line)) : p.x, line);
+	}
+
+
+	private void uninstallDocumentIndexes()
+	{
+		if (mDocumentIndexes != null)
+		{
+			mWordHighlighter.stop();
+			if (mSearchHighlighter != null)
+			{
+				mSearchHighlighter.stop();
+			}
+			mWrapModel.clear();
+			mDocumentIndexes.removeView(mDocumentListener);
+			mDocumentIndexes = null;
+		}
+	}
+
+
+	public Document getDocument()
+	{
+		return mDocument;
+	}
+
+
+//	public Style getStyle(String aIdentifier)
+//	{
+//		return mPaintSyntaxParser.getStyle(aIdentifier);
+//	}
+
+
+	public int getFontSize()
+	{
+		return mFontSize;
+	}
+
+
+	public SourceEditor setFontPointSize(int aFontPointSize)
+	{
+		for (Style style : mStyleMap.values())
+		{
+			style.setFontSize(aFontPointSize);
+		}
+		mStyleMap.fontsChanged();
+		return this;
+	}
+
+
+	public int getFontPointSize()
+	{
+		return getStyle(SyntaxParser.WHITESPACE).getFont().getSize();
+	}
+
+
+	public SourceEditor setSelectionStart(int aColumn, int aRow)
+	{
+		if (mSelectionStart == null)
+		{
+			mSelectionStart = new Point(includeTabsInOffset(aColumn, aRow), aRow);
+		}
+		else
+		{
+			mSelectionStart.move(includeTabsInOffset(aColumn, aRow), aRow);
+		}
+		repaintSelection();
+		return this;
+	}
+
+
+	public Point getSelectionStart()
+	{
+		if (mSelectionStart == null)
+		{
+			return null;
+		}
+		return new Point(removeTabsFromOffset(mSelectionStart.x, mSelectionStart.y), mSelectionStart.y);
+	}
+
+
+	protected SourceEditor setSelectionStartUnmodified(Point aPoint)
+	{
+		mSelectionStart = aPoint;
+		repaintSelection();
+		return this;
+	}
+
+
+	protected Point getSelectionStartUnmodified()
+	{
+		return mSelectionStart;
+	}
+
+
+	public SourceEditor setSelectionEnd(int aColumn, int aRow)
+	{
+		if (mSelectionEnd == null)
+		{
+			mSelectionEnd = new Point(includeTabsInOffset(aColumn, aRow), aRow);
+		}
+		else
+		{
+			mSelectionEnd.move(includeTabsInOffset(aColumn, aRow), aRow);
+		}
+		repaintSelection();
+		return this;
+	}
+
+
+	public Point getSelectionEnd()
+	{
+		if (mSelectionEnd == null)
+		{
+			return null;
+		}
+		return new Point(removeTabsFromOffset(mSelectionEnd.x, mSelectionEnd.y), mSelectionEnd.y);
+	}
+
+
+	protected SourceEditor setSelectionEndUnmodified(Point aPoint)
+	{
+		mSelectionEnd = aPoint;
+		repaintSelection();
+		return this;
+	}
+
+
+	protected Point getSelectionEndUnmodified()
 	{
 		return mSelectionEnd;
 	}
@@ -720,9 +1299,14 @@ public final class SourceEditor extends JComponent implements Scrollable
 	}
 
 
+	/**
+	 * Sets the styles of the editor. Call again with the same map after changing the fonts of its styles other than by
+	 * setFontPointSize.
+	 */
 	public SourceEditor setStyleMap(StyleMap aStyleMap)
 	{
 		this.mStyleMap = aStyleMap;
+		mLayoutSettingsVersion++;
 		return this;
 	}
 
@@ -831,6 +1415,7 @@ public final class SourceEditor extends JComponent implements Scrollable
 		mSelectionStart = null;
 		mSelectionEnd = null;
 		mRectangularSelection = false;
+		repaintSelection();
 
 		mCaret.moveAbsolute(removeTabsFromOffset(selectionStart.x, selectionStart.y), selectionStart.y, false, true, true);
 
@@ -854,11 +1439,12 @@ public final class SourceEditor extends JComponent implements Scrollable
 
 
 	/**
-	 * Internal method to set the current state if the user is making a rectangular selection.
+	 * Sets whether the selection is rectangular, spanning the same columns on every line between the selection start and end.
 	 */
-	SourceEditor setRectangularSelection(boolean aState)
+	public SourceEditor setRectangularSelection(boolean aState)
 	{
 		mRectangularSelection = aState;
+		repaintSelection();
 		return this;
 	}
 
@@ -898,6 +1484,7 @@ public final class SourceEditor extends JComponent implements Scrollable
 
 			mSelectionStart = null;
 			mSelectionEnd = null;
+			repaintSelection();
 
 			mCaret.moveAbsolute(selectionStart.x, selectionStart.y, false, false, true);
 
@@ -1056,6 +1643,7 @@ public final class SourceEditor extends JComponent implements Scrollable
 		mCaret.moveAbsolute(caret.x, caret.y, false, false, true);
 		mCaret.makePreferredPosition();
 		mRectangularSelection = false;
+		repaintSelection();
 		return this;
 	}
 
@@ -1075,9 +1663,9 @@ public final class SourceEditor extends JComponent implements Scrollable
 			return mPreferredSize;
 		}
 
-		int w = mDocument.getLongestLineLength() * getStyle(SyntaxParser.WHITESPACE).getCharWidth('m');
+		int w = mLineWrapEnabled ? 0 : mDocument.getLongestLineLength(mTabSize) * getStyle(SyntaxParser.WHITESPACE).getCharWidth('m');
 
-		mPreferredSize = new Dimension(w + mMargins.left + mMargins.right, mDocument.getLineCount() * (getFontHeight() + mLineSpacing) + mMargins.top + mMargins.bottom);
+		mPreferredSize = new Dimension(w + mMargins.left + mMargins.right, getRowCount() * (getFontHeight() + mLineSpacing) + mMargins.top + mMargins.bottom);
 
 		return mPreferredSize;
 	}
@@ -1099,581 +1687,1073 @@ public final class SourceEditor extends JComponent implements Scrollable
 			mRequestFocus = false;
 		}
 
-		boolean optimizeTokens = !mWhitespaceSymbolEnabled && getStyle(SyntaxParser.WHITESPACE).getBackground().equals(getBackground());
-		boolean optimizeWhitespace = !mWhitespaceSymbolEnabled;
-
 		int fontHeight = getFontHeight();
-		int fontAscent = getFontAscent();
-		int fontDescent = getFontDescent();
 		int editorW = getWidth();
 
 		Rectangle clipBounds = g.getClipBounds();
 		int firstRow = clipBounds.y / (fontHeight + mLineSpacing);
 		int lastRow = (clipBounds.y + clipBounds.height) / (fontHeight + mLineSpacing) - 1 + 2;
 
-		int lineCount = mDocument.getLineCount();
-		if (firstRow >= lineCount)
+		if (mLineWrapEnabled)
+		{
+			validateWrapModel();
+			mWrapModel.measureRows(firstRow, lastRow);
+		}
+
+		int rowCount = getRowCount();
+		if (firstRow >= rowCount)
 		{
-			firstRow = lineCount - 1;
+			firstRow = rowCount - 1;
 		}
-		if (lastRow >= lineCount)
+		if (lastRow >= rowCount)
 		{
-			lastRow = lineCount - 1;
+			lastRow = rowCount - 1;
 		}
 		if (lastRow < firstRow)
 		{
 			lastRow = firstRow;
 		}
 
-		mPaintSyntaxParser.initialize(mDocument, firstRow);
+		Point caretPosition = mCaret.getCharacterPosition();
+		mBracketPair = findBracketPair(caretPosition.x, caretPosition.y);
+		mSelectionSpans.update(isTextSelected() ? mSelectionStart : null, mSelectionEnd, mRectangularSelection);
+		mLineRunCache.validate(getLayoutSettingsVersion(), getBackground(), mMargins.left);
 
-		g.setColor(getBackground());
-		g.fillRect(0, 0, editorW, getHeight());
+		boolean cached = mLineImageCache.getCapacity() > 0 && !isPaintingForPrint() && !mLineWrapEnabled;
 
-		for (int rowIndex = firstRow; rowIndex <= lastRow; rowIndex++)
+		if (cached)
 		{
-			boolean highlightText = mHighlightText != null && mDocument.getLine(rowIndex).contains(mHighlightText);
+			mLineImageCache.validate(getPaintSettings(g));
+		}
+
+		g.setColor(getBackground());
 
-			List<Token> tokens = mPaintSyntaxParser.parse(mDocument, rowIndex, optimizeTokens && !highlightText, optimizeWhitespace);
-			int positionX = 0;
+		if (cached)
+		{
 			int lineHeight = fontHeight + mLineSpacing;
-			int y0 = mMargins.top + rowIndex * lineHeight;
-			int y = y0 + lineHeight/2 + fontDescent/2;
+			int top = mMargins.top + firstRow * lineHeight;
+			int bottom = mMargins.top + (lastRow + 1) * lineHeight;
+
+			g.fillRect(0, 0, editorW, top);
+			g.fillRect(0, bottom, editorW, getHeight() - bottom);
+		}
+		else
+		{
+			g.fillRect(0, 0, editorW, getHeight());
+		}
 
-			if (mHighlightCaretRowEnabled && rowIndex == mCaret.getCharacterPosition().y)
+		for (int rowIndex = firstRow; rowIndex <= lastRow; rowIndex++)
+		{
+			if (cached)
 			{
-				Color bg = getStyle(SyntaxParser.HIGHLIGHT_CARET_ROW).getBackground();
-				if (bg != null)
-				{
-					g.setColor(bg);
-					g.fillRect(0, y0, editorW, lineHeight);
-				}
+				paintCachedRow(g, rowIndex, clipBounds);
 			}
-
-			Token token = null;
-			for (Token nextToken : tokens)
+			else
 			{
-				token = nextToken;
+				int lineIndex = getLineOfRow(rowIndex);
+				boolean highlightText = isHighlightTextInLine(lineIndex);
 
-				if (positionX < clipBounds.x + clipBounds.width)
+				if (mLineWrapEnabled)
 				{
-					Point selectionIntersect = !isTextSelected() ? null : getSelectionIntersect(rowIndex, token);
-					int len = token.length();
-
-					if (selectionIntersect != null)
-					{
-						if (selectionIntersect.x > 0)
-						{
-							positionX = paintToken(g, positionX, y, y0, lineHeight, token, 0, selectionIntersect.x, clipBounds, highlightText, false);
-						}
-
-						positionX = paintToken(g, positionX, y, y0, lineHeight, token, selectionIntersect.x, selectionIntersect.y, clipBounds, highlightText, true);
-
-						if (selectionIntersect.y < len)
-						{
-							positionX = paintToken(g, positionX, y, y0, lineHeight, token, selectionIntersect.y, len, clipBounds, highlightText, false);
-						}
-					}
-					else
-					{
-						positionX = paintToken(g, positionX, y, y0, lineHeight, token, -1, -1, clipBounds, highlightText, false);
-					}
+					paintWrappedRow(g, rowIndex, lineIndex, highlightText);
+				}
+				else
+				{
+					paintLine(g, rowIndex, lineIndex, getPaintTokens(lineIndex, highlightText, clipBounds), highlightText, clipBounds);
 				}
 			}
+		}
 
-			boolean rowSelected = !mRectangularSelection && mPaintFullRowSelectionEnabled && isTextSelected() && rowIndex < mDocument.getLineCount() - 1 && intersectSelection(mDocument.getLineLength(rowIndex), rowIndex);
-
-			if (token != null || mLineBreakSymbolEnabled || mSelectedLineBreakSymbolEnabled || rowSelected)
-			{
-				boolean selectionIntersected = isTextSelected() && intersectSelection(mDocument.getLineLength(rowIndex), rowIndex);
-
-				if (selectionIntersected || mLineBreakSymbolEnabled)
-				{
-					Style style = token != null && token.isComment() ? getStyle(token.getStyle()) : getStyle(SyntaxParser.LINE_BREAK);
-					int w = style.getStringWidth(mLineBreakSymbol);
+		mCaret.paintCaret(g);
 
-					if (rowSelected)
-					{
-						g.setColor(getStyle(SyntaxParser.SELECTION).getBackground());
-						g.fillRect(positionX + mMargins.left, y0, editorW - (positionX + mMargins.left), lineHeight);
-					}
+		if (mMultiCaret != null)
+		{
+			mMultiCaret.paintCarets(g, mCaret, firstRow, lastRow);
+		}
 
-					if (rowIndex < mDocument.getLineCount() - 1)
-					{
-						if (!getBackground().equals(style.getBackground()))
-						{
-							g.setColor(style.getBackground());
-							g.fillRect(positionX + mMargins.left, y0, w, lineHeight);
-						}
+		if (mDamageOverlayEnabled)
+		{
+			g.setColor(DAMAGE_OVERLAY_COLOR);
+			g.fill(clipBounds);
+			g.setColor(DAMAGE_OVERLAY_COLOR.darker());
+			g.drawRect(clipBounds.x, clipBounds.y, clipBounds.width - 1, clipBounds.height - 1);
+		}
+	}
 
-						Color foreground = getStyle(SyntaxParser.WHITESPACE).getForeground();
-						if (selectionIntersected)
-						{
-							foreground = getStyle(SyntaxParser.SELECTION).getForeground();
-						}
 
-						if (mLineBreakSymbolEnabled || mSelectedLineBreakSymbolEnabled && selectionIntersected)
-						{
-							g.setFont(style.getFont());
-							g.setColor(foreground);
-							g.drawString(mLineBreakSymbol, positionX + mMargins.left, y);
-						}
-					}
+	/**
+	 * Repaints the rows displaying the lines provided including the parts of the adjacent rows glyphs may extend into.
+	 */
+	void repaintLines(int aFirstLine, int aLastLine)
+	{
+		int lineHeight = getFontHeight() + mLineSpacing;
+		int baseline = lineHeight / 2 + getFontDescent() / 2;
+		int y0 = mMargins.top + getRowOfLine(aFirstLine) * lineHeight - Math.max(0, getFontAscent() - baseline);
+		int y1 = mMargins.top + (getRowOfLine(aLastLine) + getRowSpan(aLastLine)) * lineHeight + Math.max(0, baseline + getFontDescent() - lineHeight);
 
-					positionX += w;
-				}
+		repaint(0, y0, getWidth(), y1 - y0);
+	}
 
-				if (positionX + mMargins.left + mMargins.right > editorW)
-				{
-					mPreferredSize = null;
-					revalidate();
-				}
-			}
 
-			if (mHighlightCaretRowEnabled && rowIndex == mCaret.getCharacterPosition().y)
-			{
-				Color fg = getStyle(SyntaxParser.HIGHLIGHT_CARET_ROW).getForeground();
-				if (fg != null)
-				{
-					g.setColor(fg);
-					g.drawRect(0, y0, editorW, lineHeight - 1);
-				}
-			}
-			if (mIndentLinesEnabled)
-			{
-				Stroke stroke = g.getStroke();
-				g.setColor(getStyle(SyntaxParser.INDENT_LINE).getForeground());
-				g.setStroke(INDENT_LINE_STROKE);
-				for (int x = getLineIndent(tokens), w = mTabSize * getStyle(SyntaxParser.WHITESPACE).getCharWidth(' '), i = w; i < x; i += w)
-				{
-					g.drawLine(i, y - fontAscent, i, y - fontAscent + lineHeight);
-				}
-				g.setStroke(stroke);
-			}
-		}
+	/**
+	 * Repaints the rows displaying the line provided and all lines following it.
+	 */
+	void repaintFromLine(int aLine)
+	{
+		int lineHeight = getFontHeight() + mLineSpacing;
+		int baseline = lineHeight / 2 + getFontDescent() / 2;
+		int y0 = mMargins.top + getRowOfLine(Math.min(aLine, mDocument.getLineCount() - 1)) * lineHeight - Math.max(0, getFontAscent() - baseline);
 
-		mCaret.paintCaret(g);
+		repaint(0, y0, getWidth(), getHeight() - y0);
 	}
 
 
-	public int getLineIndent(List<Token> aTokens)
+	/**
+	 * Repaints the lines affected by changes of the selection since this method was last called.
+	 */
+	void repaintSelection()
 	{
-		int x = mMargins.left;
-		for (Token nextToken : aTokens)
+		if (mDamageTracker != null)
 		{
-			if (!nextToken.getText().isBlank())
-			{
-				break;
-			}
-			x = advancePosition(x, nextToken.getText(), nextToken.getStyle());
+			boolean selected = isTextSelected();
+			mDamageTracker.selectionChanged(selected ? mSelectionStart : null, selected ? mSelectionEnd : null, mRectangularSelection);
 		}
-		return x;
 	}
 
 
-	private int paintToken(Graphics2D aGraphics, int aPixelX, int aPixelY, int aRowY, int aLineHeight, Token aToken, int aTokenOffset, int aTokenLength, Rectangle aClipBounds, boolean aHighlightText, boolean aIsSelection)
+	public boolean isDamageOverlayEnabled()
 	{
-		if (aTokenOffset != -1 && aTokenOffset == aTokenLength)
-		{
-			return aPixelX;
-		}
+		return mDamageOverlayEnabled;
+	}
 
-		String text = aToken.getText();
 
-		if (aTokenOffset != -1)
-		{
-			text = text.substring(aTokenOffset, aTokenLength);
-		}
+	/**
+	 * Enables or disables tinting the regions repainted by the editor, a debugging aid showing which parts of the editor are painted
+	 * again after a change.
+	 */
+	public SourceEditor setDamageOverlayEnabled(boolean aDamageOverlayEnabled)
+	{
+		mDamageOverlayEnabled = aDamageOverlayEnabled;
+		return this;
+	}
 
-		int fontHeight = getFontHeight();
-		int fontAscent = getFontAscent();
 
-		int x0 = aPixelX + mMargins.left;
-		int x1 = advancePosition(x0, text, aToken.getStyle());
-		Style tokenStyle = mStyleMap.get(aToken.getStyle());
+	private boolean isHighlightTextInLine(int aLineIndex)
+	{
+		return mWordHighlighter.isHighlighted(aLineIndex);
+	}
 
-		if (x1 >= aClipBounds.x)
+
+	/**
+	 * Returns the tokens painted for a line. Lines tokenized in chunks return the tokens of the chunks visible within the clip bounds.
+	 */
+	private List<Token> getPaintTokens(int aLineIndex, boolean aHighlightText, Rectangle aClipBounds)
+	{
+		if (mTokenizationContext.isLongLine(aLineIndex))
 		{
-			Style style = aIsSelection ? getStyle(SyntaxParser.SELECTION) : tokenStyle;
-			Style colorStyle = tokenStyle;
+			int x = aClipBounds.x - mMargins.left;
 
-			if (aHighlightText && tokenStyle.isSupportHighlight() && style.isBackgroundOptional() && text.equalsIgnoreCase(mHighlightText))
-			{
-				aGraphics.setColor(getStyle(SyntaxParser.HIGHLIGHT_WORD).getBackground());
-				aGraphics.fillRect(x0, aRowY, x1 - x0, aLineHeight);
-			}
-			else if (!getBackground().equals(style.getBackground()))
+			return getPaintTokens(aLineIndex, aHighlightText, getColumnAt(aLineIndex, x), getColumnAt(aLineIndex, x + aClipBounds.width) + 1);
+		}
+
+		return getPaintTokens(aLineIndex, aHighlightText, 0, mDocument.getLineLength(aLineIndex));
+	}
+
+
+	private List<Token> getPaintTokens(int aLineIndex, boolean aHighlightText, int aStartColumn, int aEndColumn)
+	{
+		boolean optimizeTokens = !mWhitespaceSymbolEnabled && getStyle(SyntaxParser.WHITESPACE).getBackground().equals(getBackground());
+		boolean optimizeWhitespace = !mWhitespaceSymbolEnabled;
+
+		return mTokenizationContext.getRuns(aLineIndex, aStartColumn, aEndColumn, optimizeTokens && !aHighlightText, optimizeWhitespace);
+	}
+
+
+	/**
+	 * Paints a row using images of the row rendered earlier, rendering the images missing.
+	 *
+	 * Glyphs and indent lines may extend into the rows above and below and images are therefore rendered by painting the adjacent rows
+	 * as well, in the same order as when painting directly, and the state of all three rows identifies the image.
+	 */
+	private void paintCachedRow(Graphics2D aGraphics, int aRowIndex, Rectangle aClipBounds)
+	{
+		int editorW = getWidth();
+		int lineHeight = getFontHeight() + mLineSpacing;
+		int y0 = mMargins.top + aRowIndex * lineHeight;
+		int firstRow = Math.max(aRowIndex - 1, 0);
+		int rowCount = Math.min(aRowIndex + 1, getRowCount() - 1) - firstRow + 1;
+
+		int[] lines = new int[rowCount];
+		boolean[] highlight = new boolean[rowCount];
+		ArrayList<List<Token>> tokens = new ArrayList<>(rowCount);
+		Object[] state = new Object[rowCount + 1];
+		boolean longLine = false;
+
+		for (int i = 0; i < rowCount; i++)
+		{
+			lines[i] = getLineOfRow(firstRow + i);
+			highlight[i] = isHighlightTextInLine(lines[i]);
+			tokens.add(getPaintTokens(lines[i], highlight[i], aClipBounds));
+			state[i] = getLinePaintState(lines[i], highlight[i]);
+			longLine |= mTokenizationContext.isLongLine(lines[i]);
+		}
+		state[rowCount] = aRowIndex - firstRow;
+
+		// only the visible part of a long line is painted, leaving nothing to cache
+		if (longLine)
+		{
+			Rectangle bounds = new Rectangle(0, y0, editorW, lineHeight).intersection(aClipBounds);
+			Graphics2D g = (Graphics2D)aGraphics.create();
+			g.setColor(getBackground());
+			g.fill(bounds);
+			g.clip(bounds);
+
+			for (int i = 0; i < rowCount; i++)
 			{
-				aGraphics.setColor(style.getBackground());
-				aGraphics.fillRect(x0, aRowY, x1 - x0, aLineHeight);
+				paintLine(g, firstRow + i, lines[i], tokens.get(i), highlight[i], bounds);
 			}
 
-			if (DEBUG_GRAPHICS)
+			g.dispose();
+			return;
+		}
+
+		double scaleX = aGraphics.getTransform().getScaleX();
+		double scaleY = aGraphics.getTransform().getScaleY();
+		int tileWidth = LineImageCache.TILE_WIDTH;
+		LineImageCache.Key key = new LineImageCache.Key(tokens.toArray(), Arrays.asList(state));
+		BufferedImage[] tiles = mLineImageCache.get(key);
+
+		for (int column = Math.max(aClipBounds.x, 0) / tileWidth; column * tileWidth < Math.min(aClipBounds.x + aClipBounds.width, editorW); column++)
+		{
+			int x = column * tileWidth;
+			int w = Math.min(tileWidth, editorW - x);
+
+			BufferedImage image = tiles != null && column < tiles.length ? tiles[column] : null;
+
+			if (image == null)
 			{
-				aGraphics.setColor(new Color(192, 192, 192));
-				aGraphics.drawRect(x0, aRowY, x1 - x0, aLineHeight);
+				int iw = (int)Math.ceil(w * scaleX);
+				int ih = (int)Math.ceil(lineHeight * scaleY);
+				GraphicsConfiguration gc = getGraphicsConfiguration();
+				image = gc != null ? gc.createCompatibleImage(iw, ih, Transparency.OPAQUE) : new BufferedImage(iw, ih, BufferedImage.TYPE_INT_RGB);
+
+				Rectangle bounds = new Rectangle(x, y0, w, lineHeight);
+				Graphics2D ig = image.createGraphics();
+				ig.setRenderingHints(aGraphics.getRenderingHints());
+				ig.scale(iw / (double)w, ih / (double)lineHeight);
+				ig.translate(-x, -y0);
+				ig.setColor(getBackground());
+				ig.fill(bounds);
+				ig.setClip(bounds);
+
+				for (int i = 0; i < rowCount; i++)
+				{
+					paintLine(ig, firstRow + i, lines[i], tokens.get(i), highlight[i], bounds);
+				}
+
+				ig.dispose();
+
+				tiles = mLineImageCache.put(key, column, image);
 			}
 
-			aGraphics.setFont(tokenStyle.getFont());
-			aGraphics.setColor(colorStyle.getForeground());
-			aGraphics.drawString(text, x0, aPixelY);
+			aGraphics.drawImage(image, x, y0, w, lineHeight, null);
+		}
+	}
+
+
+	/**
+	 * Returns the settings affecting how all lines are painted.
+	 */
+	private Object getPaintSettings(Graphics2D aGraphics)
+	{
+		return Arrays.asList(getLayoutSettingsVersion(), getBackground(), mAntialiase, mMargins.clone(), mLineSpacing, mLineBreakSymbol,
+			mWhitespaceSymbolEnabled, mLineBreakSymbolEnabled, mSelectedLineBreakSymbolEnabled, mPaintFullRowSelectionEnabled, mHighlightCaretRowEnabled,
+			mIndentLinesEnabled, mRectangularSelection, aGraphics.getTransform().getScaleX(), aGraphics.getTransform().getScaleY());
+	}
+
+
+	/**
+	 * Returns the state of a line affecting how it's painted in addition to its tokens and the settings of the editor.
+	 */
+	private Object getLinePaintState(int aLineIndex, boolean aHighlightText)
+	{
+		Object selection = null;
+
+		if (isTextSelected())
+		{
+			Point start = mSelectionStart;
+			Point end = mSelectionEnd;
 
-			if (tokenStyle.isUnderlined())
+			if (start.y > end.y || (start.y == end.y && start.x > end.x))
 			{
-				aGraphics.drawLine(x0, aPixelY + 1, x1, aPixelY + 1);
+				start = mSelectionEnd;
+				end = mSelectionStart;
 			}
 
-			if (mWhitespaceSymbolEnabled && (text.startsWith(" ") || text.startsWith("\t")))
+			if (aLineIndex >= start.y && aLineIndex <= end.y)
 			{
-				int x = (x0 + x1) / 2;
-				int v = aPixelY - fontAscent + fontHeight / 2;
-
-				aGraphics.setColor(getStyle(SyntaxParser.WHITESPACE).getForeground());
-				if (text.charAt(0) == ' ')
+				if (mRectangularSelection)
 				{
-					aGraphics.drawLine(x, v, x, v);
+					selection = Arrays.asList(start.x, start.y, end.x, end.y);
 				}
 				else
 				{
-					aGraphics.drawLine(x - 2, v, x + 2, v);
-					aGraphics.drawLine(x + 2, v, x, v - 2);
-					aGraphics.drawLine(x + 2, v, x, v + 2);
+					selection = Arrays.asList(aLineIndex == start.y ? start.x : -1, aLineIndex == end.y ? end.x : -1);
 				}
 			}
 		}
 
-		aPixelX = x1;
+		int bracket0 = mBracketPair != null && mBracketPair[0].y == aLineIndex ? mBracketPair[0].x : -1;
+		int bracket1 = mBracketPair != null && mBracketPair[1].y == aLineIndex ? mBracketPair[1].x : -1;
+		boolean caretRow = mHighlightCaretRowEnabled && aLineIndex == mCaret.getCharacterPosition().y;
 
-		return aPixelX;
+		int[] searchMatches = mSearchHighlighter == null ? null : mSearchHighlighter.getMatches(aLineIndex);
+		int[] caretSelections = mMultiCaret == null ? null : mMultiCaret.getSelections(aLineIndex);
+
+		return Arrays.asList(getWidth(), selection, caretRow, aHighlightText ? mHighlightText : null, bracket0, bracket1, mFoldModel.isCollapsed(aLineIndex), aLineIndex == mDocument.getLineCount() - 1, searchMatches, caretSelections);
 	}
 
 
-	boolean intersectSelection(int aColumn, int aRow)
+	private void paintLine(Graphics2D aGraphics, int aRowIndex, int aLineIndex, List<Token> aTokens, boolean aHighlightText, Rectangle aClipBounds)
 	{
-		if (!isTextSelected())
+		int fontHeight = getFontHeight();
+		int fontAscent = getFontAscent();
+		int fontDescent = getFontDescent();
+		int editorW = getWidth();
+
+		int lineHeight = fontHeight + mLineSpacing;
+		int y0 = mMargins.top + aRowIndex * lineHeight;
+		int y = y0 + lineHeight/2 + fontDescent/2;
+
+		if (mHighlightCaretRowEnabled && aLineIndex == mCaret.getCharacterPosition().y)
 		{
-			return false;
+			Color bg = getStyle(SyntaxParser.HIGHLIGHT_CARET_ROW).getBackground();
+			if (bg != null)
+			{
+				aGraphics.setColor(bg);
+				aGraphics.fillRect(0, y0, editorW, lineHeight);
+			}
 		}
 
-		Point selectionStart = mSelectionStart;
-		Point selectionEnd = mSelectionEnd;
+		if (mBracketPair != null)
+		{
+			for (Point bracket : mBracketPair)
+			{
+				if (bracket.y == aLineIndex)
+				{
+					paintMatchingBracket(aGraphics, bracket, y0, lineHeight);
+				}
+			}
+		}
 
-		if (selectionStart.y > selectionEnd.y || (selectionStart.y == selectionEnd.y && selectionStart.x > selectionEnd.x))
+		int[] searchMatches = mSearchHighlighter == null ? null : mSearchHighlighter.getMatches(aLineIndex);
+		if (searchMatches != null)
 		{
-			Point temp = selectionStart;
-			selectionStart = selectionEnd;
-			selectionEnd = temp;
+			paintRanges(aGraphics, aLineIndex, searchMatches, SyntaxParser.SEARCH_RESULT, y0, lineHeight, aClipBounds);
 		}
 
-		if (aRow < selectionStart.y)
+		int[] caretSelections = mMultiCaret == null ? null : mMultiCaret.getSelections(aLineIndex);
+		if (caretSelections != null)
 		{
-			return false;
+			paintRanges(aGraphics, aLineIndex, caretSelections, SyntaxParser.SELECTION, y0, lineHeight, aClipBounds);
 		}
-		if (aRow > selectionEnd.y)
+
+		int selectionStart = mSelectionSpans.getStart(aLineIndex);
+		int selectionEnd = mSelectionSpans.getEnd(aLineIndex);
+
+		LineRunCache.LineRuns runs = getLineRuns(aLineIndex, aTokens);
+		Token token = aTokens.isEmpty() ? null : aTokens.get(aTokens.size() - 1);
+		boolean longLine = mTokenizationContext.isLongLine(aLineIndex);
+
+		if (runs.mBackgrounds || aHighlightText || selectionStart < Integer.MAX_VALUE)
 		{
-			return false;
+			paintTokenBackgrounds(aGraphics, runs, y0, lineHeight, selectionStart, selectionEnd, aClipBounds, aHighlightText);
 		}
+		paintRuns(aGraphics, runs, y, y0, lineHeight, aClipBounds);
+		int positionX = runs.mTokenX[aTokens.size()] - mMargins.left;
 
-		if (mRectangularSelection)
+		int lineLength = mDocument.getLineLength(aLineIndex);
+		boolean selectionIntersected = mSelectionSpans.isLineEndSelected(aLineIndex, lineLength);
+		boolean rowSelected = !mRectangularSelection && mPaintFullRowSelectionEnabled && aLineIndex < mDocument.getLineCount() - 1 && selectionIntersected;
+		boolean lineEnd = !longLine || token.getOffset() + token.length() == lineLength;
+
+		if (lineEnd && (token != null || mLineBreakSymbolEnabled || mSelectedLineBreakSymbolEnabled || rowSelected))
 		{
-			int adjust = selectionStart.x == selectionEnd.x ? 1 : 0;
+			if (selectionIntersected || mLineBreakSymbolEnabled)
+			{
+				Style style = token != null && token.isComment() ? getStyle(token.getStyle()) : getStyle(SyntaxParser.LINE_BREAK);
+				int w = style.getStringWidth(mLineBreakSymbol);
+
+				if (rowSelected)
+				{
+					aGraphics.setColor(getStyle(SyntaxParser.SELECTION).getBackground());
+					aGraphics.fillRect(positionX + mMargins.left, y0, editorW - (positionX + mMargins.left), lineHeight);
+				}
+
+				if (aLineIndex < mDocument.getLineCount() - 1)
+				{
+					if (!getBackground().equals(style.getBackground()))
+					{
+						aGraphics.setColor(style.getBackground());
+						aGraphics.fillRect(positionX + mMargins.left, y0, w, lineHeight);
+					}
+
+					Color foreground = getStyle(SyntaxParser.WHITESPACE).getForeground();
+					if (selectionIntersected)
+					{
+						foreground = getStyle(SyntaxParser.SELECTION).getForeground();
+					}
 
-			if (aColumn < removeTabsFromOffset(selectionStart.x, selectionStart.y))
+					if (mLineBreakSymbolEnabled || mSelectedLineBreakSymbolEnabled && selectionIntersected)
+					{
+						aGraphics.setFont(style.getFont());
+						aGraphics.setColor(foreground);
+						aGraphics.drawString(mLineBreakSymbol, positionX + mMargins.left, y);
+					}
+				}
+
+				positionX += w;
+			}
+
+			if (positionX + mMargins.left + mMargins.right > editorW && !mLineWrapEnabled)
 			{
-				return false;
+				mPreferredSize = null;
+				revalidate();
 			}
+		}
 
-			return aColumn < removeTabsFromOffset(selectionEnd.x, selectionEnd.y) + adjust;
+		if (mFoldModel.isCollapsed(aLineIndex))
+		{
+			paintFoldMarker(aGraphics, getFoldMarkerBounds(aLineIndex, y0, lineHeight), y);
 		}
-		else
+
+		if (mHighlightCaretRowEnabled && aLineIndex == mCaret.getCharacterPosition().y)
 		{
-			if (aRow == selectionStart.y && aColumn < removeTabsFromOffset(selectionStart.x, selectionStart.y))
+			Color fg = getStyle(SyntaxParser.HIGHLIGHT_CARET_ROW).getForeground();
+			if (fg != null)
 			{
-				return false;
+				aGraphics.setColor(fg);
+				aGraphics.drawRect(0, y0, editorW, lineHeight - 1);
+			}
+		}
+		if (mIndentLinesEnabled && (!longLine || aTokens.get(0).getOffset() == 0))
+		{
+			aGraphics.setColor(getStyle(SyntaxParser.INDENT_LINE).getForeground());
+			for (int x = getLineIndent(aTokens), w = mTabSize * getStyle(SyntaxParser.WHITESPACE).getCharWidth(' '), i = w; i < x; i += w)
+			{
+				// dotted with single pixels, a dashed stroke allocating a copy of its dash array and a shape for every line drawn
+				for (int j = 0; j < lineHeight; j += 2)
+				{
+					aGraphics.fillRect(i, y - fontAscent + j, 1, 1);
+				}
 			}
-
-			return !(aRow == selectionEnd.y && aColumn >= removeTabsFromOffset(selectionEnd.x, selectionEnd.y));
 		}
 	}
 
 
-	private Point getSelectionIntersect(int aRow, Token aToken)
+	/**
+	 * Paints one row of a wrapped line by painting the line shifted left to the start of the row and clipped to the characters of the
+	 * row. The caret row highlight is extended to the right edge of the editor.
+	 */
+	private void paintWrappedRow(Graphics2D aGraphics, int aRowIndex, int aLineIndex, boolean aHighlightText)
 	{
-		Point selectionStart = new Point(mSelectionStart);
-		Point selectionEnd = new Point(mSelectionEnd);
-
-		if (selectionStart.y > selectionEnd.y || (selectionStart.y == selectionEnd.y && selectionStart.x > selectionEnd.x))
-		{
-			Point temp = selectionStart;
-			selectionStart = selectionEnd;
-			selectionEnd = temp;
-		}
+		int[] breaks = mWrapModel.getBreaks(aLineIndex);
+		int segment = aRowIndex - getRowOfLine(aLineIndex);
 
-		if (aRow < selectionStart.y || aRow > selectionEnd.y) // token row outside selection
+		if (breaks.length == 1)
 		{
-			return null;
+			paintLine(aGraphics, aRowIndex, aLineIndex, getPaintTokens(aLineIndex, aHighlightText, aGraphics.getClipBounds()), aHighlightText, aGraphics.getClipBounds());
+			return;
 		}
 
-		int tokenStart = aToken.getOffset();
-		int tokenEnd = aToken.getOffset()+aToken.length();
-
-		int startSelection, endSelection;
-		boolean startIntersect, endIntersect;
+		int lineLength = mDocument.getLineLength(aLineIndex);
+		List<Token> tokens = getPaintTokens(aLineIndex, aHighlightText, breaks[segment], segment == breaks.length - 1 ? lineLength : breaks[segment + 1]);
 
-		if (mRectangularSelection)
+		int[] offsets = getLineLayout(aLineIndex);
+		int editorW = getWidth();
+		int lineHeight = getFontHeight() + mLineSpacing;
+		int y0 = mMargins.top + aRowIndex * lineHeight;
+		int shift = offsets[breaks[segment]];
+		int x0 = segment == 0 ? 0 : mMargins.left;
+		int x1 = segment == breaks.length - 1 ? editorW : mMargins.left + offsets[breaks[segment + 1]] - shift;
+
+		Graphics2D g = (Graphics2D)aGraphics.create();
+		g.clipRect(x0, y0 - lineHeight, x1 - x0, 3 * lineHeight);
+		g.translate(-shift, 0);
+		paintLine(g, aRowIndex, aLineIndex, tokens, aHighlightText, g.getClipBounds());
+		g.dispose();
+
+		if (x1 < editorW && mHighlightCaretRowEnabled && aLineIndex == mCaret.getCharacterPosition().y)
 		{
-			if (selectionStart.x > selectionEnd.x)
+			Style style = getStyle(SyntaxParser.HIGHLIGHT_CARET_ROW);
+
+			g = (Graphics2D)aGraphics.create();
+			g.clipRect(x1, y0, editorW - x1, lineHeight);
+			if (style.getBackground() != null)
 			{
-				Point temp = selectionStart;
-				selectionStart = selectionEnd;
-				selectionEnd = temp;
+				g.setColor(style.getBackground());
+				g.fillRect(0, y0, editorW, lineHeight);
 			}
+			if (style.getForeground() != null)
+			{
+				g.setColor(style.getForeground());
+				g.drawRect(0, y0, editorW, lineHeight - 1);
+			}
+			g.dispose();
+		}
+	}
 
-			int adjust = selectionStart.x == selectionEnd.x ? 1 : 0;
 
-			selectionStart.x = removeTabsFromOffset(selectionStart.x, aRow);
-			selectionEnd.x = removeTabsFromOffset(selectionEnd.x, aRow);
+	private void paintFoldMarker(Graphics2D aGraphics, Rectangle aBounds, int aBaseline)
+	{
+		Style style = getStyle(SyntaxParser.WHITESPACE);
 
-			startSelection = selectionStart.x;
-			endSelection = selectionEnd.x + adjust;
+		aGraphics.setColor(getStyle(SyntaxParser.INDENT_LINE).getForeground());
+		aGraphics.drawRect(aBounds.x, aBounds.y, aBounds.width - 1, aBounds.height - 1);
+		aGraphics.setFont(style.getFont());
+		aGraphics.setColor(style.getForeground());
+		aGraphics.drawString(FOLD_MARKER, aBounds.x + 2, aBaseline);
+	}
 
-			if (tokenEnd < startSelection || tokenStart > endSelection) // token outside selection
-			{
-				return null;
-			}
 
-			startIntersect = tokenStart >= selectionStart.x && tokenStart <= selectionEnd.x;
-			endIntersect = tokenEnd >= selectionStart.x && tokenEnd <= selectionEnd.x;
-		}
-		else
-		{
-			if (aRow > selectionStart.y && aRow < selectionEnd.y) // entire row inside selection
-			{
-				mSelectionTempPoint.move(0, tokenEnd - tokenStart);
-				return mSelectionTempPoint;
-			}
+	private Rectangle getFoldMarkerBounds(int aLine, int aRowY, int aLineHeight)
+	{
+		Style style = getStyle(SyntaxParser.WHITESPACE);
+		int x = mMargins.left + getPixelOffset(mDocument.getLineLength(aLine), aLine) + style.getCharWidth(' ');
 
-			selectionStart.x = removeTabsFromOffset(selectionStart.x, aRow);
-			selectionEnd.x = removeTabsFromOffset(selectionEnd.x, aRow);
+		return new Rectangle(x, aRowY, style.getStringWidth(FOLD_MARKER) + 4, aLineHeight);
+	}
 
-			startSelection = selectionStart.y == aRow ? selectionStart.x : tokenStart;
-			endSelection = (selectionEnd.y == aRow ? selectionEnd.x : tokenEnd);
 
-			startIntersect = tokenStart >= startSelection && tokenStart <= endSelection;
-			endIntersect = tokenEnd >= startSelection && tokenEnd <= endSelection;
-		}
+	private void paintMatchingBracket(Graphics2D aGraphics, Point aBracket, int aRowY, int aLineHeight)
+	{
+		Style style = mStyleMap.get(SyntaxParser.MATCHING_BRACKET);
 
-		if (startIntersect && endIntersect) // token entirely inside selection
+		if (style == null)
 		{
-			mSelectionTempPoint.move(0, tokenEnd - tokenStart);
-			return mSelectionTempPoint;
+			return;
 		}
 
-		if (startIntersect && !endIntersect) // begining of token inside selection
-		{
-			mSelectionTempPoint.move(0, endSelection - tokenStart);
-			return mSelectionTempPoint;
-		}
+		int x0 = mMargins.left + getPixelOffset(aBracket.x, aBracket.y);
+		int x1 = mMargins.left + getPixelOffset(aBracket.x + 1, aBracket.y);
 
-		if (!startIntersect && endIntersect) // end of token inside selection
+		if (style.getBackground() != null)
 		{
-			mSelectionTempPoint.move(startSelection - tokenStart, tokenEnd - tokenStart);
-			return mSelectionTempPoint;
+			aGraphics.setColor(style.getBackground());
+			aGraphics.fillRect(x0, aRowY, x1 - x0, aLineHeight);
 		}
-
-		if (startSelection > tokenStart && endSelection < tokenEnd) // selection entirely inside token
+		if (style.getForeground() != null)
 		{
-			mSelectionTempPoint.move(startSelection - tokenStart, endSelection - tokenStart);
-			return mSelectionTempPoint;
+			aGraphics.setColor(style.getForeground());
+			aGraphics.drawRect(x0, aRowY, x1 - x0 - 1, aLineHeight - 1);
 		}
-
-		return null;
 	}
 
 
-	// TODO: possible bug
-	int removeTabsFromOffset(int aTargetVirtualOffset, int aRow)
+	/**
+	 * Fills the background of ranges of a line, e.g. the search matches or the text selected by carets, intersecting the clip bounds.
+	 */
+	private void paintRanges(Graphics2D aGraphics, int aLineIndex, int[] aMatches, String aStyleIdentifier, int aRowY, int aLineHeight, Rectangle aClipBounds)
 	{
-		String sourceLine = mDocument.getLine(aRow);
+		Style style = mStyleMap.get(aStyleIdentifier);
 
-		int virtualOffset = 0;
-		int characterOffset = 0;
-		while (aTargetVirtualOffset > virtualOffset && characterOffset < sourceLine.length())
+		if (style == null || style.getBackground() == null)
 		{
-			if (sourceLine.charAt(characterOffset) == '\t')
-			{
-				if (aTargetVirtualOffset < virtualOffset)
-				{
-					break;
-				}
-				virtualOffset = mTabSize * (virtualOffset / mTabSize) + mTabSize;
-			}
-			else
-			{
-				virtualOffset++;
-			}
-			characterOffset++;
+			return;
 		}
 
-		return characterOffset;
-	}
-
-
-	int includeTabsInOffset(int aOffset, int aRow)
-	{
-		String sourceLine = mDocument.getLine(aRow);
+		int lineLength = mDocument.getLineLength(aLineIndex);
+		aGraphics.setColor(style.getBackground());
 
-		int x = 0;
-		int a = 0;
-		int o = aOffset;
-		while (o > x && x < sourceLine.length())
+		for (int i = 0; i < aMatches.length; i += 2)
 		{
-			if (sourceLine.charAt(x) == '\t')
+			int x0 = mMargins.left + getPixelOffset(Math.max(aMatches[i], 0), aLineIndex);
+			int x1 = mMargins.left + getPixelOffset(Math.min(aMatches[i + 1], lineLength), aLineIndex);
+
+			if (x0 >= aClipBounds.x + aClipBounds.width)
 			{
-				int b = mTabSize - (a % mTabSize);
-				a += b;
-				aOffset += b - 1;
+				break;
 			}
-			else
+			if (x1 >= aClipBounds.x)
 			{
-				a++;
+				aGraphics.fillRect(x0, aRowY, x1 - x0, aLineHeight);
 			}
-			x++;
 		}
-
-		return aOffset;
 	}
 
 
-	int findTabbedOffset(int aDesiredVirtualOffset, int aRow)
+	public int getLineIndent(List<Token> aTokens)
 	{
-		String sourceLine = mDocument.getLine(aRow);
-
-		int characterOffset = 0;
-		int virtualOffset = 0;
-		while (aDesiredVirtualOffset > virtualOffset && characterOffset < sourceLine.length())
+		int x = mMargins.left;
+		for (int i = 0, n = aTokens.size(); i < n; i++)
 		{
-			if (sourceLine.charAt(characterOffset) == '\t')
-			{
-				int b = mTabSize - (virtualOffset % mTabSize);
-				virtualOffset += b;
-				if (virtualOffset > aDesiredVirtualOffset)
-				{
-					break;
-				}
-			}
-			else
+			Token nextToken = aTokens.get(i);
+			if (!nextToken.getText().isBlank())
 			{
-				virtualOffset++;
+				break;
 			}
-			characterOffset++;
+			x = advancePosition(x, nextToken.getText(), nextToken.getStyle());
 		}
-
-		return characterOffset;
+		return x;
 	}
 
 
-	Point getSourceOffset(Point aMousePoint)
+	/**
+	 * Returns the style runs of a line, building them if the line changed since it was last painted. The runs of the part of a long line
+	 * painted are built every time.
+	 */
+	private LineRunCache.LineRuns getLineRuns(int aLineIndex, List<Token> aTokens)
 	{
-		int y = (aMousePoint.y - mMargins.top) / (getFontHeight() + mLineSpacing);
+		boolean longLine = mTokenizationContext.isLongLine(aLineIndex);
+		LineRunCache.LineRuns runs = longLine ? null : mLineRunCache.get(aLineIndex, aTokens);
 
-		y = Math.min(Math.max(y, 0), mDocument.getLineCount() - 1);
+		if (runs != null)
+		{
+			return runs;
+		}
+
+		int tokenCount = aTokens.size();
+		Style[] styles = new Style[tokenCount];
+		int[] tokenX = new int[tokenCount + 1];
+		StringBuilder text = new StringBuilder();
+		boolean backgrounds = false;
+		int charOffset = aTokens.isEmpty() ? 0 : aTokens.get(0).getOffset();
+
+		tokenX[0] = mMargins.left + (charOffset == 0 ? 0 : getPixelOffset(charOffset, aLineIndex));
+		for (int i = 0; i < tokenCount; i++)
+		{
+			Token token = aTokens.get(i);
 
-		String sourceLine = mDocument.getLine(y);
+			styles[i] = getStyle(token.getStyle());
+			tokenX[i + 1] = advancePosition(tokenX[i], token.getText(), token.getStyle());
+			backgrounds |= !getBackground().equals(styles[i].getBackground());
+			text.append(token.getText());
+		}
 
-		mOffsetSyntaxParser.initialize(mDocument, y);
-		int positionX = 0;
-		int offsetX = -1;
+		String line = text.toString();
+		int[] runStarts = new int[tokenCount];
+		int[] runEnds = new int[tokenCount];
+		int runCount = 0;
 
-		for (Token token : mOffsetSyntaxParser.parse(mDocument, y, true, false))
+		for (int i = 0; i < tokenCount; i++)
 		{
-			String s = token.getText();
-			String style = token.getStyle();
-			int x1 = advancePosition(positionX, s, style);
+			if (isBlank(aTokens.get(i)))
+			{
+				continue;
+			}
+
+			// join the following tokens of the same font and color, and the whitespace between them, as long as the run measures the same
+			Style style = styles[i];
+			int start = aTokens.get(i).getOffset() - charOffset;
+			int end = i + 1;
 
-			if (x1 >= aMousePoint.x - mMargins.left)
+			for (int j = i + 1; j < tokenCount; j++)
 			{
-				int min = 0;
-				int max = s.length();
-				int mid = max / 2;
+				Token token = aTokens.get(j);
 
-				while (max - min > 1)
+				if (!isBlank(token))
 				{
-					x1 = advancePosition(positionX, s.substring(0, mid), style);
-
-					if (x1 > aMousePoint.x)
-					{
-						max = mid;
-					}
-					else
+					if (!styles[j].getFont().equals(style.getFont()) || !styles[j].getForeground().equals(style.getForeground()) || style.getStringWidth(line, start, token.getOffset() + token.length() - charOffset) != tokenX[j + 1] - tokenX[i])
 					{
-						min = mid;
+						break;
 					}
-					mid = (min + max) / 2;
+					end = j + 1;
+				}
+				else if (token.getText().indexOf('\t') != -1)
+				{
+					break;
 				}
+			}
 
-				offsetX = token.getOffset() + mid;
+			runStarts[runCount] = i;
+			runEnds[runCount] = end;
+			runCount++;
+			i = end - 1;
+		}
 
-				break;
-			}
+		runs = new LineRunCache.LineRuns(aTokens, styles, tokenX, line.toCharArray(), charOffset, Arrays.copyOf(runStarts, runCount), Arrays.copyOf(runEnds, runCount), backgrounds);
 
-			positionX = x1;
+		if (!longLine)
+		{
+			mLineRunCache.put(aLineIndex, runs);
 		}
 
-		if (offsetX == -1)
+		return runs;
+	}
+
+
+	private static boolean isBlank(Token aToken)
+	{
+		String text = aToken.getText();
+
+		for (int i = 0; i < text.length(); i++)
 		{
-			offsetX = sourceLine.length();
+			if (text.charAt(i) != ' ' && text.charAt(i) != '\t')
+			{
+				return false;
+			}
 		}
 
-		return new Point(offsetX, y);
+		return true;
 	}
 
 
-	int getPixelOffset(int aCharacterOffset, int aRow)
+	/**
+	 * Paints the backgrounds of the tokens of a line, the selection and the highlighted word, joining adjacent rectangles of the same
+	 * color.
+	 */
+	private void paintTokenBackgrounds(Graphics2D aGraphics, LineRunCache.LineRuns aRuns, int aRowY, int aLineHeight, int aSelectionStart, int aSelectionEnd, Rectangle aClipBounds, boolean aHighlightText)
 	{
-		mPixelOffsetSyntaxParser.initialize(mDocument, aRow);
-		int positionX = 0;
+		Color background = getBackground();
+		Style selectionStyle = getStyle(SyntaxParser.SELECTION);
+		int[] tokenX = aRuns.mTokenX;
+		Color fillColor = null;
+		int fillX0 = 0;
+		int fillX1 = 0;
 
-		for (Token token : mPixelOffsetSyntaxParser.parse(mDocument, aRow, false, false))
+		for (int i = 0, tokenCount = aRuns.mTokens.size(); i < tokenCount && tokenX[i] < aClipBounds.x + aClipBounds.width; i++)
 		{
-			String s = token.getText();
+			Token token = aRuns.mTokens.get(i);
+			String text = token.getText();
+			Style tokenStyle = aRuns.mStyles[i];
+			int len = token.length();
+			int selectedFrom = Math.max(aSelectionStart - token.getOffset(), 0);
+			int selectedTo = Math.min(aSelectionEnd - token.getOffset(), len);
 
-			if (Character.isWhitespace(s.charAt(0)))
+			if (selectedFrom >= selectedTo)
 			{
-				if (token.getOffset() + token.length() > aCharacterOffset)
+				selectedFrom = selectedTo = len;
+			}
+
+			// a token has up to three backgrounds, before, inside and after the selection
+			for (int fragment = 0, start = 0; fragment < 3; fragment++)
+			{
+				int end = fragment == 0 ? selectedFrom : fragment == 1 ? selectedTo : len;
+
+				if (start == end)
 				{
-					break;
+					continue;
 				}
-				else
+
+				Style style = fragment == 1 ? selectionStyle : tokenStyle;
+				Color color = null;
+
+				if (aHighlightText && tokenStyle.isSupportHighlight() && style.isBackgroundOptional() && end - start == mHighlightText.length() && text.regionMatches(true, start, mHighlightText, 0, end - start))
 				{
-					positionX = advancePosition(positionX, s, token.getStyle());
+					color = getStyle(SyntaxParser.HIGHLIGHT_WORD).getBackground();
 				}
-			}
-			else
-			{
-				if (token.getOffset()+token.length() >= aCharacterOffset)
+				else if (!background.equals(style.getBackground()))
 				{
-					int len = s.length() - (token.getOffset()+token.length() - aCharacterOffset);
-					if (len > 0)
-					{
-						positionX = advancePosition(positionX, s.substring(0, len), token.getStyle());
-					}
-					break;
+					color = style.getBackground();
 				}
-				else
+
+				int x0 = start == 0 ? tokenX[i] : advancePosition(tokenX[i], text, 0, start, token.getStyle());
+				int x1 = end == len ? tokenX[i + 1] : advancePosition(tokenX[i], text, 0, end, token.getStyle());
+
+				if (fillColor != null && (x0 != fillX1 || !fillColor.equals(color)))
 				{
-					positionX = advancePosition(positionX, s, token.getStyle());
+					aGraphics.setColor(fillColor);
+					aGraphics.fillRect(fillX0, aRowY, fillX1 - fillX0, aLineHeight);
+					fillColor = null;
 				}
-			}
-		}
 
-		return positionX;
-	}
+				if (color != null && x1 >= aClipBounds.x)
+				{
+					if (fillColor == null)
+					{
+						fillColor = color;
+						fillX0 = x0;
+					}
+					fillX1 = x1;
+				}
+
+				start = end;
+			}
+		}
+
+		if (fillColor != null)
+		{
+			aGraphics.setColor(fillColor);
+			aGraphics.fillRect(fillX0, aRowY, fillX1 - fillX0, aLineHeight);
+		}
+	}
+
+
+	/**
+	 * Draws the style runs of a line followed by the underlines and whitespace symbols of its tokens.
+	 */
+	private void paintRuns(Graphics2D aGraphics, LineRunCache.LineRuns aRuns, int aPixelY, int aRowY, int aLineHeight, Rectangle aClipBounds)
+	{
+		List<Token> tokens = aRuns.mTokens;
+		int[] tokenX = aRuns.mTokenX;
+		int clipX1 = aClipBounds.x + aClipBounds.width;
+
+		for (int run = 0; run < aRuns.mRunStarts.length; run++)
+		{
+			int first = aRuns.mRunStarts[run];
+			int last = aRuns.mRunEnds[run] - 1;
+
+			if (tokenX[first] >= clipX1)
+			{
+				break;
+			}
+			if (tokenX[last + 1] < aClipBounds.x)
+			{
+				continue;
+			}
+
+			Style style = aRuns.mStyles[first];
+			int start = tokens.get(first).getOffset();
+			int end = tokens.get(last).getOffset() + tokens.get(last).length();
+
+			if (!style.getFont().equals(aGraphics.getFont()))
+			{
+				aGraphics.setFont(style.getFont());
+			}
+			if (!style.getForeground().equals(aGraphics.getColor()))
+			{
+				aGraphics.setColor(style.getForeground());
+			}
+			aGraphics.drawChars(aRuns.mChars, start - aRuns.mCharOffset, end - start, tokenX[first], aPixelY);
+		}
+
+		for (int i = 0, tokenCount = tokens.size(); i < tokenCount && tokenX[i] < clipX1; i++)
+		{
+			Style style = aRuns.mStyles[i];
+
+			if (DEBUG_GRAPHICS)
+			{
+				aGraphics.setColor(new Color(192, 192, 192));
+				aGraphics.drawRect(tokenX[i], aRowY, tokenX[i + 1] - tokenX[i], aLineHeight);
+			}
+
+			if (style.isUnderlined() && tokenX[i + 1] >= aClipBounds.x)
+			{
+				aGraphics.setColor(style.getForeground());
+				aGraphics.drawLine(tokenX[i], aPixelY + 1, tokenX[i + 1], aPixelY + 1);
+			}
+
+			char c = tokens.get(i).getText().charAt(0);
+
+			if (mWhitespaceSymbolEnabled && (c == ' ' || c == '\t') && tokenX[i + 1] >= aClipBounds.x)
+			{
+				int x = (tokenX[i] + tokenX[i + 1]) / 2;
+				int v = aPixelY - getFontAscent() + getFontHeight() / 2;
+
+				aGraphics.setColor(getStyle(SyntaxParser.WHITESPACE).getForeground());
+				if (c == ' ')
+				{
+					aGraphics.drawLine(x, v, x, v);
+				}
+				else
+				{
+					aGraphics.drawLine(x - 2, v, x + 2, v);
+					aGraphics.drawLine(x + 2, v, x, v - 2);
+					aGraphics.drawLine(x + 2, v, x, v + 2);
+				}
+			}
+		}
+	}
+
+
+	int removeTabsFromOffset(int aTargetVirtualOffset, int aRow)
+	{
+		mTabIndex.setTabSize(mTabSize);
+
+		return mTabIndex.getCharacterOffset(mDocument.getLine(aRow), aRow, aTargetVirtualOffset, true);
+	}
+
+
+	int includeTabsInOffset(int aOffset, int aRow)
+	{
+		mTabIndex.setTabSize(mTabSize);
+
+		return mTabIndex.getVirtualColumn(mDocument.getLine(aRow), aRow, aOffset);
+	}
+
+
+	int findTabbedOffset(int aDesiredVirtualOffset, int aRow)
+	{
+		mTabIndex.setTabSize(mTabSize);
+
+		return mTabIndex.getCharacterOffset(mDocument.getLine(aRow), aRow, aDesiredVirtualOffset, false);
+	}
+
+
+	Point getSourceOffset(Point aMousePoint)
+	{
+		int y = (aMousePoint.y - mMargins.top) / (getFontHeight() + mLineSpacing);
+
+		int row = Math.min(Math.max(y, 0), getRowCount() - 1);
+		int[] offsets;
+
+		y = getLineOfRow(row);
+
+		if (!mLineWrapEnabled && mTokenizationContext.isLongLine(y))
+		{
+			return new Point(getColumnAt(y, aMousePoint.x - mMargins.left), y);
+		}
+
+		offsets = getLineLayout(y);
+
+		if (mLineWrapEnabled)
+		{
+			int[] breaks = mWrapModel.getBreaks(y);
+			int segment = row - getRowOfLine(y);
+			int start = breaks[segment];
+			int x = Math.max(LineLayoutCache.findPosition(offsets, aMousePoint.x - mMargins.left + offsets[start]), start);
+
+			return new Point(segment < breaks.length - 1 ? Math.min(x, breaks[segment + 1] - 1) : x, y);
+		}
+
+		return new Point(LineLayoutCache.findPosition(offsets, aMousePoint.x - mMargins.left), y);
+	}
+
+
+	int getPixelOffset(int aCharacterOffset, int aRow)
+	{
+		if (mTokenizationContext.isLongLine(aRow))
+		{
+			validateLongLineIndex();
+
+			return mLongLineIndex.getPixelOffset(aRow, Math.max(Math.min(aCharacterOffset, mDocument.getLineLength(aRow)), 0));
+		}
+
+		int[] offsets = getLineLayout(aRow);
+
+		return offsets[Math.max(Math.min(aCharacterOffset, offsets.length - 1), 0)];
+	}
+
+
+	/**
+	 * Returns the column closest to the left of a pixel offset of a line tokenized in chunks, measuring only the chunks up to the offset.
+	 */
+	private int getColumnAt(int aRow, int aPixelX)
+	{
+		validateLongLineIndex();
+
+		return mLongLineIndex.getColumn(aRow, aPixelX);
+	}
+
+
+	/**
+	 * Returns the version of the settings affecting the widths of text, raised when the style map, the fonts of its styles or the tab size
+	 * change.
+	 */
+	private int getLayoutSettingsVersion()
+	{
+		if (mStyleMapModificationCount != mStyleMap.getModificationCount())
+		{
+			mStyleMapModificationCount = mStyleMap.getModificationCount();
+			mLayoutSettingsVersion++;
+		}
+
+		return mLayoutSettingsVersion;
+	}
+
+
+	private void validateLongLineIndex()
+	{
+		mLongLineIndex.validate(getLayoutSettingsVersion());
+	}
+
+
+	/**
+	 * Returns the pixel offset of every character position of a line, the last position being the width of the line. Layouts are
+	 * cached until the line or the styles change.
+	 */
+	int[] getLineLayout(int aLine)
+	{
+		int version = getLayoutSettingsVersion();
+
+		if (mLineLayoutCache == null || mLineLayoutCacheVersion != version)
+		{
+			// the layouts are shared by editors with equal styles and tab size, the key being hashed only when the settings change
+			mLineLayoutCache = mDocumentIndexes.getLineLayoutCache(Arrays.asList(mStyleMap, mStyleMap.hashCode(), mTabSize));
+			mLineLayoutCacheVersion = version;
+		}
+
+		LineLayoutCache lineLayoutCache = mLineLayoutCache;
+
+		List<Token> tokens = mTokenizationContext.getTokens(aLine);
+		int[] offsets = lineLayoutCache.get(aLine, tokens);
+
+		if (offsets == null)
+		{
+			offsets = new int[mDocument.getLineLength(aLine) + 1];
+			layoutTokens(tokens, 0, 0, offsets);
+			lineLayoutCache.put(aLine, tokens, offsets);
+		}
+
+		return offsets;
+	}
+
+
+	/**
+	 * Computes the pixel offsets of the character positions covered by the tokens provided.
+	 *
+	 * @param aColumn
+	 *   the column of the first position, aOffsets[0]
+	 * @param aPositionX
+	 *   the pixel offset of the first position
+	 */
+	void layoutTokens(List<Token> aTokens, int aColumn, int aPositionX, int[] aOffsets)
+	{
+		int positionX = aPositionX;
+		int position = 0;
+
+		aOffsets[0] = positionX;
+
+		for (Token token : aTokens)
+		{
+			String s = token.getText();
+			Style style = getStyle(token.getStyle());
+			int start = token.getOffset() - aColumn;
+
+			for (; position < start; position++)
+			{
+				aOffsets[position + 1] = positionX;
+			}
+
+			for (int i = 0, len = s.length(); i < len; )
+			{
+				int j = s.indexOf('\t', i);
+				if (j == i)
+				{
+					int ts = mTabSize * style.getCharWidth(' ');
+					positionX = ((positionX + ts) / ts) * ts;
+					aOffsets[start + i + 1] = positionX;
+					i++;
+				}
+				else
+				{
+					if (j == -1)
+					{
+						j = len;
+					}
+					style.getPrefixWidths(s, i, j, aOffsets, start + i + 1);
+					for (int k = start + i + 1; k <= start + j; k++)
+					{
+						aOffsets[k] += positionX;
+					}
+					positionX = aOffsets[start + j];
+					i = j;
+				}
+			}
+
+			position = start + s.length();
+		}
+
+		for (; position + 1 < aOffsets.length; position++)
+		{
+			aOffsets[position + 1] = positionX;
+		}
+	}
 
 
 	private void recomputePreferredSize()
 	{
-		if (mPreferredSize == null || mDocument.getLineCount() * (getFontHeight() + mLineSpacing) + mMargins.top + mMargins.bottom != mPreferredSize.height)
+		if (mPreferredSize == null || getRowCount() * (getFontHeight() + mLineSpacing) + mMargins.top + mMargins.bottom != mPreferredSize.height)
 		{
 			revalidate();
 		}
@@ -1827,7 +2907,11 @@ public final class SourceEditor extends JComponent implements Scrollable
 
 	void keyTyped(char aKeyChar)
 	{
-		if (isTextSelected())
+		if (isMultiCaretEdit())
+		{
+			mMultiCaret.insert("Key typed", Character.toString(aKeyChar), mOverwriteTextEnabled);
+		}
+		else if (isTextSelected())
 		{
 			replaceSelection(Character.toString(aKeyChar));
 		}
@@ -2012,14 +3096,19 @@ public final class SourceEditor extends JComponent implements Scrollable
 		recomputePreferredSize();
 		mCaret.makePreferredPosition();
 		mCaret.forceVisibility();
-		repaint();
+		repaintSelection();
 		return this;
 	}
 
 
 	public SourceEditor cut()
 	{
-		if (isTextSelected())
+		if (mMultiCaret != null)
+		{
+			copy();
+			mMultiCaret.insert("Cut", "", false);
+		}
+		else if (isTextSelected())
 		{
 			StringBuilder selection = getSelectedText();
 			StringSelection stringSelection = new StringSelection(selection.toString());
@@ -2027,7 +3116,7 @@ public final class SourceEditor extends JComponent implements Scrollable
 			mClipboardContent = mRectangularSelection ? selection.toString() : "";
 
 			replaceSelection("");
-			repaint();
+			repaintSelection();
 		}
 		else if (mAutoLineCopyCutEnabled)
 		{
@@ -2045,12 +3134,20 @@ public final class SourceEditor extends JComponent implements Scrollable
 
 	public SourceEditor copy()
 	{
+		if (mMultiCaret != null)
+		{
+			StringSelection stringSelection = new StringSelection(mMultiCaret.getSelectedText());
+			getToolkit().getSystemClipboard().setContents(stringSelection, stringSelection);
+			mClipboardContent = "";
+			return this;
+		}
+
 		if (!isTextSelected() && mAutoLineCopyCutEnabled)
 		{
 			int y = mCaret.getCharacterPosition().y;
 			setSelectionStart(0, y);
 			setSelectionEnd(mDocument.getLineLength(y), y);
-			repaint();
+			repaintSelection();
 		}
 
 		StringBuilder selection = getSelectedText();
@@ -2066,13 +3163,18 @@ public final class SourceEditor extends JComponent implements Scrollable
 		try
 		{
 			String clipboardText = (String) (getToolkit().getSystemClipboard().getContents(this).getTransferData(DataFlavor.stringFlavor));
+			if (mMultiCaret != null)
+			{
+				mMultiCaret.paste(clipboardText);
+				return this;
+			}
 			insertText(clipboardText, clipboardText.equals(mClipboardContent));
 		}
 		catch (IllegalStateException | UnsupportedFlavorException | IOException e)
 		{
 			throw new IllegalStateException(e);
 		}
-		repaint();
+		repaintSelection();
 		return this;
 	}
 
@@ -2081,7 +3183,7 @@ public final class SourceEditor extends JComponent implements Scrollable
 	{
 		setSelectionStart(0, 0);
 		setSelectionEnd(mDocument.getLineLength(mDocument.getLineCount() - 1), mDocument.getLineCount() - 1);
-		repaint();
+		repaintSelection();
 		return this;
 	}
 
@@ -2100,8 +3202,7 @@ public final class SourceEditor extends JComponent implements Scrollable
 		boolean status = false;
 
 		Point caretPosition = mCaret.getCharacterPosition();
-		mInputSyntaxParser.initialize(mDocument, caretPosition.y);
-		for (Token token : mInputSyntaxParser.parse(mDocument, caretPosition.y, false, false))
+		for (Token token : mTokenizationContext.getTokens(caretPosition.y, caretPosition.x, caretPosition.x + 1))
 		{
 			int o = token.getOffset() + token.length();
 			if (caretPosition.x >= token.getOffset() && caretPosition.x < o)
@@ -2132,6 +3233,12 @@ public final class SourceEditor extends JComponent implements Scrollable
 
 	public SourceEditor deleteNextCharacter()
 	{
+		if (isMultiCaretEdit())
+		{
+			mMultiCaret.deleteNext();
+			return this;
+		}
+
 		if (isTextSelected())
 		{
 			replaceSelection("");
@@ -2197,7 +3304,7 @@ public final class SourceEditor extends JComponent implements Scrollable
 	public SourceEditor scrollPageUp()
 	{
 		int firstRow = Math.max(0, ((JViewport) getParent()).getViewPosition().y / (getFontHeight() + mLineSpacing) - getParent().getHeight() / (getFontHeight() + mLineSpacing));
-		int lastRow = Math.min(mDocument.getLineCount(), firstRow + getParent().getHeight() / (getFontHeight() + mLineSpacing));
+		int lastRow = Math.min(getRowCount(), firstRow + getParent().getHeight() / (getFontHeight() + mLineSpacing));
 		scrollRectToVisible(new Rectangle(mMargins.left + mCaret.getPixelPosition().x, mMargins.top + (getFontHeight() + mLineSpacing) * firstRow, 1, (getFontHeight() + mLineSpacing) * (lastRow - firstRow)));
 		mCaret.paintImmediately();
 		return this;
@@ -2214,7 +3321,7 @@ public final class SourceEditor extends JComponent implements Scrollable
 	public SourceEditor scrollPageDown()
 	{
 		int firstRow = (int) Math.ceil(((JViewport) getParent()).getViewPosition().y / (double) (getFontHeight() + mLineSpacing)) + getParent().getHeight() / (getFontHeight() + mLineSpacing);
-		int lastRow = Math.min(mDocument.getLineCount(), firstRow + getParent().getHeight() / (getFontHeight() + mLineSpacing)) + 1;
+		int lastRow = Math.min(getRowCount(), firstRow + getParent().getHeight() / (getFontHeight() + mLineSpacing)) + 1;
 		scrollRectToVisible(new Rectangle(mMargins.left + mCaret.getPixelPosition().x, mMargins.top + (getFontHeight() + mLineSpacing) * firstRow, 1, (getFontHeight() + mLineSpacing) * (lastRow - firstRow)));
 		mCaret.paintImmediately();
 		return this;
@@ -2231,7 +3338,7 @@ public final class SourceEditor extends JComponent implements Scrollable
 	public SourceEditor scrollLineUp()
 	{
 		int firstRow = Math.max(0, ((JViewport) getParent()).getViewPosition().y / (getFontHeight() + mLineSpacing) - 1);
-		int lastRow = Math.min(mDocument.getLineCount(), firstRow + getParent().getHeight() / (getFontHeight() + mLineSpacing));
+		int lastRow = Math.min(getRowCount(), firstRow + getParent().getHeight() / (getFontHeight() + mLineSpacing));
 		scrollRectToVisible(new Rectangle(mMargins.left + mCaret.getPixelPosition().x, mMargins.top + (getFontHeight() + mLineSpacing) * firstRow, 1, (getFontHeight() + mLineSpacing) * (lastRow - firstRow)));
 		mCaret.paintImmediately();
 		return this;
@@ -2248,7 +3355,7 @@ public final class SourceEditor extends JComponent implements Scrollable
 	public SourceEditor scrollLineDown()
 	{
 		int firstRow = 1 + (int) Math.ceil(((JViewport) getParent()).getViewPosition().y / (double) (getFontHeight() + mLineSpacing));
-		int lastRow = Math.min(mDocument.getLineCount(), firstRow + getParent().getHeight() / (getFontHeight() + mLineSpacing)) + 1;
+		int lastRow = Math.min(getRowCount(), firstRow + getParent().getHeight() / (getFontHeight() + mLineSpacing)) + 1;
 		scrollRectToVisible(new Rectangle(mMargins.left + mCaret.getPixelPosition().x, mMargins.top + (getFontHeight() + mLineSpacing) * firstRow, 1, (getFontHeight() + mLineSpacing) * (lastRow - firstRow)));
 		mCaret.paintImmediately();
 		return this;
@@ -2271,330 +3378,846 @@ public final class SourceEditor extends JComponent implements Scrollable
 		{
 			if (y > 0)
 			{
-				mCaret.moveRelative(mDocument.getLineLength(y - 1), -1, false, true, true);
+				y = getLineOfRow(getRowOfLine(y) - 1);
+				mCaret.moveAbsolute(mDocument.getLineLength(y), y, false, true, true);
+				mCaret.makePreferredPosition();
+			}
+			return this;
+		}
+
+		mCaret.moveRelative(getPreviousTokenOffset(x, y)-x, 0, false, true, true);
+		return this;
+	}
+
+
+	public SourceEditor moveCaretLeft()
+	{
+		if (mCaret.getCharacterPosition().x == 0)
+		{
+			if (mCaret.getCharacterPosition().y > 0)
+			{
+				int y = getLineOfRow(getRowOfLine(mCaret.getCharacterPosition().y) - 1);
+				mCaret.moveAbsolute(mDocument.getLineLength(y), y, false, true, true);
+				mCaret.makePreferredPosition();
+			}
+		}
+		else
+		{
+			mCaret.moveRelative(-1, 0, false, true, true);
+		}
+		return this;
+	}
+
+
+	public SourceEditor moveCaretNextToken()
+	{
+		int x = mCaret.getCharacterPosition().x;
+		int y = mCaret.getCharacterPosition().y;
+
+		if (x == mDocument.getLineLength(y))
+		{
+			if (y < mDocument.getLineCount() - 1)
+			{
+				mCaret.moveRelative(-x, 1, false, true, true);
+				mCaret.makePreferredPosition();
+			}
+		}
+		else
+		{
+			mCaret.moveRelative(getNextTokenOffset(x, y, true)-x, 0, false, true, true);
+		}
+		return this;
+	}
+
+
+	public SourceEditor moveCaretRight()
+	{
+		if (mCaret.getCharacterPosition().x == mDocument.getLineLength(mCaret.getCharacterPosition().y))
+		{
+			if (mCaret.getCharacterPosition().y < mDocument.getLineCount() - 1)
+			{
+				mCaret.moveRelative(-mCaret.getCharacterPosition().x, 1, false, true, true);
 				mCaret.makePreferredPosition();
 			}
-			return this;
-		}
+		}
+		else
+		{
+			mCaret.moveRelative(1, 0, false, true, true);
+		}
+		return this;
+	}
+
+
+	public SourceEditor moveCaretDocumentEnd()
+	{
+		mCaret.moveAbsolute(mDocument.getLineLength(mDocument.getLineCount() - 1), mDocument.getLineCount(), false, true, true);
+		mCaret.makePreferredPosition();
+		return this;
+	}
+
+
+	public SourceEditor moveCaretLineEnd()
+	{
+		int y = mCaret.getCharacterPosition().y;
+		mCaret.moveAbsolute(mDocument.getLineLength(y), y, false, true, true);
+		mCaret.makePreferredPosition();
+		return this;
+	}
+
+
+	public SourceEditor deletePreviousCharacter()
+	{
+		if (isMultiCaretEdit())
+		{
+			mMultiCaret.deletePrevious();
+			return this;
+		}
+
+		if (isTextSelected())
+		{
+			replaceSelection("");
+		}
+		else
+		{
+			mDocument.beginUndoableEdit(new UndoableEdit(this, "Delete previous character"));
+
+			int x = mCaret.getCharacterPosition().x;
+			int y = mCaret.getCharacterPosition().y;
+
+			if (x == 0)
+			{
+				if (y > 0)
+				{
+					int lineLength = mDocument.getLineLength(y - 1);
+
+					mDocument.concatLines(y - 1, y);
+					mDocument.removeLine(y);
+
+					recomputePreferredSize();
+					mCaret.moveRelative(lineLength - x, -1, false, true, true);
+				}
+			}
+			else
+			{
+				mDocument.removeSpan(y, x - 1, x);
+				mCaret.moveRelative(-1, 0, false, true, true);
+			}
+
+			mDocument.commitUndoableEdit();
+		}
+		mCaret.makePreferredPosition();
+		return this;
+	}
+
+
+	public SourceEditor insertBreak()
+	{
+		if (mMultiCaret != null)
+		{
+			mMultiCaret.insert("Insert break", "\n", false);
+			return this;
+		}
+
+		if (isTextSelected())
+		{
+			replaceSelection("");
+		}
+
+		mDocument.beginUndoableEdit(new UndoableEdit(this, "Insert break"));
+
+		int x = mCaret.getCharacterPosition().x;
+		int y = mCaret.getCharacterPosition().y;
+
+		String indent = "";
+		if (mAutoIndentEnabled)
+		{
+			for (int i = 0, len = mDocument.getLineLength(y); i < len; i++)
+			{
+				char c = mDocument.getCharAt(y, i);
+				if (c == ' ' || c == '\t')
+				{
+					indent += c;
+				}
+				else
+				{
+					break;
+				}
+			}
+		}
+
+		if (x == 0)
+		{
+			mDocument.insertLine(y, "");
+			recomputePreferredSize();
+			mCaret.moveRelative(0, 1, false, true, true);
+		}
+		else
+		{
+			mDocument.splitLine(y, x);
+			mDocument.insertSpan(y + 1, 0, indent);
+			recomputePreferredSize();
+			mCaret.moveAbsolute(indent.length(), y + 1, false, true, true);
+		}
+		mCaret.makePreferredPosition();
+
+		mDocument.commitUndoableEdit();
+		return this;
+	}
+
+
+	public SourceEditor upperCase()
+	{
+		if (isTextSelected())
+		{
+			Point ss = mSelectionStart;
+			Point se = mSelectionEnd;
+			replaceSelection(getSelectedText().toString().toUpperCase());
+			mSelectionStart = ss;
+			mSelectionEnd = se;
+		}
+		repaintSelection();
+		return this;
+	}
+
+
+	public SourceEditor lowerCase()
+	{
+		if (isTextSelected())
+		{
+			Point ss = mSelectionStart;
+			Point se = mSelectionEnd;
+			replaceSelection(getSelectedText().toString().toLowerCase());
+			mSelectionStart = ss;
+			mSelectionEnd = se;
+		}
+		repaintSelection();
+		return this;
+	}
+
+
+	public SourceEditor scrollToCaret()
+	{
+		mCaret.scrollToCaret();
+		return this;
+	}
+
+
+	public SourceEditor resetSelection()
+	{
+		mSelectionStart = null;
+		mSelectionEnd = null;
+		mRectangularSelection = false;
+		repaintSelection();
+		return this;
+	}
+
+
+	public SourceEditor scrollToSelection()
+	{
+		Point p = getSelectionStart();
+		Point q = getSelectionEnd();
+
+		int lineHeight = getFontHeight() + getLineSpacing();
+
+		Point start = new Point(getRowPixelOffset(p.x, p.y), getRowOfPosition(p.x, p.y) * lineHeight);
+		Point end = new Point(getRowPixelOffset(q.x, q.y), getRowOfPosition(q.x, q.y) * lineHeight);
+
+		if (start.x > end.x)
+		{
+			int temp = start.x;
+			start.x = end.x;
+			end.x = temp;
+		}
+		if (start.y > end.y)
+		{
+			int temp = start.y;
+			start.y = end.y;
+			end.y = temp;
+		}
+
+		scrollRectToVisible(new Rectangle(start.x, start.y, end.x, end.y));
+		return this;
+	}
+
+
+	/**
+	 * Selects the next match of a string after the caret or, searching backwards, the previous match before the selection or caret.
+	 *
+	 * @return
+	 *   true if a match was found
+	 */
+	public boolean findText(String aSearchString, boolean aForward, boolean aCaseSensative, boolean aWrapSearch, boolean aWholeWordsOnly)
+	{
+		TextSearch search = new TextSearch(aSearchString, aCaseSensative, aWholeWordsOnly);
+		Point position = getSearchPosition(aForward);
+		Point match;
+
+		if (aForward)
+		{
+			match = search.findNext(mDocument, position.x, position.y, aWrapSearch);
+		}
+		else
+		{
+			match = search.findPrevious(mDocument, position.x, position.y, aWrapSearch);
+		}
+
+		if (match == null)
+		{
+			return false;
+		}
+
+		selectMatch(match, new Point(match.x + search.length(), match.y));
+		return true;
+	}
+
+
+	/**
+	 * Selects the next or previous match of a regular expression the same way as findText. Matches of expressions that can match a line
+	 * break may span lines.
+	 *
+	 * @return
+	 *   true if a match was found
+	 * @throws java.util.regex.PatternSyntaxException
+	 *   if the expression is not valid
+	 */
+	public boolean findRegex(String aRegex, boolean aForward, boolean aCaseSensative, boolean aWrapSearch)
+	{
+		RegexSearch search = new RegexSearch(aRegex, aCaseSensative);
+		Point position = getSearchPosition(aForward);
+		RegexSearch.Match match;
+
+		if (aForward)
+		{
+			match = search.findNext(mDocument, position.x, position.y, aWrapSearch);
+		}
+		else
+		{
+			match = search.findPrevious(mDocument, position.x, position.y, aWrapSearch);
+		}
+
+		if (match == null)
+		{
+			return false;
+		}
+
+		selectMatch(match.getStart(), match.getEnd());
+		return true;
+	}
+
+
+	/**
+	 * Replaces the selected text with a replacement if the selection is a match of a regular expression, $n and ${name} in the replacement
+	 * being replaced with the text of the groups of the match.
+	 *
+	 * @return
+	 *   true if the selection was replaced
+	 * @throws java.util.regex.PatternSyntaxException
+	 *   if the expression is not valid
+	 * @throws IllegalArgumentException
+	 *   if the replacement refers to a group that does not exist
+	 */
+	public boolean replaceRegex(String aRegex, boolean aCaseSensative, String aReplacement)
+	{
+		if (!isTextSelected() || mRectangularSelection)
+		{
+			return false;
+		}
+
+		Point start = getSelectionStart();
+		Point end = getSelectionEnd();
+
+		if (start.y > end.y || start.y == end.y && start.x > end.x)
+		{
+			Point temp = start;
+			start = end;
+			end = temp;
+		}
+
+		RegexSearch.Match match = new RegexSearch(aRegex, aCaseSensative).matchAt(mDocument, start, end);
+
+		if (match == null)
+		{
+			return false;
+		}
+
+		replaceSelection(match.getReplacement(aReplacement));
+		return true;
+	}
+
+
+	/**
+	 * Replaces every match of a string, or of a regular expression expanding group references in the replacement, in the document or in
+	 * the selected text. The replacements are made as a single change to the document and one undoable edit.
+	 *
+	 * @return
+	 *   the number of matches replaced
+	 * @throws java.util.regex.PatternSyntaxException
+	 *   if the expression is not valid
+	 * @throws IllegalArgumentException
+	 *   if the replacement refers to a group that does not exist
+	 */
+	public int replaceAll(String aSearchString, String aReplacement, boolean aCaseSensative, boolean aWholeWordsOnly, boolean aRegularExpression, boolean aSelectionOnly)
+	{
+		RegexSearch regexSearch = aRegularExpression ? new RegexSearch(aSearchString, aCaseSensative) : null;
+		TextSearch textSearch = aRegularExpression ? null : new TextSearch(aSearchString, aCaseSensative, aWholeWordsOnly);
+		boolean selectionOnly = aSelectionOnly && isTextSelected();
+		int lastLine = mDocument.getLineCount() - 1;
+		Point start = new Point(0, 0);
+		Point end = new Point(mDocument.getLineLength(lastLine), lastLine);
+
+		if (selectionOnly)
+		{
+			start = getSelectionStart();
+			end = getSelectionEnd();
+
+			if (start.y > end.y || start.y == end.y && start.x > end.x)
+			{
+				Point temp = start;
+				start = end;
+				end = temp;
+			}
+		}
+
+		// the text following the end position is not changed
+		int followingLines = mDocument.getLineCount() - end.y;
+		int followingColumns = mDocument.getLineLength(end.y) - end.x;
+		Point caret = new Point(mCaret.getCharacterPosition());
+		int count;
+
+		mDocument.beginUndoableEdit(new UndoableEdit(this, "Replace all"));
+		try
+		{
+			count = aRegularExpression ? regexSearch.replaceAll(mDocument, start, end, aReplacement) : textSearch.replaceAll(mDocument, start, end, aReplacement);
+
+			if (count > 0)
+			{
+				int line = Math.min(caret.y, mDocument.getLineCount() - 1);
+				mCaret.moveAbsolute(Math.min(caret.x, mDocument.getLineLength(line)), line, false, false, true);
+
+				if (selectionOnly)
+				{
+					int endLine = mDocument.getLineCount() - followingLines;
+					setSelectionStart(start.x, start.y);
+					setSelectionEnd(mDocument.getLineLength(endLine) - followingColumns, endLine);
+				}
+				else
+				{
+					resetSelection();
+				}
+			}
+		}
+		finally
+		{
+			mDocument.commitUndoableEdit();
+		}
+
+		recomputePreferredSize();
+
+		return count;
+	}
+
+
+	/**
+	 * Returns the position a search starts from: the caret when searching forwards and the start of the selection, or the caret if no
+	 * text is selected, when searching backwards.
+	 */
+	private Point getSearchPosition(boolean aForward)
+	{
+		if (!aForward && isTextSelected())
+		{
+			Point start = getSelectionStart();
+			Point end = getSelectionEnd();
+
+			return start.y < end.y || start.y == end.y && start.x < end.x ? start : end;
+		}
+
+		return mCaret.getCharacterPosition();
+	}
+
+
+	void selectMatch(Point aStart, Point aEnd)
+	{
+		clearCarets();
+		resetSelection();
+		mCaret.moveAbsolute(aEnd.x, aEnd.y, false, false, true);
+		setSelectionStart(aStart.x, aStart.y);
+		setSelectionEnd(aEnd.x, aEnd.y);
+		scrollToSelection();
+	}
+
+
+	/**
+	 * Returns the position of the bracket matching the bracket found at the position provided or null if there is no bracket at the
+	 * position. Brackets inside comments and literals are ignored.
+	 */
+	public Point getMatchingBracket(int aColumn, int aRow)
+	{
+		return mBracketIndex.findMatch(aColumn, aRow);
+	}
+
+
+	/**
+	 * Returns the bracket next to the caret position provided, either the bracket after or before it, together with its matching bracket.
+	 */
+	private Point[] findBracketPair(int aColumn, int aRow)
+	{
+		for (int column = aColumn; column >= Math.max(0, aColumn - 1); column--)
+		{
+			Point match = mBracketIndex.findMatch(column, aRow);
+
+			if (match != null)
+			{
+				return new Point[]{new Point(column, aRow), match};
+			}
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * Finds the bracket pair at the caret and repaints the lines of the previous and the current pair if it changed.
+	 */
+	void updateBracketPair()
+	{
+		if (mCaret == null)
+		{
+			return;
+		}
+
+		Point caretPosition = mCaret.getCharacterPosition();
+		Point[] bracketPair = findBracketPair(caretPosition.x, caretPosition.y);
+
+		if (!Arrays.equals(bracketPair, mBracketPair))
+		{
+			repaintBracketPair(mBracketPair);
+			repaintBracketPair(bracketPair);
+			mBracketPair = bracketPair;
+		}
+	}
+
+
+	private void repaintBracketPair(Point[] aBracketPair)
+	{
+		if (aBracketPair != null)
+		{
+			for (Point bracket : aBracketPair)
+			{
+				repaintLines(bracket.y, bracket.y);
+			}
+		}
+	}
+
+
+	/**
+	 * Moves the caret to the bracket matching the bracket next to the caret.
+	 */
+	public SourceEditor jumpToMatchingBracket()
+	{
+		Point caretPosition = mCaret.getCharacterPosition();
+		Point[] bracketPair = findBracketPair(caretPosition.x, caretPosition.y);
+
+		if (bracketPair != null)
+		{
+			int x = bracketPair[1].x + (bracketPair[0].x < caretPosition.x ? 1 : 0);
+
+			mCaret.moveAbsolute(x, bracketPair[1].y, false, true, true);
+			mCaret.makePreferredPosition();
+		}
+		return this;
+	}
+
+
+	/**
+	 * Selects the text between the nearest pair of brackets enclosing the caret, including the brackets. When a block is already selected
+	 * the selection is expanded to the block enclosing it.
+	 */
+	public SourceEditor selectEnclosingBlock()
+	{
+		Point from = new Point(mCaret.getCharacterPosition());
+
+		if (isTextSelected())
+		{
+			Point selectionStart = getSelectionStart();
+			Point selectionEnd = getSelectionEnd();
+
+			if (selectionEnd.y < selectionStart.y || selectionEnd.y == selectionStart.y && selectionEnd.x < selectionStart.x)
+			{
+				selectionStart = selectionEnd;
+			}
 
-		mCaret.moveRelative(getPreviousTokenOffset(x, y)-x, 0, false, true, true);
-		return this;
-	}
+			from.setLocation(selectionStart);
+		}
 
+		Point open = mBracketIndex.findEnclosingOpen(from.x, from.y);
 
-	public SourceEditor moveCaretLeft()
-	{
-		if (mCaret.getCharacterPosition().x == 0)
+		if (open != null)
 		{
-			if (mCaret.getCharacterPosition().y > 0)
+			Point close = mBracketIndex.findMatch(open.x, open.y);
+
+			if (close != null)
 			{
-				mCaret.moveRelative(mDocument.getLineLength(mCaret.getCharacterPosition().y - 1), -1, false, true, true);
+				resetSelection();
+				mCaret.moveAbsolute(close.x + 1, close.y, false, false, true);
+				setSelectionStart(open.x, open.y);
+				setSelectionEnd(close.x + 1, close.y);
 				mCaret.makePreferredPosition();
+				repaintSelection();
 			}
 		}
-		else
-		{
-			mCaret.moveRelative(-1, 0, false, true, true);
-		}
 		return this;
 	}
 
 
-	public SourceEditor moveCaretNextToken()
+	/**
+	 * Collapses the innermost fold region containing the caret. The caret is moved to the header line of the region when it was inside
+	 * it.
+	 */
+	public SourceEditor collapseFold()
 	{
-		int x = mCaret.getCharacterPosition().x;
-		int y = mCaret.getCharacterPosition().y;
+		Point caretPosition = mCaret.getCharacterPosition();
+		int header = mFoldModel.findEnclosingRegion(caretPosition.y);
 
-		if (x == mDocument.getLineLength(y))
+		if (header != -1 && mFoldModel.collapse(header))
 		{
-			if (y < mDocument.getLineCount() - 1)
+			if (caretPosition.y != header)
 			{
-				mCaret.moveRelative(-x, 1, false, true, true);
+				mCaret.moveAbsolute(mDocument.getLineLength(header), header, false, false, true);
 				mCaret.makePreferredPosition();
 			}
-		}
-		else
-		{
-			mCaret.moveRelative(getNextTokenOffset(x, y, true)-x, 0, false, true, true);
+			foldsChanged();
 		}
 		return this;
 	}
 
 
-	public SourceEditor moveCaretRight()
+	/**
+	 * Expands the collapsed fold at the caret line.
+	 */
+	public SourceEditor expandFold()
 	{
-		if (mCaret.getCharacterPosition().x == mDocument.getLineLength(mCaret.getCharacterPosition().y))
-		{
-			if (mCaret.getCharacterPosition().y < mDocument.getLineCount() - 1)
-			{
-				mCaret.moveRelative(-mCaret.getCharacterPosition().x, 1, false, true, true);
-				mCaret.makePreferredPosition();
-			}
-		}
-		else
+		if (mFoldModel.expand(mCaret.getCharacterPosition().y))
 		{
-			mCaret.moveRelative(1, 0, false, true, true);
+			foldsChanged();
 		}
 		return this;
 	}
 
 
-	public SourceEditor moveCaretDocumentEnd()
+	public SourceEditor collapseAllFolds()
 	{
-		mCaret.moveAbsolute(mDocument.getLineLength(mDocument.getLineCount() - 1), mDocument.getLineCount(), false, true, true);
-		mCaret.makePreferredPosition();
+		mFoldModel.collapseAll();
+
+		int y = mCaret.getCharacterPosition().y;
+		int[] folds = mFoldModel.getFoldsContaining(y);
+		if (folds.length > 0)
+		{
+			y = folds[0];
+			mCaret.moveAbsolute(mDocument.getLineLength(y), y, false, false, true);
+			mCaret.makePreferredPosition();
+		}
+
+		foldsChanged();
 		return this;
 	}
 
 
-	public SourceEditor moveCaretLineEnd()
+	public SourceEditor expandAllFolds()
 	{
-		int y = mCaret.getCharacterPosition().y;
-		mCaret.moveAbsolute(mDocument.getLineLength(y), y, false, true, true);
-		mCaret.makePreferredPosition();
+		mFoldModel.expandAll();
+		foldsChanged();
 		return this;
 	}
 
 
-	public SourceEditor deletePreviousCharacter()
+	public boolean isFolded(int aLine)
 	{
-		if (isTextSelected())
-		{
-			replaceSelection("");
-		}
-		else
-		{
-			mDocument.beginUndoableEdit(new UndoableEdit(this, "Delete previous character"));
+		return mFoldModel.isCollapsed(aLine);
+	}
 
-			int x = mCaret.getCharacterPosition().x;
-			int y = mCaret.getCharacterPosition().y;
 
-			if (x == 0)
-			{
-				if (y > 0)
-				{
-					int lineLength = mDocument.getLineLength(y - 1);
+	/**
+	 * Returns true if the line provided starts a region that can be collapsed.
+	 */
+	public boolean isFoldable(int aLine)
+	{
+		return mFoldModel.isCollapsed(aLine) || mFoldModel.findRegionEnd(aLine) != -1;
+	}
 
-					mDocument.concatLines(y - 1, y);
-					mDocument.removeLine(y);
 
-					recomputePreferredSize();
-					mCaret.moveRelative(lineLength - x, -1, false, true, true);
-				}
-			}
-			else
+	/**
+	 * Collapses or expands the fold region starting at the line provided. The caret is moved to the line when it's hidden by the fold.
+	 */
+	public SourceEditor setFolded(int aLine, boolean aFolded)
+	{
+		if (aFolded ? mFoldModel.collapse(aLine) : mFoldModel.expand(aLine))
+		{
+			if (mFoldModel.isHidden(mCaret.getCharacterPosition().y))
 			{
-				mDocument.removeSpan(y, x - 1, x);
-				mCaret.moveRelative(-1, 0, false, true, true);
+				mCaret.moveAbsolute(mDocument.getLineLength(aLine), aLine, false, false, true);
+				mCaret.makePreferredPosition();
 			}
-
-			mDocument.commitUndoableEdit();
+			foldsChanged();
 		}
-		mCaret.makePreferredPosition();
 		return this;
 	}
 
 
-	public SourceEditor insertBreak()
+	/**
+	 * Expands the collapsed fold whose marker is found at the point provided.
+	 *
+	 * @return
+	 *   true if a fold was expanded
+	 */
+	boolean expandFoldAt(Point aPoint)
 	{
-		if (isTextSelected())
+		int lineHeight = getFontHeight() + mLineSpacing;
+		int row = (aPoint.y - mMargins.top) / lineHeight;
+
+		if (row < 0 || row >= getRowCount())
 		{
-			replaceSelection("");
+			return false;
 		}
 
-		mDocument.beginUndoableEdit(new UndoableEdit(this, "Insert break"));
-
-		int x = mCaret.getCharacterPosition().x;
-		int y = mCaret.getCharacterPosition().y;
+		int line = getLineOfRow(row);
+		int lineLength = mDocument.getLineLength(line);
 
-		String indent = "";
-		if (mAutoIndentEnabled)
+		if (!mFoldModel.isCollapsed(line) || row != getRowOfPosition(lineLength, line))
 		{
-			for (int i = 0, len = mDocument.getLineLength(y); i < len; i++)
-			{
-				char c = mDocument.getCharAt(y, i);
-				if (c == ' ' || c == '\t')
-				{
-					indent += c;
-				}
-				else
-				{
-					break;
-				}
-			}
+			return false;
 		}
 
-		if (x == 0)
-		{
-			mDocument.insertLine(y, "");
-			recomputePreferredSize();
-			mCaret.moveRelative(0, 1, false, true, true);
-		}
-		else
+		Rectangle bounds = getFoldMarkerBounds(line, mMargins.top + row * lineHeight, lineHeight);
+		bounds.x += getRowPixelOffset(lineLength, line) - getPixelOffset(lineLength, line);
+
+		if (!bounds.contains(aPoint))
 		{
-			mDocument.splitLine(y, x);
-			mDocument.insertSpan(y + 1, 0, indent);
-			recomputePreferredSize();
-			mCaret.moveAbsolute(indent.length(), y + 1, false, true, true);
+			return false;
 		}
-		mCaret.makePreferredPosition();
 
-		mDocument.commitUndoableEdit();
-		return this;
+		mFoldModel.expand(line);
+		foldsChanged();
+
+		return true;
 	}
 
 
-	public SourceEditor upperCase()
+	/**
+	 * Expands any folds hiding the line provided.
+	 */
+	void revealLine(int aLine)
 	{
-		if (isTextSelected())
+		if (mFoldModel != null && mFoldModel.reveal(aLine))
 		{
-			Point ss = mSelectionStart;
-			Point se = mSelectionEnd;
-			replaceSelection(getSelectedText().toString().toUpperCase());
-			mSelectionStart = ss;
-			mSelectionEnd = se;
+			revalidate();
+			repaint();
 		}
+	}
+
+
+	private void foldsChanged()
+	{
+		revalidate();
 		repaint();
-		return this;
+		mCaret.scrollToCaret();
 	}
 
 
-	public SourceEditor lowerCase()
+	/**
+	 * Returns the visible row of a document line. Lines hidden by a collapsed fold return the row of the fold header.
+	 */
+	int getRowOfLine(int aLine)
 	{
-		if (isTextSelected())
+		if (mLineWrapEnabled && mWrapModel != null)
 		{
-			Point ss = mSelectionStart;
-			Point se = mSelectionEnd;
-			replaceSelection(getSelectedText().toString().toLowerCase());
-			mSelectionStart = ss;
-			mSelectionEnd = se;
+			return mWrapModel.getRow(aLine);
 		}
-		repaint();
-		return this;
+		return mFoldModel == null ? aLine : mFoldModel.getRow(aLine);
 	}
 
 
-	public SourceEditor scrollToCaret()
+	/**
+	 * Returns the document line displayed at a visible row.
+	 */
+	int getLineOfRow(int aRow)
 	{
-		mCaret.scrollToCaret();
-		return this;
+		if (mLineWrapEnabled && mWrapModel != null)
+		{
+			return mWrapModel.getLine(aRow);
+		}
+		return mFoldModel == null ? aRow : mFoldModel.getLine(aRow);
 	}
 
 
-	public SourceEditor resetSelection()
+	/**
+	 * Returns the number of visible rows.
+	 */
+	int getRowCount()
 	{
-		mSelectionStart = null;
-		mSelectionEnd = null;
-		mRectangularSelection = false;
-		return this;
+		if (mLineWrapEnabled && mWrapModel != null)
+		{
+			return mWrapModel.getRowCount();
+		}
+		return mFoldModel == null ? mDocument.getLineCount() : mFoldModel.getRowCount();
 	}
 
 
-	public SourceEditor scrollToSelection()
+	/**
+	 * Returns the number of rows displaying a line, more than one if the line is wrapped.
+	 */
+	int getRowSpan(int aLine)
 	{
-		Point p = getSelectionStart();
-		Point q = getSelectionEnd();
+		return mLineWrapEnabled && mWrapModel != null ? mWrapModel.getRowSpan(aLine) : 1;
+	}
 
-		int lineHeight = getFontHeight() + getLineSpacing();
 
-		Point start = new Point(getPixelOffset(p.x, p.y), p.y * lineHeight);
-		Point end = new Point(getPixelOffset(q.x, q.y), q.y * lineHeight);
+	/**
+	 * Returns the row displaying a character position.
+	 */
+	int getRowOfPosition(int aOffset, int aLine)
+	{
+		int row = getRowOfLine(aLine);
 
-		if (start.x > end.x)
+		if (mLineWrapEnabled && mWrapModel != null && !mFoldModel.isHidden(aLine))
 		{
-			int temp = start.x;
-			start.x = end.x;
-			end.x = temp;
-		}
-		if (start.y > end.y)
-		{
-			int temp = start.y;
-			start.y = end.y;
-			end.y = temp;
+			row += LineLayoutCache.findPosition(mWrapModel.getBreaks(aLine), aOffset);
 		}
 
-		scrollRectToVisible(new Rectangle(start.x, start.y, end.x, end.y));
-		return this;
+		return row;
 	}
 
 
-	public boolean findText(String aSearchString, boolean aForward, boolean aCaseSensative, boolean aWrapSearch, boolean aWholeWordsOnly)
+	/**
+	 * Returns the pixel offset of a character position from the start of the row displaying it.
+	 */
+	int getRowPixelOffset(int aOffset, int aLine)
 	{
-		int x = mCaret.getCharacterPosition().x;
-		int y = mCaret.getCharacterPosition().y;
-		int startY = y;
-		String s = mDocument.getLine(y).substring(x);
-		if (!aCaseSensative)
+		int x = getPixelOffset(aOffset, aLine);
+
+		if (mLineWrapEnabled && mWrapModel != null)
 		{
-			s = s.toLowerCase();
-			aSearchString = aSearchString.toLowerCase();
+			int[] breaks = mWrapModel.getBreaks(aLine);
+			x -= getLineLayout(aLine)[breaks[LineLayoutCache.findPosition(breaks, aOffset)]];
 		}
-		boolean terminate = false;
 
-		while (true)
-		{
-			int offset = s.indexOf(aSearchString);
-			if (aWholeWordsOnly && offset != -1)
-			{
-				s += " ";
-				if (!((offset == 0 || !Character.isLetter(s.charAt(offset - 1))) && !Character.isLetter(s.charAt(offset + aSearchString.length()))))
-				{
-					offset = -1;
-				}
-			}
-			if (offset != -1)
-			{
-				resetSelection();
-				mCaret.moveAbsolute(x + offset + aSearchString.length(), y, false, false, true);
-				setSelectionStart(x + offset, y);
-				setSelectionEnd(x + offset + aSearchString.length(), y);
-				scrollToSelection();
-				return true;
-			}
-			else
-			{
-				if (terminate)
-				{
-					return false;
-				}
+		return x;
+	}
 
-				x = 0;
-				y += aForward ? 1 : -1;
-				int lineCount = mDocument.getLineCount();
-				if (aWrapSearch)
-				{
-					if (y == lineCount)
-					{
-						y = 0;
-					}
-					if (y == -1)
-					{
-						y = lineCount - 1;
-					}
-				}
-				else
-				{
-					if (y == lineCount)
-					{
-						y = lineCount - 1;
-					}
-					if (y == -1)
-					{
-						y = 0;
-					}
-				}
-				s = mDocument.getLine(y);
-				if (!aCaseSensative)
-				{
-					s = s.toLowerCase();
-				}
 
-				if (y == startY)
-				{
-					terminate = true;
-				}
-			}
-		}
+	/**
+	 * Called by the WrapModel when the number of rows of a line changes.
+	 */
+	void rowsChanged(int aLine)
+	{
+		mPreferredSize = null;
+		revalidate();
+		repaintFromLine(aLine);
+	}
+
+
+	private void validateWrapModel()
+	{
+		mWrapModel.validate(getLayoutSettingsVersion(), getWidth() - mMargins.left - mMargins.right);
 	}
 
 
@@ -2609,10 +4232,9 @@ public final class SourceEditor extends JComponent implements Scrollable
 
 	protected int getPreviousTokenOffset(int x, int y)
 	{
-		mInputSyntaxParser.initialize(mDocument, y);
 		int prevOfs = 0;
 //		int prevLen = 0;
-		for (Token token : mInputSyntaxParser.parse(mDocument, y, false, false))
+		for (Token token : mTokenizationContext.getTokens(y, x - 1, x + 1))
 		{
 			int ofs = token.getOffset();
 			int len = token.length();
@@ -2639,8 +4261,7 @@ public final class SourceEditor extends JComponent implements Scrollable
 
 	protected int getNextTokenOffset(int x, int y, boolean aIncludeWhiteSpace)
 	{
-		mInputSyntaxParser.initialize(mDocument, y);
-		for (Token token : mInputSyntaxParser.parse(mDocument, y, false, false))
+		for (Token token : mTokenizationContext.getTokens(y, x, x + 1))
 		{
 			int o = token.getOffset()+token.length();
 			if (x >= token.getOffset() && x < o)
@@ -2661,8 +4282,7 @@ public final class SourceEditor extends JComponent implements Scrollable
 
 	protected Style getTokenStyleAt(int x, int y)
 	{
-		mInputSyntaxParser.initialize(mDocument, y);
-		for (Token token : mInputSyntaxParser.parse(mDocument, y, false, false))
+		for (Token token : mTokenizationContext.getTokens(y, x, x + 1))
 		{
 			int o = token.getOffset()+token.length();
 			if (x >= token.getOffset() && x < o)
@@ -2714,6 +4334,10 @@ public final class SourceEditor extends JComponent implements Scrollable
 	@Override
 	public boolean getScrollableTracksViewportWidth()
 	{
+		if (mLineWrapEnabled)
+		{
+			return true;
+		}
 		if (getParent() instanceof JViewport)
 		{
 			return (getParent().getWidth() > getPreferredSize().width);
@@ -2740,10 +4364,16 @@ public final class SourceEditor extends JComponent implements Scrollable
 
 
 	private int advancePosition(int aPixelX, String aText, String aStyle)
+	{
+		return advancePosition(aPixelX, aText, 0, aText.length(), aStyle);
+	}
+
+
+	private int advancePosition(int aPixelX, String aText, int aStart, int aEnd, String aStyle)
 	{
 		Style style = getStyle(aStyle);
 
-		for (int i = 0; i < aText.length(); )
+		for (int i = aStart; i < aEnd; )
 		{
 			int j = aText.indexOf('\t', i);
 			if (j == i)
@@ -2754,11 +4384,11 @@ public final class SourceEditor extends JComponent implements Scrollable
 			}
 			else
 			{
-				if (j == -1)
+				if (j == -1 || j > aEnd)
 				{
-					j = aText.length();
+					j = aEnd;
 				}
-				aPixelX += style.getStringWidth(aText.substring(i, j));
+				aPixelX += style.getStringWidth(aText, i, j);
 				i = j;
 			}
 		}
@@ -2782,5 +4412,6 @@ public final class SourceEditor extends JComponent implements Scrollable
 	{
 		mSelectionStart = null;
 		mSelectionEnd = null;
+		repaintSelection();
 	}
 }
\ No newline at end of file
@@ -45,12 +45,11 @@ public class SourceEditorKeyListener implements KeyListener, Serializable
 			{
 				mSourceEditor.replaceSelection("\t");
 			}
-			mSourceEditor.repaint();
+			mSourceEditor.repaintSelection();
 		}
 		else if (keyChar >= 32 && keyChar != 127 || (keyChar == '\t' && (!mSourceEditor.getFocusTraversalKeysEnabled() || aEvent.isControlDown())))
 		{
 			mSourceEditor.keyTyped(keyChar);
-			mSourceEditor.repaint();
 		}
 	}
 
@@ -68,6 +67,11 @@ public class SourceEditorKeyListener implements KeyListener, Serializable
 //			return;
 //		}
 
+		if (mSourceEditor.getMultiCaret() != null && keyPressedMultiCaret(aEvent))
+		{
+			return;
+		}
+
 		boolean repaint = false;
 
 		switch (aEvent.getKeyCode())
@@ -108,7 +112,6 @@ public class SourceEditorKeyListener implements KeyListener, Serializable
 						mSourceEditor.setSelectionStartUnmodified(null);
 						mSourceEditor.setSelectionEndUnmodified(null);
 						mSourceEditor.setRectangularSelection(false);
-						mSourceEditor.repaint();
 					}
 				}
 				break;
@@ -222,8 +225,69 @@ public class SourceEditorKeyListener implements KeyListener, Serializable
 
 		if (repaint)
 		{
-			mSourceEditor.repaint();
+			mSourceEditor.repaintSelection();
+		}
+	}
+
+
+	/**
+	 * Moves the carets of an editor editing several places at once. Returns false if the key isn't handled by the carets, the carets being
+	 * removed by keys moving the caret in other ways.
+	 */
+	private boolean keyPressedMultiCaret(KeyEvent aEvent)
+	{
+		MultiCaret multiCaret = mSourceEditor.getMultiCaret();
+		boolean shift = aEvent.isShiftDown();
+
+		if (!aEvent.isControlDown() && !aEvent.isAltDown())
+		{
+			switch (aEvent.getKeyCode())
+			{
+				case KeyEvent.VK_LEFT:
+					multiCaret.move(-1, 0, shift);
+					return true;
+				case KeyEvent.VK_RIGHT:
+					multiCaret.move(1, 0, shift);
+					return true;
+				case KeyEvent.VK_UP:
+					multiCaret.move(0, -1, shift);
+					return true;
+				case KeyEvent.VK_DOWN:
+					multiCaret.move(0, 1, shift);
+					return true;
+				case KeyEvent.VK_HOME:
+					multiCaret.moveToLineBoundary(false, shift);
+					return true;
+				case KeyEvent.VK_END:
+					multiCaret.moveToLineBoundary(true, shift);
+					return true;
+				case KeyEvent.VK_ESCAPE:
+					mSourceEditor.clearCarets();
+					return true;
+			}
+		}
+
+		switch (aEvent.getKeyCode())
+		{
+			case KeyEvent.VK_PAGE_UP:
+			case KeyEvent.VK_PAGE_DOWN:
+			case KeyEvent.VK_UP:
+			case KeyEvent.VK_DOWN:
+			case KeyEvent.VK_LEFT:
+			case KeyEvent.VK_RIGHT:
+			case KeyEvent.VK_HOME:
+			case KeyEvent.VK_END:
+				mSourceEditor.clearCarets();
+				break;
+			case KeyEvent.VK_DELETE:
+				if (aEvent.isControlDown())
+				{
+					mSourceEditor.clearCarets();
+				}
+				break;
 		}
+
+		return false;
 	}
 
 
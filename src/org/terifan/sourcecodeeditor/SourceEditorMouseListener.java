@@ -27,10 +27,23 @@ public class SourceEditorMouseListener implements MouseListener, MouseMotionList
 
 		if (SwingUtilities.isLeftMouseButton(aEvent))
 		{
+			if (aEvent.getClickCount() == 1 && mSourceEditor.expandFoldAt(aEvent.getPoint()))
+			{
+				return;
+			}
+
 			Caret caret = mSourceEditor.getCaret();
 			Point vp = caret.getVirtualPosition();
 			Point p = mSourceEditor.getSourceOffset(aEvent.getPoint());
 
+			if (aEvent.isControlDown() && aEvent.isAltDown() && aEvent.getClickCount() == 1)
+			{
+				mSourceEditor.addCaret(p.x, p.y);
+				return;
+			}
+
+			mSourceEditor.clearCarets();
+
 			if (aEvent.getClickCount() >= 2)
 			{
 				int x1 = mSourceEditor.getNextTokenOffset(p.x, p.y, false);
@@ -43,8 +56,6 @@ public class SourceEditorMouseListener implements MouseListener, MouseMotionList
 				mSourceEditor.setHighlightText(mSourceEditor.getSelectedText().toString().trim());
 
 				p.x = x1;
-
-				mSourceEditor.repaint();
 			}
 			else if (aEvent.isShiftDown())
 			{
@@ -59,7 +70,6 @@ public class SourceEditorMouseListener implements MouseListener, MouseMotionList
 				mSourceEditor.setRectangularSelection(false);
 				mSourceEditor.setSelectionStartUnmodified(null);
 				mSourceEditor.setSelectionEndUnmodified(null);
-				mSourceEditor.repaint();
 			}
 
 			caret.moveAbsolute(p.x, p.y, false, true, true);
@@ -85,8 +95,19 @@ public class SourceEditorMouseListener implements MouseListener, MouseMotionList
 	{
 		if (SwingUtilities.isLeftMouseButton(aEvent))
 		{
+			if (aEvent.getClickCount() == 1 && mSourceEditor.expandFoldAt(aEvent.getPoint()))
+			{
+				return;
+			}
+
+			if (aEvent.isControlDown() && aEvent.isAltDown() && mSourceEditor.getCaretCount() > 1)
+			{
+				return;
+			}
+
 			Caret caret = mSourceEditor.getCaret();
 
+			mSourceEditor.clearCarets();
 			mSourceEditor.setRectangularSelection(aEvent.isAltDown());
 
 			Point vp = caret.getVirtualPosition();
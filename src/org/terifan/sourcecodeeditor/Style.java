@@ -2,29 +2,17 @@ package org.terifan.sourcecodeeditor;
 
 import java.awt.Color;
 import java.awt.Font;
-import java.awt.font.FontRenderContext;
-import java.awt.font.LineMetrics;
 
 
 public class Style
 {
-	private final static FontRenderContext FRC = new FontRenderContext(null, false, false);
-
 	private boolean mStrikethrough;
 	private boolean mUnderlined;
-	private boolean mFontMonospaced;
 	private boolean mBackgroundOptional;
 	private Color mBackground;
 	private Color mForeground;
 	private Font mFont;
-	private int mFontAscent;
-	private int mFontDescent;
-	private int mFontHeight;
-	private int mFontLeading;
-	private int mFontStrikethroughOffset;
-	private int mFontStrikethroughThickness;
-	private int mFontUnderlineOffset;
-	private int mFontUnderlineThickness;
+	private FontMetricsCache mFontMetrics;
 	private boolean mSupportHighlight;
 	private int mHashCode;
 
@@ -49,42 +37,19 @@ public class Style
 		mStrikethrough = aStrikethrough;
 		mBackgroundOptional = aBackgroundOptional;
 		mSupportHighlight = aSupportHighlight;
-
-		initializeFont();
 	}
 
 
 	/**
-	 * Initializes the internal state of this object.
+	 * Returns the metrics of the font in this style. Metrics are shared by all styles using the same font and computed on first use.
 	 */
-	private void initializeFont()
+	private FontMetricsCache getFontMetrics()
 	{
-		FontRenderContext frc = new FontRenderContext(null, false, false);
-		LineMetrics lm = mFont.getLineMetrics("", frc);
-
-		mFontHeight = (int)Math.ceil(lm.getHeight());
-		mFontDescent = Math.round(lm.getDescent());
-		mFontAscent = Math.round(lm.getAscent());
-		mFontUnderlineOffset = Math.round(lm.getUnderlineOffset());
-		mFontUnderlineThickness = Math.round(lm.getUnderlineThickness());
-		mFontStrikethroughOffset = Math.round(lm.getStrikethroughOffset());
-		mFontStrikethroughThickness = Math.round(lm.getStrikethroughThickness());
-		mFontLeading = Math.round(lm.getLeading());
-		mFontMonospaced = true;
-
-		int w0 = (int)mFont.getStringBounds("m", frc).getWidth();
-
-		for (int i = 0; i < 256; i++)
+		if (mFontMetrics == null)
 		{
-			if (mFont.canDisplay(i))
-			{
-				int w = (int)mFont.getStringBounds(Character.toString(i), frc).getWidth();
-				if (w != w0)
-				{
-					mFontMonospaced = false;
-				}
-			}
+			mFontMetrics = FontMetricsCache.getInstance(mFont);
 		}
+		return mFontMetrics;
 	}
 
 
@@ -93,7 +58,7 @@ public class Style
 	 */
 	public boolean isFontMonospaced()
 	{
-		return mFontMonospaced;
+		return getFontMetrics().isMonospaced();
 	}
 
 
@@ -102,7 +67,33 @@ public class Style
 	 */
 	public int getStringWidth(String aText)
 	{
-		return (int)mFont.getStringBounds(aText, FRC).getWidth();
+		return getStringWidth(aText, 0, aText.length());
+	}
+
+
+	/**
+	 * Returns the total advance width for showing a range of the specified String in this Style.
+	 *
+	 * Advance widths are measured once per character and shared by all styles using the same font.
+	 *
+	 * @param aStart
+	 *   index of the first character
+	 * @param aEnd
+	 *   index after the last character
+	 */
+	public int getStringWidth(String aText, int aStart, int aEnd)
+	{
+		return getFontMetrics().getStringWidth(aText, aStart, aEnd);
+	}
+
+
+	/**
+	 * Stores the width of every prefix of a range of the specified String, the width of the first i characters of the range being stored
+	 * at aWidths[aOffset + i - 1]. Each width is equal to what getStringWidth returns for the prefix.
+	 */
+	public void getPrefixWidths(String aText, int aStart, int aEnd, int[] aWidths, int aOffset)
+	{
+		getFontMetrics().getPrefixWidths(aText, aStart, aEnd, aWidths, aOffset);
 	}
 
 
@@ -111,7 +102,7 @@ public class Style
 	 */
 	public int getCharWidth(char aChar)
 	{
-		return (int)mFont.getStringBounds(new char[]{aChar}, 0, 1, FRC).getWidth();
+		return getFontMetrics().getCharWidth(aChar);
 	}
 
 
@@ -120,7 +111,7 @@ public class Style
 	 */
 	public int getFontHeight()
 	{
-		return mFontHeight;
+		return getFontMetrics().getHeight();
 	}
 
 
@@ -130,7 +121,7 @@ public class Style
 	 */
 	public int getFontAscent()
 	{
-		return mFontAscent;
+		return getFontMetrics().getAscent();
 	}
 
 
@@ -140,7 +131,7 @@ public class Style
 	 */
 	public int getFontDescent()
 	{
-		return mFontDescent;
+		return getFontMetrics().getDescent();
 	}
 
 
@@ -150,7 +141,7 @@ public class Style
 	 */
 	public int getFontLeading()
 	{
-		return mFontLeading;
+		return getFontMetrics().getLeading();
 	}
 
 
@@ -159,7 +150,7 @@ public class Style
 	 */
 	public int getStrikethroughOffset()
 	{
-		return mFontStrikethroughOffset;
+		return getFontMetrics().getStrikethroughOffset();
 	}
 
 
@@ -168,7 +159,7 @@ public class Style
 	 */
 	public int getStrikethroughThickness()
 	{
-		return mFontStrikethroughThickness;
+		return getFontMetrics().getStrikethroughThickness();
 	}
 
 
@@ -177,7 +168,7 @@ public class Style
 	 */
 	public int getUnderlineOffset()
 	{
-		return mFontUnderlineOffset;
+		return getFontMetrics().getUnderlineOffset();
 	}
 
 
@@ -186,7 +177,7 @@ public class Style
 	 */
 	public int getUnderlineThickness()
 	{
-		return mFontUnderlineThickness;
+		return getFontMetrics().getUnderlineThickness();
 	}
 
 
@@ -286,7 +277,7 @@ public class Style
 	public void setFont(Font aFont)
 	{
 		mFont = aFont;
-		initializeFont();
+		mFontMetrics = null;
 	}
 
 
@@ -305,7 +296,7 @@ public class Style
 	public void setFontSize(int aFontSize)
 	{
 		mFont = mFont.deriveFont((float)aFontSize);
-		initializeFont();
+		mFontMetrics = null;
 	}
 
 
@@ -335,10 +326,6 @@ public class Style
 		{
 			return false;
 		}
-		if (this.mFontMonospaced != other.mFontMonospaced)
-		{
-			return false;
-		}
 		if (this.mBackgroundOptional != other.mBackgroundOptional)
 		{
 			return false;
@@ -355,22 +342,6 @@ public class Style
 		{
 			return false;
 		}
-		if (this.mFontStrikethroughOffset != other.mFontStrikethroughOffset)
-		{
-			return false;
-		}
-		if (this.mFontStrikethroughThickness != other.mFontStrikethroughThickness)
-		{
-			return false;
-		}
-		if (this.mFontUnderlineOffset != other.mFontUnderlineOffset)
-		{
-			return false;
-		}
-		if (this.mFontUnderlineThickness != other.mFontUnderlineThickness)
-		{
-			return false;
-		}
 		return !false; // work-around to get rid of Netbeans warning when returning 'true'...
 	}
 
@@ -381,15 +352,10 @@ public class Style
 		int hash = 3;
 		hash = 79 * hash + (this.mStrikethrough ? 1 : 0);
 		hash = 79 * hash + (this.mUnderlined ? 1 : 0);
-		hash = 79 * hash + (this.mFontMonospaced ? 1 : 0);
 		hash = 79 * hash + (this.mBackgroundOptional ? 1 : 0);
 		hash = 79 * hash + (this.mBackground != null ? this.mBackground.hashCode() : 0);
 		hash = 79 * hash + (this.mForeground != null ? this.mForeground.hashCode() : 0);
 		hash = 79 * hash + (this.mFont != null ? this.mFont.hashCode() : 0);
-		hash = 79 * hash + this.mFontStrikethroughOffset;
-		hash = 79 * hash + this.mFontStrikethroughThickness;
-		hash = 79 * hash + this.mFontUnderlineOffset;
-		hash = 79 * hash + this.mFontUnderlineThickness;
 		hash = 79 * hash + (this.mSupportHighlight ? 1 : 0);
 		return hash;
 	}
@@ -5,4 +5,21 @@ import java.util.HashMap;
 
 public class StyleMap extends HashMap<String, Style>
 {
-}
+	private transient int mModificationCount;
+
+
+	/**
+	 * Returns a count raised when the fonts of the styles are changed through an editor, telling other editors using the map that their
+	 * line layouts are stale.
+	 */
+	int getModificationCount()
+	{
+		return mModificationCount;
+	}
+
+
+	void fontsChanged()
+	{
+		mModificationCount++;
+	}
+}
\ No newline at end of file
@@ -8,15 +8,58 @@ import org.terifan.sourcecodeeditor.parsers.TextSyntaxParser;
 import org.terifan.sourcecodeeditor.parsers.XmlSyntaxParser;
 
 
+/**
+ * The default style maps. Each map is built on first use, one language at a time.
+ *
+ * The maps were formerly the public fields JavaDark, JavaLight, SQLDark, SQLLight, XmlDark, XmlLight and Text, which built every map when
+ * the class was loaded. Fields can't be initialized lazily, so they were replaced by getters: use StyleMaps.getJavaDark() instead of
+ * StyleMaps.JavaDark, getSqlDark() instead of SQLDark and so on.
+ */
 public class StyleMaps
 {
-	public final static StyleMap JavaDark = installJava("monospaced", 14, "dark");
-	public final static StyleMap JavaLight = installJava("monospaced", 14, "");
-	public final static StyleMap SQLDark = installSql("monospaced", 14, "dark");
-	public final static StyleMap SQLLight = installSql("monospaced", 14, "");
-	public final static StyleMap XmlDark = installXml("monospaced", 14, "dark");
-	public final static StyleMap XmlLight = installXml("monospaced", 14, "");
-	public final static StyleMap Text = installText("monospaced", 14, "");
+	/**
+	 * Returns the shared dark Java style map. The default style maps are built on first use, one language at a time.
+	 */
+	public static StyleMap getJavaDark()
+	{
+		return JavaMaps.DARK;
+	}
+
+
+	public static StyleMap getJavaLight()
+	{
+		return JavaMaps.LIGHT;
+	}
+
+
+	public static StyleMap getSqlDark()
+	{
+		return SqlMaps.DARK;
+	}
+
+
+	public static StyleMap getSqlLight()
+	{
+		return SqlMaps.LIGHT;
+	}
+
+
+	public static StyleMap getXmlDark()
+	{
+		return XmlMaps.DARK;
+	}
+
+
+	public static StyleMap getXmlLight()
+	{
+		return XmlMaps.LIGHT;
+	}
+
+
+	public static StyleMap getText()
+	{
+		return TextMaps.DEFAULT;
+	}
 
 
 	public static StyleMap installJava(String aFontFamily, int aFontSize, String aVariant)
@@ -43,9 +86,11 @@ public class StyleMaps
 			styles.put(JavaSyntaxParser.INDENT_LINE, new Style(plain, new Color(70, 70, 70), bg, false, false, true, false));
 			styles.put(JavaSyntaxParser.KEYWORD, new Style(plain, new Color(204,120,50), bg, false, false, true, true));
 			styles.put(JavaSyntaxParser.LINE_BREAK, new Style(plain, new Color(70, 70, 70), bg, false, false, true, true));
+			styles.put(JavaSyntaxParser.LINE_NUMBER, new Style(plain, new Color(110, 110, 110), bg, false, false, true, false));
 			styles.put(JavaSyntaxParser.LITERAL_CHARACTER, new Style(plain, new Color(106, 135, 89), bg, false, false, true, false));
 			styles.put(JavaSyntaxParser.LITERAL_NUMERIC, new Style(plain, new Color(255, 0, 255), bg, false, false, true, true));
 			styles.put(JavaSyntaxParser.LITERAL_STRING, new Style(plain, new Color(30,123,175), bg, false, false, true, false));
+			styles.put(JavaSyntaxParser.MATCHING_BRACKET, new Style(plain, new Color(120, 120, 120), new Color(60, 60, 60), false, false, true, false));
 			styles.put(JavaSyntaxParser.METHOD_DECLARATION, new Style(plain, new Color(255, 198, 109), bg, false, false, true, true));
 			styles.put(JavaSyntaxParser.METHOD_USE, new Style(plain, new Color(157,135,55), bg, false, false, true, true));
 			styles.put(JavaSyntaxParser.OBJECT_TYPE, new Style(plain, new Color(152, 118, 170), bg, false, false, true, true));
@@ -72,9 +117,11 @@ public class StyleMaps
 			styles.put(JavaSyntaxParser.INDENT_LINE, new Style(plain, new Color(200, 200, 200), bg, false, false, true, false));
 			styles.put(JavaSyntaxParser.KEYWORD, new Style(plain, new Color(0, 0, 220), bg, false, false, true, true));
 			styles.put(JavaSyntaxParser.LINE_BREAK, new Style(plain, new Color(0, 0, 153), bg, false, false, true, true));
+			styles.put(JavaSyntaxParser.LINE_NUMBER, new Style(plain, new Color(150, 150, 150), bg, false, false, true, false));
 			styles.put(JavaSyntaxParser.LITERAL_CHARACTER, new Style(plain, new Color(0, 111, 0), bg, false, false, true, false));
 			styles.put(JavaSyntaxParser.LITERAL_NUMERIC, new Style(plain, new Color(200, 0, 200), bg, false, false, true, true));
 			styles.put(JavaSyntaxParser.LITERAL_STRING, new Style(plain, new Color(206, 123, 0), bg, false, false, true, false));
+			styles.put(JavaSyntaxParser.MATCHING_BRACKET, new Style(plain, new Color(160, 160, 160), new Color(220, 220, 220), false, false, true, false));
 			styles.put(JavaSyntaxParser.METHOD_DECLARATION, new Style(plain, new Color(155, 98, 109), bg, false, false, true, true));
 			styles.put(JavaSyntaxParser.METHOD_USE, new Style(plain, new Color(0, 153, 153), bg, false, false, true, true));
 			styles.put(JavaSyntaxParser.OBJECT_TYPE, new Style(plain, new Color(0, 0, 0), bg, true, false, true, true));
@@ -114,8 +161,10 @@ public class StyleMaps
 			styles.put(SqlSyntaxParser.JOIN, new Style(plain, new Color(255, 255, 255), bg, false, false, true, true));
 			styles.put(SqlSyntaxParser.KEYWORD, new Style(plain, new Color(255, 255, 255), bg, false, false, true, true));
 			styles.put(SqlSyntaxParser.LINE_BREAK, new Style(plain, new Color(70, 70, 70), bg, false, false, true, true));
+			styles.put(SqlSyntaxParser.LINE_NUMBER, new Style(plain, new Color(110, 110, 110), bg, false, false, true, false));
 			styles.put(SqlSyntaxParser.LITERAL_NUMERIC, new Style(plain, new Color(255, 50, 255), bg, false, false, true, true));
 			styles.put(SqlSyntaxParser.LITERAL_STRING, new Style(plain, new Color(156, 220, 255), bg, false, false, true, false));
+			styles.put(SqlSyntaxParser.MATCHING_BRACKET, new Style(plain, new Color(120, 120, 120), new Color(60, 60, 60), false, false, true, false));
 			styles.put(SqlSyntaxParser.OPERATOR, new Style(plain, new Color(255, 255, 255), bg, false, false, true, false));
 			styles.put(SqlSyntaxParser.OPERATOR, new Style(plain, new Color(255, 255, 255), bg, false, false, true, false));
 			styles.put(SqlSyntaxParser.OTHER, new Style(plain, new Color(86, 156, 214), bg, false, false, true, true));
@@ -141,8 +190,10 @@ public class StyleMaps
 			styles.put(SqlSyntaxParser.JOIN, new Style(plain, new Color(127, 127, 127), bg, false, false, true, true));
 			styles.put(SqlSyntaxParser.KEYWORD, new Style(plain, new Color(0, 0, 255), bg, false, false, true, true));
 			styles.put(SqlSyntaxParser.LINE_BREAK, new Style(plain, new Color(170, 170, 170), bg, false, false, true, false));
+			styles.put(SqlSyntaxParser.LINE_NUMBER, new Style(plain, new Color(150, 150, 150), bg, false, false, true, false));
 			styles.put(SqlSyntaxParser.LITERAL_NUMERIC, new Style(plain, new Color(255, 0, 255), bg, false, false, true, true));
 			styles.put(SqlSyntaxParser.LITERAL_STRING, new Style(plain, new Color(50, 100, 255), bg, false, false, true, false));
+			styles.put(SqlSyntaxParser.MATCHING_BRACKET, new Style(plain, new Color(160, 160, 160), new Color(220, 220, 220), false, false, true, false));
 			styles.put(SqlSyntaxParser.OPERATOR, new Style(plain, new Color(0, 0, 0), bg, false, false, true, false));
 			styles.put(SqlSyntaxParser.OTHER, new Style(plain, new Color(0, 0, 0), bg, false, false, true, true));
 			styles.put(SqlSyntaxParser.SEARCH_RESULT, new Style(plain, Color.WHITE, new Color(255, 255, 128), false, false, false, false));
@@ -177,6 +228,8 @@ public class StyleMaps
 			styles.put(XmlSyntaxParser.HIGHLIGHT_WORD, new Style(plain, new Color(170, 170, 170), new Color(59, 81, 77), false, false, true, false));
 			styles.put(XmlSyntaxParser.INDENT_LINE, new Style(plain, new Color(80, 80, 80), bg, false, false, true, false));
 			styles.put(XmlSyntaxParser.LINE_BREAK, new Style(plain, new Color(255, 255, 255), bg, false, false, true, false));
+			styles.put(XmlSyntaxParser.LINE_NUMBER, new Style(plain, new Color(110, 110, 110), bg, false, false, true, false));
+			styles.put(XmlSyntaxParser.MATCHING_BRACKET, new Style(plain, new Color(120, 120, 120), new Color(60, 60, 60), false, false, true, false));
 			styles.put(XmlSyntaxParser.NAMESPACE, new Style(plain, new Color(180, 0, 0), bg, false, false, true, true));
 			styles.put(XmlSyntaxParser.OPERATOR, new Style(plain, new Color(255, 255, 255), bg, false, false, true, false));
 			styles.put(XmlSyntaxParser.SEARCH_RESULT, new Style(plain, Color.WHITE, new Color(255, 255, 128), false, false, true, false));
@@ -200,6 +253,8 @@ public class StyleMaps
 			styles.put(XmlSyntaxParser.HIGHLIGHT_WORD, new Style(plain, Color.BLACK, new Color(225, 236, 247), false, false, true, false));
 			styles.put(XmlSyntaxParser.INDENT_LINE, new Style(plain, new Color(200, 200, 200), bg, false, false, true, false));
 			styles.put(XmlSyntaxParser.LINE_BREAK, new Style(plain, new Color(170, 170, 170), bg, false, false, true, false));
+			styles.put(XmlSyntaxParser.LINE_NUMBER, new Style(plain, new Color(150, 150, 150), bg, false, false, true, false));
+			styles.put(XmlSyntaxParser.MATCHING_BRACKET, new Style(plain, new Color(160, 160, 160), new Color(220, 220, 220), false, false, true, false));
 			styles.put(XmlSyntaxParser.NAMESPACE, new Style(plain, new Color(180, 0, 0), bg, false, false, true, true));
 			styles.put(XmlSyntaxParser.OPERATOR, new Style(plain, new Color(0, 102, 0), bg, false, false, true, false));
 			styles.put(XmlSyntaxParser.SEARCH_RESULT, new Style(plain, Color.WHITE, new Color(255, 255, 128), false, false, true, false));
@@ -227,6 +282,7 @@ public class StyleMaps
 		styles.put(TextSyntaxParser.HIGHLIGHT_WORD, new Style(plain, Color.BLACK, new Color(225, 236, 247), false, false, true, false));
 		styles.put(TextSyntaxParser.INDENT_LINE, new Style(plain, new Color(200, 200, 200), bg, false, false, true, false));
 		styles.put(TextSyntaxParser.LINE_BREAK, new Style(plain, new Color(170, 170, 170), bg, false, false, true, false));
+		styles.put(TextSyntaxParser.LINE_NUMBER, new Style(plain, new Color(150, 150, 150), bg, false, false, true, false));
 		styles.put(TextSyntaxParser.SEARCH_RESULT, new Style(plain, Color.WHITE, new Color(255, 255, 128), false, false, true, false));
 		styles.put(TextSyntaxParser.SELECTION, new Style(plain, Color.WHITE, new Color(173, 214, 255), false, false, false, false));
 		styles.put(TextSyntaxParser.TEXT, new Style(plain, Color.BLACK, bg, false, false, true, false));
@@ -234,4 +290,31 @@ public class StyleMaps
 
 		return styles;
 	}
-}
+
+
+	private static class JavaMaps
+	{
+		final static StyleMap DARK = installJava("monospaced", 14, "dark");
+		final static StyleMap LIGHT = installJava("monospaced", 14, "");
+	}
+
+
+	private static class SqlMaps
+	{
+		final static StyleMap DARK = installSql("monospaced", 14, "dark");
+		final static StyleMap LIGHT = installSql("monospaced", 14, "");
+	}
+
+
+	private static class XmlMaps
+	{
+		final static StyleMap DARK = installXml("monospaced", 14, "dark");
+		final static StyleMap LIGHT = installXml("monospaced", 14, "");
+	}
+
+
+	private static class TextMaps
+	{
+		final static StyleMap DEFAULT = installText("monospaced", 14, "");
+	}
+}
\ No newline at end of file
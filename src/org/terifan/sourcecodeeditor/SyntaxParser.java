@@ -35,9 +35,24 @@ public abstract class SyntaxParser implements Serializable
 	 */
 	public final static String HIGHLIGHT_WORD = "HIGHLIGHT_WORD";
 
+	/**
+	 * A style identifier which identifies the style used for parentheses, brackets and curly brackets. Only tokens with this style are
+	 * considered when matching brackets.
+	 */
+	public final static String BRACKETS = "BRACKETS";
+	/**
+	 * A style identifier which identifies the style used to highlight the bracket at the caret and its matching bracket. The background
+	 * color fills the bracket and the foreground color, if any, outlines it.
+	 */
+	public final static String MATCHING_BRACKET = "MATCHING_BRACKET";
+
 	public final static String CARET = "CARET";
 	public final static String HIGHLIGHT_CARET_ROW = "HIGHLIGHT_CARET_ROW";
 	public final static String INDENT_LINE = "INDENT_LINE";
+	/**
+	 * A style identifier which identifies the style used for the line numbers of a Gutter. The background color fills the gutter.
+	 */
+	public final static String LINE_NUMBER = "LINE_NUMBER";
 
 	/**
 	 * Initializes the parser and resets any internal state. This method is
@@ -56,6 +71,36 @@ public abstract class SyntaxParser implements Serializable
 	public abstract List<Token> parse(Document aDocument, int aRow, boolean aOptimizeTokens, boolean aOptimizeWhitespace);
 
 
+	/**
+	 * Returns the state carried over to the next line by the last call to parse. The state must be immutable and comparable using equals,
+	 * the initial state of a document is represented by null. Parsers not carrying any state between lines return null.
+	 *
+	 * @return
+	 *    the state at the end of the last parsed line
+	 */
+	public Object saveState()
+	{
+		return null;
+	}
+
+
+	/**
+	 * Prepares the parser to parse the row provided using a state previously returned by saveState. This is used instead of initialize
+	 * when the state at the end of the previous line is known. The default implementation calls initialize.
+	 *
+	 * @param aDocument
+	 *    The Document being tokenized.
+	 * @param aRow
+	 *    First line tokenized.
+	 * @param aState
+	 *    the state at the end of the line preceding aRow
+	 */
+	public void restoreState(Document aDocument, int aRow, Object aState)
+	{
+		initialize(aDocument, aRow);
+	}
+
+
 	public SyntaxParser newInstance()
 	{
 		try
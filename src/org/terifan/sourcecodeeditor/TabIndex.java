@@ -0,0 +1,168 @@
+package org.terifan.sourcecodeeditor;
+
+import java.util.Arrays;
+
+
+/**
+ * Converts between character offsets and virtual columns, columns with tabs expanded to the next tab stop, of the lines of a Document.
+ *
+ * The tabs of recently used lines are kept in a direct mapped cache indexed by row, an entry being valid as long as the line is the same
+ * String instance. Conversions are constant time for lines without tabs and logarithmic in the number of tabs otherwise.
+ */
+class TabIndex
+{
+	private final static int SIZE = 1024;
+	private final static Tabs NO_TABS = new Tabs(new int[0], new int[0], new int[0]);
+
+	private final String[] mLines;
+	private final Tabs[] mTabs;
+	private int mTabSize;
+
+
+	public TabIndex()
+	{
+		mLines = new String[SIZE];
+		mTabs = new Tabs[SIZE];
+	}
+
+
+	/**
+	 * Discards all entries if the tab size differs from the previous call.
+	 */
+	public void setTabSize(int aTabSize)
+	{
+		if (aTabSize != mTabSize)
+		{
+			Arrays.fill(mLines, null);
+			Arrays.fill(mTabs, null);
+			mTabSize = aTabSize;
+		}
+	}
+
+
+	/**
+	 * Returns the virtual column of a character offset. Offsets beyond the end of the line are assumed to be preceded by spaces.
+	 */
+	public int getVirtualColumn(String aLine, int aRow, int aOffset)
+	{
+		Tabs tabs = getTabs(aLine, aRow);
+		int k = lastTabBefore(tabs, aOffset);
+
+		if (k == -1)
+		{
+			return aOffset;
+		}
+
+		return tabs.mEnds[k] + aOffset - tabs.mPositions[k] - 1;
+	}
+
+
+	/**
+	 * Returns the character offset of a virtual column limited to the length of the line.
+	 *
+	 * @param aRoundUp
+	 *   a column within a tab returns the offset after the tab if true and the offset of the tab if false
+	 */
+	public int getCharacterOffset(String aLine, int aRow, int aColumn, boolean aRoundUp)
+	{
+		Tabs tabs = getTabs(aLine, aRow);
+		int k = lastTabStartingBefore(tabs, aColumn);
+		int offset;
+
+		if (k == -1)
+		{
+			offset = Math.max(aColumn, 0);
+		}
+		else if (aColumn < tabs.mEnds[k] && !aRoundUp)
+		{
+			offset = tabs.mPositions[k];
+		}
+		else
+		{
+			offset = tabs.mPositions[k] + 1 + Math.max(aColumn - tabs.mEnds[k], 0);
+		}
+
+		return Math.min(offset, aLine.length());
+	}
+
+
+	private Tabs getTabs(String aLine, int aRow)
+	{
+		int index = aRow & (SIZE - 1);
+
+		if (mLines[index] == aLine)
+		{
+			return mTabs[index];
+		}
+
+		Tabs tabs = NO_TABS;
+		int count = 0;
+
+		for (int i = aLine.indexOf('\t'); i != -1; i = aLine.indexOf('\t', i + 1))
+		{
+			count++;
+		}
+
+		if (count > 0)
+		{
+			tabs = new Tabs(new int[count], new int[count], new int[count]);
+
+			int column = 0;
+			int offset = 0;
+			int k = 0;
+
+			for (int i = aLine.indexOf('\t'); i != -1; i = aLine.indexOf('\t', i + 1), k++)
+			{
+				column += i - offset;
+				tabs.mPositions[k] = i;
+				tabs.mStarts[k] = column;
+				column = mTabSize * (column / mTabSize) + mTabSize;
+				tabs.mEnds[k] = column;
+				offset = i + 1;
+			}
+		}
+
+		mLines[index] = aLine;
+		mTabs[index] = tabs;
+
+		return tabs;
+	}
+
+
+	/**
+	 * Returns the index of the last tab positioned before the offset provided or -1.
+	 */
+	private static int lastTabBefore(Tabs aTabs, int aOffset)
+	{
+		int i = Arrays.binarySearch(aTabs.mPositions, aOffset);
+
+		return (i < 0 ? -i - 1 : i) - 1;
+	}
+
+
+	/**
+	 * Returns the index of the last tab starting at a virtual column before the column provided or -1.
+	 */
+	private static int lastTabStartingBefore(Tabs aTabs, int aColumn)
+	{
+		int i = Arrays.binarySearch(aTabs.mStarts, aColumn);
+
+		return (i < 0 ? -i - 1 : i) - 1;
+	}
+
+
+	private static class Tabs
+	{
+		final int[] mPositions;
+		final int[] mStarts; // virtual column of each tab
+		final int[] mEnds; // virtual column following each tab
+
+
+		Tabs(int[] aPositions, int[] aStarts, int[] aEnds)
+		{
+			mPositions = aPositions;
+			mStarts = aStarts;
+			mEnds = aEnds;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,338 @@
+package org.terifan.sourcecodeeditor;
+
+import java.awt.Point;
+import java.util.Arrays;
+
+
+/**
+ * Finds a literal string in the lines of a Document. Lines are scanned in place, case insensitive searches using the Boyer-Moore-Horspool
+ * algorithm with characters being case folded one at a time as they are compared, and whole words are checked by looking at the
+ * characters around a match. Case sensitive searches use String.indexOf which the JVM implements with vector instructions.
+ *
+ * The skip tables are indexed by the low eight bits of a folded character, characters sharing a slot skipping by the shortest distance
+ * of any of them, which keeps the tables small while remaining exact for text of any alphabet.
+ *
+ * When the document has a TrigramIndex only the lines it finds may contain a match are searched.
+ */
+public class TextSearch
+{
+	private final String mPattern;
+	private final char[] mFolded;
+	private final boolean mCaseSensitive;
+	private final boolean mWholeWordsOnly;
+	private final int[] mForwardSkip;
+	private final int[] mBackwardSkip;
+
+
+	public TextSearch(String aPattern, boolean aCaseSensitive, boolean aWholeWordsOnly)
+	{
+		if (aPattern == null || aPattern.isEmpty())
+		{
+			throw new IllegalArgumentException("Pattern is null or empty.");
+		}
+
+		mPattern = aPattern;
+		mCaseSensitive = aCaseSensitive;
+		mWholeWordsOnly = aWholeWordsOnly;
+
+		int length = aPattern.length();
+
+		mFolded = new char[length];
+		for (int i = 0; i < length; i++)
+		{
+			mFolded[i] = fold(aPattern.charAt(i));
+		}
+
+		// the distance from the last character of the pattern to the nearest preceding occurrence of a character and, scanning
+		// backwards, from the first character to the nearest following occurrence
+		mForwardSkip = new int[256];
+		mBackwardSkip = new int[256];
+		Arrays.fill(mForwardSkip, length);
+		Arrays.fill(mBackwardSkip, length);
+
+		for (int i = 0; i < length - 1; i++)
+		{
+			mForwardSkip[mFolded[i] & 0xff] = length - 1 - i;
+		}
+		for (int i = length; --i > 0;)
+		{
+			mBackwardSkip[mFolded[i] & 0xff] = i;
+		}
+	}
+
+
+	public String getPattern()
+	{
+		return mPattern;
+	}
+
+
+	public int length()
+	{
+		return mFolded.length;
+	}
+
+
+	/**
+	 * Returns the column of the first match in a text starting at or after the column provided or -1 if none.
+	 */
+	public int indexOf(String aText, int aFromIndex)
+	{
+		if (mCaseSensitive)
+		{
+			for (int i = aText.indexOf(mPattern, aFromIndex); i != -1; i = aText.indexOf(mPattern, i + 1))
+			{
+				if (isWholeWord(aText, i))
+				{
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		return indexOf((CharSequence)aText, aFromIndex);
+	}
+
+
+	/**
+	 * Returns the index of the first match in a character sequence, e.g. the text of a file, starting at or after the index provided or -1
+	 * if none.
+	 */
+	public int indexOf(CharSequence aText, int aFromIndex)
+	{
+		int length = mFolded.length;
+		int last = length - 1;
+		char lastChar = mFolded[last];
+
+		for (int i = Math.max(aFromIndex, 0), end = aText.length() - length; i <= end; )
+		{
+			char c = fold(aText.charAt(i + last));
+
+			if (c == lastChar && matches(aText, i, last) && isWholeWord(aText, i))
+			{
+				return i;
+			}
+
+			i += mForwardSkip[c & 0xff];
+		}
+
+		return -1;
+	}
+
+
+	/**
+	 * Returns the column of the last match in a text starting at or before the column provided or -1 if none.
+	 */
+	public int lastIndexOf(String aText, int aFromIndex)
+	{
+		if (mCaseSensitive)
+		{
+			for (int i = aText.lastIndexOf(mPattern, aFromIndex); i != -1; i = aText.lastIndexOf(mPattern, i - 1))
+			{
+				if (isWholeWord(aText, i))
+				{
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		char firstChar = mFolded[0];
+
+		for (int i = Math.min(aFromIndex, aText.length() - mFolded.length); i >= 0; )
+		{
+			char c = fold(aText.charAt(i));
+
+			if (c == firstChar && matches(aText, i, mFolded.length) && isWholeWord(aText, i))
+			{
+				return i;
+			}
+
+			i -= mBackwardSkip[c & 0xff];
+		}
+
+		return -1;
+	}
+
+
+	/**
+	 * Returns the position of the first match starting at or after the position provided, continuing from the first line when the end of
+	 * the document is reached if aWrap is true. Returns null if there is no match.
+	 */
+	public Point findNext(Document aDocument, int aColumn, int aLine, boolean aWrap)
+	{
+		int lineCount = aDocument.getLineCount();
+		int[] candidates = getCandidateLines(aDocument);
+
+		if (candidates != null && candidates.length == 0)
+		{
+			return null;
+		}
+
+		for (int i = 0; i <= lineCount; i++)
+		{
+			int line = aLine + i;
+
+			if (line >= lineCount)
+			{
+				if (!aWrap)
+				{
+					break;
+				}
+				line -= lineCount;
+			}
+
+			int skip = candidates == null ? 0 : TrigramIndex.distanceToNext(candidates, line, lineCount);
+			if (skip > 0)
+			{
+				i += skip - 1;
+				continue;
+			}
+
+			String text = aDocument.getLine(line);
+			int column = indexOf(text, i == 0 ? aColumn : 0);
+
+			// the start line is searched again after wrapping, up to the starting column
+			if (column != -1 && (i < lineCount || column < aColumn))
+			{
+				return new Point(column, line);
+			}
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * Returns the position of the last match starting before the position provided, continuing from the last line when the start of the
+	 * document is reached if aWrap is true. Returns null if there is no match.
+	 */
+	public Point findPrevious(Document aDocument, int aColumn, int aLine, boolean aWrap)
+	{
+		int lineCount = aDocument.getLineCount();
+		int[] candidates = getCandidateLines(aDocument);
+
+		if (candidates != null && candidates.length == 0)
+		{
+			return null;
+		}
+
+		for (int i = 0; i <= lineCount; i++)
+		{
+			int line = aLine - i;
+
+			if (line < 0)
+			{
+				if (!aWrap)
+				{
+					break;
+				}
+				line += lineCount;
+			}
+
+			int skip = candidates == null ? 0 : TrigramIndex.distanceToPrevious(candidates, line, lineCount);
+			if (skip > 0)
+			{
+				i += skip - 1;
+				continue;
+			}
+
+			String text = aDocument.getLine(line);
+			int column = lastIndexOf(text, i == 0 ? aColumn - 1 : text.length());
+
+			if (column != -1 && (i < lineCount || column >= aColumn))
+			{
+				return new Point(column, line);
+			}
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * Replaces every match between two positions of a document as a single change to the document.
+	 *
+	 * @return
+	 *   the number of matches replaced
+	 */
+	public int replaceAll(Document aDocument, Point aStart, Point aEnd, String aReplacement)
+	{
+		BatchReplace batch = new BatchReplace(aDocument);
+		int length = mFolded.length;
+		int[] candidates = getCandidateLines(aDocument);
+
+		for (int line = aStart.y; line <= aEnd.y && (candidates == null || candidates.length > 0); line++)
+		{
+			int skip = candidates == null ? 0 : TrigramIndex.distanceToNext(candidates, line, aDocument.getLineCount());
+			if (skip > 0)
+			{
+				line += skip - 1;
+				continue;
+			}
+
+			String text = aDocument.getLine(line);
+			int end = line == aEnd.y ? aEnd.x : text.length();
+
+			for (int column = indexOf(text, line == aStart.y ? aStart.x : 0); column != -1 && column + length <= end; column = indexOf(text, column + length))
+			{
+				batch.replace(column, line, column + length, line, aReplacement);
+			}
+		}
+
+		return batch.apply();
+	}
+
+
+	/**
+	 * Returns the lines that may contain a match according to the TrigramIndex of a document or null if all lines must be searched.
+	 */
+	private int[] getCandidateLines(Document aDocument)
+	{
+		TrigramIndex index = aDocument.getTrigramIndex();
+
+		return index == null ? null : index.getCandidateLines(this);
+	}
+
+
+	private boolean matches(CharSequence aText, int aOffset, int aLength)
+	{
+		for (int i = 0; i < aLength; i++)
+		{
+			if (fold(aText.charAt(aOffset + i)) != mFolded[i])
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+
+	private boolean isWholeWord(CharSequence aText, int aOffset)
+	{
+		if (!mWholeWordsOnly)
+		{
+			return true;
+		}
+
+		int end = aOffset + mFolded.length;
+
+		return (aOffset == 0 || !Character.isLetter(aText.charAt(aOffset - 1))) && (end == aText.length() || !Character.isLetter(aText.charAt(end)));
+	}
+
+
+	private char fold(char aChar)
+	{
+		if (mCaseSensitive)
+		{
+			return aChar;
+		}
+		if (aChar < 128)
+		{
+			return aChar >= 'A' && aChar <= 'Z' ? (char)(aChar + 32) : aChar;
+		}
+
+		return Character.toLowerCase(Character.toUpperCase(aChar));
+	}
+}
\ No newline at end of file
@@ -0,0 +1,19 @@
+package org.terifan.sourcecodeeditor;
+
+import java.util.List;
+
+
+/**
+ * Receives the tokens of the lines tokenized by a TokenizationContext, allowing an index built from tokens to share the tokenization of
+ * the lines painted rather than tokenizing them again.
+ */
+interface TokenListener
+{
+	/**
+	 * Called when all tokens of a line have been produced. The tokens are shared and must not be modified.
+	 *
+	 * @param aStartState
+	 *   the parser state at the start of the line, the tokens being the same as long as the text and the state are unchanged
+	 */
+	void lineTokenized(int aRow, List<Token> aTokens, Object aStartState);
+}
\ No newline at end of file
@@ -0,0 +1,556 @@
+package org.terifan.sourcecodeeditor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+
+/**
+ * The single source of tokens for a SourceEditor. Each line is tokenized once into a canonical stream of fine grained tokens, one token
+ * per space and tab, and the coarser runs used when painting are derived from it by merging adjacent tokens.
+ *
+ * Merging spaces also joins the words of a comment, matching the tokens a SyntaxParser produces when asked to optimize tokens.
+ *
+ * The parser state at the start and end of every line is recorded which allows any line to be tokenized in isolation using
+ * SyntaxParser.restoreState. A line is tokenized again only when its text or its start state changes. Token lists are kept in a
+ * bounded cache of recently used lines while the states, being small and mostly shared, are kept for all lines.
+ *
+ * Lines longer than LONG_LINE_LENGTH are tokenized in chunks of about CHUNK_LENGTH characters, every chunk parsed as a line of its own
+ * starting in the parser state at the end of the previous chunk. Only the chunks overlapping the columns requested are tokenized and the
+ * state at the end of the line is computed when the lines following it are tokenized. Chunks end after whitespace or punctuation where
+ * possible since a parser may not carry every construct, a string literal or a line comment, across the end of a line.
+ *
+ * Token lists returned by this class are shared and must not be modified. A TokenListener is handed the tokens of every line as it is
+ * tokenized in full.
+ */
+class TokenizationContext implements DocumentListener
+{
+	final static int LONG_LINE_LENGTH = 8192;
+	private final static int CHUNK_LENGTH = 1024;
+	private final static int CHUNK_SLACK = 256;
+	private final static int CHUNK_CACHE_SIZE = 64;
+	private final static int CACHE_SIZE = 2048;
+	private final static Object UNKNOWN_STATE = new Object();
+	private final static Object PENDING_STATE = new Object();
+
+	private final Document mDocument;
+	private final SyntaxParser mSyntaxParser;
+	private final ArrayList<Line> mLines;
+	private final LinkedHashMap<Line, Tokens> mCache;
+	private final Document mChunkDocument;
+	private int mValidLines;
+	private Object mChangeEndState;
+	private TokenListener mTokenListener;
+
+
+	public TokenizationContext(Document aDocument, SyntaxParser aSyntaxParser)
+	{
+		mDocument = aDocument;
+		mSyntaxParser = aSyntaxParser.newInstance();
+		mLines = new ArrayList<>(Collections.nCopies(aDocument.getLineCount(), (Line)null));
+		mChunkDocument = new Document();
+		mCache = new LinkedHashMap<>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Line, Tokens> aEldest)
+			{
+				return size() > CACHE_SIZE;
+			}
+		};
+	}
+
+
+	public synchronized void setTokenListener(TokenListener aTokenListener)
+	{
+		mTokenListener = aTokenListener;
+	}
+
+
+	/**
+	 * Returns the canonical tokens of a line, every space and tab being a token of its own.
+	 */
+	public synchronized List<Token> getTokens(int aRow)
+	{
+		return getEntry(aRow).mTokens;
+	}
+
+
+	/**
+	 * Returns the parser state at the end of a line, equal for two lines when the lines following them are tokenized alike.
+	 */
+	public synchronized Object getEndState(int aRow)
+	{
+		if (aRow < 0 || aRow >= mLines.size())
+		{
+			throw new IllegalArgumentException("Row out of bounds: " + aRow);
+		}
+
+		validate(aRow);
+
+		return getEndState(mLines.get(aRow));
+	}
+
+
+	/**
+	 * Returns the tokens of a line merged into runs suitable for painting.
+	 *
+	 * @param aMergeSpaces
+	 *   spaces are appended to the preceding token unless it starts with a tab
+	 * @param aMergeWhitespace
+	 *   all whitespace following a tab is merged into a single token
+	 */
+	public synchronized List<Token> getRuns(int aRow, boolean aMergeSpaces, boolean aMergeWhitespace)
+	{
+		Tokens entry = getEntry(aRow);
+
+		if (!aMergeSpaces && !aMergeWhitespace)
+		{
+			return entry.mTokens;
+		}
+
+		int flags = (aMergeSpaces ? 1 : 0) | (aMergeWhitespace ? 2 : 0);
+
+		if (entry.mRuns == null || entry.mRunFlags != flags)
+		{
+			entry.mRuns = merge(entry.mTokens, aMergeSpaces, aMergeWhitespace);
+			entry.mRunFlags = flags;
+		}
+
+		return entry.mRuns;
+	}
+
+
+	/**
+	 * Returns true if the line is tokenized in chunks.
+	 */
+	public boolean isLongLine(int aRow)
+	{
+		return mDocument.getLineLength(aRow) > LONG_LINE_LENGTH;
+	}
+
+
+	/**
+	 * Returns the tokens of a line overlapping a range of columns, or all tokens of lines not tokenized in chunks.
+	 */
+	public synchronized List<Token> getTokens(int aRow, int aStartColumn, int aEndColumn)
+	{
+		if (!isLongLine(aRow))
+		{
+			return getTokens(aRow);
+		}
+
+		validate(aRow);
+
+		Line line = mLines.get(aRow);
+		int[] starts = line.mLongLine.mStarts;
+		int last = starts.length - 2;
+		int first = Math.min(Math.max(LineLayoutCache.findPosition(starts, aStartColumn), 0), last);
+		int end = Math.min(Math.max(LineLayoutCache.findPosition(starts, Math.max(aEndColumn - 1, aStartColumn)), first), last);
+
+		if (first == end)
+		{
+			return getChunkTokens(line, first);
+		}
+
+		ArrayList<Token> tokens = new ArrayList<>();
+		for (int chunk = first; chunk <= end; chunk++)
+		{
+			tokens.addAll(getChunkTokens(line, chunk));
+		}
+
+		return tokens;
+	}
+
+
+	/**
+	 * Returns the tokens of a line overlapping a range of columns merged into runs suitable for painting, see getRuns.
+	 */
+	public synchronized List<Token> getRuns(int aRow, int aStartColumn, int aEndColumn, boolean aMergeSpaces, boolean aMergeWhitespace)
+	{
+		if (!isLongLine(aRow))
+		{
+			return getRuns(aRow, aMergeSpaces, aMergeWhitespace);
+		}
+
+		List<Token> tokens = getTokens(aRow, aStartColumn, aEndColumn);
+
+		return aMergeSpaces || aMergeWhitespace ? merge(tokens, aMergeSpaces, aMergeWhitespace) : tokens;
+	}
+
+
+	/**
+	 * Returns the column of the start of every chunk of a line tokenized in chunks followed by the length of the line. The array is the
+	 * same instance as long as the text and the parser state at the start of the line are unchanged.
+	 */
+	public synchronized int[] getChunkStarts(int aRow)
+	{
+		if (!isLongLine(aRow))
+		{
+			throw new IllegalArgumentException("Line is not tokenized in chunks: " + aRow);
+		}
+
+		validate(aRow);
+
+		return mLines.get(aRow).mLongLine.mStarts;
+	}
+
+
+	@Override
+	public synchronized void documentChanged(DocumentEvent aEvent)
+	{
+		int firstLine = aEvent.getFirstLine();
+		int lastRemoved = firstLine + aEvent.getRemovedLineCount() - 1;
+		List<Line> removed = mLines.subList(firstLine, lastRemoved + 1);
+
+		mChangeEndState = lastRemoved >= firstLine && lastRemoved < mValidLines ? mLines.get(lastRemoved).mEndState : UNKNOWN_STATE;
+
+		if (mChangeEndState == PENDING_STATE)
+		{
+			mChangeEndState = UNKNOWN_STATE;
+		}
+
+		for (Line line : removed)
+		{
+			if (line != null)
+			{
+				mCache.remove(line);
+			}
+		}
+
+		removed.clear();
+		mLines.addAll(firstLine, Collections.nCopies(aEvent.getInsertedLineCount(), (Line)null));
+
+		mValidLines = Math.min(mValidLines, firstLine);
+	}
+
+
+	/**
+	 * Returns true if the parser state at the end of the line provided, the last line inserted by the most recent change, is the same as
+	 * before the change meaning the lines following it are tokenized as before. Lines not tokenized before the change return false.
+	 */
+	public synchronized boolean isChangeContained(int aLastLine)
+	{
+		if (mChangeEndState == UNKNOWN_STATE)
+		{
+			return false;
+		}
+
+		validate(aLastLine);
+
+		Object endState = mLines.get(aLastLine).mEndState;
+
+		// the state at the end of a line tokenized in chunks is computed only when needed
+		return endState != PENDING_STATE && Objects.equals(endState, mChangeEndState);
+	}
+
+
+	private Tokens getEntry(int aRow)
+	{
+		if (aRow < 0 || aRow >= mLines.size())
+		{
+			throw new IllegalArgumentException("Row out of bounds: " + aRow);
+		}
+
+		validate(aRow);
+
+		Line line = mLines.get(aRow);
+		Tokens entry = mCache.get(line);
+
+		if (entry == null)
+		{
+			entry = line.mLongLine != null ? tokenizeLongLine(aRow, line) : tokenize(aRow, line);
+		}
+
+		return entry;
+	}
+
+
+	/**
+	 * Ensures the start states of all lines up to and including the row provided are current. Lines with unchanged text and start state
+	 * are kept as they are, other lines are tokenized again.
+	 */
+	private void validate(int aRow)
+	{
+		for (int row = mValidLines; row <= aRow; row++)
+		{
+			Object state = row == 0 ? null : getEndState(mLines.get(row - 1));
+			String text = mDocument.getLine(row);
+			Line line = mLines.get(row);
+
+			if (line == null || line.mText != text || !Objects.equals(line.mStartState, state))
+			{
+				Line oldLine = line;
+				line = new Line(text, state);
+				mLines.set(row, line);
+
+				if (oldLine != null)
+				{
+					mCache.remove(oldLine);
+				}
+
+				if (text.length() > LONG_LINE_LENGTH)
+				{
+					line.mLongLine = new LongLine(text, state);
+					line.mEndState = PENDING_STATE;
+				}
+				else
+				{
+					tokenize(row, line);
+				}
+			}
+
+			mValidLines = row + 1;
+		}
+	}
+
+
+	private Tokens tokenize(int aRow, Line aLine)
+	{
+		mSyntaxParser.restoreState(mDocument, aRow, aLine.mStartState);
+
+		Tokens entry = new Tokens(mSyntaxParser.parse(mDocument, aRow, false, false));
+
+		aLine.mEndState = mSyntaxParser.saveState();
+		mCache.put(aLine, entry);
+
+		if (mTokenListener != null)
+		{
+			mTokenListener.lineTokenized(aRow, entry.mTokens, aLine.mStartState);
+		}
+
+		return entry;
+	}
+
+
+	private Object getEndState(Line aLine)
+	{
+		if (aLine.mEndState == PENDING_STATE)
+		{
+			LongLine longLine = aLine.mLongLine;
+			lexChunks(aLine, longLine.mStarts.length - 1);
+			aLine.mEndState = longLine.mStates[longLine.mStarts.length - 1];
+		}
+
+		return aLine.mEndState;
+	}
+
+
+	/**
+	 * Concatenates the tokens of all chunks of a line.
+	 */
+	private Tokens tokenizeLongLine(int aRow, Line aLine)
+	{
+		ArrayList<Token> tokens = new ArrayList<>();
+
+		for (int chunk = 0, n = aLine.mLongLine.mStarts.length - 1; chunk < n; chunk++)
+		{
+			tokens.addAll(getChunkTokens(aLine, chunk));
+		}
+
+		Tokens entry = new Tokens(tokens);
+		getEndState(aLine);
+		mCache.put(aLine, entry);
+
+		if (mTokenListener != null)
+		{
+			mTokenListener.lineTokenized(aRow, tokens, aLine.mStartState);
+		}
+
+		return entry;
+	}
+
+
+	private List<Token> getChunkTokens(Line aLine, int aChunk)
+	{
+		lexChunks(aLine, aChunk);
+
+		List<Token> tokens = aLine.mLongLine.mTokens.get(aChunk);
+
+		if (tokens == null)
+		{
+			tokens = parseChunk(aLine, aChunk);
+		}
+
+		return tokens;
+	}
+
+
+	/**
+	 * Parses the chunks of a line preceding the chunk provided whose end state isn't known.
+	 */
+	private void lexChunks(Line aLine, int aChunk)
+	{
+		LongLine longLine = aLine.mLongLine;
+
+		while (longLine.mLexedChunks < aChunk)
+		{
+			parseChunk(aLine, longLine.mLexedChunks);
+		}
+	}
+
+
+	private List<Token> parseChunk(Line aLine, int aChunk)
+	{
+		LongLine longLine = aLine.mLongLine;
+		int start = longLine.mStarts[aChunk];
+
+		mChunkDocument.replaceLine(0, aLine.mText.substring(start, longLine.mStarts[aChunk + 1]));
+		mSyntaxParser.restoreState(mChunkDocument, 0, longLine.mStates[aChunk]);
+
+		List<Token> parsed = mSyntaxParser.parse(mChunkDocument, 0, false, false);
+		ArrayList<Token> tokens = new ArrayList<>(parsed.size());
+
+		for (Token token : parsed)
+		{
+			tokens.add(new Token(token.getText(), token.getStyle(), token.getOffset() + start, token.isComment()));
+		}
+
+		if (aChunk == longLine.mLexedChunks)
+		{
+			longLine.mStates[aChunk + 1] = mSyntaxParser.saveState();
+			longLine.mLexedChunks++;
+		}
+
+		longLine.mTokens.put(aChunk, tokens);
+
+		return tokens;
+	}
+
+
+	private static List<Token> merge(List<Token> aTokens, boolean aMergeSpaces, boolean aMergeWhitespace)
+	{
+		ArrayList<Token> runs = new ArrayList<>(aTokens.size());
+		Token run = null;
+		StringBuilder text = new StringBuilder();
+
+		for (Token token : aTokens)
+		{
+			if (run != null)
+			{
+				String s = token.getText();
+				boolean space = s.equals(" ");
+				boolean merge;
+
+				if (run.getText().charAt(0) == '\t')
+				{
+					merge = aMergeWhitespace && (space || s.equals("\t"));
+				}
+				else
+				{
+					merge = aMergeSpaces && (space || run.isComment() && token.isComment() && s.charAt(0) != '\t' && run.getStyle().equals(token.getStyle()));
+				}
+
+				if (merge)
+				{
+					text.append(s);
+					continue;
+				}
+
+				runs.add(text.length() == run.length() ? run : new Token(text.toString(), run.getStyle(), run.getOffset(), run.isComment()));
+			}
+
+			run = token;
+			text.setLength(0);
+			text.append(token.getText());
+		}
+
+		if (run != null)
+		{
+			runs.add(text.length() == run.length() ? run : new Token(text.toString(), run.getStyle(), run.getOffset(), run.isComment()));
+		}
+
+		return runs;
+	}
+
+
+	private static class Line
+	{
+		final String mText;
+		final Object mStartState;
+		Object mEndState;
+		LongLine mLongLine;
+
+
+		Line(String aText, Object aStartState)
+		{
+			mText = aText;
+			mStartState = aStartState;
+		}
+	}
+
+
+	private static class Tokens
+	{
+		final List<Token> mTokens;
+		List<Token> mRuns;
+		int mRunFlags;
+
+
+		Tokens(List<Token> aTokens)
+		{
+			mTokens = aTokens;
+		}
+	}
+
+
+	private static class LongLine
+	{
+		final int[] mStarts; // column of the start of every chunk followed by the length of the line
+		final Object[] mStates; // parser state at the start of every chunk followed by the state at the end of the line
+		final LinkedHashMap<Integer, List<Token>> mTokens;
+		int mLexedChunks; // chunks whose end state is known
+
+
+		LongLine(String aText, Object aStartState)
+		{
+			mStarts = findChunkStarts(aText);
+			mStates = new Object[mStarts.length];
+			mStates[0] = aStartState;
+			mTokens = new LinkedHashMap<>(16, 0.75f, true)
+			{
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Integer, List<Token>> aEldest)
+				{
+					return size() > CHUNK_CACHE_SIZE;
+				}
+			};
+		}
+
+
+		/**
+		 * Splits a line into chunks ending after whitespace or punctuation close to CHUNK_LENGTH characters.
+		 */
+		private static int[] findChunkStarts(String aText)
+		{
+			int length = aText.length();
+			int[] starts = new int[length / (CHUNK_LENGTH - CHUNK_SLACK) + 2];
+			int count = 1;
+
+			for (int start = 0; length - start > CHUNK_LENGTH; )
+			{
+				int end = start + CHUNK_LENGTH;
+				int position = end;
+
+				while (position > end - CHUNK_SLACK && " \t,;>".indexOf(aText.charAt(position - 1)) == -1)
+				{
+					position--;
+				}
+				if (position == end - CHUNK_SLACK)
+				{
+					position = end;
+				}
+
+				starts[count++] = position;
+				start = position;
+			}
+
+			starts[count++] = length;
+
+			return Arrays.copyOf(starts, count);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,630 @@
+package org.terifan.sourcecodeeditor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import javax.swing.SwingUtilities;
+
+
+/**
+ * An index of the case folded three character sequences, trigrams, of the lines of a Document used to narrow searches to the lines that
+ * contain every trigram of the text searched for. Lines found are candidates, the search itself still verifies every match.
+ *
+ * Every line indexed is given an id and the index holds a posting list per trigram of the ids of the lines containing it, encoded as
+ * variable length deltas. A line changed is given a new id, larger than any before, which is appended to the lists of its trigrams while
+ * the id of the line it replaces is simply forgotten, making updates cheap. The index is rebuilt by a background thread when a document is
+ * loaded, when many lines change at once and when the ids forgotten outnumber the lines, searches not being narrowed until the first
+ * build completes. Changes made to the document during a build are replayed on the new index once the build completes.
+ */
+public class TrigramIndex implements DocumentListener
+{
+	private final static int REBUILD_LINE_COUNT = 10_000;
+	private final static int[] NO_LINES = {};
+
+	private final Document mDocument;
+	private Table mTable;
+	private Builder mBuilder;
+	private ArrayList<DocumentEvent> mPendingEvents;
+	private List<String> mCachedLiterals;
+	private int[] mCachedLines;
+
+
+	TrigramIndex(Document aDocument)
+	{
+		mDocument = aDocument;
+
+		build();
+	}
+
+
+	/**
+	 * Returns true when the index has been built and searches are narrowed.
+	 */
+	public boolean isReady()
+	{
+		return mTable != null;
+	}
+
+
+	/**
+	 * Returns the number of distinct trigrams indexed.
+	 */
+	public int getTrigramCount()
+	{
+		return mTable == null ? 0 : mTable.mSize;
+	}
+
+
+	/**
+	 * Returns the approximate number of bytes of memory used by the index, or zero until the index has been built. An index being rebuilt in
+	 * the background is not included until it replaces the current index, as its tables are changing on the thread building it.
+	 */
+	public long getMemoryUsage()
+	{
+		return mTable == null ? 0 : mTable.getMemoryUsage();
+	}
+
+
+	/**
+	 * Returns the lines, in ascending order, that may contain a match of a search, or null if the search cannot be narrowed, i.e. the
+	 * index is not ready, the string searched for is shorter than three characters or most lines may contain a match.
+	 */
+	public int[] getCandidateLines(TextSearch aTextSearch)
+	{
+		return getCandidateLines(List.of(aTextSearch.getPattern()));
+	}
+
+
+	/**
+	 * Returns the lines, in ascending order, that may contain a match of a regular expression, or null if the search cannot be narrowed,
+	 * i.e. the index is not ready, matches may span lines, the expression has no literal text of three or more characters that every match
+	 * must contain or most lines may contain a match.
+	 */
+	public int[] getCandidateLines(RegexSearch aRegexSearch)
+	{
+		return aRegexSearch.isMultiLine() ? null : getCandidateLines(aRegexSearch.getRequiredLiterals());
+	}
+
+
+	/**
+	 * Returns the candidate lines of the literals provided, the lines of the last call being reused until the index changes as searches
+	 * for the next match call this repeatedly.
+	 */
+	private int[] getCandidateLines(List<String> aLiterals)
+	{
+		if (mTable == null || mTable.mLineCount != mDocument.getLineCount())
+		{
+			return null;
+		}
+
+		if (!aLiterals.equals(mCachedLiterals))
+		{
+			mCachedLines = findCandidateLines(aLiterals);
+			mCachedLiterals = aLiterals;
+		}
+
+		return mCachedLines;
+	}
+
+
+	private int[] findCandidateLines(List<String> aLiterals)
+	{
+		ArrayList<Integer> slots = new ArrayList<>();
+
+		for (String literal : aLiterals)
+		{
+			for (int i = 0; i + 3 <= literal.length(); i++)
+			{
+				int slot = mTable.find(key(literal, i));
+
+				if (slot == -1)
+				{
+					return NO_LINES;
+				}
+				if (!slots.contains(slot))
+				{
+					slots.add(slot);
+				}
+			}
+		}
+
+		if (slots.isEmpty())
+		{
+			return null;
+		}
+
+		// the shortest lists first, most lines being ruled out early
+		slots.sort((a, b) -> Integer.compare(mTable.mLengths[a], mTable.mLengths[b]));
+
+		BitSet ids = mTable.decode(slots.get(0), new BitSet(mTable.mNextId));
+		BitSet temp = new BitSet(mTable.mNextId);
+
+		for (int i = 1; i < slots.size() && !ids.isEmpty(); i++)
+		{
+			temp.clear();
+			ids.and(mTable.decode(slots.get(i), temp));
+		}
+
+		if (ids.isEmpty())
+		{
+			return NO_LINES;
+		}
+
+		// skipping a few lines costs more than searching them
+		if (ids.cardinality() > mTable.mLineCount / 2)
+		{
+			return null;
+		}
+
+		int[] lines = new int[ids.cardinality()];
+		int count = 0;
+
+		for (int line = 0; line < mTable.mLineCount; line++)
+		{
+			if (ids.get(mTable.mLineIds[line]))
+			{
+				lines[count++] = line;
+			}
+		}
+
+		return count == lines.length ? lines : Arrays.copyOf(lines, count);
+	}
+
+
+	/**
+	 * Returns the number of lines from a line to the next candidate line, continuing from the first line after the last line, 0 if the line
+	 * is a candidate. At least one line must be a candidate.
+	 */
+	static int distanceToNext(int[] aCandidates, int aLine, int aLineCount)
+	{
+		int i = Arrays.binarySearch(aCandidates, aLine);
+
+		if (i >= 0)
+		{
+			return 0;
+		}
+
+		i = -i - 1;
+
+		return i < aCandidates.length ? aCandidates[i] - aLine : aCandidates[0] + aLineCount - aLine;
+	}
+
+
+	/**
+	 * Returns the number of lines from a line to the previous candidate line, continuing from the last line before the first line, 0 if the
+	 * line is a candidate. At least one line must be a candidate.
+	 */
+	static int distanceToPrevious(int[] aCandidates, int aLine, int aLineCount)
+	{
+		int i = Arrays.binarySearch(aCandidates, aLine);
+
+		if (i >= 0)
+		{
+			return 0;
+		}
+
+		i = -i - 2;
+
+		return i >= 0 ? aLine - aCandidates[i] : aLine + aLineCount - aCandidates[aCandidates.length - 1];
+	}
+
+
+	/**
+	 * Stops building the index in the background.
+	 */
+	void stop()
+	{
+		if (mBuilder != null)
+		{
+			mBuilder.mCancelled = true;
+			mBuilder = null;
+		}
+	}
+
+
+	@Override
+	public void documentChanged(DocumentEvent aEvent)
+	{
+		mCachedLiterals = null;
+
+		if (aEvent.getInsertedLineCount() > REBUILD_LINE_COUNT)
+		{
+			mTable = null;
+			build();
+			return;
+		}
+
+		if (mBuilder != null)
+		{
+			mPendingEvents.add(aEvent);
+		}
+
+		if (mTable != null)
+		{
+			mTable.replaceLines(aEvent.getFirstLine(), aEvent.getRemovedLineCount(), aEvent.getInsertedLineCount());
+			mTable.addDirtyLines(mDocument, aEvent.getFirstLine(), aEvent.getFirstLine() + aEvent.getInsertedLineCount());
+
+			if (mBuilder == null && mTable.mDeadIdCount > Math.max(mTable.mLineCount, REBUILD_LINE_COUNT))
+			{
+				build();
+			}
+		}
+	}
+
+
+	/**
+	 * Starts a background thread indexing a snapshot of the lines of the document, the current index remaining in use until it completes.
+	 */
+	private void build()
+	{
+		stop();
+
+		mPendingEvents = new ArrayList<>();
+		mBuilder = new Builder(mDocument.getLines());
+
+		Thread thread = new Thread(mBuilder, "Trigram index");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+
+	private void buildCompleted(Builder aBuilder, Table aTable)
+	{
+		if (aBuilder != mBuilder)
+		{
+			return;
+		}
+
+		mBuilder = null;
+
+		for (DocumentEvent event : mPendingEvents)
+		{
+			aTable.replaceLines(event.getFirstLine(), event.getRemovedLineCount(), event.getInsertedLineCount());
+		}
+		mPendingEvents = null;
+
+		aTable.addDirtyLines(mDocument, 0, aTable.mLineCount);
+
+		mTable = aTable;
+		mCachedLiterals = null;
+	}
+
+
+	/**
+	 * Returns a trigram of a string as a number, the characters being case folded.
+	 */
+	private static long key(CharSequence aText, int aOffset)
+	{
+		return ((long)fold(aText.charAt(aOffset)) << 32) | ((long)fold(aText.charAt(aOffset + 1)) << 16) | fold(aText.charAt(aOffset + 2));
+	}
+
+
+	private static char fold(char aChar)
+	{
+		if (aChar < 128)
+		{
+			return aChar >= 'A' && aChar <= 'Z' ? (char)(aChar + 32) : aChar;
+		}
+
+		return Character.toLowerCase(Character.toUpperCase(aChar));
+	}
+
+
+	/**
+	 * The posting lists, kept in an open addressing hash table of trigrams, and the ids of the lines of the document.
+	 */
+	private static class Table
+	{
+		private final static int DIRTY = -1;
+		private final static long EMPTY = -1;
+
+		private long[] mKeys;
+		private byte[][] mPostings;
+		private int[] mLengths;
+		private int[] mLastIds;
+		private int mSize;
+		private int[] mLineIds;
+		private int mLineCount;
+		private int mNextId;
+		private int mDeadIdCount;
+
+
+		Table(int aLineCount)
+		{
+			mKeys = new long[1024];
+			mPostings = new byte[1024][];
+			mLengths = new int[1024];
+			mLastIds = new int[1024];
+			mLineIds = new int[Math.max(aLineCount, 16)];
+			Arrays.fill(mKeys, EMPTY);
+		}
+
+
+		/**
+		 * Indexes a line following the lines indexed.
+		 */
+		void addLine(String aText)
+		{
+			if (mLineCount == mLineIds.length)
+			{
+				mLineIds = Arrays.copyOf(mLineIds, mLineCount * 3 / 2);
+			}
+			mLineIds[mLineCount++] = index(aText);
+		}
+
+
+		/**
+		 * Replaces the ids of the lines removed by a change with dirty ids for the lines inserted.
+		 */
+		void replaceLines(int aFirstLine, int aRemovedLineCount, int aInsertedLineCount)
+		{
+			int lineCount = mLineCount - aRemovedLineCount + aInsertedLineCount;
+
+			if (lineCount > mLineIds.length)
+			{
+				mLineIds = Arrays.copyOf(mLineIds, Math.max(lineCount, mLineIds.length * 3 / 2));
+			}
+
+			for (int line = aFirstLine; line < aFirstLine + aRemovedLineCount; line++)
+			{
+				if (mLineIds[line] != DIRTY)
+				{
+					mDeadIdCount++;
+				}
+			}
+
+			System.arraycopy(mLineIds, aFirstLine + aRemovedLineCount, mLineIds, aFirstLine + aInsertedLineCount, mLineCount - aFirstLine - aRemovedLineCount);
+			Arrays.fill(mLineIds, aFirstLine, aFirstLine + aInsertedLineCount, DIRTY);
+
+			mLineCount = lineCount;
+		}
+
+
+		void addDirtyLines(Document aDocument, int aFirstLine, int aEndLine)
+		{
+			for (int line = aFirstLine; line < aEndLine; line++)
+			{
+				if (mLineIds[line] == DIRTY)
+				{
+					mLineIds[line] = index(aDocument.getLine(line));
+				}
+			}
+		}
+
+
+		/**
+		 * Adds the trigrams of a line to the index returning the id given to the line.
+		 */
+		private int index(String aText)
+		{
+			int id = mNextId++;
+
+			for (int i = 0, end = aText.length() - 2; i < end; i++)
+			{
+				append(slot(key(aText, i)), id);
+			}
+
+			return id;
+		}
+
+
+		/**
+		 * Appends an id to a posting list unless already added, encoding the difference to the previous id seven bits per byte, the high
+		 * bit marking that more bytes follow.
+		 */
+		private void append(int aSlot, int aId)
+		{
+			int delta = aId - mLastIds[aSlot];
+
+			if (delta == 0)
+			{
+				return;
+			}
+
+			byte[] posting = mPostings[aSlot];
+			int length = mLengths[aSlot];
+
+			if (posting == null)
+			{
+				posting = mPostings[aSlot] = new byte[5];
+			}
+			else if (length + 5 > posting.length)
+			{
+				posting = mPostings[aSlot] = Arrays.copyOf(posting, posting.length + Math.max(posting.length / 2, 5));
+			}
+
+			for (; delta >= 0x80; delta >>>= 7)
+			{
+				posting[length++] = (byte)(delta | 0x80);
+			}
+			posting[length++] = (byte)delta;
+
+			mLengths[aSlot] = length;
+			mLastIds[aSlot] = aId;
+		}
+
+
+		/**
+		 * Sets the bits of the ids in a posting list.
+		 */
+		BitSet decode(int aSlot, BitSet aIds)
+		{
+			byte[] posting = mPostings[aSlot];
+
+			for (int i = 0, length = mLengths[aSlot], id = -1; i < length; )
+			{
+				int delta = 0;
+				for (int shift = 0; ; shift += 7)
+				{
+					byte b = posting[i++];
+					delta |= (b & 0x7f) << shift;
+					if (b >= 0)
+					{
+						break;
+					}
+				}
+				id += delta;
+				aIds.set(id);
+			}
+
+			return aIds;
+		}
+
+
+		/**
+		 * Returns the slot of a trigram or -1 if not found.
+		 */
+		int find(long aKey)
+		{
+			int mask = mKeys.length - 1;
+
+			for (int slot = hash(aKey) & mask; mKeys[slot] != EMPTY; slot = (slot + 1) & mask)
+			{
+				if (mKeys[slot] == aKey)
+				{
+					return slot;
+				}
+			}
+
+			return -1;
+		}
+
+
+		/**
+		 * Returns the slot of a trigram, adding it if not found.
+		 */
+		private int slot(long aKey)
+		{
+			int mask = mKeys.length - 1;
+			int slot = hash(aKey) & mask;
+
+			for (; mKeys[slot] != EMPTY; slot = (slot + 1) & mask)
+			{
+				if (mKeys[slot] == aKey)
+				{
+					return slot;
+				}
+			}
+
+			if (2 * (mSize + 1) > mKeys.length)
+			{
+				grow();
+				return slot(aKey);
+			}
+
+			mKeys[slot] = aKey;
+			mLastIds[slot] = -1;
+			mSize++;
+
+			return slot;
+		}
+
+
+		private void grow()
+		{
+			long[] keys = mKeys;
+			byte[][] postings = mPostings;
+			int[] lengths = mLengths;
+			int[] lastIds = mLastIds;
+			int capacity = 2 * keys.length;
+			int mask = capacity - 1;
+
+			mKeys = new long[capacity];
+			mPostings = new byte[capacity][];
+			mLengths = new int[capacity];
+			mLastIds = new int[capacity];
+			Arrays.fill(mKeys, EMPTY);
+
+			for (int i = 0; i < keys.length; i++)
+			{
+				if (keys[i] != EMPTY)
+				{
+					int slot = hash(keys[i]) & mask;
+					while (mKeys[slot] != EMPTY)
+					{
+						slot = (slot + 1) & mask;
+					}
+					mKeys[slot] = keys[i];
+					mPostings[slot] = postings[i];
+					mLengths[slot] = lengths[i];
+					mLastIds[slot] = lastIds[i];
+				}
+			}
+		}
+
+
+		/**
+		 * Releases the unused capacity of the posting lists.
+		 */
+		void trim()
+		{
+			for (int i = 0; i < mKeys.length; i++)
+			{
+				if (mPostings[i] != null && mPostings[i].length > mLengths[i])
+				{
+					mPostings[i] = Arrays.copyOf(mPostings[i], mLengths[i]);
+				}
+			}
+		}
+
+
+		long getMemoryUsage()
+		{
+			long size = mKeys.length * (8L + 8 + 4 + 4) + 4L * mLineIds.length;
+
+			for (byte[] posting : mPostings)
+			{
+				if (posting != null)
+				{
+					size += 16 + posting.length;
+				}
+			}
+
+			return size;
+		}
+
+
+		private static int hash(long aKey)
+		{
+			long h = aKey * 0x9E3779B97F4A7C15L;
+
+			return (int)(h >>> 32);
+		}
+	}
+
+
+	/**
+	 * Indexes a snapshot of the lines of the document.
+	 */
+	private class Builder implements Runnable
+	{
+		private final String[] mLines;
+		private volatile boolean mCancelled;
+
+
+		Builder(String[] aLines)
+		{
+			mLines = aLines;
+		}
+
+
+		@Override
+		public void run()
+		{
+			Table table = new Table(mLines.length);
+
+			for (int line = 0; line < mLines.length && !mCancelled; line++)
+			{
+				table.addLine(mLines[line]);
+			}
+
+			if (!mCancelled)
+			{
+				table.trim();
+				SwingUtilities.invokeLater(() -> buildCompleted(this, table));
+			}
+		}
+	}
+}
\ No newline at end of file
@@ -56,25 +56,57 @@ public class UndoManager
 
 
 	public void undo()
+	{
+		undo(null);
+	}
+
+
+	/**
+	 * Undoes the last edit restoring the caret and selection on the editor provided or, if null, on the editor that made the edit.
+	 */
+	public void undo(SourceEditor aSourceEditor)
 	{
 		if (mUndoableEdits.isEmpty())
 		{
 			throw new IllegalStateException("no undo edits exists");
 		}
 		UndoableEdit edit = mUndoableEdits.pop();
-		edit.undo();
+		if (aSourceEditor == null)
+		{
+			edit.undo();
+		}
+		else
+		{
+			edit.undo(aSourceEditor);
+		}
 		mRedoableEdits.push(edit);
 	}
 
 
 	public void redo()
+	{
+		redo(null);
+	}
+
+
+	/**
+	 * Redoes the last undone edit restoring the caret and selection on the editor provided or, if null, on the editor that made the edit.
+	 */
+	public void redo(SourceEditor aSourceEditor)
 	{
 		if (mRedoableEdits.isEmpty())
 		{
 			throw new IllegalStateException("no redo edits exists");
 		}
 		UndoableEdit edit = mRedoableEdits.pop();
-		edit.redo();
+		if (aSourceEditor == null)
+		{
+			edit.redo();
+		}
+		else
+		{
+			edit.redo(aSourceEditor);
+		}
 		mUndoableEdits.push(edit);
 	}
 
@@ -60,25 +60,53 @@ public class UndoableEdit
 	}
 
 
+	/**
+	 * Returns the editor making the edit.
+	 */
+	public SourceEditor getSourceEditor()
+	{
+		return mSourceEditor;
+	}
+
+
 	public void undo()
+	{
+		undo(mSourceEditor);
+	}
+
+
+	/**
+	 * Undoes the edit and restores the caret and selection from before the edit on the editor provided, which may be another editor
+	 * displaying the document than the editor making the edit.
+	 */
+	public void undo(SourceEditor aSourceEditor)
 	{
 		for (int i = mUndoableActions.size(); --i >= 0; )
 		{
 			mUndoableActions.get(i).undo();
 		}
 
-		mStartState.restore();
+		mStartState.restore(aSourceEditor);
 	}
 
 
 	public void redo()
+	{
+		redo(mSourceEditor);
+	}
+
+
+	/**
+	 * Redoes the edit and restores the caret and selection from after the edit on the editor provided.
+	 */
+	public void redo(SourceEditor aSourceEditor)
 	{
 		for (UndoableAction action : mUndoableActions)
 		{
 			action.redo();
 		}
 
-		mEndState.restore();
+		mEndState.restore(aSourceEditor);
 	}
 
 
@@ -88,6 +116,7 @@ public class UndoableEdit
 		private Point mSelectionStart;
 		private Point mSelectionEnd;
 		private boolean mRectangularSelection;
+		private MultiCaret mMultiCaret;
 
 
 		public State()
@@ -95,23 +124,25 @@ public class UndoableEdit
 			mSelectionStart = mSourceEditor.getSelectionStart();
 			mSelectionEnd = mSourceEditor.getSelectionEnd();
 			mRectangularSelection = mSourceEditor.isRectangularSelection();
-			mCaret = mSourceEditor.getCaret().getCharacterPosition();
+			mCaret = new Point(mSourceEditor.getCaret().getCharacterPosition());
+			mMultiCaret = mSourceEditor.getMultiCaret() == null ? null : mSourceEditor.getMultiCaret().copy(mSourceEditor);
 		}
 
 
-		public void restore()
+		public void restore(SourceEditor aSourceEditor)
 		{
-			mSourceEditor.getCaret().moveAbsolute(mCaret.x, mCaret.y, false, false, true);
+			aSourceEditor.getCaret().moveAbsolute(mCaret.x, mCaret.y, false, false, true);
 			if (mSelectionStart != null && mSelectionEnd != null)
 			{
-				mSourceEditor.setRectangularSelection(mRectangularSelection);
-				mSourceEditor.setSelectionStart(mSelectionStart.x, mSelectionStart.y);
-				mSourceEditor.setSelectionEnd(mSelectionEnd.x, mSelectionEnd.y);
+				aSourceEditor.setRectangularSelection(mRectangularSelection);
+				aSourceEditor.setSelectionStart(mSelectionStart.x, mSelectionStart.y);
+				aSourceEditor.setSelectionEnd(mSelectionEnd.x, mSelectionEnd.y);
 			}
 			else
 			{
-				mSourceEditor.clearSelection();
+				aSourceEditor.clearSelection();
 			}
+			aSourceEditor.setMultiCaret(mMultiCaret == null ? null : mMultiCaret.copy(aSourceEditor));
 		}
 	}
 }
@@ -0,0 +1,167 @@
+package org.terifan.sourcecodeeditor;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.BitSet;
+import javax.swing.Timer;
+
+
+/**
+ * Highlights the word at the caret in a SourceEditor once the caret has been still for the blink rate of the editor.
+ *
+ * The lines containing the highlighted word are kept in an occurrence index filled lazily as lines are painted. A line contains the word
+ * if any token supporting highlighting equals it ignoring case, which is the same test used when painting tokens. When the word changes
+ * only the visible rows that contained the previous word or contain the new word are repainted. Edits invalidate the index from the
+ * first line changed since the tokens of the following lines may change too.
+ */
+class WordHighlighter implements DocumentListener
+{
+	private final SourceEditor mSourceEditor;
+	private final Document mDocument;
+	private final TokenizationContext mTokenizationContext;
+	private final Timer mTimer;
+	private final BitSet mKnownLines;
+	private final BitSet mHighlightedLines;
+	private String mWord;
+
+
+	public WordHighlighter(SourceEditor aSourceEditor, Document aDocument, TokenizationContext aTokenizationContext, String aWord)
+	{
+		mSourceEditor = aSourceEditor;
+		mDocument = aDocument;
+		mTokenizationContext = aTokenizationContext;
+		mKnownLines = new BitSet();
+		mHighlightedLines = new BitSet();
+		mWord = aWord;
+		mTimer = new Timer(0, aEvent -> highlightWordAtCaret());
+		mTimer.setRepeats(false);
+	}
+
+
+	/**
+	 * Restarts the delay after which the word at the caret is highlighted. Called whenever the caret moves.
+	 */
+	public void schedule()
+	{
+		mTimer.setInitialDelay(Math.max(mSourceEditor.getCaretBlinkRate(), 0));
+		mTimer.restart();
+	}
+
+
+	public void stop()
+	{
+		mTimer.stop();
+	}
+
+
+	/**
+	 * Finds the token at the caret, tokenizing the caret line at most once, and highlights it if its style supports highlighting.
+	 */
+	private void highlightWordAtCaret()
+	{
+		Point p = mSourceEditor.getCaret().getCharacterPosition();
+
+		if (p.y < 0 || p.y >= mDocument.getLineCount())
+		{
+			return;
+		}
+
+		for (Token token : mTokenizationContext.getTokens(p.y, p.x, p.x + 1))
+		{
+			if (p.x >= token.getOffset() && p.x < token.getOffset() + token.length())
+			{
+				Style style = mSourceEditor.getStyle(token.getStyle());
+
+				if (style != null && style.isSupportHighlight())
+				{
+					mSourceEditor.setHighlightText(token.getText().trim());
+				}
+				return;
+			}
+		}
+	}
+
+
+	/**
+	 * Changes the highlighted word repainting the visible rows whose highlighting changes.
+	 */
+	public void setWord(String aWord)
+	{
+		int lineHeight = mSourceEditor.getFontHeight() + mSourceEditor.getLineSpacing();
+		Rectangle visible = mSourceEditor.getVisibleRect();
+		int top = mSourceEditor.getMargins().top;
+		int firstRow = Math.max((visible.y - top) / lineHeight, 0);
+		int lastRow = Math.min((visible.y + visible.height - top) / lineHeight, mSourceEditor.getRowCount() - 1);
+
+		boolean[] highlighted = new boolean[Math.max(lastRow - firstRow + 1, 0)];
+		for (int row = firstRow; row <= lastRow; row++)
+		{
+			highlighted[row - firstRow] = isHighlighted(mSourceEditor.getLineOfRow(row));
+		}
+
+		mWord = aWord;
+		mKnownLines.clear();
+		mHighlightedLines.clear();
+
+		for (int row = firstRow; row <= lastRow; row++)
+		{
+			int line = mSourceEditor.getLineOfRow(row);
+
+			if (isHighlighted(line) || highlighted[row - firstRow])
+			{
+				mSourceEditor.repaintLines(line, line);
+			}
+		}
+	}
+
+
+	/**
+	 * Returns true if the line provided contains the highlighted word.
+	 */
+	public boolean isHighlighted(int aLine)
+	{
+		if (mWord == null)
+		{
+			return false;
+		}
+
+		if (!mKnownLines.get(aLine))
+		{
+			mHighlightedLines.set(aLine, containsWord(aLine));
+			mKnownLines.set(aLine);
+		}
+
+		return mHighlightedLines.get(aLine);
+	}
+
+
+	private boolean containsWord(int aLine)
+	{
+		String text = mDocument.getLine(aLine);
+		int length = mWord.length();
+
+		for (int i = 0, n = text.length() - length; i <= n; i++)
+		{
+			if (text.regionMatches(true, i, mWord, 0, length))
+			{
+				// only the tokens around the match are needed, sparing the tokenization of all of a long line
+				for (Token token : mTokenizationContext.getTokens(aLine, i, i + length))
+				{
+					if (token.getOffset() == i && token.length() == length && mSourceEditor.getStyle(token.getStyle()).isSupportHighlight() && token.getText().equalsIgnoreCase(mWord))
+					{
+						return true;
+					}
+				}
+			}
+		}
+
+		return false;
+	}
+
+
+	@Override
+	public void documentChanged(DocumentEvent aEvent)
+	{
+		mKnownLines.clear(aEvent.getFirstLine(), Integer.MAX_VALUE);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,453 @@
+package org.terifan.sourcecodeeditor;
+
+import java.awt.Point;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.swing.JViewport;
+import javax.swing.Timer;
+
+
+/**
+ * Wraps the lines of a SourceEditor that are wider than the editor into several visual rows and translates between document lines and
+ * visual rows.
+ *
+ * The number of rows of every line is kept in an array with a Fenwick tree of prefix sums over it, lines hidden by a collapsed fold
+ * counting as zero rows, making the translation between lines and rows logarithmic in both directions. The tree is rebuilt when the
+ * number of lines or the folds change and updated in place when the number of rows of a single line changes.
+ *
+ * Lines are measured when they are painted or the caret moves to them. Lines edited and, when the width or the styles change, all lines
+ * are given an estimate derived from their length and measured in slices by a Swing timer, keeping the first visible line in place while
+ * the rows above it change.
+ */
+class WrapModel implements DocumentListener
+{
+	private final static int CAPACITY = 1024;
+	private final static long REFLOW_SLICE = 8_000_000;
+	private final static int[] NO_BREAKS = {0};
+
+	private final SourceEditor mSourceEditor;
+	private final Document mDocument;
+	private final FoldModel mFoldModel;
+	private final LinkedHashMap<Integer, Breaks> mBreaks;
+	private final Timer mTimer;
+	private int mSettingsVersion;
+	private int mWidth;
+	private int mCharWidth;
+
+	private int[] mRowSpans; // rows of every line, negative if the line hasn't been measured at the current width
+	private int[] mTree;
+	private int mFoldModificationCount;
+	private int mReflowLine;
+	private int mChangedLine;
+	private int mChangeCount;
+	private boolean mReflowing;
+
+
+	public WrapModel(SourceEditor aSourceEditor, Document aDocument, FoldModel aFoldModel)
+	{
+		mSourceEditor = aSourceEditor;
+		mDocument = aDocument;
+		mFoldModel = aFoldModel;
+		mTimer = new Timer(0, aEvent -> reflow());
+
+		mBreaks = new LinkedHashMap<>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Breaks> aEldest)
+			{
+				return size() > CAPACITY;
+			}
+		};
+	}
+
+
+	/**
+	 * Estimates the rows of all lines and starts measuring them if the width or the version of the layout settings provided differ from the
+	 * previous call.
+	 *
+	 * @param aWidth
+	 *   the width in pixels available to the text of a row
+	 */
+	public void validate(int aSettingsVersion, int aWidth)
+	{
+		if (mRowSpans != null && aWidth == mWidth && aSettingsVersion == mSettingsVersion)
+		{
+			return;
+		}
+
+		mSettingsVersion = aSettingsVersion;
+		mWidth = aWidth;
+		mCharWidth = Math.max(mSourceEditor.getStyle(SyntaxParser.WHITESPACE).getCharWidth(' '), 1);
+		mBreaks.clear();
+		mRowSpans = new int[mDocument.getLineCount()];
+		mTree = null;
+
+		for (int i = 0; i < mRowSpans.length; i++)
+		{
+			mRowSpans[i] = -estimateRowSpan(i);
+		}
+
+		mReflowLine = 0;
+		mTimer.start();
+	}
+
+
+	/**
+	 * Discards all rows and stops measuring lines.
+	 */
+	public void clear()
+	{
+		mTimer.stop();
+		mBreaks.clear();
+		mRowSpans = null;
+		mTree = null;
+		mSettingsVersion = -1;
+	}
+
+
+	/**
+	 * Returns the character offsets where the rows of a line start, the first row starting at offset zero. The line is measured if it
+	 * hasn't been already.
+	 */
+	public int[] getBreaks(int aLine)
+	{
+		int[] offsets = mSourceEditor.getLineLayout(aLine);
+		Breaks cached = mBreaks.get(aLine);
+		int[] breaks;
+
+		if (cached != null && cached.mOffsets == offsets)
+		{
+			breaks = cached.mBreaks;
+		}
+		else
+		{
+			breaks = findBreaks(mDocument.getLine(aLine), offsets);
+			mBreaks.put(aLine, new Breaks(offsets, breaks));
+		}
+
+		setRowSpan(aLine, breaks.length);
+
+		return breaks;
+	}
+
+
+	/**
+	 * Measures the lines displayed at the rows provided.
+	 */
+	public void measureRows(int aFirstRow, int aLastRow)
+	{
+		// measuring a line may change the rows of the lines following it, repeat until the rows displayed are stable
+		for (int pass = 0; pass < 3; pass++)
+		{
+			int changeCount = mChangeCount;
+
+			for (int line = getLine(aFirstRow), lineCount = mRowSpans.length; line < lineCount && getRow(line) <= aLastRow; )
+			{
+				getBreaks(line);
+
+				int next = getLine(getRow(line) + getRowSpan(line));
+				if (next <= line)
+				{
+					break;
+				}
+				line = next;
+			}
+
+			if (changeCount == mChangeCount)
+			{
+				break;
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the first row of a line. Hidden lines return the first row of the header of the fold hiding them and lines beyond the end of
+	 * the document a row each following the last row.
+	 */
+	public int getRow(int aLine)
+	{
+		validateTree();
+
+		if (aLine >= mRowSpans.length)
+		{
+			return prefixSum(mRowSpans.length) + aLine - mRowSpans.length;
+		}
+
+		return prefixSum(getVisibleLine(aLine));
+	}
+
+
+	/**
+	 * Returns the document line displayed at a row.
+	 */
+	public int getLine(int aRow)
+	{
+		validateTree();
+
+		int n = mRowSpans.length;
+		int line = 0;
+
+		for (int step = Integer.highestOneBit(Math.max(n, 1)); step > 0; step >>= 1)
+		{
+			if (line + step <= n && mTree[line + step] <= aRow)
+			{
+				line += step;
+				aRow -= mTree[line];
+			}
+		}
+
+		return Math.max(Math.min(line, n - 1), 0);
+	}
+
+
+	/**
+	 * Returns the number of rows displaying a line. Hidden lines return the rows of the header of the fold hiding them.
+	 */
+	public int getRowSpan(int aLine)
+	{
+		if (aLine >= mRowSpans.length)
+		{
+			return 1;
+		}
+
+		return Math.abs(mRowSpans[getVisibleLine(aLine)]);
+	}
+
+
+	public int getRowCount()
+	{
+		validateTree();
+
+		return prefixSum(mRowSpans.length);
+	}
+
+
+	@Override
+	public void documentChanged(DocumentEvent aEvent)
+	{
+		if (mRowSpans == null)
+		{
+			return;
+		}
+
+		int first = aEvent.getFirstLine();
+		int removed = aEvent.getRemovedLineCount();
+		int inserted = aEvent.getInsertedLineCount();
+
+		int[] previous = mRowSpans;
+
+		if (removed != inserted)
+		{
+			int[] rowSpans = new int[mRowSpans.length + inserted - removed];
+			System.arraycopy(mRowSpans, 0, rowSpans, 0, first);
+			System.arraycopy(mRowSpans, first + removed, rowSpans, first + inserted, mRowSpans.length - first - removed);
+			mRowSpans = rowSpans;
+			mTree = null;
+		}
+
+		// lines replaced keep their rows until measured again to avoid moving the rows following them back and forth
+		for (int i = first; i < first + inserted; i++)
+		{
+			updateRowSpan(i, -(i < first + removed ? Math.abs(previous[i]) : estimateRowSpan(i)));
+		}
+
+		mReflowLine = Math.min(mReflowLine, first);
+		mTimer.start();
+	}
+
+
+	private void setRowSpan(int aLine, int aRowSpan)
+	{
+		if (mRowSpans[aLine] != aRowSpan && updateRowSpan(aLine, aRowSpan))
+		{
+			mChangeCount++;
+
+			if (mReflowing)
+			{
+				mChangedLine = Math.min(mChangedLine, aLine);
+			}
+			else
+			{
+				mSourceEditor.rowsChanged(aLine);
+			}
+		}
+	}
+
+
+	/**
+	 * Stores the rows of a line returning true if the number of rows changed.
+	 */
+	private boolean updateRowSpan(int aLine, int aRowSpan)
+	{
+		int delta = Math.abs(aRowSpan) - Math.abs(mRowSpans[aLine]);
+
+		mRowSpans[aLine] = aRowSpan;
+
+		if (delta != 0 && mTree != null && !mFoldModel.isHidden(aLine))
+		{
+			for (int i = aLine + 1; i < mTree.length; i += i & -i)
+			{
+				mTree[i] += delta;
+			}
+		}
+
+		return delta != 0;
+	}
+
+
+	/**
+	 * Measures lines not measured at the current width for a slice of time, keeping the line at the top of the viewport in place.
+	 */
+	private void reflow()
+	{
+		JViewport viewport = mSourceEditor.getParent() instanceof JViewport ? (JViewport)mSourceEditor.getParent() : null;
+		int lineHeight = mSourceEditor.getFontHeight() + mSourceEditor.getLineSpacing();
+		Point viewPosition = viewport == null ? null : viewport.getViewPosition();
+		int anchorLine = viewport == null ? 0 : getLine(Math.max(viewPosition.y - mSourceEditor.getMargins().top, 0) / lineHeight);
+		int anchorRow = getRow(anchorLine);
+
+		long deadline = System.nanoTime() + REFLOW_SLICE;
+
+		mReflowing = true;
+		mChangedLine = Integer.MAX_VALUE;
+
+		try
+		{
+			for (; mReflowLine < mRowSpans.length && System.nanoTime() < deadline; mReflowLine++)
+			{
+				if (mRowSpans[mReflowLine] < 0)
+				{
+					getBreaks(mReflowLine);
+				}
+			}
+		}
+		finally
+		{
+			mReflowing = false;
+		}
+
+		if (mReflowLine >= mRowSpans.length)
+		{
+			mTimer.stop();
+		}
+
+		if (mChangedLine != Integer.MAX_VALUE)
+		{
+			mSourceEditor.rowsChanged(mChangedLine);
+
+			if (viewport != null && getRow(anchorLine) != anchorRow)
+			{
+				mSourceEditor.setSize(mSourceEditor.getWidth(), mSourceEditor.getPreferredSize().height);
+				viewport.setViewPosition(new Point(viewPosition.x, viewPosition.y + (getRow(anchorLine) - anchorRow) * lineHeight));
+			}
+		}
+	}
+
+
+	private int[] findBreaks(String aText, int[] aOffsets)
+	{
+		int length = aText.length();
+
+		if (mWidth <= 0 || aOffsets[length] <= mWidth)
+		{
+			return NO_BREAKS;
+		}
+
+		int[] breaks = new int[aOffsets[length] / mWidth + 2];
+		int count = 1;
+
+		for (int start = 0; aOffsets[length] - aOffsets[start] > mWidth; )
+		{
+			int end = Math.max(LineLayoutCache.findPosition(aOffsets, aOffsets[start] + mWidth), start + 1);
+			int position = end;
+
+			// break after the last whitespace of the row unless the row is a single word
+			while (position > start && aText.charAt(position - 1) != ' ' && aText.charAt(position - 1) != '\t')
+			{
+				position--;
+			}
+			if (position == start)
+			{
+				position = end;
+			}
+
+			if (count == breaks.length)
+			{
+				breaks = Arrays.copyOf(breaks, 2 * count);
+			}
+			breaks[count++] = position;
+			start = position;
+		}
+
+		return Arrays.copyOf(breaks, count);
+	}
+
+
+	private int estimateRowSpan(int aLine)
+	{
+		return mWidth <= 0 ? 1 : Math.max((mDocument.getLineLength(aLine) * mCharWidth + mWidth - 1) / mWidth, 1);
+	}
+
+
+	private int getVisibleLine(int aLine)
+	{
+		return mFoldModel.isHidden(aLine) ? mFoldModel.getLine(mFoldModel.getRow(aLine)) : aLine;
+	}
+
+
+	private int prefixSum(int aLine)
+	{
+		int sum = 0;
+
+		for (int i = aLine; i > 0; i -= i & -i)
+		{
+			sum += mTree[i];
+		}
+
+		return sum;
+	}
+
+
+	private void validateTree()
+	{
+		if (mTree != null && mFoldModificationCount == mFoldModel.getModificationCount())
+		{
+			return;
+		}
+
+		int n = mRowSpans.length;
+
+		mTree = new int[n + 1];
+		mFoldModificationCount = mFoldModel.getModificationCount();
+
+		for (int i = 1; i <= n; i++)
+		{
+			if (mFoldModel.isEmpty() || !mFoldModel.isHidden(i - 1))
+			{
+				mTree[i] += Math.abs(mRowSpans[i - 1]);
+			}
+
+			int parent = i + (i & -i);
+			if (parent <= n)
+			{
+				mTree[parent] += mTree[i];
+			}
+		}
+	}
+
+
+	private static class Breaks
+	{
+		final int[] mOffsets;
+		final int[] mBreaks;
+
+
+		Breaks(int[] aOffsets, int[] aBreaks)
+		{
+			mOffsets = aOffsets;
+			mBreaks = aBreaks;
+		}
+	}
+}
\ No newline at end of file
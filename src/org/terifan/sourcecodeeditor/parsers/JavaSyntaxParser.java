@@ -364,6 +364,7 @@ public class JavaSyntaxParser extends SyntaxParser
 				case '*':
 					if (mSourceLine.charAt(o + 1) == '/')
 					{
+						mTokenStyle = mCommentState;
 						mCommentState = null;
 						nextOffset = o + 2;
 						break outer;
@@ -934,6 +935,21 @@ public class JavaSyntaxParser extends SyntaxParser
 	}
 
 
+	@Override
+	public Object saveState()
+	{
+		return COMMENT_LINE.equals(mCommentState) ? null : mCommentState;
+	}
+
+
+	@Override
+	public void restoreState(Document aDocument, int aRow, Object aState)
+	{
+		mInitializedRow = aRow;
+		mCommentState = (String)aState;
+	}
+
+
 	@Override
 	public List<Token> parse(Document aDocument, int aRow, boolean aOptimizeTokens, boolean aOptimizeWhitespace)
 	{
@@ -33,6 +33,7 @@ public class SqlSyntaxParser extends SyntaxParser
 	private String mTokenStyle;
 	private String mCommentState;
 	private int mStringLiteralState;
+	private char mStringLiteralSymbol;
 	private boolean mOptimizeTokens;
 	private boolean mOptimizeWhitespace;
 	private int mInitializedRow;
@@ -303,6 +304,7 @@ public class SqlSyntaxParser extends SyntaxParser
 				case '*':
 					if (mSourceLine.charAt(o + 1) == '/')
 					{
+						mTokenStyle = mCommentState;
 						mCommentState = null;
 						nextOffset = o + 2;
 						break outer;
@@ -372,10 +374,15 @@ public class SqlSyntaxParser extends SyntaxParser
 
 	protected String scanStringLiteral()
 	{
+		if (mStringLiteralState == 0)
+		{
+			mStringLiteralSymbol = mSourceLine.charAt(mTokenOffset);
+		}
+
 		int o = mTokenOffset + (mStringLiteralState == 0 ? 1 : 0);
 		boolean foundTerminator = false;
 		boolean foundBreak = false;
-		char symbol = mSourceLine.charAt(mTokenOffset);
+		char symbol = mStringLiteralSymbol;
 
 		for (; o < mSourceLine.length()-1; o++)
 		{
@@ -845,6 +852,21 @@ public class SqlSyntaxParser extends SyntaxParser
 	}
 
 
+	@Override
+	public Object saveState()
+	{
+		return COMMENT_LINE.equals(mCommentState) ? null : mCommentState;
+	}
+
+
+	@Override
+	public void restoreState(Document aDocument, int aRow, Object aState)
+	{
+		mInitializedRow = aRow;
+		mCommentState = (String)aState;
+	}
+
+
 	@Override
 	public List<Token> parse(Document aDocument, int aRow, boolean aOptimizeTokens, boolean aOptimizeWhitespace)
 	{
@@ -291,6 +291,7 @@ public class XmlSyntaxParser extends SyntaxParser
 				case '-':
 					if (mSourceLine.charAt(o + 1) == '-' && mSourceLine.charAt(o + 2) == '>')
 					{
+						mTokenStyle = mCommentState;
 						mCommentState = null;
 						nextOffset = o + 3;
 						break outer;
@@ -520,6 +521,25 @@ public class XmlSyntaxParser extends SyntaxParser
 	}
 
 
+	/**
+	 * Returns the comment state if inside a comment, TAG if inside a tag or null.
+	 */
+	@Override
+	public Object saveState()
+	{
+		return mCommentState != null ? mCommentState : mInsideTag ? TAG : null;
+	}
+
+
+	@Override
+	public void restoreState(Document aDocument, int aRow, Object aState)
+	{
+		mInitializedRow = aRow;
+		mCommentState = COMMENT_BLOCK.equals(aState) ? COMMENT_BLOCK : null;
+		mInsideTag = aState != null;
+	}
+
+
 	@Override
 	public List<Token> parse(Document aDocument, int aRow, boolean aOptimizeTokens, boolean aOptimizeWhitespace)
 	{